@@ -17,10 +17,16 @@ LOCAL_SRC_FILES := \
         feature_mos/src/mosaic/trsMatrix.cpp \
         feature_mos/src/mosaic/AlignFeatures.cpp \
         feature_mos/src/mosaic/Blend.cpp \
+        feature_mos/src/mosaic/BatchStitcher.cpp \
+        feature_mos/src/mosaic/ColorKernels.cpp \
+        feature_mos/src/mosaic/ColorKernels_x86.cpp \
         feature_mos/src/mosaic/Delaunay.cpp \
+        feature_mos/src/mosaic/FrameStore.cpp \
         feature_mos/src/mosaic/ImageUtils.cpp \
+        feature_mos/src/mosaic/JpegWriter.cpp \
         feature_mos/src/mosaic/Mosaic.cpp \
         feature_mos/src/mosaic/Pyramid.cpp \
+        feature_mos/src/mosaic/ThreadPool.cpp \
         feature_mos/src/mosaic_renderer/Renderer.cpp \
         feature_mos/src/mosaic_renderer/WarpRenderer.cpp \
         feature_mos/src/mosaic_renderer/SurfaceTextureRenderer.cpp \
@@ -42,6 +48,10 @@ LOCAL_SRC_FILES := \
 
 ifeq ($(TARGET_ARCH), arm)
         LOCAL_SDK_VERSION := 9
+ifeq ($(ARCH_ARM_HAVE_NEON), true)
+        LOCAL_CFLAGS += -DHAVE_NEON
+        LOCAL_SRC_FILES += feature_mos/src/mosaic/ColorKernels_neon.cpp.neon
+endif
 endif
 
 ifeq ($(TARGET_ARCH), x86)
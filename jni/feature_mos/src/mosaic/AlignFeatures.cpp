@@ -38,13 +38,16 @@ Align::Align()
   reference_frame_index = 0;
   db_Identity3x3(Hcurr);
   db_Identity3x3(Hprev);
+  imageGray = (ImageType) ImageUtils::IMAGE_TYPE_NOIMAGE;
+  rows = NULL;
 }
 
 Align::~Align()
 {
   // Free gray-scale image
-  if (imageGray != ImageUtils::IMAGE_TYPE_NOIMAGE)
+  if (imageGray != (ImageType) ImageUtils::IMAGE_TYPE_NOIMAGE)
     ImageUtils::freeImage(imageGray);
+  delete[] rows;
 }
 
 char* Align::getRegProfileString()
@@ -87,8 +90,14 @@ int Align::initialize(int width, int height, bool _quarter_res, float _thresh_st
   this->width = width;
   this->height = height;
 
+  if (imageGray != (ImageType) ImageUtils::IMAGE_TYPE_NOIMAGE)
+    ImageUtils::freeImage(imageGray);
   imageGray = ImageUtils::allocateImage(width, height, 1);
 
+  // Allocated once so that adding frames does not touch the heap
+  delete[] rows;
+  rows = new ImageType[height];
+
   if (reg.Initialized())
     return ALIGN_RET_OK;
   else
@@ -106,7 +115,8 @@ int Align::addFrame(ImageType imageGray_)
   int ret_code = ALIGN_RET_OK;
 
  // Obtain a vector of pointers to rows in image and pass in to dbreg
-  ImageType *m_rows = ImageUtils::imageTypeToRowPointers(imageGray_, width, height);
+  ImageUtils::imageTypeToRowPointers(imageGray_, width, height, rows);
+  ImageType *m_rows = rows;
 
   if (frame_number == 0)
   {
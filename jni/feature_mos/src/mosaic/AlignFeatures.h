@@ -91,6 +91,7 @@ protected:
   bool quarter_res;     // Whether to process at quarter resolution
   float thresh_still;   // Translation threshold in pixels to detect still camera
   ImageType imageGray;
+  ImageType *rows;      // Row pointers of the frame being added, sized at initialize()
 };
 
 
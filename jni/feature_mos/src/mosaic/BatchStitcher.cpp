@@ -0,0 +1,577 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+///////////////////////////////////////////////////
+// BatchStitcher.cpp
+
+#include <dirent.h>
+#include <fcntl.h>
+#include <limits.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <sys/resource.h>
+#include <sys/time.h>
+#include <unistd.h>
+
+#include "BatchStitcher.h"
+#include "ColorKernels.h"
+#include "JpegWriter.h"
+#include "Mosaic.h"
+#include "trsMatrix.h"
+
+#include "Log.h"
+#define LOG_TAG "BatchStitcher"
+
+// Rows of the mosaic converted to RGB at a time when writing a PPM file
+#define PPM_BAND_ROWS 16
+
+// Same as the app for the low-res alignment
+#define LR_MIN_QUARTER_RES_WIDTH 180
+#define LR_THRESH_STILL 5.0f
+
+static double now_ms()
+{
+    struct timeval tv;
+    gettimeofday(&tv, NULL);
+    return 1000.0 * tv.tv_sec + tv.tv_usec / 1000.0;
+}
+
+static bool hasSuffix(const char *name, const char *suffix)
+{
+    size_t n = strlen(name);
+    size_t s = strlen(suffix);
+    return n > s && strcmp(name + n - s, suffix) == 0;
+}
+
+static int compareNames(const void *a, const void *b)
+{
+    return strcmp(*(char * const *) a, *(char * const *) b);
+}
+
+// Opens a binary PPM file of the form writeBinaryPPM writes, leaving it at
+// the first pixel. Unlike readBinaryPPM, only the one whitespace after the
+// maximum value is skipped, since the first pixel may look like whitespace.
+static FILE *openPPM(const char *path, int &width, int &height)
+{
+    FILE *f = fopen(path, "rb");
+    if (f == NULL)
+        return NULL;
+
+    int type, maxValue;
+    if (fscanf(f, "P%d %d %d %d", &type, &width, &height, &maxValue) != 4 ||
+            type != 6 || maxValue != 255 || width <= 0 || height <= 0 ||
+            fgetc(f) == EOF)
+    {
+        fclose(f);
+        return NULL;
+    }
+    return f;
+}
+
+BatchStitcher::BatchStitcher()
+{
+    blendingType = Blend::BLEND_TYPE_HORZ;
+    stripType = Blend::STRIP_TYPE_WIDE;
+    memoryBudget = 64 * 1024 * 1024;
+    scratchDir = NULL;
+    lowResAlignment = false;
+    jpegQuality = 100;
+    threadsPerJob = 1;
+
+    jobs = NULL;
+    stats = NULL;
+    numJobs = nextJob = failedJobs = 0;
+    done = NULL;
+    doneArg = NULL;
+}
+
+void BatchStitcher::setBlending(int blendingType, int stripType)
+{
+    this->blendingType = blendingType;
+    this->stripType = stripType;
+}
+
+void BatchStitcher::setFrameStore(size_t memoryBudget, const char *scratchDir)
+{
+    this->memoryBudget = memoryBudget;
+    this->scratchDir = scratchDir;
+}
+
+int BatchStitcher::listFrames(const char *dir, char **names, bool &raw)
+{
+    DIR *d = opendir(dir);
+    if (d == NULL)
+    {
+        LOGE("Could not open %s", dir);
+        return STITCH_RET_ERROR;
+    }
+
+    int numPPM = 0, numRaw = 0;
+    struct dirent *entry;
+    while ((entry = readdir(d)) != NULL)
+    {
+        bool ppm = hasSuffix(entry->d_name, ".ppm");
+        bool nv21 = hasSuffix(entry->d_name, ".nv21") || hasSuffix(entry->d_name, ".yuv");
+        if (!ppm && !nv21)
+            continue;
+
+        if (numPPM + numRaw == MAX_FRAMES)
+        {
+            LOGE("More than %d frames in %s, ignoring the rest", MAX_FRAMES, dir);
+            break;
+        }
+        names[numPPM + numRaw] = strdup(entry->d_name);
+        if (ppm)
+            numPPM++;
+        else
+            numRaw++;
+    }
+    closedir(d);
+
+    int n = numPPM + numRaw;
+    if (numPPM != 0 && numRaw != 0)
+    {
+        LOGE("Both PPM and NV21 frames in %s", dir);
+        for (int i = 0; i < n; i++)
+            free(names[i]);
+        return STITCH_RET_ERROR;
+    }
+
+    qsort(names, n, sizeof(char *), compareNames);
+    raw = numRaw != 0;
+    return n;
+}
+
+// Each line is the name of a frame followed by the 9 values of its
+// transformation, row by row. Lines starting with # are skipped.
+int BatchStitcher::readTransforms(const char *path, char **names, int numFrames,
+        double (*trs)[3][3], bool *found)
+{
+    FILE *f = fopen(path, "r");
+    if (f == NULL)
+    {
+        LOGE("Could not open %s", path);
+        return STITCH_RET_ERROR;
+    }
+
+    for (int i = 0; i < numFrames; i++)
+        found[i] = false;
+
+    char line[1024];
+    char name[NAME_MAX + 1];
+    double t[9];
+    while (fgets(line, sizeof(line), f) != NULL)
+    {
+        if (line[0] == '#' || line[0] == '\n')
+            continue;
+        if (sscanf(line, "%255s %lf %lf %lf %lf %lf %lf %lf %lf %lf", name,
+                &t[0], &t[1], &t[2], &t[3], &t[4], &t[5], &t[6], &t[7], &t[8]) != 10)
+        {
+            LOGE("Bad line in %s: %s", path, line);
+            fclose(f);
+            return STITCH_RET_ERROR;
+        }
+
+        for (int i = 0; i < numFrames; i++)
+        {
+            if (strcmp(names[i], name) == 0)
+            {
+                memcpy(trs[i], t, sizeof(t));
+                found[i] = true;
+                break;
+            }
+        }
+    }
+    fclose(f);
+    return STITCH_RET_OK;
+}
+
+int BatchStitcher::writeTransforms(const char *path, char **names, int *frameIndex,
+        int numFrames, double (*trs)[3][3])
+{
+    FILE *f = fopen(path, "w");
+    if (f == NULL)
+    {
+        LOGE("Could not open %s", path);
+        return STITCH_RET_ERROR;
+    }
+
+    for (int i = 0; i < numFrames; i++)
+    {
+        fprintf(f, "%s", names[frameIndex[i]]);
+        for (int j = 0; j < 9; j++)
+            fprintf(f, " %.17g", trs[i][j / 3][j % 3]);
+        fprintf(f, "\n");
+    }
+    return fclose(f) == 0 ? STITCH_RET_OK : STITCH_RET_ERROR;
+}
+
+// Reads a frame into buffer and stores it in the given slot. PPM frames are
+// converted to YVU 4:4:4 in yvu first.
+int BatchStitcher::loadFrame(const char *path, bool raw, int width, int height,
+        FrameStore &store, int index, ImageType yvu, ImageType buffer)
+{
+    FILE *f;
+    size_t size;
+    if (raw)
+    {
+        f = fopen(path, "rb");
+        size = width * height * 3 / 2;
+    }
+    else
+    {
+        int w, h;
+        f = openPPM(path, w, h);
+        if (f != NULL && (w != width || h != height))
+        {
+            LOGE("%s is %dx%d instead of %dx%d", path, w, h, width, height);
+            fclose(f);
+            return STITCH_RET_ERROR;
+        }
+        size = width * height * 3;
+    }
+
+    if (f == NULL)
+    {
+        LOGE("Could not read %s", path);
+        return STITCH_RET_ERROR;
+    }
+    bool complete = fread(buffer, 1, size, f) == size;
+    fclose(f);
+    if (!complete)
+    {
+        LOGE("%s is too short", path);
+        return STITCH_RET_ERROR;
+    }
+
+    int ret;
+    if (raw)
+    {
+        ret = store.putYUV420SP(index, buffer);
+    }
+    else
+    {
+        ColorKernels::get()->rgbToYvu444(yvu, buffer, width, height);
+        ret = store.putYVU24(index, yvu);
+    }
+    return ret == FrameStore::FRAMESTORE_RET_OK ? STITCH_RET_OK : STITCH_RET_ERROR;
+}
+
+// Writes a JPEG file, or a PPM file for any other extension
+int BatchStitcher::writeMosaic(const char *path, ImageType yvu, int width, int height,
+        size_t &bytes)
+{
+    bytes = 0;
+    int fd = open(path, O_WRONLY | O_CREAT | O_TRUNC, 0644);
+    if (fd < 0)
+    {
+        LOGE("Could not open %s", path);
+        return STITCH_RET_ERROR;
+    }
+
+    if (hasSuffix(path, ".jpg") || hasSuffix(path, ".jpeg"))
+    {
+        JpegWriter writer;
+        int ret = writer.write(fd, yvu, width, height, jpegQuality, 0);
+        bytes = writer.getBytesWritten();
+        ret |= close(fd);
+        return ret == JpegWriter::JPEG_RET_OK ? STITCH_RET_OK : STITCH_RET_ERROR;
+    }
+
+    FILE *f = fdopen(fd, "wb");
+    if (f == NULL)
+    {
+        close(fd);
+        return STITCH_RET_ERROR;
+    }
+
+    // Each band of rows is gathered into a small planar image so that the
+    // conversion to RGB does not need a copy of the whole mosaic.
+    int planeSize = width * height;
+    ImageType band = ImageUtils::allocateImage(width, PPM_BAND_ROWS, 3);
+    ImageType rgb = ImageUtils::allocateImage(width, PPM_BAND_ROWS, 3);
+    bool ok = fprintf(f, "P6\n%d %d\n255\n", width, height) > 0;
+
+    for (int y = 0; y < height && ok; y += PPM_BAND_ROWS)
+    {
+        int rows = height - y < PPM_BAND_ROWS ? height - y : PPM_BAND_ROWS;
+        int bandSize = width * rows;
+        for (int p = 0; p < 3; p++)
+            memcpy(band + p * bandSize, yvu + p * planeSize + y * width, bandSize);
+
+        ColorKernels::get()->yvu444ToRgb(rgb, band, width, rows);
+        ok = fwrite(rgb, 1, bandSize * 3, f) == (size_t) bandSize * 3;
+    }
+
+    ImageUtils::freeImage(band);
+    ImageUtils::freeImage(rgb);
+    bytes = ftell(f);
+    ok &= fclose(f) == 0;
+    return ok ? STITCH_RET_OK : STITCH_RET_ERROR;
+}
+
+int BatchStitcher::stitch(const StitchJob &job, int index, StitchStats &stats)
+{
+    double start = now_ms();
+    memset(&stats, 0, sizeof(stats));
+    stats.ret = STITCH_RET_ERROR;
+
+    char *names[MAX_FRAMES];
+    bool raw;
+    int n = listFrames(job.frameDir, names, raw);
+    if (n <= 0)
+    {
+        if (n == 0)
+            LOGE("No frames in %s", job.frameDir);
+        return stats.ret;
+    }
+    stats.numInputFrames = n;
+
+    char path[PATH_MAX];
+    int width = job.width;
+    int height = job.height;
+    if (!raw)
+    {
+        snprintf(path, sizeof(path), "%s/%s", job.frameDir, names[0]);
+        FILE *f = openPPM(path, width, height);
+        if (f != NULL)
+            fclose(f);
+        else
+            width = height = 0;
+    }
+
+    double (*trs)[3][3] = new double[n][3][3];
+    double (*mosaicTrs)[3][3] = new double[n][3][3];
+    bool *found = new bool[n];
+    int *frameIndex = new int[n];
+    ImageType buffer = NULL;
+    ImageType yvu = NULL;
+    ImageType lrImage = NULL;
+    ImageType mosaicImage = NULL;
+    FrameStore store;
+    Mosaic mosaic;
+    Mosaic lrMosaic;
+    bool haveTrs = job.trsPath != NULL;
+    bool lowRes = lowResAlignment && !haveTrs;
+    int lrWidth = width / LR_FACTOR;
+    int lrHeight = height / LR_FACTOR;
+    int ret = STITCH_RET_ERROR;
+
+    char scratchPath[PATH_MAX];
+    if (scratchDir != NULL)
+        snprintf(scratchPath, sizeof(scratchPath), "%s/batch_%d_%d.frames", scratchDir,
+                (int) getpid(), index);
+
+    if (width <= 0 || height <= 0)
+    {
+        LOGE("Unknown frame size for %s", job.frameDir);
+    }
+    else if (haveTrs && readTransforms(job.trsPath, names, n, trs, found) != STITCH_RET_OK)
+    {
+        // Logged
+    }
+    else if (store.initialize(width, height, n, memoryBudget,
+            scratchDir != NULL ? scratchPath : NULL) != FrameStore::FRAMESTORE_RET_OK ||
+            mosaic.initialize(blendingType, stripType, width, height, n, false, 0.0f)
+            != Mosaic::MOSAIC_RET_OK ||
+            (lowRes && lrMosaic.initialize(blendingType, stripType, lrWidth, lrHeight, n,
+            lrWidth > LR_MIN_QUARTER_RES_WIDTH, LR_THRESH_STILL) != Mosaic::MOSAIC_RET_OK))
+    {
+        LOGE("Could not initialize %s", job.frameDir);
+    }
+    else
+    {
+        mosaic.setNumThreads(threadsPerJob);
+        buffer = ImageUtils::allocateImage(width, height, 3);
+        yvu = ImageUtils::allocateImage(width, height, 3);
+        if (lowRes)
+            lrImage = ImageUtils::allocateImage(lrWidth, lrHeight, 3);
+        ret = STITCH_RET_OK;
+    }
+
+    // Frames go to the slot after the last accepted one, so a rejected frame
+    // is replaced by the next one.
+    for (int k = 0; k < n && ret == STITCH_RET_OK; k++)
+    {
+        if (haveTrs && !found[k])
+            continue;
+
+        int slot = mosaic.getNumFrames();
+        snprintf(path, sizeof(path), "%s/%s", job.frameDir, names[k]);
+
+        double t0 = now_ms();
+        if (loadFrame(path, raw, width, height, store, slot, yvu, buffer) != STITCH_RET_OK)
+        {
+            ret = STITCH_RET_ERROR;
+            break;
+        }
+
+        double t1 = now_ms();
+        int added;
+        if (haveTrs)
+        {
+            added = mosaic.addFrame(&store, slot, trs[k], 0);
+        }
+        else if (lowRes)
+        {
+            ColorKernels::get()->subsampleYvu444(lrImage, store.getYVU24(slot), width,
+                    height, LR_FACTOR);
+            added = lrMosaic.addFrame(lrImage);
+            if (added == Mosaic::MOSAIC_RET_OK || added == Mosaic::MOSAIC_RET_FEW_INLIERS)
+            {
+                double lrTrs[3][3];
+                lrMosaic.getFrameTRS(lrMosaic.getNumFrames() - 1, lrTrs);
+                scale33d(lrTrs, (double) width / lrWidth, trs[k]);
+                added = mosaic.addFrame(&store, slot, trs[k], REFINE_RADIUS);
+            }
+        }
+        else
+        {
+            added = mosaic.addFrame(&store, slot);
+        }
+        stats.loadMs += t1 - t0;
+        stats.alignMs += now_ms() - t1;
+
+        if (added == Mosaic::MOSAIC_RET_OK || added == Mosaic::MOSAIC_RET_FEW_INLIERS)
+            frameIndex[mosaic.getNumFrames() - 1] = k;
+    }
+
+    ImageUtils::freeImage(buffer);
+    ImageUtils::freeImage(yvu);
+    ImageUtils::freeImage(lrImage);
+
+    stats.numFrames = mosaic.getNumFrames();
+    if (ret == STITCH_RET_OK && stats.numFrames == 0)
+    {
+        LOGE("No frame of %s was accepted", job.frameDir);
+        ret = STITCH_RET_ERROR;
+    }
+
+    if (ret == STITCH_RET_OK)
+    {
+        float progress = 0.0f;
+        bool cancel = false;
+        double t0 = now_ms();
+        if (mosaic.createMosaic(progress, cancel) != Mosaic::MOSAIC_RET_OK)
+        {
+            LOGE("Could not blend %s", job.frameDir);
+            ret = STITCH_RET_ERROR;
+        }
+        else
+        {
+            mosaicImage = mosaic.getMosaic(stats.mosaicWidth, stats.mosaicHeight);
+        }
+        stats.blendMs = now_ms() - t0;
+    }
+
+    for (int i = 0; i < stats.numFrames; i++)
+        mosaic.getFrameTRS(i, mosaicTrs[i]);
+    stats.frameHeapBytes = store.getPeakHeapBytes();
+    stats.mappedFrames = store.getNumMappedFrames();
+    store.release();
+
+    if (ret == STITCH_RET_OK && mosaicImage != NULL)
+    {
+        stats.mosaicBytes = (size_t) stats.mosaicWidth * stats.mosaicHeight * 3;
+        double t0 = now_ms();
+        ret = writeMosaic(job.outputPath, mosaicImage, stats.mosaicWidth,
+                stats.mosaicHeight, stats.outputBytes);
+        stats.writeMs = now_ms() - t0;
+    }
+    ImageUtils::freeImage(mosaicImage);
+
+    if (ret == STITCH_RET_OK && job.trsOutPath != NULL)
+        ret = writeTransforms(job.trsOutPath, names, frameIndex, stats.numFrames, mosaicTrs);
+
+    for (int i = 0; i < n; i++)
+        free(names[i]);
+    delete[] trs;
+    delete[] mosaicTrs;
+    delete[] found;
+    delete[] frameIndex;
+
+    struct rusage usage;
+    getrusage(RUSAGE_SELF, &usage);
+    stats.peakRssKb = usage.ru_maxrss;
+    stats.totalMs = now_ms() - start;
+    stats.ret = ret;
+    return ret;
+}
+
+void *BatchStitcher::workerMain(void *arg)
+{
+    BatchStitcher *self = (BatchStitcher *) arg;
+
+    while (true)
+    {
+        pthread_mutex_lock(&self->mutex);
+        int index = self->nextJob < self->numJobs ? self->nextJob++ : -1;
+        pthread_mutex_unlock(&self->mutex);
+        if (index < 0)
+            break;
+
+        int ret = self->stitch(self->jobs[index], index, self->stats[index]);
+
+        pthread_mutex_lock(&self->mutex);
+        if (ret != STITCH_RET_OK)
+            self->failedJobs++;
+        if (self->done != NULL)
+            self->done(self->doneArg, index, self->jobs[index], self->stats[index]);
+        pthread_mutex_unlock(&self->mutex);
+    }
+    return NULL;
+}
+
+int BatchStitcher::run(const StitchJob *jobs, int numJobs, StitchStats *stats,
+        int parallelJobs, DoneFunc done, void *arg)
+{
+    this->jobs = jobs;
+    this->stats = stats;
+    this->numJobs = numJobs;
+    this->done = done;
+    this->doneArg = arg;
+    nextJob = 0;
+    failedJobs = 0;
+
+    int numThreads = parallelJobs < numJobs ? parallelJobs : numJobs;
+    if (numThreads > MAX_PARALLEL_JOBS)
+        numThreads = MAX_PARALLEL_JOBS;
+    if (numThreads < 1)
+        numThreads = 1;
+
+    pthread_mutex_init(&mutex, NULL);
+    pthread_t threads[MAX_PARALLEL_JOBS];
+    int started = 0;
+    for (; started < numThreads; started++)
+    {
+        if (pthread_create(&threads[started], NULL, workerMain, this) != 0)
+            break;
+    }
+    if (started == 0)
+    {
+        LOGE("Could not start the stitching threads");
+        pthread_mutex_destroy(&mutex);
+        return STITCH_RET_ERROR;
+    }
+
+    // Threads that did not start leave their jobs to the others.
+    for (int i = 0; i < started; i++)
+        pthread_join(threads[i], NULL);
+    pthread_mutex_destroy(&mutex);
+
+    return failedJobs;
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+///////////////////////////////////////////////////
+// BatchStitcher.h
+
+#ifndef BATCHSTITCHER_H_
+#define BATCHSTITCHER_H_
+
+#include <pthread.h>
+#include <stddef.h>
+
+#include "Blend.h"
+#include "FrameStore.h"
+#include "ImageUtils.h"
+
+/**
+ *  A panorama to stitch from frames on disk.
+ *
+ *  The frames are the files of a directory in name order, either binary PPM
+ *  files (.ppm) or raw NV21 files (.nv21 or .yuv) of the given size.
+ */
+struct StitchJob
+{
+  const char *frameDir;
+  int width, height;          // Size of raw NV21 frames, unused for PPM
+  const char *trsPath;        // Transformations to use instead of aligning, or NULL
+  const char *trsOutPath;     // File to write the transformations to, or NULL
+  const char *outputPath;     // Mosaic to write, .jpg or .ppm
+};
+
+/**
+ *  What stitching a StitchJob took.
+ */
+struct StitchStats
+{
+  int ret;                    // Return code of the job
+  int numInputFrames;
+  int numFrames;              // Frames in the mosaic
+  int mosaicWidth, mosaicHeight;
+
+  double loadMs;              // Reading and converting the frames
+  double alignMs;             // Aligning or placing the frames
+  double blendMs;             // Blending the mosaic
+  double writeMs;             // Writing the mosaic
+  double totalMs;
+
+  size_t frameHeapBytes;      // Peak bytes of frames on the heap
+  int mappedFrames;           // Frames kept in the scratch file
+  size_t mosaicBytes;         // Bytes of the YVU mosaic
+  size_t outputBytes;
+  long peakRssKb;             // Peak resident memory of the process so far
+};
+
+/**
+ *  Stitches panoramas offline, several at a time.
+ *
+ *  Each job goes through the same steps as a capture in the app: the frames
+ *  are kept in a FrameStore, aligned (at full resolution, or at a quarter of
+ *  it and refined as the app does) or placed with given transformations,
+ *  blended, and the mosaic is written to its file one row of blocks at a
+ *  time. Jobs run on their own threads and share nothing but the settings.
+ */
+class BatchStitcher
+{
+
+public:
+
+  /**
+   *  Called as each job is done, one call at a time.
+   */
+  typedef void (*DoneFunc)(void *arg, int index, const StitchJob &job,
+          const StitchStats &stats);
+
+  BatchStitcher();
+
+  void setBlending(int blendingType, int stripType);
+
+   /*!
+    *   Keeps the frames of each job past the budget in a scratch file in the
+    *   directory, instead of on the heap.
+    */
+  void setFrameStore(size_t memoryBudget, const char *scratchDir);
+
+   /*!
+    *   Aligns the frames at a quarter of their size and refines the
+    *   alignment at full size, as the app does, instead of aligning them at
+    *   full size.
+    */
+  void setLowResAlignment(bool enable) { lowResAlignment = enable; }
+
+  void setJpegQuality(int quality) { jpegQuality = quality; }
+
+   /*!
+    *   Sets the number of threads blending each mosaic.
+    */
+  void setThreadsPerJob(int numThreads) { threadsPerJob = numThreads; }
+
+   /*!
+    *   Stitches one panorama on the calling thread.
+    *   \param job          Panorama to stitch
+    *   \param index        Number of the job, to name its scratch file
+    *   \param stats        What the job took (returned)
+    *   \return             Return code signifying success or failure.
+    */
+  int stitch(const StitchJob &job, int index, StitchStats &stats);
+
+   /*!
+    *   Stitches the panoramas on parallelJobs threads, each taking the next
+    *   job as it is done with one.
+    *   \param jobs         Panoramas to stitch
+    *   \param numJobs      Number of panoramas
+    *   \param stats        What each job took (returned)
+    *   \param parallelJobs Number of jobs at a time
+    *   \param done         Called as each job is done, or NULL
+    *   \param arg          Passed to done
+    *   \return             Number of jobs that failed, or
+    *                       STITCH_RET_ERROR if the threads did not start
+    */
+  int run(const StitchJob *jobs, int numJobs, StitchStats *stats,
+          int parallelJobs, DoneFunc done, void *arg);
+
+  static const int MAX_FRAMES = 200;
+  static const int MAX_PARALLEL_JOBS = 64;
+
+  static const int LR_FACTOR = 4;           // Same as H2L_FACTOR in the app
+  static const int REFINE_RADIUS = LR_FACTOR / 2;
+
+  static const int STITCH_RET_OK = 0;
+  static const int STITCH_RET_ERROR = -1;
+
+protected:
+
+  int listFrames(const char *dir, char **names, bool &raw);
+  int readTransforms(const char *path, char **names, int numFrames,
+          double (*trs)[3][3], bool *found);
+  int writeTransforms(const char *path, char **names, int *frameIndex,
+          int numFrames, double (*trs)[3][3]);
+  int loadFrame(const char *path, bool raw, int width, int height,
+          FrameStore &store, int index, ImageType yvu, ImageType buffer);
+  int writeMosaic(const char *path, ImageType yvu, int width, int height,
+          size_t &bytes);
+
+  static void *workerMain(void *arg);
+
+  int blendingType;
+  int stripType;
+  size_t memoryBudget;
+  const char *scratchDir;
+  bool lowResAlignment;
+  int jpegQuality;
+  int threadsPerJob;
+
+  /**
+   *  The jobs of run(), handed out to the workers under the mutex.
+   */
+  pthread_mutex_t mutex;
+  const StitchJob *jobs;
+  StitchStats *stats;
+  int numJobs;
+  int nextJob;
+  int failedJobs;
+  DoneFunc done;
+  void *doneArg;
+};
+
+#endif
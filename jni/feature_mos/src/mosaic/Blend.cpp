@@ -32,10 +32,16 @@
 Blend::Blend()
 {
   m_wb.blendingType = BLEND_TYPE_NONE;
+  m_AllSites = NULL;
+  m_streaming = false;
+  m_streamEdges = NULL;
+  m_streamMos = NULL;
 }
 
 Blend::~Blend()
 {
+    abortStream();
+
     if (m_pFrameVPyr) free(m_pFrameVPyr);
     if (m_pFrameUPyr) free(m_pFrameUPyr);
     if (m_pFrameYPyr) free(m_pFrameYPyr);
@@ -74,6 +80,17 @@ int Blend::initialize(int blendingType, int stripType, int frame_width, int fram
     return BLEND_RET_OK;
 }
 
+int Blend::setNumThreads(int numThreads)
+{
+    if (m_threadPool.initialize(numThreads) != ThreadPool::THREADPOOL_RET_OK)
+    {
+        LOGE("Error: Could not start %d blending threads", numThreads);
+        return BLEND_RET_ERROR;
+    }
+
+    return BLEND_RET_OK;
+}
+
 inline double max(double a, double b) { return a > b ? a : b; }
 inline double min(double a, double b) { return a < b ? a : b; }
 
@@ -137,69 +154,15 @@ int Blend::runBlend(MosaicFrame **oframes, MosaicFrame **rframes,
 
     global_rect.lft = global_rect.bot = 2e30; // min values
     global_rect.rgt = global_rect.top = -2e30; // max values
-    MosaicFrame *mb = NULL;
-    double halfwidth = width / 2.0;
-    double halfheight = height / 2.0;
-
-    double z, x0, y0, x1, y1, x2, y2, x3, y3;
-
-    // Corners of the left-most and right-most frames respectively in the
-    // mosaic coordinate system.
-    double xLeftCorners[2] = {2e30, 2e30};
-    double xRightCorners[2] = {-2e30, -2e30};
-
-    // Corners of the top-most and bottom-most frames respectively in the
-    // mosaic coordinate system.
-    double yTopCorners[2] = {2e30, 2e30};
-    double yBottomCorners[2] = {-2e30, -2e30};
 
+    FrameCorners corners;
+    InitCorners(corners);
 
     // Determine the extents of the final mosaic
     CSite *csite = m_AllSites ;
     for(int mfit = 0; mfit < frames_size; mfit++)
     {
-        mb = frames[mfit];
-
-        // Compute clipping for this frame's rect
-        FrameToMosaicRect(mb->width, mb->height, mb->trs, mb->brect);
-        // Clip global rect using this frame's rect
-        ClipRect(mb->brect, global_rect);
-
-        // Calculate the corner points
-        FrameToMosaic(mb->trs, 0.0,             0.0,            x0, y0);
-        FrameToMosaic(mb->trs, 0.0,             mb->height-1.0, x1, y1);
-        FrameToMosaic(mb->trs, mb->width-1.0,   mb->height-1.0, x2, y2);
-        FrameToMosaic(mb->trs, mb->width-1.0,   0.0,            x3, y3);
-
-        if(x0 < xLeftCorners[0] || x1 < xLeftCorners[1])    // If either of the left corners is lower
-        {
-            xLeftCorners[0] = x0;
-            xLeftCorners[1] = x1;
-        }
-
-        if(x3 > xRightCorners[0] || x2 > xRightCorners[1])    // If either of the right corners is higher
-        {
-            xRightCorners[0] = x3;
-            xRightCorners[1] = x2;
-        }
-
-        if(y0 < yTopCorners[0] || y3 < yTopCorners[1])    // If either of the top corners is lower
-        {
-            yTopCorners[0] = y0;
-            yTopCorners[1] = y3;
-        }
-
-        if(y1 > yBottomCorners[0] || y2 > yBottomCorners[1])    // If either of the bottom corners is higher
-        {
-            yBottomCorners[0] = y1;
-            yBottomCorners[1] = y2;
-        }
-
-
-        // Compute the centroid of the warped region
-        FindQuadCentroid(x0, y0, x1, y1, x2, y2, x3, y3, csite->getVCenter().x, csite->getVCenter().y);
-
-        csite->setMb(mb);
+        PlaceSite(csite, frames[mfit], global_rect, corners);
         csite++;
     }
 
@@ -216,22 +179,14 @@ int Blend::runBlend(MosaicFrame **oframes, MosaicFrame **rframes,
     Mwidth = (unsigned short) (fullRect.right - fullRect.left + 1);
     Mheight = (unsigned short) (fullRect.bottom - fullRect.top + 1);
 
-    int xLeftMost, xRightMost;
-    int yTopMost, yBottomMost;
-
-    // Rounding up, so that we don't include the gray border.
-    xLeftMost = max(0, max(xLeftCorners[0], xLeftCorners[1]) - fullRect.left + 1);
-    xRightMost = min(Mwidth - 1, min(xRightCorners[0], xRightCorners[1]) - fullRect.left - 1);
-
-    yTopMost = max(0, max(yTopCorners[0], yTopCorners[1]) - fullRect.top + 1);
-    yBottomMost = min(Mheight - 1, min(yBottomCorners[0], yBottomCorners[1]) - fullRect.top - 1);
+    // Bounding rectangle that determines the positioning of the rectangle that is
+    // cropped out of the computed mosaic to get rid of the gray borders.
+    MosaicRect cropping_rect;
 
-    if (xRightMost <= xLeftMost || yBottomMost <= yTopMost)
+    ret = InitCroppingRect(corners, fullRect, Mwidth, Mheight, cropping_rect);
+    if (ret != BLEND_RET_OK)
     {
-        LOGE("RunBlend: aborting -consistency check failed,"
-             "(xLeftMost, xRightMost, yTopMost, yBottomMost): (%d, %d, %d, %d)",
-             xLeftMost, xRightMost, yTopMost, yBottomMost);
-        return BLEND_RET_ERROR;
+        return ret;
     }
 
     // Make sure image width is multiple of 4
@@ -265,21 +220,6 @@ int Blend::runBlend(MosaicFrame **oframes, MosaicFrame **rframes,
     int n = m_Triangulator.triangulate(&edge, numCenters, width, height);
     m_Triangulator.linkNeighbors(edge, n, numCenters);
 
-    // Bounding rectangle that determines the positioning of the rectangle that is
-    // cropped out of the computed mosaic to get rid of the gray borders.
-    MosaicRect cropping_rect;
-
-    if (m_wb.horizontal)
-    {
-        cropping_rect.left = xLeftMost;
-        cropping_rect.right = xRightMost;
-    }
-    else
-    {
-        cropping_rect.top = yTopMost;
-        cropping_rect.bottom = yBottomMost;
-    }
-
     // Do merging and blending :
     ret = DoMergeAndBlend(frames, numCenters, width, height, *imgMos, fullRect,
             cropping_rect, progress, cancelComputation);
@@ -307,6 +247,502 @@ int Blend::runBlend(MosaicFrame **oframes, MosaicFrame **rframes,
     return ret;
 }
 
+// Copies the levels of a pyramid, with their borders, into a larger one whose
+// origin is (dx, dy) further out. dx and dy are multiples of
+// STREAM_MOSAIC_ALIGN, so every level moves by whole pixels.
+static void CopyPyramid(PyramidShort *in, PyramidShort *out, int levels, int dx, int dy)
+{
+    for (int l = 0; l < levels; l++, in++, out++)
+    {
+        int border = in->border;
+        int ox = dx >> l;
+        int oy = dy >> l;
+
+        for (int j = -border; j < in->height + border; j++)
+        {
+            memcpy(out->ptr[j + oy] + ox - border, in->ptr[j] - border,
+                    (in->width + 2 * border) * sizeof(short));
+        }
+    }
+}
+
+int Blend::beginStream(int maxFrames)
+{
+    abortStream();
+
+    if (m_wb.blendingType != BLEND_TYPE_HORZ)
+    {
+        LOGE("Error: Only horizontal mosaics can be blended as frames are added");
+        return BLEND_RET_ERROR;
+    }
+
+    // The sites are triangulated as they are added
+    m_AllSites = m_Triangulator.allocMemory(maxFrames);
+    m_streamEdges = (SEdgeVector *) malloc(sizeof(SEdgeVector) * maxFrames);
+    if (m_AllSites == NULL || m_streamEdges == NULL)
+    {
+        free(m_streamEdges);
+        m_Triangulator.freeMemory();
+        m_streamEdges = NULL;
+        m_AllSites = NULL;
+        return BLEND_RET_ERROR_MEMORY;
+    }
+    m_Triangulator.beginInsertion();
+
+    m_streamMaxSites = maxFrames;
+    m_streamFrames = 0;
+    m_streamSites = 0;
+    m_streamBlended = 0;
+    m_streamLast = NULL;
+
+    m_streamMos = NULL;
+    m_pMosaicYPyr = NULL;
+    m_pMosaicUPyr = NULL;
+    m_pMosaicVPyr = NULL;
+
+    m_streamExtent.lft = m_streamExtent.bot = 2e30; // min values
+    m_streamExtent.rgt = m_streamExtent.top = -2e30; // max values
+    InitCorners(m_streamCorners);
+
+    // The mosaic stays in the coordinate system of the first frame
+    m_wb.theta = 0.0;
+
+    m_streaming = true;
+
+    return BLEND_RET_OK;
+}
+
+int Blend::addStreamFrame(MosaicFrame *mb)
+{
+    if (!m_streaming)
+        return BLEND_RET_ERROR;
+
+    m_streamFrames++;
+
+    // For WIDE strip mode, accept the same frames as SelectRelevantFrames().
+    // The last frame is always accepted, so keep it until the next one.
+    if (m_wb.stripType == STRIP_TYPE_WIDE)
+    {
+        double midX = mb->width / 2.0;
+        double midY = mb->height / 2.0;
+        double z = ProjZ(mb->trs, midX, midY, 1.0);
+        double currX = ProjX(mb->trs, midX, midY, z, 1.0);
+        double currY = ProjY(mb->trs, midX, midY, z, 1.0);
+
+        if (m_streamSites > 0 &&
+                fabs(currX - m_streamPrevX) <= STRIP_SEPARATION_THRESHOLD_PXLS &&
+                fabs(currY - m_streamPrevY) <= STRIP_SEPARATION_THRESHOLD_PXLS)
+        {
+            m_streamLast = mb;
+            return BLEND_RET_OK;
+        }
+
+        m_streamPrevX = currX;
+        m_streamPrevY = currY;
+    }
+
+    m_streamLast = NULL;
+
+    return AddStreamSite(mb);
+}
+
+int Blend::AddStreamSite(MosaicFrame *mb)
+{
+    if (m_streamSites >= m_streamMaxSites)
+    {
+        LOGE("Error: More frames than the %d expected", m_streamMaxSites);
+        return BLEND_RET_ERROR;
+    }
+
+    PlaceSite(m_AllSites + m_streamSites, mb, m_streamExtent, m_streamCorners);
+
+    if (!m_Triangulator.insertSite((SitePointer) m_streamSites))
+    {
+        LOGE("Error: Could not triangulate site %d", m_streamSites);
+        return BLEND_RET_ERROR;
+    }
+
+    int ret = GrowStreamMosaic();
+    if (ret != BLEND_RET_OK)
+        return ret;
+
+    m_streamSites++;
+
+    // Blend the sites that enough sites have been added after
+    while (ret == BLEND_RET_OK &&
+            m_streamBlended + STREAM_SITE_WINDOW < m_streamSites)
+    {
+        ret = BlendStreamSite(m_streamBlended++);
+    }
+
+    return ret;
+}
+
+int Blend::BlendStreamSite(int site)
+{
+    CSite *csite = m_AllSites + site;
+    MosaicFrame *mb = csite->getMb();
+
+    // Link the site to its neighbors among the sites added so far. Only the
+    // ones added since can differ from what runBlend() finds with all the
+    // sites, and the sites come in the order of the sweep.
+    csite->setNeighbor(m_streamEdges);
+    csite->setNumNeighbors(m_Triangulator.neighbors((SitePointer) site,
+            m_streamEdges, width, height));
+
+    mb->vcrect = mb->brect;
+    ClipBlendRect(csite, mb->vcrect);
+
+    ComputeMask(csite, mb->vcrect, mb->brect, m_streamRect, *m_streamMos, site);
+
+    if (FillFramePyramid(mb) != BLEND_RET_OK)
+        return BLEND_RET_ERROR;
+
+    ProcessPyramidForThisFrame(csite, mb->vcrect, mb->brect, m_streamRect,
+            *m_streamMos, mb->trs, site);
+
+    return BLEND_RET_OK;
+}
+
+int Blend::GrowStreamMosaic()
+{
+    int left = (int) floor(m_streamExtent.lft);
+    int top = (int) floor(m_streamExtent.bot);
+    int right = (int) ceil(m_streamExtent.rgt) + 1;
+    int bottom = (int) ceil(m_streamExtent.top) + 1;
+
+    // The mosaic sizes are unsigned short
+    if (right - left > 0x7fff || bottom - top > 0x7fff)
+    {
+        LOGE("GrowStreamMosaic: aborting - mosaic too large");
+        return BLEND_RET_ERROR;
+    }
+
+    // Stop as soon as the frames make a mosaic that runBlend() would reject
+    Mwidth = (unsigned short) ((right - left + 3) & ~3);
+    Mheight = (unsigned short) ((bottom - top + 3) & ~3);
+
+    if (Mwidth >= width && Mheight >= height &&
+            MosaicSizeCheck(LIMIT_SIZE_MULTIPLIER, LIMIT_HEIGHT_MULTIPLIER) != BLEND_RET_OK)
+    {
+        LOGE("GrowStreamMosaic: aborting - mosaic size check failed, "
+             "(frame_width, frame_height) vs (mosaic_width, mosaic_height): "
+             "(%d, %d) vs (%d, %d)", width, height, Mwidth, Mheight);
+        return BLEND_RET_ERROR;
+    }
+
+    if (m_streamMos != NULL &&
+            left >= m_streamRect.left && right <= m_streamRect.right &&
+            top >= m_streamRect.top && bottom <= m_streamRect.bottom)
+    {
+        return BLEND_RET_OK;
+    }
+
+    // Leave room for another frame along the sweep, so that the mosaic is
+    // only copied every few frames.
+    if (m_streamMos != NULL)
+    {
+        bool sweepX = right - left - width >= bottom - top - height;
+        int slackX = sweepX ? width : 0;
+        int slackY = sweepX ? 0 : height;
+
+        left = (left < m_streamRect.left) ? left - slackX : m_streamRect.left;
+        right = (right > m_streamRect.right) ? right + slackX : m_streamRect.right;
+        top = (top < m_streamRect.top) ? top - slackY : m_streamRect.top;
+        bottom = (bottom > m_streamRect.bottom) ? bottom + slackY : m_streamRect.bottom;
+    }
+
+    MosaicRect rect;
+    rect.left = left & ~(STREAM_MOSAIC_ALIGN - 1);
+    rect.top = top & ~(STREAM_MOSAIC_ALIGN - 1);
+    rect.right = rect.left + ((right - rect.left + STREAM_MOSAIC_ALIGN - 1) & ~(STREAM_MOSAIC_ALIGN - 1));
+    rect.bottom = rect.top + ((bottom - rect.top + STREAM_MOSAIC_ALIGN - 1) & ~(STREAM_MOSAIC_ALIGN - 1));
+
+    if (rect.Width() > 0xffff || rect.Height() > 0xffff)
+    {
+        LOGE("GrowStreamMosaic: aborting - mosaic too large");
+        return BLEND_RET_ERROR;
+    }
+
+    LOGI("Grow mosaic image for blending - size: %d x %d", rect.Width(), rect.Height());
+    YUVinfo *imgMos = YUVinfo::allocateImage(rect.Width(), rect.Height());
+    PyramidShort *yPyr = PyramidShort::allocatePyramidPacked(m_wb.nlevs,
+            (unsigned short) rect.Width(), (unsigned short) rect.Height(), BORDER);
+    PyramidShort *uPyr = PyramidShort::allocatePyramidPacked(m_wb.nlevsC,
+            (unsigned short) rect.Width(), (unsigned short) rect.Height(), BORDER);
+    PyramidShort *vPyr = PyramidShort::allocatePyramidPacked(m_wb.nlevsC,
+            (unsigned short) rect.Width(), (unsigned short) rect.Height(), BORDER);
+
+    if (imgMos == NULL || !yPyr || !uPyr || !vPyr)
+    {
+        LOGE("GrowStreamMosaic: aborting - couldn't alloc %d x %d mosaic image",
+                rect.Width(), rect.Height());
+        if (imgMos != NULL)
+        {
+            ImageUtils::freeImage(imgMos->Y.ptr[0]);
+            free(imgMos);
+        }
+        PyramidShort::freeImage(vPyr);
+        PyramidShort::freeImage(uPyr);
+        PyramidShort::freeImage(yPyr);
+        return BLEND_RET_ERROR_MEMORY;
+    }
+
+    // Set the Y image to 255 so we can distinguish when frame idx are written to it
+    memset(imgMos->Y.ptr[0], 255, (imgMos->Y.width * imgMos->Y.height));
+    // Set the v and u images to black
+    memset(imgMos->V.ptr[0], 128, (imgMos->V.width * imgMos->V.height) << 1);
+
+    // Move what is blended so far into the new mosaic
+    if (m_streamMos != NULL)
+    {
+        int dx = m_streamRect.left - rect.left;
+        int dy = m_streamRect.top - rect.top;
+
+        for (int j = 0; j < m_streamMos->Y.height; j++)
+        {
+            memcpy(imgMos->Y.ptr[j + dy] + dx, m_streamMos->Y.ptr[j], m_streamMos->Y.width);
+            memcpy(imgMos->V.ptr[j + dy] + dx, m_streamMos->V.ptr[j], m_streamMos->V.width);
+            memcpy(imgMos->U.ptr[j + dy] + dx, m_streamMos->U.ptr[j], m_streamMos->U.width);
+        }
+
+        CopyPyramid(m_pMosaicYPyr, yPyr, m_wb.nlevs, dx, dy);
+        CopyPyramid(m_pMosaicUPyr, uPyr, m_wb.nlevsC, dx, dy);
+        CopyPyramid(m_pMosaicVPyr, vPyr, m_wb.nlevsC, dx, dy);
+
+        ImageUtils::freeImage(m_streamMos->Y.ptr[0]);
+        free(m_streamMos);
+        PyramidShort::freeImage(m_pMosaicVPyr);
+        PyramidShort::freeImage(m_pMosaicUPyr);
+        PyramidShort::freeImage(m_pMosaicYPyr);
+    }
+
+    m_streamMos = imgMos;
+    m_streamRect = rect;
+    m_pMosaicYPyr = yPyr;
+    m_pMosaicUPyr = uPyr;
+    m_pMosaicVPyr = vPyr;
+
+    return BLEND_RET_OK;
+}
+
+int Blend::endStream(MosaicFrame **frames, int frames_size,
+        ImageType &imageMosaicYVU, int &mosaicWidth, int &mosaicHeight,
+        float &progress, bool &cancelComputation)
+{
+    if (!m_streaming)
+        return BLEND_RET_ERROR;
+
+    int ret = BLEND_RET_OK;
+
+    // Only the last few of the frames added so far are left to blend
+    progress += TIME_PERCENT_BLEND * m_streamFrames / frames_size;
+
+    while (ret == BLEND_RET_OK && m_streamFrames < frames_size)
+    {
+        if (cancelComputation)
+            ret = BLEND_RET_CANCELLED;
+        else
+            ret = addStreamFrame(frames[m_streamFrames]);
+
+        progress += TIME_PERCENT_BLEND / frames_size;
+    }
+
+    if (ret == BLEND_RET_OK && m_streamLast != NULL)
+    {
+        // Add last frame by default
+        ret = AddStreamSite(m_streamLast);
+        m_streamLast = NULL;
+    }
+
+    if (ret == BLEND_RET_OK && m_streamSites == 0)
+    {
+        LOGE("Error: No frames to blend");
+        ret = BLEND_RET_ERROR;
+    }
+
+    while (ret == BLEND_RET_OK && m_streamBlended < m_streamSites)
+    {
+        if (cancelComputation)
+            ret = BLEND_RET_CANCELLED;
+        else
+            ret = BlendStreamSite(m_streamBlended++);
+    }
+
+    if (ret == BLEND_RET_OK)
+    {
+        ret = MosaicSizeCheck(LIMIT_SIZE_MULTIPLIER, LIMIT_HEIGHT_MULTIPLIER);
+        if (ret != BLEND_RET_OK)
+        {
+            LOGE("EndStream: aborting - mosaic size check failed, "
+                 "(frame_width, frame_height) vs (mosaic_width, mosaic_height): "
+                 "(%d, %d) vs (%d, %d)", width, height, Mwidth, Mheight);
+        }
+    }
+
+    MosaicRect cropping_rect;
+
+    if (ret == BLEND_RET_OK)
+    {
+        // Find the direction of the sweep as ComputeBlendParameters() does
+        MosaicFrame *first = m_AllSites[0].getMb();
+        MosaicFrame *last = m_AllSites[m_streamSites - 1].getMb();
+        m_wb.horizontal = fabs(last->trs[0][2] - first->trs[0][2]) >
+                fabs(last->trs[1][2] - first->trs[1][2]);
+
+        ret = InitCroppingRect(m_streamCorners, m_streamRect, m_streamMos->Y.width,
+                m_streamMos->Y.height, cropping_rect);
+    }
+
+    if (ret == BLEND_RET_OK)
+    {
+        ret = PerformFinalBlending(*m_streamMos, cropping_rect);
+    }
+
+    if (ret == BLEND_RET_OK &&
+            (cropping_rect.Width() <= 0 || cropping_rect.Height() <= 0))
+    {
+        LOGE("Size of the cropping_rect is invalid - (width, height): (%d, %d)",
+                cropping_rect.Width(), cropping_rect.Height());
+        ret = BLEND_RET_ERROR;
+    }
+
+    if (ret == BLEND_RET_OK)
+    {
+        CropFinalMosaic(*m_streamMos, cropping_rect);
+
+        imageMosaicYVU = m_streamMos->Y.ptr[0];
+        mosaicWidth = cropping_rect.right - cropping_rect.left + 1;
+        mosaicHeight = cropping_rect.bottom - cropping_rect.top + 1;
+
+        // The image now belongs to the caller
+        free(m_streamMos);
+        m_streamMos = NULL;
+
+        progress += TIME_PERCENT_FINAL;
+    }
+
+    abortStream();
+
+    return ret;
+}
+
+void Blend::abortStream()
+{
+    if (!m_streaming)
+        return;
+
+    if (m_streamMos != NULL)
+    {
+        ImageUtils::freeImage(m_streamMos->Y.ptr[0]);
+        free(m_streamMos);
+        m_streamMos = NULL;
+    }
+
+    PyramidShort::freeImage(m_pMosaicVPyr);
+    PyramidShort::freeImage(m_pMosaicUPyr);
+    PyramidShort::freeImage(m_pMosaicYPyr);
+    m_pMosaicVPyr = NULL;
+    m_pMosaicUPyr = NULL;
+    m_pMosaicYPyr = NULL;
+
+    m_Triangulator.freeMemory();
+    m_AllSites = NULL;
+    free(m_streamEdges);
+    m_streamEdges = NULL;
+
+    m_streaming = false;
+}
+
+void Blend::InitCorners(FrameCorners &corners)
+{
+    corners.left[0] = corners.left[1] = 2e30;
+    corners.right[0] = corners.right[1] = -2e30;
+    corners.top[0] = corners.top[1] = 2e30;
+    corners.bottom[0] = corners.bottom[1] = -2e30;
+}
+
+void Blend::PlaceSite(CSite *csite, MosaicFrame *mb, BlendRect &global_rect,
+        FrameCorners &corners)
+{
+    double x0, y0, x1, y1, x2, y2, x3, y3;
+
+    // Compute clipping for this frame's rect
+    FrameToMosaicRect(mb->width, mb->height, mb->trs, mb->brect);
+    // Clip global rect using this frame's rect
+    ClipRect(mb->brect, global_rect);
+
+    // Calculate the corner points
+    FrameToMosaic(mb->trs, 0.0,             0.0,            x0, y0);
+    FrameToMosaic(mb->trs, 0.0,             mb->height-1.0, x1, y1);
+    FrameToMosaic(mb->trs, mb->width-1.0,   mb->height-1.0, x2, y2);
+    FrameToMosaic(mb->trs, mb->width-1.0,   0.0,            x3, y3);
+
+    if(x0 < corners.left[0] || x1 < corners.left[1])    // If either of the left corners is lower
+    {
+        corners.left[0] = x0;
+        corners.left[1] = x1;
+    }
+
+    if(x3 > corners.right[0] || x2 > corners.right[1])    // If either of the right corners is higher
+    {
+        corners.right[0] = x3;
+        corners.right[1] = x2;
+    }
+
+    if(y0 < corners.top[0] || y3 < corners.top[1])    // If either of the top corners is lower
+    {
+        corners.top[0] = y0;
+        corners.top[1] = y3;
+    }
+
+    if(y1 > corners.bottom[0] || y2 > corners.bottom[1])    // If either of the bottom corners is higher
+    {
+        corners.bottom[0] = y1;
+        corners.bottom[1] = y2;
+    }
+
+    // Compute the centroid of the warped region
+    FindQuadCentroid(x0, y0, x1, y1, x2, y2, x3, y3, csite->getVCenter().x, csite->getVCenter().y);
+
+    csite->setMb(mb);
+}
+
+int Blend::InitCroppingRect(FrameCorners &corners, MosaicRect &rect,
+        int mwidth, int mheight, MosaicRect &cropping_rect)
+{
+    int xLeftMost, xRightMost;
+    int yTopMost, yBottomMost;
+
+    // Rounding up, so that we don't include the gray border.
+    xLeftMost = max(0, max(corners.left[0], corners.left[1]) - rect.left + 1);
+    xRightMost = min(mwidth - 1, min(corners.right[0], corners.right[1]) - rect.left - 1);
+
+    yTopMost = max(0, max(corners.top[0], corners.top[1]) - rect.top + 1);
+    yBottomMost = min(mheight - 1, min(corners.bottom[0], corners.bottom[1]) - rect.top - 1);
+
+    if (xRightMost <= xLeftMost || yBottomMost <= yTopMost)
+    {
+        LOGE("RunBlend: aborting -consistency check failed,"
+             "(xLeftMost, xRightMost, yTopMost, yBottomMost): (%d, %d, %d, %d)",
+             xLeftMost, xRightMost, yTopMost, yBottomMost);
+        return BLEND_RET_ERROR;
+    }
+
+    if (m_wb.horizontal)
+    {
+        cropping_rect.left = xLeftMost;
+        cropping_rect.right = xRightMost;
+    }
+    else
+    {
+        cropping_rect.top = yTopMost;
+        cropping_rect.bottom = yBottomMost;
+    }
+
+    return BLEND_RET_OK;
+}
+
 int Blend::MosaicSizeCheck(float sizeMultiplier, float heightMultiplier) {
    if (Mwidth < width || Mheight < height) {
         return BLEND_RET_ERROR;
@@ -328,21 +764,22 @@ int Blend::MosaicSizeCheck(float sizeMultiplier, float heightMultiplier) {
    return BLEND_RET_OK;
 }
 
-int Blend::FillFramePyramid(MosaicFrame *mb)
+void Blend::RunFillRows(void *arg, int begin, int end)
 {
-    ImageType mbY, mbU, mbV;
-    // Lay this image, centered into the temporary buffer
-    mbY = mb->image;
-    mbU = mb->getU();
-    mbV = mb->getV();
-
+    FillTask *task = (FillTask *) arg;
+    Blend *blend = task->blend;
+    int width = blend->width;
     int h, w;
 
-    for(h=0; h<height; h++)
+    ImageType mbY = task->mbY + begin * width;
+    ImageType mbU = task->mbU + begin * width;
+    ImageType mbV = task->mbV + begin * width;
+
+    for(h=begin; h<end; h++)
     {
-        ImageTypeShort yptr = m_pFrameYPyr->ptr[h];
-        ImageTypeShort uptr = m_pFrameUPyr->ptr[h];
-        ImageTypeShort vptr = m_pFrameVPyr->ptr[h];
+        ImageTypeShort yptr = blend->m_pFrameYPyr->ptr[h];
+        ImageTypeShort uptr = blend->m_pFrameUPyr->ptr[h];
+        ImageTypeShort vptr = blend->m_pFrameVPyr->ptr[h];
 
         for(w=0; w<width; w++)
         {
@@ -351,6 +788,22 @@ int Blend::FillFramePyramid(MosaicFrame *mb)
             vptr[w] = (short) ((*(mbV++)) << 3);
         }
     }
+}
+
+int Blend::FillFramePyramid(MosaicFrame *mb)
+{
+    ImageType mbY, mbU, mbV;
+    // Lay this image, centered into the temporary buffer
+    mbY = mb->acquireImage();
+    if (mbY == NULL)
+        return BLEND_RET_ERROR;
+    mbV = mbY + mb->width * mb->height;
+    mbU = mbV + mb->width * mb->height;
+
+    FillTask task = { this, mbY, mbU, mbV };
+    ThreadPool::run(&m_threadPool, RunFillRows, &task, 0, height, width);
+
+    mb->releaseImage();
 
     // Spread the image through the border
     PyramidShort::BorderSpread(m_pFrameYPyr, BORDER, BORDER, BORDER, BORDER);
@@ -358,9 +811,10 @@ int Blend::FillFramePyramid(MosaicFrame *mb)
     PyramidShort::BorderSpread(m_pFrameVPyr, BORDER, BORDER, BORDER, BORDER);
 
     // Generate Laplacian pyramids
-    if (!PyramidShort::BorderReduce(m_pFrameYPyr, m_wb.nlevs) || !PyramidShort::BorderExpand(m_pFrameYPyr, m_wb.nlevs, -1) ||
-            !PyramidShort::BorderReduce(m_pFrameUPyr, m_wb.nlevsC) || !PyramidShort::BorderExpand(m_pFrameUPyr, m_wb.nlevsC, -1) ||
-            !PyramidShort::BorderReduce(m_pFrameVPyr, m_wb.nlevsC) || !PyramidShort::BorderExpand(m_pFrameVPyr, m_wb.nlevsC, -1))
+    ThreadPool *pool = &m_threadPool;
+    if (!PyramidShort::BorderReduce(m_pFrameYPyr, m_wb.nlevs, pool) || !PyramidShort::BorderExpand(m_pFrameYPyr, m_wb.nlevs, -1, pool) ||
+            !PyramidShort::BorderReduce(m_pFrameUPyr, m_wb.nlevsC, pool) || !PyramidShort::BorderExpand(m_pFrameUPyr, m_wb.nlevsC, -1, pool) ||
+            !PyramidShort::BorderReduce(m_pFrameVPyr, m_wb.nlevsC, pool) || !PyramidShort::BorderExpand(m_pFrameVPyr, m_wb.nlevsC, -1, pool))
     {
         LOGE("Error: Could not generate Laplacian pyramids");
         return BLEND_RET_ERROR;
@@ -636,8 +1090,9 @@ void Blend::CropFinalMosaic(YUVinfo &imgMos, MosaicRect &cropping_rect)
 
 int Blend::PerformFinalBlending(YUVinfo &imgMos, MosaicRect &cropping_rect)
 {
-    if (!PyramidShort::BorderExpand(m_pMosaicYPyr, m_wb.nlevs, 1) || !PyramidShort::BorderExpand(m_pMosaicUPyr, m_wb.nlevsC, 1) ||
-        !PyramidShort::BorderExpand(m_pMosaicVPyr, m_wb.nlevsC, 1))
+    ThreadPool *pool = &m_threadPool;
+    if (!PyramidShort::BorderExpand(m_pMosaicYPyr, m_wb.nlevs, 1, pool) || !PyramidShort::BorderExpand(m_pMosaicUPyr, m_wb.nlevsC, 1, pool) ||
+        !PyramidShort::BorderExpand(m_pMosaicVPyr, m_wb.nlevsC, 1, pool))
     {
       LOGE("Error: Could not BorderExpand!");
       return BLEND_RET_ERROR;
@@ -932,137 +1387,167 @@ void Blend::ProcessPyramidForThisFrame(CSite *csite, BlendRect &vcrect, BlendRec
             t = dptr->height + BORDER - 1;
 
         // Walk the Region of interest and populate the pyramid
-        for (int j = b; j <= t; j++)
-        {
-            int jj = (j << dscale);
-            double sj = jj + rect.top;
+        LevelTask task = { this, sptr, suptr, svptr, dptr, duptr, dvptr,
+                &rect, &imgMos, inv_trs, site_idx, dscale, nC, l, r };
+        ThreadPool::run(&m_threadPool, RunPyramidRows, &task, b, t + 1, r - l + 1);
+    }
+}
 
-            for (int i = l; i <= r; i++)
-            {
-                int ii = (i << dscale);
-                // project point and then triangulate to neighbors
-                double si = ii + rect.left;
+void Blend::RunPyramidRows(void *arg, int begin, int end)
+{
+    LevelTask *task = (LevelTask *) arg;
+    task->blend->ProcessPyramidRows(*task, begin, end);
+}
+
+void Blend::ProcessPyramidRows(LevelTask &task, int begin, int end)
+{
+    PyramidShort *sptr = task.sptr;
+    PyramidShort *suptr = task.suptr;
+    PyramidShort *svptr = task.svptr;
+
+    PyramidShort *dptr = task.dptr;
+    PyramidShort *duptr = task.duptr;
+    PyramidShort *dvptr = task.dvptr;
+
+    MosaicRect &rect = *task.rect;
+    YUVinfo &imgMos = *task.imgMos;
+    double (*inv_trs)[3] = task.inv_trs;
+    int site_idx = task.site_idx;
+    int dscale = task.dscale;
+    int nC = task.nC;
+    int l = task.l;
+    int r = task.r;
+
+    for (int j = begin; j < end; j++)
+    {
+        int jj = (j << dscale);
+        double sj = jj + rect.top;
+
+        for (int i = l; i <= r; i++)
+        {
+            int ii = (i << dscale);
+            // project point and then triangulate to neighbors
+            double si = ii + rect.left;
 
-                int inMask = ((unsigned) ii < imgMos.Y.width &&
-                        (unsigned) jj < imgMos.Y.height) ? 1 : 0;
+            int inMask = ((unsigned) ii < imgMos.Y.width &&
+                    (unsigned) jj < imgMos.Y.height) ? 1 : 0;
 
-                if(inMask && imgMos.Y.ptr[jj][ii] != site_idx &&
-                        imgMos.V.ptr[jj][ii] != site_idx &&
-                        imgMos.Y.ptr[jj][ii] != 255)
-                    continue;
+            if(inMask && imgMos.Y.ptr[jj][ii] != site_idx &&
+                    imgMos.V.ptr[jj][ii] != site_idx &&
+                    imgMos.Y.ptr[jj][ii] != 255)
+                continue;
 
-                // Setup weights for cross-fading
-                // Weight of the intensity already in the output pixel
-                double wt0 = 0.0;
-                // Weight of the intensity from the input pixel (current frame)
-                double wt1 = 1.0;
+            // Setup weights for cross-fading
+            // Weight of the intensity already in the output pixel
+            double wt0 = 0.0;
+            // Weight of the intensity from the input pixel (current frame)
+            double wt1 = 1.0;
 
-                if (m_wb.stripType == STRIP_TYPE_WIDE)
+            if (m_wb.stripType == STRIP_TYPE_WIDE)
+            {
+                if(inMask && imgMos.Y.ptr[jj][ii] != 255)
                 {
-                    if(inMask && imgMos.Y.ptr[jj][ii] != 255)
+                    // If not on a seam OR pyramid level exceeds
+                    // maximum level for cross-fading.
+                    if((imgMos.V.ptr[jj][ii] == 128) ||
+                        (dscale > STRIP_CROSS_FADE_MAX_PYR_LEVEL))
                     {
-                        // If not on a seam OR pyramid level exceeds
-                        // maximum level for cross-fading.
-                        if((imgMos.V.ptr[jj][ii] == 128) ||
-                            (dscale > STRIP_CROSS_FADE_MAX_PYR_LEVEL))
-                        {
-                            wt0 = 0.0;
-                            wt1 = 1.0;
-                        }
-                        else
-                        {
-                            wt0 = 1.0;
-                            wt1 = ((imgMos.Y.ptr[jj][ii] == site_idx) ?
-                                    (double)imgMos.U.ptr[jj][ii] / 100.0 :
-                                    1.0 - (double)imgMos.U.ptr[jj][ii] / 100.0);
-                        }
+                        wt0 = 0.0;
+                        wt1 = 1.0;
+                    }
+                    else
+                    {
+                        wt0 = 1.0;
+                        wt1 = ((imgMos.Y.ptr[jj][ii] == site_idx) ?
+                                (double)imgMos.U.ptr[jj][ii] / 100.0 :
+                                1.0 - (double)imgMos.U.ptr[jj][ii] / 100.0);
                     }
                 }
+            }
 
-                // Project this mosaic point into the original frame coordinate space
-                double xx, yy;
+            // Project this mosaic point into the original frame coordinate space
+            double xx, yy;
 
-                MosaicToFrame(inv_trs, si, sj, xx, yy);
+            MosaicToFrame(inv_trs, si, sj, xx, yy);
 
-                if (xx < 0.0 || yy < 0.0 || xx > width - 1.0 || yy > height - 1.0)
+            if (xx < 0.0 || yy < 0.0 || xx > width - 1.0 || yy > height - 1.0)
+            {
+                if(inMask)
                 {
-                    if(inMask)
-                    {
-                        imgMos.Y.ptr[jj][ii] = 255;
-                        wt0 = 0.0f;
-                        wt1 = 1.0f;
-                    }
+                    imgMos.Y.ptr[jj][ii] = 255;
+                    wt0 = 0.0f;
+                    wt1 = 1.0f;
                 }
+            }
 
-                xx /= (1 << dscale);
-                yy /= (1 << dscale);
+            xx /= (1 << dscale);
+            yy /= (1 << dscale);
 
 
-                int x1 = (xx >= 0.0) ? (int) xx : (int) floor(xx);
-                int y1 = (yy >= 0.0) ? (int) yy : (int) floor(yy);
+            int x1 = (xx >= 0.0) ? (int) xx : (int) floor(xx);
+            int y1 = (yy >= 0.0) ? (int) yy : (int) floor(yy);
 
-                // Final destination in extended pyramid
+            // Final destination in extended pyramid
 #ifndef LINEAR_INTERP
-                if(inSegment(x1, sptr->width, BORDER-1) &&
-                        inSegment(y1, sptr->height, BORDER-1))
+            if(inSegment(x1, sptr->width, BORDER-1) &&
+                    inSegment(y1, sptr->height, BORDER-1))
+            {
+                double xfrac = xx - x1;
+                double yfrac = yy - y1;
+                dptr->ptr[j][i] = (short) (wt0 * dptr->ptr[j][i] + .5 +
+                        wt1 * ciCalc(sptr, x1, y1, xfrac, yfrac));
+                if (dvptr >= m_pMosaicVPyr && nC > 0)
                 {
-                    double xfrac = xx - x1;
-                    double yfrac = yy - y1;
-                    dptr->ptr[j][i] = (short) (wt0 * dptr->ptr[j][i] + .5 +
-                            wt1 * ciCalc(sptr, x1, y1, xfrac, yfrac));
-                    if (dvptr >= m_pMosaicVPyr && nC > 0)
-                    {
-                        duptr->ptr[j][i] = (short) (wt0 * duptr->ptr[j][i] + .5 +
-                                wt1 * ciCalc(suptr, x1, y1, xfrac, yfrac));
-                        dvptr->ptr[j][i] = (short) (wt0 * dvptr->ptr[j][i] + .5 +
-                                wt1 * ciCalc(svptr, x1, y1, xfrac, yfrac));
-                    }
+                    duptr->ptr[j][i] = (short) (wt0 * duptr->ptr[j][i] + .5 +
+                            wt1 * ciCalc(suptr, x1, y1, xfrac, yfrac));
+                    dvptr->ptr[j][i] = (short) (wt0 * dvptr->ptr[j][i] + .5 +
+                            wt1 * ciCalc(svptr, x1, y1, xfrac, yfrac));
                 }
+            }
 #else
-                if(inSegment(x1, sptr->width, BORDER) && inSegment(y1, sptr->height, BORDER))
+            if(inSegment(x1, sptr->width, BORDER) && inSegment(y1, sptr->height, BORDER))
+            {
+                int x2 = x1 + 1;
+                int y2 = y1 + 1;
+                double xfrac = xx - x1;
+                double yfrac = yy - y1;
+                double y1val = sptr->ptr[y1][x1] +
+                    (sptr->ptr[y1][x2] - sptr->ptr[y1][x1]) * xfrac;
+                double y2val = sptr->ptr[y2][x1] +
+                    (sptr->ptr[y2][x2] - sptr->ptr[y2][x1]) * xfrac;
+                dptr->ptr[j][i] = (short) (y1val + yfrac * (y2val - y1val));
+
+                if (dvptr >= m_pMosaicVPyr && nC > 0)
                 {
-                    int x2 = x1 + 1;
-                    int y2 = y1 + 1;
-                    double xfrac = xx - x1;
-                    double yfrac = yy - y1;
-                    double y1val = sptr->ptr[y1][x1] +
-                        (sptr->ptr[y1][x2] - sptr->ptr[y1][x1]) * xfrac;
-                    double y2val = sptr->ptr[y2][x1] +
-                        (sptr->ptr[y2][x2] - sptr->ptr[y2][x1]) * xfrac;
-                    dptr->ptr[j][i] = (short) (y1val + yfrac * (y2val - y1val));
-
-                    if (dvptr >= m_pMosaicVPyr && nC > 0)
-                    {
-                        y1val = suptr->ptr[y1][x1] +
-                            (suptr->ptr[y1][x2] - suptr->ptr[y1][x1]) * xfrac;
-                        y2val = suptr->ptr[y2][x1] +
-                            (suptr->ptr[y2][x2] - suptr->ptr[y2][x1]) * xfrac;
+                    y1val = suptr->ptr[y1][x1] +
+                        (suptr->ptr[y1][x2] - suptr->ptr[y1][x1]) * xfrac;
+                    y2val = suptr->ptr[y2][x1] +
+                        (suptr->ptr[y2][x2] - suptr->ptr[y2][x1]) * xfrac;
 
-                        duptr->ptr[j][i] = (short) (y1val + yfrac * (y2val - y1val));
+                    duptr->ptr[j][i] = (short) (y1val + yfrac * (y2val - y1val));
 
-                        y1val = svptr->ptr[y1][x1] +
-                            (svptr->ptr[y1][x2] - svptr->ptr[y1][x1]) * xfrac;
-                        y2val = svptr->ptr[y2][x1] +
-                            (svptr->ptr[y2][x2] - svptr->ptr[y2][x1]) * xfrac;
+                    y1val = svptr->ptr[y1][x1] +
+                        (svptr->ptr[y1][x2] - svptr->ptr[y1][x1]) * xfrac;
+                    y2val = svptr->ptr[y2][x1] +
+                        (svptr->ptr[y2][x2] - svptr->ptr[y2][x1]) * xfrac;
 
-                        dvptr->ptr[j][i] = (short) (y1val + yfrac * (y2val - y1val));
-                    }
+                    dvptr->ptr[j][i] = (short) (y1val + yfrac * (y2val - y1val));
                 }
+            }
 #endif
-                else
-                {
-                    clipToSegment(x1, sptr->width, BORDER);
-                    clipToSegment(y1, sptr->height, BORDER);
+            else
+            {
+                clipToSegment(x1, sptr->width, BORDER);
+                clipToSegment(y1, sptr->height, BORDER);
 
-                    dptr->ptr[j][i] = (short) (wt0 * dptr->ptr[j][i] + 0.5 +
-                            wt1 * sptr->ptr[y1][x1] );
-                    if (dvptr >= m_pMosaicVPyr && nC > 0)
-                    {
-                        dvptr->ptr[j][i] = (short) (wt0 * dvptr->ptr[j][i] +
-                                0.5 + wt1 * svptr->ptr[y1][x1] );
-                        duptr->ptr[j][i] = (short) (wt0 * duptr->ptr[j][i] +
-                                0.5 + wt1 * suptr->ptr[y1][x1] );
-                    }
+                dptr->ptr[j][i] = (short) (wt0 * dptr->ptr[j][i] + 0.5 +
+                        wt1 * sptr->ptr[y1][x1] );
+                if (dvptr >= m_pMosaicVPyr && nC > 0)
+                {
+                    dvptr->ptr[j][i] = (short) (wt0 * dvptr->ptr[j][i] +
+                            0.5 + wt1 * svptr->ptr[y1][x1] );
+                    duptr->ptr[j][i] = (short) (wt0 * duptr->ptr[j][i] +
+                            0.5 + wt1 * suptr->ptr[y1][x1] );
                 }
             }
         }
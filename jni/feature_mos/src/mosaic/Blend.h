@@ -24,6 +24,7 @@
 #include "MosaicTypes.h"
 #include "Pyramid.h"
 #include "Delaunay.h"
+#include "ThreadPool.h"
 
 #define BLEND_RANGE_DEFAULT 6
 #define BORDER 8
@@ -51,6 +52,15 @@ constexpr float STRIP_CROSS_FADE_WIDTH_PXLS = 2;
 // the blending algorithm.
 constexpr int STRIP_CROSS_FADE_MAX_PYR_LEVEL = 2;
 
+// When the frames are blended as they are added, each frame is blended once
+// this many more frames have been added, against its Delaunay neighbors
+// among the frames added by then.
+constexpr int STREAM_SITE_WINDOW = 2;
+
+// The mosaic blended as the frames are added is grown by multiples of this
+// many pixels, so that every pyramid level moves by whole pixels.
+constexpr int STREAM_MOSAIC_ALIGN = 32;
+
 /**
  *  Class for pyramid blending a mosaic.
  */
@@ -80,6 +90,42 @@ public:
   int runBlend(MosaicFrame **frames, MosaicFrame **rframes, int frames_size, ImageType &imageMosaicYVU,
         int &mosaicWidth, int &mosaicHeight, float &progress, bool &cancelComputation);
 
+  /**
+   *  Sets the number of threads building the pyramids of each frame and
+   *  projecting them into the mosaic. Frames are still blended one after the
+   *  other, so the mosaic is the same for any number of threads.
+   */
+  int setNumThreads(int numThreads);
+
+  /**
+   *  Starts blending the frames one at a time as they are added, instead of
+   *  all of them in runBlend(). Only BLEND_TYPE_HORZ is supported. The
+   *  frames are blended in the coordinates of the first frame with thin
+   *  strips (the cylindrical warp of runBlend() needs the last frame), and
+   *  the mosaic grows to hold them.
+   */
+  int beginStream(int maxFrames);
+
+  /**
+   *  Adds the next frame to the streamed mosaic. The frame is blended once
+   *  STREAM_SITE_WINDOW more frames have been added, so its image must stay
+   *  readable until endStream().
+   */
+  int addStreamFrame(MosaicFrame *frame);
+
+  /**
+   *  Adds the frames not added yet, blends the frames still pending, and
+   *  collapses the pyramids and crops the streamed mosaic, as runBlend()
+   *  does for all the frames at once.
+   */
+  int endStream(MosaicFrame **frames, int frames_size, ImageType &imageMosaicYVU,
+        int &mosaicWidth, int &mosaicHeight, float &progress, bool &cancelComputation);
+
+  /**
+   *  Drops the streamed mosaic, e.g. to blend the frames with runBlend().
+   */
+  void abortStream();
+
 protected:
 
   PyramidShort *m_pFrameYPyr;
@@ -91,6 +137,7 @@ protected:
   PyramidShort *m_pMosaicVPyr;
 
   CDelaunay m_Triangulator;
+  ThreadPool m_threadPool;
   CSite *m_AllSites;
 
   BlendParams m_wb;
@@ -112,8 +159,45 @@ protected:
   void ComputeMask(CSite *csite, BlendRect &vcrect, BlendRect &brect, MosaicRect &rect, YUVinfo &imgMos, int site_idx);
   void ProcessPyramidForThisFrame(CSite *csite, BlendRect &vcrect, BlendRect &brect, MosaicRect &rect, YUVinfo &imgMos, double trs[3][3], int site_idx);
 
+  // One pyramid level of ProcessPyramidForThisFrame(). Its rows only write
+  // their own pixels, so bands of rows are projected in parallel.
+  struct LevelTask
+  {
+    Blend *blend;
+    PyramidShort *sptr, *suptr, *svptr;
+    PyramidShort *dptr, *duptr, *dvptr;
+    MosaicRect *rect;
+    YUVinfo *imgMos;
+    double (*inv_trs)[3];
+    int site_idx, dscale, nC;
+    int l, r;
+  };
+  static void RunPyramidRows(void *arg, int begin, int end);
+  void ProcessPyramidRows(LevelTask &task, int begin, int end);
+
+  // Frame image copied into the base of the frame pyramids by bands of rows.
+  struct FillTask
+  {
+    Blend *blend;
+    ImageType mbY, mbU, mbV;
+  };
+  static void RunFillRows(void *arg, int begin, int end);
+
   int  FillFramePyramid(MosaicFrame *mb);
 
+  // Corners of the left-most, right-most, top-most and bottom-most frames
+  // in the mosaic coordinate system. They bound the part of the mosaic
+  // without gray border across the sweep.
+  struct FrameCorners
+  {
+    double left[2], right[2];
+    double top[2], bottom[2];
+  };
+  static void InitCorners(FrameCorners &corners);
+  void PlaceSite(CSite *csite, MosaicFrame *mb, BlendRect &global_rect, FrameCorners &corners);
+  int  InitCroppingRect(FrameCorners &corners, MosaicRect &rect, int mwidth, int mheight,
+        MosaicRect &cropping_rect);
+
   // TODO: need to add documentation about the parameters
   void ComputeBlendParameters(MosaicFrame **frames, int frames_size, int is360);
   void SelectRelevantFrames(MosaicFrame **frames, int frames_size,
@@ -122,6 +206,29 @@ protected:
   int  PerformFinalBlending(YUVinfo &imgMos, MosaicRect &cropping_rect);
   void CropFinalMosaic(YUVinfo &imgMos, MosaicRect &cropping_rect);
 
+  // Streamed mosaic, see beginStream(). The sites are the accepted frames,
+  // which m_Triangulator triangulates as they are added. m_streamEdges holds
+  // the neighbors of the site being blended.
+  bool m_streaming;
+  int m_streamFrames;
+  int m_streamMaxSites;
+  int m_streamSites;
+  int m_streamBlended;
+  SEdgeVector *m_streamEdges;
+  // Last frame added in the WIDE strip mode, if it was not accepted.
+  MosaicFrame *m_streamLast;
+  double m_streamPrevX, m_streamPrevY;
+  // Mosaic image and the rectangle it covers. The pyramids cover the same.
+  YUVinfo *m_streamMos;
+  MosaicRect m_streamRect;
+  // Extent of the frames and corners of the outermost ones, as in runBlend().
+  BlendRect m_streamExtent;
+  FrameCorners m_streamCorners;
+
+  int  AddStreamSite(MosaicFrame *mb);
+  int  BlendStreamSite(int site);
+  int  GrowStreamMosaic();
+
 private:
    static constexpr float LIMIT_SIZE_MULTIPLIER = 5.0f * 2.0f;
    static constexpr float LIMIT_HEIGHT_MULTIPLIER = 2.5f;
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+///////////////////////////////////////////////////
+// ColorKernels.cpp
+// Scalar kernels and selection of the table for the CPU.
+
+#include <string.h>
+
+#include "ColorKernels.h"
+#include "ColorKernelsTables.h"
+
+static void yuv420spToYvu444Scalar(ImageType yvu24, ImageType yuv420sp, int width,
+        int height)
+{
+    int frameSize = width * height;
+
+    memcpy(yvu24, yuv420sp, frameSize * sizeof(unsigned char));
+
+    for (int j = 0; j < height; j += 2)
+    {
+        unsigned char u = 0, v = 0;
+        int uvp = frameSize + (j >> 1) * width;
+        ImageType ovp = yvu24 + frameSize + j * width;
+        ImageType oup = ovp + frameSize;
+
+        ImageType iuvp = yuv420sp + uvp;
+
+        for (int i = 0; i < width; i++)
+        {
+            if ((i & 1) == 0)
+            {
+                v = *iuvp++;
+                u = *iuvp++;
+            }
+
+            *ovp++ = v;
+            *oup++ = u;
+        }
+
+        // The next row has the same chroma
+        if (j + 1 < height)
+        {
+            memcpy(ovp, ovp - width, width * sizeof(unsigned char));
+            memcpy(oup, oup - width, width * sizeof(unsigned char));
+        }
+    }
+}
+
+static void yvuaToYvu444Scalar(ImageType planar, ImageType in, int width, int height)
+{
+    int planeSize = width * height;
+    unsigned char* Yptr = planar;
+    unsigned char* Vptr = planar + planeSize;
+    unsigned char* Uptr = Vptr + planeSize;
+
+    for (int i = 0; i < planeSize; i++)
+    {
+        *Yptr++ = *in++;
+        *Vptr++ = *in++;
+        *Uptr++ = *in++;
+        in++;   // Alpha
+    }
+}
+
+static void yvu444ToRgbFixedScalar(ImageType rgb, ImageType yvu, int width, int height)
+{
+    int frameSize = width * height;
+
+    for (int p = 0; p < frameSize; p++)
+    {
+        ColorKernels::yvuToRgbFixedPixel(yvu[p], yvu[frameSize + p],
+                yvu[2 * frameSize + p], rgb + 3 * p);
+    }
+}
+
+static void subsampleYvu444Scalar(ImageType out, ImageType im, int input_w, int input_h,
+        int factor)
+{
+    for (int plane = 0; plane < 3; plane++)
+    {
+        for (int j = plane * input_h; j < (plane + 1) * input_h; j += factor)
+        {
+            ImageType imp = im + j * input_w;
+            ImageType outp = out + (j / factor) * (input_w / factor);
+
+            for (int i = 0; i < input_w; i += factor)
+            {
+                *outp++ = *(imp + i);
+            }
+        }
+    }
+}
+
+static void rgbToYvu444Scalar(ImageType out, ImageType in, int width, int height)
+{
+    int frameSize = width * height;
+    ImageType image = in;
+
+    for (int p = 0; p < frameSize; p++, image += 3)
+    {
+        ColorKernels::rgbToYvuPixel(image[0], image[1], image[2], out + p,
+                out + frameSize + p, out + 2 * frameSize + p);
+    }
+}
+
+static void yvu444ToRgbScalar(ImageType out, ImageType in, int width, int height)
+{
+    int r, g, b;
+    unsigned char *yimg = in;
+    unsigned char *vimg = yimg + width*height;
+    unsigned char *uimg = vimg + width*height;
+    unsigned char *image = out;
+
+    for (int i = width * height; i--; yimg++, vimg++, uimg++) {
+        ColorKernels::yvuToRgbPixel(*yimg, *vimg, *uimg, r, g, b);
+
+        *(image++) = r;
+        *(image++) = g;
+        *(image++) = b;
+    }
+}
+
+static void yvu444ToBgrScalar(ImageType out, ImageType in, int width, int height)
+{
+    int r, g, b;
+    unsigned char *yimg = in;
+    unsigned char *vimg = yimg + width*height;
+    unsigned char *uimg = vimg + width*height;
+    unsigned char *image = out;
+
+    for (int i = width * height; i--; yimg++, vimg++, uimg++) {
+        ColorKernels::yvuToRgbPixel(*yimg, *vimg, *uimg, r, g, b);
+
+        *(image++) = b;
+        *(image++) = g;
+        *(image++) = r;
+    }
+}
+
+static void rgbToGrayScalar(ImageType out, ImageType in, int width, int height)
+{
+    ImageType image = in;
+
+    for (int i = width * height; i--; image += 3) {
+        *(out++) = ColorKernels::rgbToGrayPixel(image[0], image[1], image[2]);
+    }
+}
+
+const ColorKernels gColorKernelsScalar = {
+    "scalar",
+    yuv420spToYvu444Scalar,
+    yvuaToYvu444Scalar,
+    yvu444ToRgbFixedScalar,
+    subsampleYvu444Scalar,
+    rgbToYvu444Scalar,
+    yvu444ToRgbScalar,
+    yvu444ToBgrScalar,
+    rgbToGrayScalar,
+};
+
+int ColorKernels::getAll(const ColorKernels **tables, int maxTables)
+{
+    int count = 0;
+
+    if (count < maxTables)
+        tables[count++] = &gColorKernelsScalar;
+
+#ifdef COLOR_KERNELS_X86
+    if (count < maxTables && __builtin_cpu_supports("ssse3"))
+        tables[count++] = &gColorKernelsSSSE3;
+    if (count < maxTables && __builtin_cpu_supports("avx2"))
+        tables[count++] = &gColorKernelsAVX2;
+#endif
+
+#ifdef COLOR_KERNELS_NEON
+    if (count < maxTables)
+        tables[count++] = &gColorKernelsNEON;
+#endif
+
+    return count;
+}
+
+const ColorKernels *ColorKernels::get()
+{
+    static const ColorKernels *kernels = NULL;
+
+    // The tables are constant, so threads racing here pick the same one.
+    if (kernels == NULL)
+    {
+        const ColorKernels *tables[4];
+        int count = getAll(tables, 4);
+        kernels = tables[count - 1];
+    }
+
+    return kernels;
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+///////////////////////////////////////////////////
+// ColorKernels.h
+
+#ifndef COLORKERNELS_H_
+#define COLORKERNELS_H_
+
+#include "ImageUtils.h"
+
+/**
+ *  Table of the colour conversions used by the mosaic pipeline.
+ *
+ *  There is one table per instruction set: scalar, SSSE3 and AVX2 on x86, and
+ *  NEON on ARM. get() returns the best table for the CPU. All the tables
+ *  produce the same bytes as the scalar one, which has the original loops.
+ *
+ *  Planar YVU 4:4:4 images are the Y plane followed by the V and U planes.
+ */
+class ColorKernels
+{
+
+public:
+
+  typedef void (*ConvertFunc)(ImageType out, ImageType in, int width, int height);
+  typedef void (*SubsampleFunc)(ImageType out, ImageType in, int width, int height,
+          int factor);
+
+  const char *name;
+
+  /**
+   *  NV21 (Y plane followed by interleaved VU at half resolution) to planar
+   *  YVU 4:4:4.
+   */
+  ConvertFunc yuv420spToYvu444;
+
+  /**
+   *  Interleaved YVUA, as read back from the GPU, to planar YVU 4:4:4.
+   */
+  ConvertFunc yvuaToYvu444;
+
+  /**
+   *  Planar YVU 4:4:4 to interleaved RGB with the fixed point coefficients
+   *  of the preview.
+   */
+  ConvertFunc yvu444ToRgbFixed;
+
+  /**
+   *  Keeps every factor-th pixel of every factor-th row of each plane of a
+   *  planar YVU 4:4:4 image.
+   */
+  SubsampleFunc subsampleYvu444;
+
+  /**
+   *  Conversions between interleaved RGB or BGR and planar YVU 4:4:4, and
+   *  from RGB to gray, as in ImageUtils.
+   */
+  ConvertFunc rgbToYvu444;
+  ConvertFunc yvu444ToRgb;
+  ConvertFunc yvu444ToBgr;
+  ConvertFunc rgbToGray;
+
+  /**
+   *  Returns the table for the CPU, selected on the first call.
+   */
+  static const ColorKernels *get();
+
+  /**
+   *  Fills tables with all the tables the CPU supports, scalar first.
+   *  Returns their number.
+   */
+  static int getAll(const ColorKernels **tables, int maxTables);
+
+  /**
+   *  Conversions of one pixel, shared by the tables for the pixels their
+   *  vector code does not handle.
+   */
+  static inline void yvuToRgbFixedPixel(int y, int v, int u, ImageType rgb)
+  {
+    y = (0xff & y) - 16;
+    if (y < 0) y = 0;
+
+    v = (0xff & v) - 128;
+    u = (0xff & u) - 128;
+
+    int y1192 = 1192 * y;
+    int r = (y1192 + 1634 * v);
+    int g = (y1192 - 833 * v - 400 * u);
+    int b = (y1192 + 2066 * u);
+
+    if (r < 0) r = 0; else if (r > 262143) r = 262143;
+    if (g < 0) g = 0; else if (g > 262143) g = 262143;
+    if (b < 0) b = 0; else if (b > 262143) b = 262143;
+
+    rgb[0] = (r<<6 & 0xFF0000)>>16;
+    rgb[1] = (g>>2 & 0xFF00)>>8;
+    rgb[2] =  b>>10 & 0xFF;
+  }
+
+  static inline void rgbToYvuPixel(int r, int g, int b, ImageType y, ImageType v,
+          ImageType u)
+  {
+    int val = (int) (ImageUtils::REDY * r + ImageUtils::GREENY * g +
+            ImageUtils::BLUEY * b) / 1000 + 16;
+    if (val < 0) val = 0;
+    if (val > 255) val = 255;
+    *y = val;
+
+    val = (int) (ImageUtils::REDV * r - ImageUtils::GREENV * g -
+            ImageUtils::BLUEV * b) / 1000 + 128;
+    if (val < 0) val = 0;
+    if (val > 255) val = 255;
+    *v = val;
+
+    val = (int) (-ImageUtils::REDU * r - ImageUtils::GREENU * g +
+            ImageUtils::BLUEU * b) / 1000 + 128;
+    if (val < 0) val = 0;
+    if (val > 255) val = 255;
+    *u = val;
+  }
+
+  static inline void yvuToRgbPixel(int y, int v, int u, int &r, int &g, int &b)
+  {
+    if (y < 0) y = 0;
+    if (y > 255) y = 255;
+    if (u < 0) u = 0;
+    if (u > 255) u = 255;
+    if (v < 0) v = 0;
+    if (v > 255) v = 255;
+
+    b = (int) ( 1.164*(y - 16) + 2.018*(u-128));
+    g = (int) ( 1.164*(y - 16) - 0.813*(v-128) - 0.391*(u-128));
+    r = (int) ( 1.164*(y - 16) + 1.596*(v-128));
+
+    if (r < 0) r = 0;
+    if (r > 255) r = 255;
+    if (g < 0) g = 0;
+    if (g > 255) g = 255;
+    if (b < 0) b = 0;
+    if (b > 255) b = 255;
+  }
+
+  static inline unsigned char rgbToGrayPixel(int r, int g, int b)
+  {
+    return (unsigned char) ( 0.3*r + 0.59*g + 0.11*b);
+  }
+};
+
+#endif
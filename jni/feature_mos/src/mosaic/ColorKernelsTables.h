@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+///////////////////////////////////////////////////
+// ColorKernelsTables.h
+// Tables of ColorKernels built for this architecture.
+
+#ifndef COLORKERNELSTABLES_H_
+#define COLORKERNELSTABLES_H_
+
+#include "ColorKernels.h"
+
+extern const ColorKernels gColorKernelsScalar;
+
+// The x86 kernels pick their instruction set per function, and are only used
+// when the CPU has it.
+#if defined(__i386__) || defined(__x86_64__)
+#define COLOR_KERNELS_X86
+extern const ColorKernels gColorKernelsSSSE3;
+extern const ColorKernels gColorKernelsAVX2;
+#endif
+
+// The NEON kernels are only built when the target has NEON (HAVE_NEON is set
+// by the makefile).
+#ifdef HAVE_NEON
+#define COLOR_KERNELS_NEON
+extern const ColorKernels gColorKernelsNEON;
+#endif
+
+#endif
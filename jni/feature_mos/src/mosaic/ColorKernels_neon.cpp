@@ -0,0 +1,376 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+///////////////////////////////////////////////////
+// ColorKernels_neon.cpp
+// NEON kernels, built with NEON enabled when the target has it.
+
+#include "ColorKernelsTables.h"
+
+#ifdef COLOR_KERNELS_NEON
+
+#include <string.h>
+#include <arm_neon.h>
+
+// ARMv7 NEON has no doubles, so the ImageUtils conversions, which are done in
+// double precision, are computed as integer numerators divided by 1000 (or
+// 100). The double results truncate to the same values except where the
+// numerator is an exact multiple, and those pixels are converted again with
+// the scalar code.
+
+// Numerator divided by divisor, rounding towards zero. scale is 1 / divisor.
+// The float product is only off by one for exact multiples, which are
+// flagged in multiples.
+static inline int32x4_t divideNumerator(int32x4_t n, float scale, int divisor,
+        uint32x4_t &multiples)
+{
+    int32x4_t q = vcvtq_s32_f32(vmulq_n_f32(vcvtq_f32_s32(n), scale));
+    int32x4_t rem = vmlsq_n_s32(n, q, divisor);
+
+    multiples = vorrq_u32(multiples, vorrq_u32(vceqq_s32(rem, vdupq_n_s32(0)),
+            vorrq_u32(vceqq_s32(rem, vdupq_n_s32(divisor)),
+                    vceqq_s32(rem, vdupq_n_s32(-divisor)))));
+    return q;
+}
+
+static inline bool anyLane(uint32x4_t mask)
+{
+    uint32x2_t x = vorr_u32(vget_low_u32(mask), vget_high_u32(mask));
+    return (vget_lane_u32(x, 0) | vget_lane_u32(x, 1)) != 0;
+}
+
+// Narrows 8 32 bit integers to bytes, clamped to [0, 255].
+static inline uint8x8_t narrow(int32x4_t lo, int32x4_t hi)
+{
+    return vqmovun_s16(vcombine_s16(vqmovn_s32(lo), vqmovn_s32(hi)));
+}
+
+static inline int16x8_t widen(uint8x8_t x, int offset)
+{
+    return vsubq_s16(vreinterpretq_s16_u16(vmovl_u8(x)), vdupq_n_s16(offset));
+}
+
+static void yuv420spToYvu444NEON(ImageType out, ImageType in, int width, int height)
+{
+    int frameSize = width * height;
+
+    memcpy(out, in, frameSize);
+
+    for (int j = 0; j < height; j += 2)
+    {
+        ImageType vu = in + frameSize + (j >> 1) * width;
+        ImageType v = out + frameSize + j * width;
+        ImageType u = v + frameSize;
+        int i = 0;
+
+        for (; i + 32 <= width; i += 32)
+        {
+            uint8x16x2_t x = vld2q_u8(vu + i);
+            uint8x16x2_t vv = vzipq_u8(x.val[0], x.val[0]);
+            uint8x16x2_t uu = vzipq_u8(x.val[1], x.val[1]);
+            vst1q_u8(v + i, vv.val[0]);
+            vst1q_u8(v + i + 16, vv.val[1]);
+            vst1q_u8(u + i, uu.val[0]);
+            vst1q_u8(u + i + 16, uu.val[1]);
+        }
+        for (; i < width; i++)
+        {
+            v[i] = vu[i & ~1];
+            u[i] = vu[(i & ~1) + 1];
+        }
+
+        // The next row has the same chroma
+        if (j + 1 < height)
+        {
+            memcpy(v + width, v, width);
+            memcpy(u + width, u, width);
+        }
+    }
+}
+
+static void yvuaToYvu444NEON(ImageType out, ImageType in, int width, int height)
+{
+    int frameSize = width * height;
+    ImageType y = out;
+    ImageType v = y + frameSize;
+    ImageType u = v + frameSize;
+    int p = 0;
+
+    for (; p + 16 <= frameSize; p += 16)
+    {
+        uint8x16x4_t x = vld4q_u8(in + 4 * p);
+        vst1q_u8(y + p, x.val[0]);
+        vst1q_u8(v + p, x.val[1]);
+        vst1q_u8(u + p, x.val[2]);
+    }
+    for (; p < frameSize; p++)
+    {
+        y[p] = in[4 * p];
+        v[p] = in[4 * p + 1];
+        u[p] = in[4 * p + 2];
+    }
+}
+
+// Fixed point sums shifted right by 10, which clamp to the scalar results
+// when narrowed to bytes.
+static inline uint8x8_t fixedToByte(int32x4_t lo, int32x4_t hi)
+{
+    return vqmovun_s16(vcombine_s16(vshrn_n_s32(lo, 10), vshrn_n_s32(hi, 10)));
+}
+
+static void yvu444ToRgbFixedNEON(ImageType out, ImageType in, int width, int height)
+{
+    int frameSize = width * height;
+    ImageType yp = in;
+    ImageType vp = yp + frameSize;
+    ImageType up = vp + frameSize;
+    int p = 0;
+
+    for (; p + 8 <= frameSize; p += 8)
+    {
+        int16x8_t y = vreinterpretq_s16_u16(vmovl_u8(vqsub_u8(vld1_u8(yp + p),
+                vdup_n_u8(16))));
+        int16x8_t v = widen(vld1_u8(vp + p), 128);
+        int16x8_t u = widen(vld1_u8(up + p), 128);
+
+        int32x4_t yLo = vmull_n_s16(vget_low_s16(y), 1192);
+        int32x4_t yHi = vmull_n_s16(vget_high_s16(y), 1192);
+
+        uint8x8x3_t rgb;
+        rgb.val[0] = fixedToByte(vmlal_n_s16(yLo, vget_low_s16(v), 1634),
+                vmlal_n_s16(yHi, vget_high_s16(v), 1634));
+        rgb.val[1] = fixedToByte(
+                vmlsl_n_s16(vmlsl_n_s16(yLo, vget_low_s16(v), 833), vget_low_s16(u), 400),
+                vmlsl_n_s16(vmlsl_n_s16(yHi, vget_high_s16(v), 833), vget_high_s16(u), 400));
+        rgb.val[2] = fixedToByte(vmlal_n_s16(yLo, vget_low_s16(u), 2066),
+                vmlal_n_s16(yHi, vget_high_s16(u), 2066));
+        vst3_u8(out + 3 * p, rgb);
+    }
+    for (; p < frameSize; p++)
+    {
+        ColorKernels::yvuToRgbFixedPixel(yp[p], vp[p], up[p], out + 3 * p);
+    }
+}
+
+static void subsampleYvu444NEON(ImageType out, ImageType in, int width, int height,
+        int factor)
+{
+    if (factor != 2 && factor != 4)
+    {
+        gColorKernelsScalar.subsampleYvu444(out, in, width, height, factor);
+        return;
+    }
+
+    for (int plane = 0; plane < 3; plane++)
+    {
+        for (int j = plane * height; j < (plane + 1) * height; j += factor)
+        {
+            ImageType imp = in + j * width;
+            ImageType outp = out + (j / factor) * (width / factor);
+            int i = 0;
+
+            if (factor == 4)
+            {
+                for (; i + 64 <= width; i += 64, outp += 16)
+                {
+                    vst1q_u8(outp, vld4q_u8(imp + i).val[0]);
+                }
+            }
+            else
+            {
+                for (; i + 32 <= width; i += 32, outp += 16)
+                {
+                    vst1q_u8(outp, vld2q_u8(imp + i).val[0]);
+                }
+            }
+
+            for (; i < width; i += factor)
+            {
+                *outp++ = imp[i];
+            }
+        }
+    }
+}
+
+static void rgbToYvu444NEON(ImageType out, ImageType in, int width, int height)
+{
+    int frameSize = width * height;
+    ImageType yp = out;
+    ImageType vp = yp + frameSize;
+    ImageType up = vp + frameSize;
+    int p = 0;
+
+    for (; p + 8 <= frameSize; p += 8)
+    {
+        uint8x8x3_t rgb = vld3_u8(in + 3 * p);
+        int16x8_t r = widen(rgb.val[0], 0);
+        int16x8_t g = widen(rgb.val[1], 0);
+        int16x8_t b = widen(rgb.val[2], 0);
+        int32x4_t q[2][3];
+        uint32x4_t unused = vdupq_n_u32(0);
+
+        for (int h = 0; h < 2; h++)
+        {
+            int16x4_t rh = h ? vget_high_s16(r) : vget_low_s16(r);
+            int16x4_t gh = h ? vget_high_s16(g) : vget_low_s16(g);
+            int16x4_t bh = h ? vget_high_s16(b) : vget_low_s16(b);
+
+            // The integer divisions of rgbToYvuPixel are exact here.
+            int32x4_t ny = vmlal_n_s16(vmlal_n_s16(vmull_n_s16(rh, ImageUtils::REDY),
+                    gh, ImageUtils::GREENY), bh, ImageUtils::BLUEY);
+            int32x4_t nv = vmlsl_n_s16(vmlsl_n_s16(vmull_n_s16(rh, ImageUtils::REDV),
+                    gh, ImageUtils::GREENV), bh, ImageUtils::BLUEV);
+            int32x4_t nu = vmlal_n_s16(vmlsl_n_s16(vmull_n_s16(rh, -ImageUtils::REDU),
+                    gh, ImageUtils::GREENU), bh, ImageUtils::BLUEU);
+
+            q[h][0] = vaddq_s32(divideNumerator(ny, 0.001f, 1000, unused), vdupq_n_s32(16));
+            q[h][1] = vaddq_s32(divideNumerator(nv, 0.001f, 1000, unused), vdupq_n_s32(128));
+            q[h][2] = vaddq_s32(divideNumerator(nu, 0.001f, 1000, unused), vdupq_n_s32(128));
+        }
+
+        vst1_u8(yp + p, narrow(q[0][0], q[1][0]));
+        vst1_u8(vp + p, narrow(q[0][1], q[1][1]));
+        vst1_u8(up + p, narrow(q[0][2], q[1][2]));
+    }
+    for (; p < frameSize; p++)
+    {
+        ColorKernels::rgbToYvuPixel(in[3 * p], in[3 * p + 1], in[3 * p + 2],
+                yp + p, vp + p, up + p);
+    }
+}
+
+static void yvu444ToRgbNEON(ImageType out, ImageType in, int width, int height,
+        bool bgr)
+{
+    int frameSize = width * height;
+    ImageType yp = in;
+    ImageType vp = yp + frameSize;
+    ImageType up = vp + frameSize;
+    int p = 0;
+
+    for (; p + 8 <= frameSize; p += 8)
+    {
+        int16x8_t y = widen(vld1_u8(yp + p), 16);
+        int16x8_t v = widen(vld1_u8(vp + p), 128);
+        int16x8_t u = widen(vld1_u8(up + p), 128);
+        int32x4_t r[2], g[2], b[2];
+        uint32x4_t multiples = vdupq_n_u32(0);
+
+        for (int h = 0; h < 2; h++)
+        {
+            int16x4_t yh = h ? vget_high_s16(y) : vget_low_s16(y);
+            int16x4_t vh = h ? vget_high_s16(v) : vget_low_s16(v);
+            int16x4_t uh = h ? vget_high_s16(u) : vget_low_s16(u);
+            int32x4_t ny = vmull_n_s16(yh, 1164);
+
+            b[h] = divideNumerator(vmlal_n_s16(ny, uh, 2018), 0.001f, 1000, multiples);
+            g[h] = divideNumerator(vmlsl_n_s16(vmlsl_n_s16(ny, vh, 813), uh, 391),
+                    0.001f, 1000, multiples);
+            r[h] = divideNumerator(vmlal_n_s16(ny, vh, 1596), 0.001f, 1000, multiples);
+        }
+
+        uint8x8x3_t rgb;
+        rgb.val[bgr ? 2 : 0] = narrow(r[0], r[1]);
+        rgb.val[1] = narrow(g[0], g[1]);
+        rgb.val[bgr ? 0 : 2] = narrow(b[0], b[1]);
+        vst3_u8(out + 3 * p, rgb);
+
+        if (anyLane(multiples))
+        {
+            for (int k = p; k < p + 8; k++)
+            {
+                int rk, gk, bk;
+                ColorKernels::yvuToRgbPixel(yp[k], vp[k], up[k], rk, gk, bk);
+                out[3 * k] = bgr ? bk : rk;
+                out[3 * k + 1] = gk;
+                out[3 * k + 2] = bgr ? rk : bk;
+            }
+        }
+    }
+    for (; p < frameSize; p++)
+    {
+        int r, g, b;
+        ColorKernels::yvuToRgbPixel(yp[p], vp[p], up[p], r, g, b);
+        out[3 * p] = bgr ? b : r;
+        out[3 * p + 1] = g;
+        out[3 * p + 2] = bgr ? r : b;
+    }
+}
+
+static void yvu444ToRgbNEON(ImageType out, ImageType in, int width, int height)
+{
+    yvu444ToRgbNEON(out, in, width, height, false);
+}
+
+static void yvu444ToBgrNEON(ImageType out, ImageType in, int width, int height)
+{
+    yvu444ToRgbNEON(out, in, width, height, true);
+}
+
+static void rgbToGrayNEON(ImageType out, ImageType in, int width, int height)
+{
+    int frameSize = width * height;
+    int p = 0;
+
+    for (; p + 8 <= frameSize; p += 8)
+    {
+        uint8x8x3_t rgb = vld3_u8(in + 3 * p);
+        int16x8_t r = widen(rgb.val[0], 0);
+        int16x8_t g = widen(rgb.val[1], 0);
+        int16x8_t b = widen(rgb.val[2], 0);
+        int32x4_t gray[2];
+        uint32x4_t multiples = vdupq_n_u32(0);
+
+        for (int h = 0; h < 2; h++)
+        {
+            int16x4_t rh = h ? vget_high_s16(r) : vget_low_s16(r);
+            int16x4_t gh = h ? vget_high_s16(g) : vget_low_s16(g);
+            int16x4_t bh = h ? vget_high_s16(b) : vget_low_s16(b);
+
+            gray[h] = divideNumerator(vmlal_n_s16(vmlal_n_s16(vmull_n_s16(rh, 30),
+                    gh, 59), bh, 11), 0.01f, 100, multiples);
+        }
+
+        vst1_u8(out + p, narrow(gray[0], gray[1]));
+
+        if (anyLane(multiples))
+        {
+            for (int k = p; k < p + 8; k++)
+            {
+                out[k] = ColorKernels::rgbToGrayPixel(in[3 * k], in[3 * k + 1],
+                        in[3 * k + 2]);
+            }
+        }
+    }
+    for (; p < frameSize; p++)
+    {
+        out[p] = ColorKernels::rgbToGrayPixel(in[3 * p], in[3 * p + 1], in[3 * p + 2]);
+    }
+}
+
+const ColorKernels gColorKernelsNEON = {
+    "neon",
+    yuv420spToYvu444NEON,
+    yvuaToYvu444NEON,
+    yvu444ToRgbFixedNEON,
+    subsampleYvu444NEON,
+    rgbToYvu444NEON,
+    yvu444ToRgbNEON,
+    yvu444ToBgrNEON,
+    rgbToGrayNEON,
+};
+
+#endif
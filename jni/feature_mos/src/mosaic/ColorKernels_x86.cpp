@@ -0,0 +1,894 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+///////////////////////////////////////////////////
+// ColorKernels_x86.cpp
+// SSSE3 and AVX2 kernels. Each function is built for its instruction set, so
+// the file needs no special flags and the kernels are only run on CPUs that
+// have it.
+
+#include "ColorKernelsTables.h"
+
+#ifdef COLOR_KERNELS_X86
+
+#include <string.h>
+#include <immintrin.h>
+
+#define TARGET_SSSE3 __attribute__((target("ssse3")))
+#define TARGET_AVX2 __attribute__((target("avx2")))
+
+// The conversions from ImageUtils are done in double precision, with the same
+// operations in the same order as the scalar code, so that they round the
+// same way. The others are exact integer arithmetic.
+
+// Pairs of 16 bit coefficients for _mm_madd_epi16().
+static inline int coefficientPair(int lo, int hi)
+{
+    return (int) (((unsigned) (unsigned short) hi << 16) | (unsigned short) lo);
+}
+
+///////////////////////////////////////////////////
+// SSSE3
+
+// Splits 16 pixels of 3 interleaved channels into a vector per channel.
+static inline TARGET_SSSE3 void deinterleave3(const unsigned char *in, __m128i &c0,
+        __m128i &c1, __m128i &c2)
+{
+    __m128i a = _mm_loadu_si128((const __m128i *) in);
+    __m128i b = _mm_loadu_si128((const __m128i *) (in + 16));
+    __m128i c = _mm_loadu_si128((const __m128i *) (in + 32));
+
+    c0 = _mm_or_si128(_mm_or_si128(
+            _mm_shuffle_epi8(a, _mm_setr_epi8(0, 3, 6, 9, 12, 15, -1, -1,
+                    -1, -1, -1, -1, -1, -1, -1, -1)),
+            _mm_shuffle_epi8(b, _mm_setr_epi8(-1, -1, -1, -1, -1, -1, 2, 5,
+                    8, 11, 14, -1, -1, -1, -1, -1))),
+            _mm_shuffle_epi8(c, _mm_setr_epi8(-1, -1, -1, -1, -1, -1, -1, -1,
+                    -1, -1, -1, 1, 4, 7, 10, 13)));
+    c1 = _mm_or_si128(_mm_or_si128(
+            _mm_shuffle_epi8(a, _mm_setr_epi8(1, 4, 7, 10, 13, -1, -1, -1,
+                    -1, -1, -1, -1, -1, -1, -1, -1)),
+            _mm_shuffle_epi8(b, _mm_setr_epi8(-1, -1, -1, -1, -1, 0, 3, 6,
+                    9, 12, 15, -1, -1, -1, -1, -1))),
+            _mm_shuffle_epi8(c, _mm_setr_epi8(-1, -1, -1, -1, -1, -1, -1, -1,
+                    -1, -1, -1, 2, 5, 8, 11, 14)));
+    c2 = _mm_or_si128(_mm_or_si128(
+            _mm_shuffle_epi8(a, _mm_setr_epi8(2, 5, 8, 11, 14, -1, -1, -1,
+                    -1, -1, -1, -1, -1, -1, -1, -1)),
+            _mm_shuffle_epi8(b, _mm_setr_epi8(-1, -1, -1, -1, -1, 1, 4, 7,
+                    10, 13, -1, -1, -1, -1, -1, -1))),
+            _mm_shuffle_epi8(c, _mm_setr_epi8(-1, -1, -1, -1, -1, -1, -1, -1,
+                    -1, -1, 0, 3, 6, 9, 12, 15)));
+}
+
+// Stores 16 pixels of 3 channels interleaved.
+static inline TARGET_SSSE3 void interleave3(unsigned char *out, __m128i c0, __m128i c1,
+        __m128i c2)
+{
+    __m128i a = _mm_or_si128(_mm_or_si128(
+            _mm_shuffle_epi8(c0, _mm_setr_epi8(0, -1, -1, 1, -1, -1, 2, -1,
+                    -1, 3, -1, -1, 4, -1, -1, 5)),
+            _mm_shuffle_epi8(c1, _mm_setr_epi8(-1, 0, -1, -1, 1, -1, -1, 2,
+                    -1, -1, 3, -1, -1, 4, -1, -1))),
+            _mm_shuffle_epi8(c2, _mm_setr_epi8(-1, -1, 0, -1, -1, 1, -1, -1,
+                    2, -1, -1, 3, -1, -1, 4, -1)));
+    __m128i b = _mm_or_si128(_mm_or_si128(
+            _mm_shuffle_epi8(c0, _mm_setr_epi8(-1, -1, 6, -1, -1, 7, -1, -1,
+                    8, -1, -1, 9, -1, -1, 10, -1)),
+            _mm_shuffle_epi8(c1, _mm_setr_epi8(5, -1, -1, 6, -1, -1, 7, -1,
+                    -1, 8, -1, -1, 9, -1, -1, 10))),
+            _mm_shuffle_epi8(c2, _mm_setr_epi8(-1, 5, -1, -1, 6, -1, -1, 7,
+                    -1, -1, 8, -1, -1, 9, -1, -1)));
+    __m128i c = _mm_or_si128(_mm_or_si128(
+            _mm_shuffle_epi8(c0, _mm_setr_epi8(-1, 11, -1, -1, 12, -1, -1, 13,
+                    -1, -1, 14, -1, -1, 15, -1, -1)),
+            _mm_shuffle_epi8(c1, _mm_setr_epi8(-1, -1, 11, -1, -1, 12, -1, -1,
+                    13, -1, -1, 14, -1, -1, 15, -1))),
+            _mm_shuffle_epi8(c2, _mm_setr_epi8(10, -1, -1, 11, -1, -1, 12, -1,
+                    -1, 13, -1, -1, 14, -1, -1, 15)));
+
+    _mm_storeu_si128((__m128i *) out, a);
+    _mm_storeu_si128((__m128i *) (out + 16), b);
+    _mm_storeu_si128((__m128i *) (out + 32), c);
+}
+
+// Widens 16 bytes to 4 vectors of 4 32 bit integers.
+static inline TARGET_SSSE3 void widen(__m128i x, __m128i *q)
+{
+    __m128i zero = _mm_setzero_si128();
+    __m128i lo = _mm_unpacklo_epi8(x, zero);
+    __m128i hi = _mm_unpackhi_epi8(x, zero);
+
+    q[0] = _mm_unpacklo_epi16(lo, zero);
+    q[1] = _mm_unpackhi_epi16(lo, zero);
+    q[2] = _mm_unpacklo_epi16(hi, zero);
+    q[3] = _mm_unpackhi_epi16(hi, zero);
+}
+
+// Narrows 16 32 bit integers to bytes, clamped to [0, 255].
+static inline TARGET_SSSE3 __m128i narrow(__m128i a, __m128i b, __m128i c, __m128i d)
+{
+    return _mm_packus_epi16(_mm_packs_epi32(a, b), _mm_packs_epi32(c, d));
+}
+
+// C integer division by 1000, rounding towards zero. The float product is
+// exact enough for the magnitudes of the colour conversions.
+static inline TARGET_SSSE3 __m128i divide1000(__m128i n)
+{
+    return _mm_cvttps_epi32(_mm_mul_ps(_mm_cvtepi32_ps(n), _mm_set1_ps(0.001f)));
+}
+
+static TARGET_SSSE3 void yuv420spToYvu444SSSE3(ImageType out, ImageType in, int width,
+        int height)
+{
+    int frameSize = width * height;
+    const __m128i lowBytes = _mm_set1_epi16(0x00ff);
+
+    memcpy(out, in, frameSize);
+
+    for (int j = 0; j < height; j += 2)
+    {
+        ImageType vu = in + frameSize + (j >> 1) * width;
+        ImageType v = out + frameSize + j * width;
+        ImageType u = v + frameSize;
+        int i = 0;
+
+        // Each VU pair is two pixels wide
+        for (; i + 16 <= width; i += 16)
+        {
+            __m128i x = _mm_loadu_si128((const __m128i *) (vu + i));
+            __m128i vv = _mm_and_si128(x, lowBytes);
+            __m128i uu = _mm_srli_epi16(x, 8);
+            _mm_storeu_si128((__m128i *) (v + i), _mm_or_si128(vv, _mm_slli_epi16(vv, 8)));
+            _mm_storeu_si128((__m128i *) (u + i), _mm_or_si128(uu, _mm_slli_epi16(uu, 8)));
+        }
+        for (; i < width; i++)
+        {
+            v[i] = vu[i & ~1];
+            u[i] = vu[(i & ~1) + 1];
+        }
+
+        // The next row has the same chroma
+        if (j + 1 < height)
+        {
+            memcpy(v + width, v, width);
+            memcpy(u + width, u, width);
+        }
+    }
+}
+
+static TARGET_SSSE3 void yvuaToYvu444SSSE3(ImageType out, ImageType in, int width,
+        int height)
+{
+    int frameSize = width * height;
+    ImageType y = out;
+    ImageType v = y + frameSize;
+    ImageType u = v + frameSize;
+    const __m128i channels = _mm_setr_epi8(0, 4, 8, 12, 1, 5, 9, 13, 2, 6, 10, 14,
+            3, 7, 11, 15);
+    int p = 0;
+
+    for (; p + 16 <= frameSize; p += 16)
+    {
+        // Group the channels of each 4 pixels, then transpose the groups
+        const __m128i *src = (const __m128i *) (in + 4 * p);
+        __m128i a = _mm_shuffle_epi8(_mm_loadu_si128(src), channels);
+        __m128i b = _mm_shuffle_epi8(_mm_loadu_si128(src + 1), channels);
+        __m128i c = _mm_shuffle_epi8(_mm_loadu_si128(src + 2), channels);
+        __m128i d = _mm_shuffle_epi8(_mm_loadu_si128(src + 3), channels);
+        __m128i yvAB = _mm_unpacklo_epi32(a, b);
+        __m128i yvCD = _mm_unpacklo_epi32(c, d);
+        __m128i uaAB = _mm_unpackhi_epi32(a, b);
+        __m128i uaCD = _mm_unpackhi_epi32(c, d);
+
+        _mm_storeu_si128((__m128i *) (y + p), _mm_unpacklo_epi64(yvAB, yvCD));
+        _mm_storeu_si128((__m128i *) (v + p), _mm_unpackhi_epi64(yvAB, yvCD));
+        _mm_storeu_si128((__m128i *) (u + p), _mm_unpacklo_epi64(uaAB, uaCD));
+    }
+    for (; p < frameSize; p++)
+    {
+        y[p] = in[4 * p];
+        v[p] = in[4 * p + 1];
+        u[p] = in[4 * p + 2];
+    }
+}
+
+// Fixed point conversion of 8 pixels in 16 bit lanes. The results are the
+// 32 bit sums shifted right by 10, which clamp to the scalar results when
+// narrowed to bytes.
+static inline TARGET_SSSE3 void rgbFixed8(__m128i y, __m128i v, __m128i u,
+        __m128i &r, __m128i &g, __m128i &b)
+{
+    const __m128i kR = _mm_set1_epi32(coefficientPair(1192, 1634));
+    const __m128i kG = _mm_set1_epi32(coefficientPair(1192, -833));
+    const __m128i kGU = _mm_set1_epi32(coefficientPair(0, -400));
+    const __m128i kB = _mm_set1_epi32(coefficientPair(1192, 2066));
+
+    __m128i yvLo = _mm_unpacklo_epi16(y, v);
+    __m128i yvHi = _mm_unpackhi_epi16(y, v);
+    __m128i yuLo = _mm_unpacklo_epi16(y, u);
+    __m128i yuHi = _mm_unpackhi_epi16(y, u);
+
+    r = _mm_packs_epi32(_mm_srai_epi32(_mm_madd_epi16(yvLo, kR), 10),
+            _mm_srai_epi32(_mm_madd_epi16(yvHi, kR), 10));
+    g = _mm_packs_epi32(
+            _mm_srai_epi32(_mm_add_epi32(_mm_madd_epi16(yvLo, kG),
+                    _mm_madd_epi16(yuLo, kGU)), 10),
+            _mm_srai_epi32(_mm_add_epi32(_mm_madd_epi16(yvHi, kG),
+                    _mm_madd_epi16(yuHi, kGU)), 10));
+    b = _mm_packs_epi32(_mm_srai_epi32(_mm_madd_epi16(yuLo, kB), 10),
+            _mm_srai_epi32(_mm_madd_epi16(yuHi, kB), 10));
+}
+
+static TARGET_SSSE3 void yvu444ToRgbFixedSSSE3(ImageType out, ImageType in, int width,
+        int height)
+{
+    int frameSize = width * height;
+    ImageType yp = in;
+    ImageType vp = yp + frameSize;
+    ImageType up = vp + frameSize;
+    const __m128i zero = _mm_setzero_si128();
+    const __m128i c16 = _mm_set1_epi8(16);
+    const __m128i c128 = _mm_set1_epi16(128);
+    int p = 0;
+
+    for (; p + 16 <= frameSize; p += 16)
+    {
+        __m128i y = _mm_subs_epu8(_mm_loadu_si128((const __m128i *) (yp + p)), c16);
+        __m128i v = _mm_loadu_si128((const __m128i *) (vp + p));
+        __m128i u = _mm_loadu_si128((const __m128i *) (up + p));
+        __m128i rLo, gLo, bLo, rHi, gHi, bHi;
+
+        rgbFixed8(_mm_unpacklo_epi8(y, zero),
+                _mm_sub_epi16(_mm_unpacklo_epi8(v, zero), c128),
+                _mm_sub_epi16(_mm_unpacklo_epi8(u, zero), c128), rLo, gLo, bLo);
+        rgbFixed8(_mm_unpackhi_epi8(y, zero),
+                _mm_sub_epi16(_mm_unpackhi_epi8(v, zero), c128),
+                _mm_sub_epi16(_mm_unpackhi_epi8(u, zero), c128), rHi, gHi, bHi);
+
+        interleave3(out + 3 * p, _mm_packus_epi16(rLo, rHi),
+                _mm_packus_epi16(gLo, gHi), _mm_packus_epi16(bLo, bHi));
+    }
+    for (; p < frameSize; p++)
+    {
+        ColorKernels::yvuToRgbFixedPixel(yp[p], vp[p], up[p], out + 3 * p);
+    }
+}
+
+static TARGET_SSSE3 void subsampleYvu444SSSE3(ImageType out, ImageType in, int width,
+        int height, int factor)
+{
+    if (factor != 2 && factor != 4)
+    {
+        gColorKernelsScalar.subsampleYvu444(out, in, width, height, factor);
+        return;
+    }
+
+    const __m128i mask2 = _mm_set1_epi16(0x00ff);
+    const __m128i mask4 = _mm_set1_epi32(0xff);
+
+    for (int plane = 0; plane < 3; plane++)
+    {
+        for (int j = plane * height; j < (plane + 1) * height; j += factor)
+        {
+            ImageType imp = in + j * width;
+            ImageType outp = out + (j / factor) * (width / factor);
+            int i = 0;
+
+            if (factor == 4)
+            {
+                for (; i + 64 <= width; i += 64, outp += 16)
+                {
+                    const __m128i *src = (const __m128i *) (imp + i);
+                    _mm_storeu_si128((__m128i *) outp, narrow(
+                            _mm_and_si128(_mm_loadu_si128(src), mask4),
+                            _mm_and_si128(_mm_loadu_si128(src + 1), mask4),
+                            _mm_and_si128(_mm_loadu_si128(src + 2), mask4),
+                            _mm_and_si128(_mm_loadu_si128(src + 3), mask4)));
+                }
+            }
+            else
+            {
+                for (; i + 32 <= width; i += 32, outp += 16)
+                {
+                    const __m128i *src = (const __m128i *) (imp + i);
+                    _mm_storeu_si128((__m128i *) outp, _mm_packus_epi16(
+                            _mm_and_si128(_mm_loadu_si128(src), mask2),
+                            _mm_and_si128(_mm_loadu_si128(src + 1), mask2)));
+                }
+            }
+
+            for (; i < width; i += factor)
+            {
+                *outp++ = imp[i];
+            }
+        }
+    }
+}
+
+// Numerators of the conversion of 4 pixels to Y, V and U. rg has the red and
+// green values interleaved, b0 the blue values interleaved with zeros.
+static inline TARGET_SSSE3 void yvuNumerators4(__m128i rg, __m128i b0, __m128i &ny,
+        __m128i &nv, __m128i &nu)
+{
+    ny = _mm_add_epi32(
+            _mm_madd_epi16(rg, _mm_set1_epi32(coefficientPair(ImageUtils::REDY,
+                    ImageUtils::GREENY))),
+            _mm_madd_epi16(b0, _mm_set1_epi32(coefficientPair(ImageUtils::BLUEY, 0))));
+    nv = _mm_add_epi32(
+            _mm_madd_epi16(rg, _mm_set1_epi32(coefficientPair(ImageUtils::REDV,
+                    -ImageUtils::GREENV))),
+            _mm_madd_epi16(b0, _mm_set1_epi32(coefficientPair(-ImageUtils::BLUEV, 0))));
+    nu = _mm_add_epi32(
+            _mm_madd_epi16(rg, _mm_set1_epi32(coefficientPair(-ImageUtils::REDU,
+                    -ImageUtils::GREENU))),
+            _mm_madd_epi16(b0, _mm_set1_epi32(coefficientPair(ImageUtils::BLUEU, 0))));
+}
+
+static TARGET_SSSE3 void rgbToYvu444SSSE3(ImageType out, ImageType in, int width,
+        int height)
+{
+    int frameSize = width * height;
+    ImageType yp = out;
+    ImageType vp = yp + frameSize;
+    ImageType up = vp + frameSize;
+    const __m128i zero = _mm_setzero_si128();
+    const __m128i c16 = _mm_set1_epi32(16);
+    const __m128i c128 = _mm_set1_epi32(128);
+    int p = 0;
+
+    for (; p + 16 <= frameSize; p += 16)
+    {
+        __m128i r, g, b;
+        deinterleave3(in + 3 * p, r, g, b);
+
+        __m128i rg[4], b0[4];
+        __m128i rgLo = _mm_unpacklo_epi8(r, zero), rgHi = _mm_unpackhi_epi8(r, zero);
+        __m128i gLo = _mm_unpacklo_epi8(g, zero), gHi = _mm_unpackhi_epi8(g, zero);
+        __m128i bLo = _mm_unpacklo_epi8(b, zero), bHi = _mm_unpackhi_epi8(b, zero);
+        rg[0] = _mm_unpacklo_epi16(rgLo, gLo);
+        rg[1] = _mm_unpackhi_epi16(rgLo, gLo);
+        rg[2] = _mm_unpacklo_epi16(rgHi, gHi);
+        rg[3] = _mm_unpackhi_epi16(rgHi, gHi);
+        b0[0] = _mm_unpacklo_epi16(bLo, zero);
+        b0[1] = _mm_unpackhi_epi16(bLo, zero);
+        b0[2] = _mm_unpacklo_epi16(bHi, zero);
+        b0[3] = _mm_unpackhi_epi16(bHi, zero);
+
+        __m128i y[4], v[4], u[4];
+        for (int q = 0; q < 4; q++)
+        {
+            __m128i ny, nv, nu;
+            yvuNumerators4(rg[q], b0[q], ny, nv, nu);
+            y[q] = _mm_add_epi32(divide1000(ny), c16);
+            v[q] = _mm_add_epi32(divide1000(nv), c128);
+            u[q] = _mm_add_epi32(divide1000(nu), c128);
+        }
+
+        _mm_storeu_si128((__m128i *) (yp + p), narrow(y[0], y[1], y[2], y[3]));
+        _mm_storeu_si128((__m128i *) (vp + p), narrow(v[0], v[1], v[2], v[3]));
+        _mm_storeu_si128((__m128i *) (up + p), narrow(u[0], u[1], u[2], u[3]));
+    }
+    for (; p < frameSize; p++)
+    {
+        ColorKernels::rgbToYvuPixel(in[3 * p], in[3 * p + 1], in[3 * p + 2],
+                yp + p, vp + p, up + p);
+    }
+}
+
+// ImageUtils conversion of 2 pixels in double precision.
+static inline TARGET_SSSE3 void rgbDouble2(__m128i y, __m128i v, __m128i u,
+        __m128i &r, __m128i &g, __m128i &b)
+{
+    __m128d yd = _mm_mul_pd(_mm_set1_pd(1.164),
+            _mm_cvtepi32_pd(_mm_sub_epi32(y, _mm_set1_epi32(16))));
+    __m128d vd = _mm_cvtepi32_pd(_mm_sub_epi32(v, _mm_set1_epi32(128)));
+    __m128d ud = _mm_cvtepi32_pd(_mm_sub_epi32(u, _mm_set1_epi32(128)));
+
+    b = _mm_cvttpd_epi32(_mm_add_pd(yd, _mm_mul_pd(_mm_set1_pd(2.018), ud)));
+    g = _mm_cvttpd_epi32(_mm_sub_pd(_mm_sub_pd(yd, _mm_mul_pd(_mm_set1_pd(0.813), vd)),
+            _mm_mul_pd(_mm_set1_pd(0.391), ud)));
+    r = _mm_cvttpd_epi32(_mm_add_pd(yd, _mm_mul_pd(_mm_set1_pd(1.596), vd)));
+}
+
+static inline TARGET_SSSE3 void yvu444ToRgbSSSE3(ImageType out, ImageType in, int width,
+        int height, bool bgr)
+{
+    int frameSize = width * height;
+    ImageType yp = in;
+    ImageType vp = yp + frameSize;
+    ImageType up = vp + frameSize;
+    int p = 0;
+
+    for (; p + 16 <= frameSize; p += 16)
+    {
+        __m128i y[4], v[4], u[4];
+        widen(_mm_loadu_si128((const __m128i *) (yp + p)), y);
+        widen(_mm_loadu_si128((const __m128i *) (vp + p)), v);
+        widen(_mm_loadu_si128((const __m128i *) (up + p)), u);
+
+        __m128i r[4], g[4], b[4];
+        for (int q = 0; q < 4; q++)
+        {
+            __m128i r0, g0, b0, r1, g1, b1;
+            rgbDouble2(y[q], v[q], u[q], r0, g0, b0);
+            rgbDouble2(_mm_srli_si128(y[q], 8), _mm_srli_si128(v[q], 8),
+                    _mm_srli_si128(u[q], 8), r1, g1, b1);
+            r[q] = _mm_unpacklo_epi64(r0, r1);
+            g[q] = _mm_unpacklo_epi64(g0, g1);
+            b[q] = _mm_unpacklo_epi64(b0, b1);
+        }
+
+        __m128i r8 = narrow(r[0], r[1], r[2], r[3]);
+        __m128i g8 = narrow(g[0], g[1], g[2], g[3]);
+        __m128i b8 = narrow(b[0], b[1], b[2], b[3]);
+        if (bgr)
+            interleave3(out + 3 * p, b8, g8, r8);
+        else
+            interleave3(out + 3 * p, r8, g8, b8);
+    }
+    for (; p < frameSize; p++)
+    {
+        int r, g, b;
+        ColorKernels::yvuToRgbPixel(yp[p], vp[p], up[p], r, g, b);
+        out[3 * p] = bgr ? b : r;
+        out[3 * p + 1] = g;
+        out[3 * p + 2] = bgr ? r : b;
+    }
+}
+
+static TARGET_SSSE3 void yvu444ToRgbSSSE3(ImageType out, ImageType in, int width,
+        int height)
+{
+    yvu444ToRgbSSSE3(out, in, width, height, false);
+}
+
+static TARGET_SSSE3 void yvu444ToBgrSSSE3(ImageType out, ImageType in, int width,
+        int height)
+{
+    yvu444ToRgbSSSE3(out, in, width, height, true);
+}
+
+static inline TARGET_SSSE3 __m128i grayDouble2(__m128i r, __m128i g, __m128i b)
+{
+    return _mm_cvttpd_epi32(_mm_add_pd(_mm_add_pd(
+            _mm_mul_pd(_mm_set1_pd(0.3), _mm_cvtepi32_pd(r)),
+            _mm_mul_pd(_mm_set1_pd(0.59), _mm_cvtepi32_pd(g))),
+            _mm_mul_pd(_mm_set1_pd(0.11), _mm_cvtepi32_pd(b))));
+}
+
+static TARGET_SSSE3 void rgbToGraySSSE3(ImageType out, ImageType in, int width,
+        int height)
+{
+    int frameSize = width * height;
+    int p = 0;
+
+    for (; p + 16 <= frameSize; p += 16)
+    {
+        __m128i r8, g8, b8;
+        deinterleave3(in + 3 * p, r8, g8, b8);
+
+        __m128i r[4], g[4], b[4], gray[4];
+        widen(r8, r);
+        widen(g8, g);
+        widen(b8, b);
+        for (int q = 0; q < 4; q++)
+        {
+            gray[q] = _mm_unpacklo_epi64(grayDouble2(r[q], g[q], b[q]),
+                    grayDouble2(_mm_srli_si128(r[q], 8), _mm_srli_si128(g[q], 8),
+                            _mm_srli_si128(b[q], 8)));
+        }
+
+        _mm_storeu_si128((__m128i *) (out + p), narrow(gray[0], gray[1], gray[2], gray[3]));
+    }
+    for (; p < frameSize; p++)
+    {
+        out[p] = ColorKernels::rgbToGrayPixel(in[3 * p], in[3 * p + 1], in[3 * p + 2]);
+    }
+}
+
+const ColorKernels gColorKernelsSSSE3 = {
+    "ssse3",
+    yuv420spToYvu444SSSE3,
+    yvuaToYvu444SSSE3,
+    yvu444ToRgbFixedSSSE3,
+    subsampleYvu444SSSE3,
+    rgbToYvu444SSSE3,
+    yvu444ToRgbSSSE3,
+    yvu444ToBgrSSSE3,
+    rgbToGraySSSE3,
+};
+
+///////////////////////////////////////////////////
+// AVX2
+
+// Narrows 32 32 bit integers to bytes, clamped to [0, 255]. The packs work
+// within 128 bit lanes, so the 4 byte groups are put back in order.
+static inline TARGET_AVX2 __m256i narrow256(__m256i a, __m256i b, __m256i c, __m256i d)
+{
+    __m256i x = _mm256_packus_epi16(_mm256_packs_epi32(a, b), _mm256_packs_epi32(c, d));
+    return _mm256_permutevar8x32_epi32(x, _mm256_setr_epi32(0, 4, 1, 5, 2, 6, 3, 7));
+}
+
+// Narrows 16 16 bit integers in order to bytes, clamped to [0, 255].
+static inline TARGET_AVX2 __m128i narrow16(__m256i x)
+{
+    return _mm_packus_epi16(_mm256_castsi256_si128(x), _mm256_extracti128_si256(x, 1));
+}
+
+static TARGET_AVX2 void yuv420spToYvu444AVX2(ImageType out, ImageType in, int width,
+        int height)
+{
+    int frameSize = width * height;
+    const __m256i lowBytes = _mm256_set1_epi16(0x00ff);
+
+    memcpy(out, in, frameSize);
+
+    for (int j = 0; j < height; j += 2)
+    {
+        ImageType vu = in + frameSize + (j >> 1) * width;
+        ImageType v = out + frameSize + j * width;
+        ImageType u = v + frameSize;
+        int i = 0;
+
+        for (; i + 32 <= width; i += 32)
+        {
+            __m256i x = _mm256_loadu_si256((const __m256i *) (vu + i));
+            __m256i vv = _mm256_and_si256(x, lowBytes);
+            __m256i uu = _mm256_srli_epi16(x, 8);
+            _mm256_storeu_si256((__m256i *) (v + i),
+                    _mm256_or_si256(vv, _mm256_slli_epi16(vv, 8)));
+            _mm256_storeu_si256((__m256i *) (u + i),
+                    _mm256_or_si256(uu, _mm256_slli_epi16(uu, 8)));
+        }
+        for (; i < width; i++)
+        {
+            v[i] = vu[i & ~1];
+            u[i] = vu[(i & ~1) + 1];
+        }
+
+        if (j + 1 < height)
+        {
+            memcpy(v + width, v, width);
+            memcpy(u + width, u, width);
+        }
+    }
+}
+
+static TARGET_AVX2 void yvuaToYvu444AVX2(ImageType out, ImageType in, int width,
+        int height)
+{
+    int frameSize = width * height;
+    ImageType y = out;
+    ImageType v = y + frameSize;
+    ImageType u = v + frameSize;
+    const __m256i channels = _mm256_setr_epi8(0, 4, 8, 12, 1, 5, 9, 13, 2, 6, 10, 14,
+            3, 7, 11, 15, 0, 4, 8, 12, 1, 5, 9, 13, 2, 6, 10, 14, 3, 7, 11, 15);
+    const __m256i order = _mm256_setr_epi32(0, 4, 1, 5, 2, 6, 3, 7);
+    int p = 0;
+
+    for (; p + 32 <= frameSize; p += 32)
+    {
+        // As with SSSE3 within each 128 bit lane, then the groups of 4 pixels
+        // are put back in order.
+        const __m256i *src = (const __m256i *) (in + 4 * p);
+        __m256i a = _mm256_shuffle_epi8(_mm256_loadu_si256(src), channels);
+        __m256i b = _mm256_shuffle_epi8(_mm256_loadu_si256(src + 1), channels);
+        __m256i c = _mm256_shuffle_epi8(_mm256_loadu_si256(src + 2), channels);
+        __m256i d = _mm256_shuffle_epi8(_mm256_loadu_si256(src + 3), channels);
+        __m256i yvAB = _mm256_unpacklo_epi32(a, b);
+        __m256i yvCD = _mm256_unpacklo_epi32(c, d);
+        __m256i uaAB = _mm256_unpackhi_epi32(a, b);
+        __m256i uaCD = _mm256_unpackhi_epi32(c, d);
+
+        _mm256_storeu_si256((__m256i *) (y + p), _mm256_permutevar8x32_epi32(
+                _mm256_unpacklo_epi64(yvAB, yvCD), order));
+        _mm256_storeu_si256((__m256i *) (v + p), _mm256_permutevar8x32_epi32(
+                _mm256_unpackhi_epi64(yvAB, yvCD), order));
+        _mm256_storeu_si256((__m256i *) (u + p), _mm256_permutevar8x32_epi32(
+                _mm256_unpacklo_epi64(uaAB, uaCD), order));
+    }
+    for (; p < frameSize; p++)
+    {
+        y[p] = in[4 * p];
+        v[p] = in[4 * p + 1];
+        u[p] = in[4 * p + 2];
+    }
+}
+
+static TARGET_AVX2 void yvu444ToRgbFixedAVX2(ImageType out, ImageType in, int width,
+        int height)
+{
+    int frameSize = width * height;
+    ImageType yp = in;
+    ImageType vp = yp + frameSize;
+    ImageType up = vp + frameSize;
+    const __m128i c16 = _mm_set1_epi8(16);
+    const __m256i c128 = _mm256_set1_epi16(128);
+    const __m256i kR = _mm256_set1_epi32(coefficientPair(1192, 1634));
+    const __m256i kG = _mm256_set1_epi32(coefficientPair(1192, -833));
+    const __m256i kGU = _mm256_set1_epi32(coefficientPair(0, -400));
+    const __m256i kB = _mm256_set1_epi32(coefficientPair(1192, 2066));
+    int p = 0;
+
+    for (; p + 16 <= frameSize; p += 16)
+    {
+        __m256i y = _mm256_cvtepu8_epi16(
+                _mm_subs_epu8(_mm_loadu_si128((const __m128i *) (yp + p)), c16));
+        __m256i v = _mm256_sub_epi16(_mm256_cvtepu8_epi16(
+                _mm_loadu_si128((const __m128i *) (vp + p))), c128);
+        __m256i u = _mm256_sub_epi16(_mm256_cvtepu8_epi16(
+                _mm_loadu_si128((const __m128i *) (up + p))), c128);
+
+        // The unpacks and packs both work within 128 bit lanes, so the
+        // pixels come back in order.
+        __m256i yvLo = _mm256_unpacklo_epi16(y, v);
+        __m256i yvHi = _mm256_unpackhi_epi16(y, v);
+        __m256i yuLo = _mm256_unpacklo_epi16(y, u);
+        __m256i yuHi = _mm256_unpackhi_epi16(y, u);
+
+        __m256i r = _mm256_packs_epi32(
+                _mm256_srai_epi32(_mm256_madd_epi16(yvLo, kR), 10),
+                _mm256_srai_epi32(_mm256_madd_epi16(yvHi, kR), 10));
+        __m256i g = _mm256_packs_epi32(
+                _mm256_srai_epi32(_mm256_add_epi32(_mm256_madd_epi16(yvLo, kG),
+                        _mm256_madd_epi16(yuLo, kGU)), 10),
+                _mm256_srai_epi32(_mm256_add_epi32(_mm256_madd_epi16(yvHi, kG),
+                        _mm256_madd_epi16(yuHi, kGU)), 10));
+        __m256i b = _mm256_packs_epi32(
+                _mm256_srai_epi32(_mm256_madd_epi16(yuLo, kB), 10),
+                _mm256_srai_epi32(_mm256_madd_epi16(yuHi, kB), 10));
+
+        interleave3(out + 3 * p, narrow16(r), narrow16(g), narrow16(b));
+    }
+    for (; p < frameSize; p++)
+    {
+        ColorKernels::yvuToRgbFixedPixel(yp[p], vp[p], up[p], out + 3 * p);
+    }
+}
+
+static TARGET_AVX2 void subsampleYvu444AVX2(ImageType out, ImageType in, int width,
+        int height, int factor)
+{
+    if (factor != 2 && factor != 4)
+    {
+        gColorKernelsScalar.subsampleYvu444(out, in, width, height, factor);
+        return;
+    }
+
+    const __m256i mask2 = _mm256_set1_epi16(0x00ff);
+    const __m256i mask4 = _mm256_set1_epi32(0xff);
+
+    for (int plane = 0; plane < 3; plane++)
+    {
+        for (int j = plane * height; j < (plane + 1) * height; j += factor)
+        {
+            ImageType imp = in + j * width;
+            ImageType outp = out + (j / factor) * (width / factor);
+            int i = 0;
+
+            if (factor == 4)
+            {
+                for (; i + 128 <= width; i += 128, outp += 32)
+                {
+                    const __m256i *src = (const __m256i *) (imp + i);
+                    _mm256_storeu_si256((__m256i *) outp, narrow256(
+                            _mm256_and_si256(_mm256_loadu_si256(src), mask4),
+                            _mm256_and_si256(_mm256_loadu_si256(src + 1), mask4),
+                            _mm256_and_si256(_mm256_loadu_si256(src + 2), mask4),
+                            _mm256_and_si256(_mm256_loadu_si256(src + 3), mask4)));
+                }
+            }
+            else
+            {
+                for (; i + 64 <= width; i += 64, outp += 32)
+                {
+                    const __m256i *src = (const __m256i *) (imp + i);
+                    __m256i x = _mm256_packus_epi16(
+                            _mm256_and_si256(_mm256_loadu_si256(src), mask2),
+                            _mm256_and_si256(_mm256_loadu_si256(src + 1), mask2));
+                    _mm256_storeu_si256((__m256i *) outp,
+                            _mm256_permute4x64_epi64(x, _MM_SHUFFLE(3, 1, 2, 0)));
+                }
+            }
+
+            for (; i < width; i += factor)
+            {
+                *outp++ = imp[i];
+            }
+        }
+    }
+}
+
+static inline TARGET_AVX2 __m256i divide1000AVX2(__m256i n)
+{
+    return _mm256_cvttps_epi32(_mm256_mul_ps(_mm256_cvtepi32_ps(n),
+            _mm256_set1_ps(0.001f)));
+}
+
+static TARGET_AVX2 void rgbToYvu444AVX2(ImageType out, ImageType in, int width,
+        int height)
+{
+    int frameSize = width * height;
+    ImageType yp = out;
+    ImageType vp = yp + frameSize;
+    ImageType up = vp + frameSize;
+    const __m256i zero = _mm256_setzero_si256();
+    const __m256i c16 = _mm256_set1_epi16(16);
+    const __m256i c128 = _mm256_set1_epi16(128);
+    const __m256i kYRG = _mm256_set1_epi32(coefficientPair(ImageUtils::REDY,
+            ImageUtils::GREENY));
+    const __m256i kYB = _mm256_set1_epi32(coefficientPair(ImageUtils::BLUEY, 0));
+    const __m256i kVRG = _mm256_set1_epi32(coefficientPair(ImageUtils::REDV,
+            -ImageUtils::GREENV));
+    const __m256i kVB = _mm256_set1_epi32(coefficientPair(-ImageUtils::BLUEV, 0));
+    const __m256i kURG = _mm256_set1_epi32(coefficientPair(-ImageUtils::REDU,
+            -ImageUtils::GREENU));
+    const __m256i kUB = _mm256_set1_epi32(coefficientPair(ImageUtils::BLUEU, 0));
+    int p = 0;
+
+    for (; p + 16 <= frameSize; p += 16)
+    {
+        __m128i r8, g8, b8;
+        deinterleave3(in + 3 * p, r8, g8, b8);
+
+        __m256i r = _mm256_cvtepu8_epi16(r8);
+        __m256i g = _mm256_cvtepu8_epi16(g8);
+        __m256i b = _mm256_cvtepu8_epi16(b8);
+        __m256i rgLo = _mm256_unpacklo_epi16(r, g);
+        __m256i rgHi = _mm256_unpackhi_epi16(r, g);
+        __m256i bLo = _mm256_unpacklo_epi16(b, zero);
+        __m256i bHi = _mm256_unpackhi_epi16(b, zero);
+
+        __m256i y = _mm256_packs_epi32(
+                divide1000AVX2(_mm256_add_epi32(_mm256_madd_epi16(rgLo, kYRG),
+                        _mm256_madd_epi16(bLo, kYB))),
+                divide1000AVX2(_mm256_add_epi32(_mm256_madd_epi16(rgHi, kYRG),
+                        _mm256_madd_epi16(bHi, kYB))));
+        __m256i v = _mm256_packs_epi32(
+                divide1000AVX2(_mm256_add_epi32(_mm256_madd_epi16(rgLo, kVRG),
+                        _mm256_madd_epi16(bLo, kVB))),
+                divide1000AVX2(_mm256_add_epi32(_mm256_madd_epi16(rgHi, kVRG),
+                        _mm256_madd_epi16(bHi, kVB))));
+        __m256i u = _mm256_packs_epi32(
+                divide1000AVX2(_mm256_add_epi32(_mm256_madd_epi16(rgLo, kURG),
+                        _mm256_madd_epi16(bLo, kUB))),
+                divide1000AVX2(_mm256_add_epi32(_mm256_madd_epi16(rgHi, kURG),
+                        _mm256_madd_epi16(bHi, kUB))));
+
+        _mm_storeu_si128((__m128i *) (yp + p), narrow16(_mm256_add_epi16(y, c16)));
+        _mm_storeu_si128((__m128i *) (vp + p), narrow16(_mm256_add_epi16(v, c128)));
+        _mm_storeu_si128((__m128i *) (up + p), narrow16(_mm256_add_epi16(u, c128)));
+    }
+    for (; p < frameSize; p++)
+    {
+        ColorKernels::rgbToYvuPixel(in[3 * p], in[3 * p + 1], in[3 * p + 2],
+                yp + p, vp + p, up + p);
+    }
+}
+
+// ImageUtils conversion of 4 pixels in double precision.
+static inline TARGET_AVX2 void rgbDouble4(__m128i y, __m128i v, __m128i u,
+        __m128i &r, __m128i &g, __m128i &b)
+{
+    __m256d yd = _mm256_mul_pd(_mm256_set1_pd(1.164),
+            _mm256_cvtepi32_pd(_mm_sub_epi32(y, _mm_set1_epi32(16))));
+    __m256d vd = _mm256_cvtepi32_pd(_mm_sub_epi32(v, _mm_set1_epi32(128)));
+    __m256d ud = _mm256_cvtepi32_pd(_mm_sub_epi32(u, _mm_set1_epi32(128)));
+
+    b = _mm256_cvttpd_epi32(_mm256_add_pd(yd, _mm256_mul_pd(_mm256_set1_pd(2.018), ud)));
+    g = _mm256_cvttpd_epi32(_mm256_sub_pd(
+            _mm256_sub_pd(yd, _mm256_mul_pd(_mm256_set1_pd(0.813), vd)),
+            _mm256_mul_pd(_mm256_set1_pd(0.391), ud)));
+    r = _mm256_cvttpd_epi32(_mm256_add_pd(yd, _mm256_mul_pd(_mm256_set1_pd(1.596), vd)));
+}
+
+static inline TARGET_AVX2 void yvu444ToRgbAVX2(ImageType out, ImageType in, int width,
+        int height, bool bgr)
+{
+    int frameSize = width * height;
+    ImageType yp = in;
+    ImageType vp = yp + frameSize;
+    ImageType up = vp + frameSize;
+    int p = 0;
+
+    for (; p + 16 <= frameSize; p += 16)
+    {
+        __m128i y[4], v[4], u[4];
+        widen(_mm_loadu_si128((const __m128i *) (yp + p)), y);
+        widen(_mm_loadu_si128((const __m128i *) (vp + p)), v);
+        widen(_mm_loadu_si128((const __m128i *) (up + p)), u);
+
+        __m128i r[4], g[4], b[4];
+        for (int q = 0; q < 4; q++)
+        {
+            rgbDouble4(y[q], v[q], u[q], r[q], g[q], b[q]);
+        }
+
+        __m128i r8 = narrow(r[0], r[1], r[2], r[3]);
+        __m128i g8 = narrow(g[0], g[1], g[2], g[3]);
+        __m128i b8 = narrow(b[0], b[1], b[2], b[3]);
+        if (bgr)
+            interleave3(out + 3 * p, b8, g8, r8);
+        else
+            interleave3(out + 3 * p, r8, g8, b8);
+    }
+    for (; p < frameSize; p++)
+    {
+        int r, g, b;
+        ColorKernels::yvuToRgbPixel(yp[p], vp[p], up[p], r, g, b);
+        out[3 * p] = bgr ? b : r;
+        out[3 * p + 1] = g;
+        out[3 * p + 2] = bgr ? r : b;
+    }
+}
+
+static TARGET_AVX2 void yvu444ToRgbAVX2(ImageType out, ImageType in, int width,
+        int height)
+{
+    yvu444ToRgbAVX2(out, in, width, height, false);
+}
+
+static TARGET_AVX2 void yvu444ToBgrAVX2(ImageType out, ImageType in, int width,
+        int height)
+{
+    yvu444ToRgbAVX2(out, in, width, height, true);
+}
+
+static TARGET_AVX2 void rgbToGrayAVX2(ImageType out, ImageType in, int width,
+        int height)
+{
+    int frameSize = width * height;
+    int p = 0;
+
+    for (; p + 16 <= frameSize; p += 16)
+    {
+        __m128i r8, g8, b8;
+        deinterleave3(in + 3 * p, r8, g8, b8);
+
+        __m128i r[4], g[4], b[4], gray[4];
+        widen(r8, r);
+        widen(g8, g);
+        widen(b8, b);
+        for (int q = 0; q < 4; q++)
+        {
+            gray[q] = _mm256_cvttpd_epi32(_mm256_add_pd(_mm256_add_pd(
+                    _mm256_mul_pd(_mm256_set1_pd(0.3), _mm256_cvtepi32_pd(r[q])),
+                    _mm256_mul_pd(_mm256_set1_pd(0.59), _mm256_cvtepi32_pd(g[q]))),
+                    _mm256_mul_pd(_mm256_set1_pd(0.11), _mm256_cvtepi32_pd(b[q]))));
+        }
+
+        _mm_storeu_si128((__m128i *) (out + p), narrow(gray[0], gray[1], gray[2], gray[3]));
+    }
+    for (; p < frameSize; p++)
+    {
+        out[p] = ColorKernels::rgbToGrayPixel(in[3 * p], in[3 * p + 1], in[3 * p + 2]);
+    }
+}
+
+const ColorKernels gColorKernelsAVX2 = {
+    "avx2",
+    yuv420spToYvu444AVX2,
+    yvuaToYvu444AVX2,
+    yvu444ToRgbFixedAVX2,
+    subsampleYvu444AVX2,
+    rgbToYvu444AVX2,
+    yvu444ToRgbAVX2,
+    yvu444ToBgrAVX2,
+    rgbToGrayAVX2,
+};
+
+#endif
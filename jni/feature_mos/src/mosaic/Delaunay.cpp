@@ -30,6 +30,7 @@
 
 CDelaunay::CDelaunay()
 {
+  sa = (CSite*)NULL;
 }
 
 CDelaunay::~CDelaunay()
@@ -191,7 +192,7 @@ CSite *CDelaunay::allocMemory(int n)
 {
   unsigned int size;
 
-  size = ((sizeof(CSite) + sizeof(SitePointer)) * n +
+  size = ((sizeof(CSite) + sizeof(SitePointer) + sizeof(EdgePointer)) * n +
           (sizeof(SitePointer) + sizeof(EdgePointer)) * 12
           ) * n;
   if (!(sa = (CSite*) malloc(size))) {
@@ -201,6 +202,7 @@ CSite *CDelaunay::allocMemory(int n)
   ev = (SEdgeVector *) (org = sp + n);
   next = (EdgePointer *) (org + 12 * n);
   ei = (struct EDGE_INFO *) (next + 12 * n);
+  siteEdge = (EdgePointer *) (next + 12 * n);
   return sa;
 }
 
@@ -631,3 +633,249 @@ void CDelaunay::linkNeighbors(SEdgeVector *edge, int nedge, int nsite)
     }
   }
 }
+
+//
+// Incremental construction
+//
+// Lawson's algorithm on the quad-edge structure: a new site is connected to
+// the corners of the triangle it falls in, or to the hull edges that see it,
+// then the edges facing it are swapped until the triangulation is Delaunay.
+//
+
+void CDelaunay::beginInsertion()
+{
+  deleteAllEdges();
+  nInserted = 0;
+  onLine = TRUE;
+  hullEdge = NYL;
+}
+
+int CDelaunay::insertSite(SitePointer s)
+{
+  int ret;
+
+  if (s != nInserted) {
+    return FALSE;
+  }
+
+  if (nInserted == 0) {
+    ret = TRUE;
+  } else if (nInserted == 1) {
+    ret = (sa[0].X() != sa[1].X() || sa[0].Y() != sa[1].Y());
+    if (ret) {
+      hullEdge = makeEdge(0, 1);
+      siteEdge[0] = hullEdge;
+      siteEdge[1] = (EdgePointer) sym(hullEdge);
+    }
+  } else {
+    ret = insertOutside(s);
+    if (!ret) {
+      ret = insertInside(s);
+    }
+  }
+
+  if (ret) {
+    nInserted++;
+  }
+  return ret;
+}
+
+// TRUE iff x is strictly right of e
+int CDelaunay::rightOf(SitePointer x, EdgePointer e)
+{
+  return ccw(x, dest(e), orig(e));
+}
+
+// Connects x to the hull edges that have it on their right. Returns FALSE,
+// and changes nothing, if x sees no hull edge.
+int CDelaunay::insertOutside(SitePointer x)
+{
+  EdgePointer e, start, base, nxt, t;
+  SitePointer a, d;
+  double past;
+  int i;
+
+  // The next hull edge counterclockwise is onext(sym(e)). Start from an edge
+  // that does not see x, so that the edges that do are walked in one go.
+  for (e = hullEdge, i = 0; rightOf(x, e); e = onext(sym(e))) {
+    if (++i > nextEdge) {
+      return FALSE;
+    }
+  }
+  start = e;
+
+  do {
+    e = onext(sym(e));
+  } while (e != start && !rightOf(x, e));
+
+  if (e == start) {
+    // x is in the hull, unless all the sites are on one line with x on it
+    if (!onLine) {
+      return FALSE;
+    }
+    do {
+      a = orig(e);
+      d = dest(e);
+      past = (sa[x].X() - sa[d].X()) * (sa[d].X() - sa[a].X()) +
+             (sa[x].Y() - sa[d].Y()) * (sa[d].Y() - sa[a].Y());
+      if (past > 0.0 && onext(sym(e)) == sym(e)) {
+        // beyond the end d
+        base = makeEdge(d, x);
+        splice(base, (EdgePointer) sym(e));
+        hullEdge = base;
+        siteEdge[x] = (EdgePointer) sym(base);
+        return TRUE;
+      }
+      if (past < 0.0 && (sa[x].X() - sa[a].X()) * (sa[d].X() - sa[a].X()) +
+          (sa[x].Y() - sa[a].Y()) * (sa[d].Y() - sa[a].Y()) > 0.0) {
+        // between a and d: e becomes a-x, and x-d is added
+        t = (EdgePointer) oprev(sym(e));
+        splice((EdgePointer) sym(e), t);
+        dest(e) = x;
+        base = makeEdge(x, d);
+        splice(base, (EdgePointer) sym(e));
+        if (t != sym(e)) {
+          splice((EdgePointer) sym(base), t);
+        }
+        hullEdge = base;
+        siteEdge[x] = base;
+        siteEdge[d] = (EdgePointer) sym(base);
+        return TRUE;
+      }
+      e = onext(sym(e));
+    } while (e != start);
+    return FALSE;
+  }
+
+  base = makeEdge(orig(e), x);
+  splice(base, (EdgePointer) oprev(e));
+  hullEdge = base;
+  siteEdge[x] = (EdgePointer) sym(base);
+  do {
+    nxt = onext(sym(e));
+    base = (EdgePointer) sym(connectLeft(base, (EdgePointer) sym(e)));
+    e = nxt;
+  } while (rightOf(x, e));
+  onLine = FALSE;
+
+  legalizeAround((EdgePointer) sym(hullEdge), FALSE);
+  return TRUE;
+}
+
+// Connects x to the corners of the triangle it is in. Returns FALSE, and
+// changes nothing, if x is not strictly inside a triangle.
+int CDelaunay::insertInside(SitePointer x)
+{
+  EdgePointer e, base, first;
+  int i;
+
+  if (onLine) {
+    return FALSE;
+  }
+
+  // Walk to the triangle left of e that has x in it
+  e = hullEdge;
+  for (i = 0; ; i++) {
+    if (i > nextEdge) {
+      return FALSE;
+    }
+    if (rightOf(x, e)) {
+      e = (EdgePointer) sym(e);
+    } else if (!rightOf(x, onext(e))) {
+      e = onext(e);
+    } else if (!rightOf(x, dprev(e))) {
+      e = (EdgePointer) dprev(e);
+    } else {
+      break;
+    }
+  }
+
+  if (lnext(lnext(lnext(e))) != e || !ccw(orig(e), dest(e), x) ||
+      !ccw(dest(e), dest(lnext(e)), x) || !ccw(dest(lnext(e)), orig(e), x)) {
+    return FALSE;
+  }
+
+  first = makeEdge(orig(e), x);
+  splice(first, e);
+  siteEdge[x] = (EdgePointer) sym(first);
+  base = first;
+  do {
+    base = connectLeft(e, (EdgePointer) sym(base));
+    e = (EdgePointer) oprev(base);
+  } while (lnext(e) != first);
+
+  legalizeAround((EdgePointer) sym(first), TRUE);
+  return TRUE;
+}
+
+// Swaps the edges facing the origin of s0 until they are Delaunay, going
+// counterclockwise around it from s0. The face left of s0 is skipped unless
+// whole is set, as it is outside the hull.
+void CDelaunay::legalizeAround(EdgePointer s0, int whole)
+{
+  EdgePointer t;
+  SitePointer x = orig(s0);
+
+  t = whole ? s0 : onext(s0);
+  do {
+    while (flipEdge((EdgePointer) sym(lnext(t)), x)) {
+    }
+    t = onext(t);
+  } while (t != s0);
+}
+
+// Swaps e, which has x on its right, if x is in the circle of the triangle on
+// its left
+int CDelaunay::flipEdge(EdgePointer e, SitePointer x)
+{
+  SitePointer d = dest(onext(e));
+
+  if (!ccw(orig(e), dest(e), d) || !incircle(orig(e), dest(e), d, x)) {
+    return FALSE;
+  }
+  swapEdge(e);
+  return TRUE;
+}
+
+// Turns e into the other diagonal of the quadrilateral around it
+void CDelaunay::swapEdge(EdgePointer e)
+{
+  EdgePointer a, b;
+
+  a = (EdgePointer) oprev(e);
+  b = (EdgePointer) oprev(sym(e));
+  siteEdge[orig(e)] = a;
+  siteEdge[dest(e)] = b;
+  splice(e, a);
+  splice((EdgePointer) sym(e), b);
+  splice(e, (EdgePointer) lnext(a));
+  splice((EdgePointer) sym(e), (EdgePointer) lnext(b));
+  orig(e) = dest(a);
+  dest(e) = dest(b);
+}
+
+// Neighbors of one site of the incremental triangulation, with the edges
+// that are too long thrown out as constructList() does. Returns how many.
+int CDelaunay::neighbors(SitePointer s, SEdgeVector *edge, int width, int height)
+{
+  EdgePointer e, first;
+  SitePointer other;
+  int n = 0;
+
+  if (s >= nInserted || nInserted < 2) {
+    return 0;
+  }
+
+  e = first = siteEdge[s];
+  do {
+    other = dest(e);
+    if ((int) fabs(sa[s].getVCenter().x - sa[other].getVCenter().x) <= width &&
+        (int) fabs(sa[s].getVCenter().y - sa[other].getVCenter().y) <= height) {
+      edge[n].first = s;
+      edge[n].second = other;
+      n++;
+    }
+    e = onext(e);
+  } while (e != first);
+  return n;
+}
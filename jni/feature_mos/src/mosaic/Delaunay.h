@@ -60,6 +60,14 @@ private:
   EdgePointer nextEdge;
   EdgePointer availEdge;
 
+  // Incremental construction: number of sites inserted, whether they are all
+  // on one line, and a convex hull edge with the sites on its left.
+  int nInserted;
+  int onLine;
+  EdgePointer hullEdge;
+  // An edge out of each inserted site
+  EdgePointer *siteEdge;
+
 private:
   void build(int lo, int hi, EdgePointer *le, EdgePointer *re, int rows);
   void buildTriangulation(int size);
@@ -99,6 +107,13 @@ private:
   int incircle(SitePointer a, SitePointer b, SitePointer c, SitePointer d);
   int constructList(EdgePointer e, int width, int height);
 
+  int rightOf(SitePointer x, EdgePointer e);
+  void swapEdge(EdgePointer e);
+  int flipEdge(EdgePointer e, SitePointer x);
+  void legalizeAround(EdgePointer s0, int whole);
+  int insertOutside(SitePointer x);
+  int insertInside(SitePointer x);
+
 public:
   CDelaunay();
   ~CDelaunay();
@@ -107,6 +122,16 @@ public:
   void freeMemory();
   int triangulate(SEdgeVector **edge, int nsite, int width, int height);
   void linkNeighbors(SEdgeVector *edge, int nedge, int nsite);
+
+  // Incremental construction, for sites that come one at a time. The edges
+  // come from the same storage as triangulate(), which beginInsertion()
+  // empties; no edge is ever freed. The sites must be inserted in the order
+  // of their index. insertSite() returns FALSE if the site is on a site or on
+  // an edge between two triangles, in which case triangulate() has to be used
+  // instead.
+  void beginInsertion();
+  int insertSite(SitePointer s);
+  int neighbors(SitePointer s, SEdgeVector *edge, int width, int height);
 };
 
 #define onext(a) next[a]
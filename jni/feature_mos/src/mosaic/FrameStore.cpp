@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+///////////////////////////////////////////////////
+// FrameStore.cpp
+
+#include <fcntl.h>
+#include <string.h>
+#include <unistd.h>
+#include <sys/mman.h>
+
+#include "FrameStore.h"
+#include "ColorKernels.h"
+
+#include "Log.h"
+#define LOG_TAG "FrameStore"
+
+FrameStore::FrameStore()
+{
+    width = height = 0;
+    maxFrames = 0;
+    frameBytes = 0;
+    mappedFrameBytes = 0;
+    heapFrames = NULL;
+    heapSlots = 0;
+    heapBytes = peakHeapBytes = 0;
+    mapping = NULL;
+    mappingBytes = 0;
+    mappedFrames = 0;
+    decodeBuffer = NULL;
+}
+
+FrameStore::~FrameStore()
+{
+    release();
+}
+
+int FrameStore::initialize(int width, int height, int maxFrames,
+        size_t memoryBudget, const char *scratchPath)
+{
+    release();
+    peakHeapBytes = 0;
+
+    this->width = width;
+    this->height = height;
+    this->maxFrames = maxFrames;
+    frameBytes = width * height + 2 * ((width + 1) / 2) * ((height + 1) / 2);
+
+    size_t pageSize = sysconf(_SC_PAGESIZE);
+    mappedFrameBytes = (frameBytes + pageSize - 1) / pageSize * pageSize;
+
+    heapSlots = maxFrames;
+    if (scratchPath != NULL && memoryBudget / frameBytes < (size_t) maxFrames)
+    {
+        heapSlots = memoryBudget / frameBytes;
+        mappingBytes = (maxFrames - heapSlots) * mappedFrameBytes;
+
+        // The file is unlinked right away so that it goes away with the
+        // mapping, even if the process dies.
+        int fd = open(scratchPath, O_RDWR | O_CREAT | O_TRUNC, 0600);
+        if (fd >= 0)
+        {
+            unlink(scratchPath);
+            if (ftruncate(fd, mappingBytes) == 0)
+            {
+                void *p = mmap(NULL, mappingBytes, PROT_READ | PROT_WRITE,
+                        MAP_SHARED, fd, 0);
+                if (p != MAP_FAILED)
+                    mapping = (ImageType) p;
+            }
+            close(fd);
+        }
+
+        if (mapping == NULL)
+        {
+            LOGE("Could not map %s, keeping all frames on the heap", scratchPath);
+            heapSlots = maxFrames;
+            mappingBytes = 0;
+        }
+    }
+
+    heapFrames = new ImageType[heapSlots];
+    for (int i = 0; i < heapSlots; i++)
+        heapFrames[i] = NULL;
+
+    decodeBuffer = ImageUtils::allocateImage(width, height,
+            ImageUtils::IMAGE_TYPE_NUM_CHANNELS);
+
+    LOGV("FrameStore %dx%d: %d frames on the heap, %d mapped",
+            width, height, heapSlots, maxFrames - heapSlots);
+
+    return FRAMESTORE_RET_OK;
+}
+
+void FrameStore::release()
+{
+    if (heapFrames != NULL)
+    {
+        for (int i = 0; i < heapSlots; i++)
+            free(heapFrames[i]);
+        delete[] heapFrames;
+        heapFrames = NULL;
+    }
+    heapSlots = 0;
+    heapBytes = 0;
+
+    if (mapping != NULL)
+    {
+        munmap(mapping, mappingBytes);
+        mapping = NULL;
+    }
+    mappingBytes = 0;
+    mappedFrames = 0;
+
+    if (decodeBuffer != NULL)
+    {
+        ImageUtils::freeImage(decodeBuffer);
+        decodeBuffer = NULL;
+    }
+}
+
+ImageType FrameStore::slot(int index)
+{
+    if (index < 0 || index >= maxFrames)
+        return NULL;
+
+    if (isMapped(index))
+        return mapping + (index - heapSlots) * mappedFrameBytes;
+
+    if (heapFrames[index] == NULL)
+    {
+        heapFrames[index] = (ImageType) malloc(frameBytes);
+        if (heapFrames[index] == NULL)
+            return NULL;
+        heapBytes += frameBytes;
+        if (heapBytes > peakHeapBytes)
+            peakHeapBytes = heapBytes;
+    }
+    return heapFrames[index];
+}
+
+int FrameStore::putYUV420SP(int index, ImageType yuv420sp)
+{
+    ImageType out = slot(index);
+    if (out == NULL)
+        return FRAMESTORE_RET_ERROR;
+
+    if (isMapped(index) && index - heapSlots >= mappedFrames)
+        mappedFrames = index - heapSlots + 1;
+
+    memcpy(out, yuv420sp, frameBytes);
+    evict(index);
+
+    return FRAMESTORE_RET_OK;
+}
+
+int FrameStore::putYVU24(int index, ImageType yvu24)
+{
+    ImageType out = slot(index);
+    if (out == NULL)
+        return FRAMESTORE_RET_ERROR;
+
+    if (isMapped(index) && index - heapSlots >= mappedFrames)
+        mappedFrames = index - heapSlots + 1;
+
+    int size = width * height;
+    memcpy(out, yvu24, size);
+
+    ImageType vu = out + size;
+    for (int j = 0; j < height; j += 2)
+    {
+        ImageType v0 = yvu24 + size + j * width;
+        ImageType u0 = v0 + size;
+        // Repeat the last row and column of odd sized frames
+        int next = (j + 1 < height) ? width : 0;
+        for (int i = 0; i < width; i += 2)
+        {
+            int right = (i + 1 < width) ? 1 : 0;
+            *vu++ = (v0[i] + v0[i + right] + v0[i + next] +
+                    v0[i + next + right] + 2) >> 2;
+            *vu++ = (u0[i] + u0[i + right] + u0[i + next] +
+                    u0[i + next + right] + 2) >> 2;
+        }
+    }
+    evict(index);
+
+    return FRAMESTORE_RET_OK;
+}
+
+ImageType FrameStore::getY(int index)
+{
+    return slot(index);
+}
+
+ImageType FrameStore::getYVU24(int index)
+{
+    ImageType in = slot(index);
+    if (in == NULL)
+        return NULL;
+
+    // With an even width the chroma rows are packed as in the camera frame
+    if ((width & 1) == 0)
+    {
+        ColorKernels::get()->yuv420spToYvu444(decodeBuffer, in, width, height);
+        return decodeBuffer;
+    }
+
+    int size = width * height;
+    memcpy(decodeBuffer, in, size);
+
+    for (int j = 0; j < height; j++)
+    {
+        ImageType vu = in + size + (j >> 1) * ((width + 1) / 2) * 2;
+        ImageType v = decodeBuffer + size + j * width;
+        ImageType u = v + size;
+        for (int i = 0; i < width; i++)
+        {
+            v[i] = vu[(i >> 1) * 2];
+            u[i] = vu[(i >> 1) * 2 + 1];
+        }
+    }
+
+    return decodeBuffer;
+}
+
+void FrameStore::evict(int index)
+{
+    if (mapping == NULL || index < heapSlots || index >= maxFrames)
+        return;
+
+    // The mapping is shared with the file, so the data stays in the file.
+    madvise(slot(index), mappedFrameBytes, MADV_DONTNEED);
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+///////////////////////////////////////////////////
+// FrameStore.h
+
+#ifndef FRAMESTORE_H_
+#define FRAMESTORE_H_
+
+#include <stddef.h>
+
+#include "ImageUtils.h"
+
+/**
+ *  Keeps the full resolution frames of a mosaic until it is blended.
+ *
+ *  Frames are kept as YVU 4:2:0 with interleaved VU samples (NV21), half the
+ *  size of the planar YVU 4:4:4 images used by the aligner and the blender.
+ *  Frames from the camera are NV21 already, so nothing is lost for them.
+ *  The first frames are kept on the heap up to a memory budget. The others go
+ *  to a memory-mapped scratch file, and only those in use stay resident.
+ */
+class FrameStore
+{
+
+public:
+
+  FrameStore();
+  ~FrameStore();
+
+   /*!
+    *   Allocates the slots for the frames.
+    *   \param width        Width of the frames
+    *   \param height       Height of the frames
+    *   \param maxFrames    Number of frames to keep at most
+    *   \param memoryBudget Bytes of frames to keep on the heap
+    *   \param scratchPath  File to map the other frames to, or NULL to keep
+    *                       all frames on the heap
+    *   \return             Return code signifying success or failure.
+    */
+  int initialize(int width, int height, int maxFrames, size_t memoryBudget,
+          const char *scratchPath);
+
+   /*!
+    *   Frees all the frames and removes the scratch file.
+    */
+  void release();
+
+   /*!
+    *   Stores a NV21 frame in the given slot, replacing the previous one.
+    */
+  int putYUV420SP(int index, ImageType yuv420sp);
+
+   /*!
+    *   Stores a planar YVU 4:4:4 frame in the given slot, averaging each 2x2
+    *   block of chroma samples.
+    */
+  int putYVU24(int index, ImageType yvu24);
+
+   /*!
+    *   Returns the luma plane of a frame in place. It is the same as the
+    *   first plane of the YVU 4:4:4 image.
+    */
+  ImageType getY(int index);
+
+   /*!
+    *   Expands a frame to planar YVU 4:4:4 into the decode buffer of the
+    *   store. The image is valid until the next call.
+    */
+  ImageType getYVU24(int index);
+
+   /*!
+    *   Drops the pages of a frame kept in the scratch file from memory. The
+    *   frame is read back from the file the next time it is used.
+    */
+  void evict(int index);
+
+  int getFrameSize() { return frameBytes; }
+  size_t getHeapBytes() { return heapBytes; }
+  size_t getPeakHeapBytes() { return peakHeapBytes; }
+  int getNumMappedFrames() { return mappedFrames; }
+
+  static const int FRAMESTORE_RET_OK = 0;
+  static const int FRAMESTORE_RET_ERROR = -1;
+
+protected:
+
+  ImageType slot(int index);
+  bool isMapped(int index) { return index >= heapSlots; }
+
+  int width, height;
+  int maxFrames;
+
+  /**
+   *  Bytes per frame, and per frame in the scratch file where frames start at
+   *  page boundaries.
+   */
+  int frameBytes;
+  size_t mappedFrameBytes;
+
+  /**
+   *  Frames on the heap, allocated as the slots are first used.
+   */
+  ImageType *heapFrames;
+  int heapSlots;
+  size_t heapBytes;
+  size_t peakHeapBytes;
+
+  /**
+   *  Mapping of the scratch file holding the frames past heapSlots.
+   */
+  ImageType mapping;
+  size_t mappingBytes;
+  int mappedFrames;
+
+  /**
+   *  Planar YVU 4:4:4 image returned by getYVU24().
+   */
+  ImageType decodeBuffer;
+};
+
+#endif
@@ -112,13 +112,16 @@ public:
   static void freeImage(ImageType image);
 
   static ImageType *imageTypeToRowPointers(ImageType out, int width, int height);
+
+  /**
+   *  Fill preallocated row pointers (height entries) of image
+   */
+  static void imageTypeToRowPointers(ImageType in, int width, int height, ImageType *rows);
   /**
    *  Get time.
    */
   static double getTime();
 
-protected:
-
   /**
   *  Constants for YVU/RGB conversion
   */
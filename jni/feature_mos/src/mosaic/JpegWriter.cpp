@@ -0,0 +1,538 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+///////////////////////////////////////////////////
+// JpegWriter.cpp
+
+#include <errno.h>
+#include <string.h>
+#include <unistd.h>
+
+#include "JpegWriter.h"
+
+#include "Log.h"
+#define LOG_TAG "JpegWriter"
+
+// Markers
+#define M_SOI  0xd8
+#define M_EOI  0xd9
+#define M_APP0 0xe0
+#define M_DQT  0xdb
+#define M_SOF0 0xc0
+#define M_DHT  0xc4
+#define M_DRI  0xdd
+#define M_SOS  0xda
+#define M_RST0 0xd0
+
+// Index in the block of each coefficient in zigzag order
+static const unsigned char zigzag[64] = {
+     0,  1,  8, 16,  9,  2,  3, 10, 17, 24, 32, 25, 18, 11,  4,  5,
+    12, 19, 26, 33, 40, 48, 41, 34, 27, 20, 13,  6,  7, 14, 21, 28,
+    35, 42, 49, 56, 57, 50, 43, 36, 29, 22, 15, 23, 30, 37, 44, 51,
+    58, 59, 52, 45, 38, 31, 39, 46, 53, 60, 61, 54, 47, 55, 62, 63
+};
+
+// Example quantization tables of the standard (K.1 and K.2)
+static const unsigned char lumaQuant[64] = {
+    16, 11, 10, 16,  24,  40,  51,  61,
+    12, 12, 14, 19,  26,  58,  60,  55,
+    14, 13, 16, 24,  40,  57,  69,  56,
+    14, 17, 22, 29,  51,  87,  80,  62,
+    18, 22, 37, 56,  68, 109, 103,  77,
+    24, 35, 55, 64,  81, 104, 113,  92,
+    49, 64, 78, 87, 103, 121, 120, 101,
+    72, 92, 95, 98, 112, 100, 103,  99
+};
+
+static const unsigned char chromaQuant[64] = {
+    17, 18, 24, 47, 99, 99, 99, 99,
+    18, 21, 26, 66, 99, 99, 99, 99,
+    24, 26, 56, 99, 99, 99, 99, 99,
+    47, 66, 99, 99, 99, 99, 99, 99,
+    99, 99, 99, 99, 99, 99, 99, 99,
+    99, 99, 99, 99, 99, 99, 99, 99,
+    99, 99, 99, 99, 99, 99, 99, 99,
+    99, 99, 99, 99, 99, 99, 99, 99
+};
+
+// Example Huffman tables of the standard (K.3): the number of codes of each
+// length from 1 to 16, then the symbols in order of their codes
+static const unsigned char lumaDCBits[16] = {
+    0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0
+};
+static const unsigned char chromaDCBits[16] = {
+    0, 3, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0
+};
+static const unsigned char dcValues[12] = {
+    0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11
+};
+
+static const unsigned char lumaACBits[16] = {
+    0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7d
+};
+static const unsigned char lumaACValues[162] = {
+    0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12, 0x21, 0x31, 0x41, 0x06,
+    0x13, 0x51, 0x61, 0x07, 0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xa1, 0x08,
+    0x23, 0x42, 0xb1, 0xc1, 0x15, 0x52, 0xd1, 0xf0, 0x24, 0x33, 0x62, 0x72,
+    0x82, 0x09, 0x0a, 0x16, 0x17, 0x18, 0x19, 0x1a, 0x25, 0x26, 0x27, 0x28,
+    0x29, 0x2a, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44, 0x45,
+    0x46, 0x47, 0x48, 0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59,
+    0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a, 0x73, 0x74, 0x75,
+    0x76, 0x77, 0x78, 0x79, 0x7a, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89,
+    0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3,
+    0xa4, 0xa5, 0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6,
+    0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3, 0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9,
+    0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda, 0xe1, 0xe2,
+    0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf1, 0xf2, 0xf3, 0xf4,
+    0xf5, 0xf6, 0xf7, 0xf8, 0xf9, 0xfa
+};
+
+static const unsigned char chromaACBits[16] = {
+    0, 2, 1, 2, 4, 4, 3, 4, 7, 5, 4, 4, 0, 1, 2, 0x77
+};
+static const unsigned char chromaACValues[162] = {
+    0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21, 0x31, 0x06, 0x12, 0x41,
+    0x51, 0x07, 0x61, 0x71, 0x13, 0x22, 0x32, 0x81, 0x08, 0x14, 0x42, 0x91,
+    0xa1, 0xb1, 0xc1, 0x09, 0x23, 0x33, 0x52, 0xf0, 0x15, 0x62, 0x72, 0xd1,
+    0x0a, 0x16, 0x24, 0x34, 0xe1, 0x25, 0xf1, 0x17, 0x18, 0x19, 0x1a, 0x26,
+    0x27, 0x28, 0x29, 0x2a, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44,
+    0x45, 0x46, 0x47, 0x48, 0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58,
+    0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a, 0x73, 0x74,
+    0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x82, 0x83, 0x84, 0x85, 0x86, 0x87,
+    0x88, 0x89, 0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a,
+    0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4,
+    0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3, 0xc4, 0xc5, 0xc6, 0xc7,
+    0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda,
+    0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf2, 0xf3, 0xf4,
+    0xf5, 0xf6, 0xf7, 0xf8, 0xf9, 0xfa
+};
+
+// Scale of each output of the DCT below, as in libjpeg's jfdctflt.c
+static const float aanScale[8] = {
+    1.0f, 1.387039845f, 1.306562965f, 1.175875602f,
+    1.0f, 0.785694958f, 0.541196100f, 0.275899379f
+};
+
+// Forward DCT of 8 values, scaled by aanScale (Arai, Agui and Nakajima)
+static inline void fdct8(float *d, int step)
+{
+    float tmp0 = d[0] + d[7 * step];
+    float tmp7 = d[0] - d[7 * step];
+    float tmp1 = d[step] + d[6 * step];
+    float tmp6 = d[step] - d[6 * step];
+    float tmp2 = d[2 * step] + d[5 * step];
+    float tmp5 = d[2 * step] - d[5 * step];
+    float tmp3 = d[3 * step] + d[4 * step];
+    float tmp4 = d[3 * step] - d[4 * step];
+
+    // Even part
+    float tmp10 = tmp0 + tmp3;
+    float tmp13 = tmp0 - tmp3;
+    float tmp11 = tmp1 + tmp2;
+    float tmp12 = tmp1 - tmp2;
+
+    d[0] = tmp10 + tmp11;
+    d[4 * step] = tmp10 - tmp11;
+
+    float z1 = (tmp12 + tmp13) * 0.707106781f;
+    d[2 * step] = tmp13 + z1;
+    d[6 * step] = tmp13 - z1;
+
+    // Odd part
+    tmp10 = tmp4 + tmp5;
+    tmp11 = tmp5 + tmp6;
+    tmp12 = tmp6 + tmp7;
+
+    float z5 = (tmp10 - tmp12) * 0.382683433f;
+    float z2 = 0.541196100f * tmp10 + z5;
+    float z4 = 1.306562965f * tmp12 + z5;
+    float z3 = tmp11 * 0.707106781f;
+
+    float z11 = tmp7 + z3;
+    float z13 = tmp7 - z3;
+
+    d[5 * step] = z13 + z2;
+    d[3 * step] = z13 - z2;
+    d[step] = z11 + z4;
+    d[7 * step] = z11 - z4;
+}
+
+// Number of bits of the magnitude of v
+static inline int bitLength(int v)
+{
+    int n = 0;
+    if (v < 0)
+        v = -v;
+    while (v)
+    {
+        n++;
+        v >>= 1;
+    }
+    return n;
+}
+
+JpegWriter::JpegWriter()
+{
+    fd = -1;
+    failed = false;
+    bytesWritten = 0;
+
+    buildCodes(lumaDCBits, dcValues, dcCodes[0]);
+    buildCodes(chromaDCBits, dcValues, dcCodes[1]);
+    buildCodes(lumaACBits, lumaACValues, acCodes[0]);
+    buildCodes(chromaACBits, chromaACValues, acCodes[1]);
+}
+
+void JpegWriter::buildCodes(const unsigned char *bits, const unsigned char *values,
+        HuffmanCodes &codes)
+{
+    unsigned short code = 0;
+    int k = 0;
+
+    memset(&codes, 0, sizeof(codes));
+    for (int size = 1; size <= 16; size++)
+    {
+        for (int i = 0; i < bits[size - 1]; i++, k++)
+        {
+            codes.code[values[k]] = code++;
+            codes.size[values[k]] = (unsigned char) size;
+        }
+        code <<= 1;
+    }
+}
+
+void JpegWriter::setQuality(int quality)
+{
+    if (quality < 1)
+        quality = 1;
+    if (quality > 100)
+        quality = 100;
+
+    // Same scaling of the example tables as libjpeg
+    int scale = quality < 50 ? 5000 / quality : 200 - quality * 2;
+
+    for (int t = 0; t < 2; t++)
+    {
+        const unsigned char *base = t == 0 ? lumaQuant : chromaQuant;
+        for (int i = 0; i < 64; i++)
+        {
+            int q = (base[i] * scale + 50) / 100;
+            if (q < 1)
+                q = 1;
+            if (q > 255)
+                q = 255;
+            quant[t][i] = (unsigned char) q;
+            divisors[t][i] = 1.0f / (q * aanScale[i >> 3] * aanScale[i & 7] * 8.0f);
+        }
+    }
+}
+
+int JpegWriter::write(int fd, ImageType yvu, int width, int height, int quality,
+        int restartInterval)
+{
+    if (width <= 0 || height <= 0 || width > 65535 || height > 65535 ||
+            restartInterval < 0 || restartInterval > 65535)
+    {
+        LOGE("Cannot write a %dx%d image with a restart interval of %d", width, height,
+                restartInterval);
+        return JPEG_RET_ERROR;
+    }
+
+    this->fd = fd;
+    failed = false;
+    bytesWritten = 0;
+    bufferUsed = 0;
+    bitBuffer = 0;
+    bitCount = 0;
+    restartCount = 0;
+
+    setQuality(quality);
+    writeHeaders(width, height, restartInterval);
+
+    ImageType planeY = yvu;
+    ImageType planeV = yvu + width * height;
+    ImageType planeU = planeV + width * height;
+
+    int lastDC[3] = {0, 0, 0};
+    int mcus = 0;
+    int mcuRows = (height + 15) / 16;
+    int mcuCols = (width + 15) / 16;
+
+    float block[64];
+    int cols[16];
+
+    for (int my = 0; my < mcuRows && !failed; my++)
+    {
+        // Rows of this MCU, repeating the last row of the image past its end
+        ImageType rowsY[16];
+        for (int j = 0; j < 16; j++)
+        {
+            int y = my * 16 + j;
+            rowsY[j] = planeY + (y < height ? y : height - 1) * width;
+        }
+
+        for (int mx = 0; mx < mcuCols && !failed; mx++)
+        {
+            if (restartInterval > 0 && mcus > 0 && mcus % restartInterval == 0)
+            {
+                writeRestart();
+                lastDC[0] = lastDC[1] = lastDC[2] = 0;
+            }
+
+            for (int i = 0; i < 16; i++)
+            {
+                int x = mx * 16 + i;
+                cols[i] = x < width ? x : width - 1;
+            }
+
+            // Four luma blocks
+            for (int b = 0; b < 4; b++)
+            {
+                int bx = (b & 1) * 8;
+                int by = (b >> 1) * 8;
+                for (int j = 0; j < 8; j++)
+                {
+                    ImageType row = rowsY[by + j];
+                    for (int i = 0; i < 8; i++)
+                        block[j * 8 + i] = row[cols[bx + i]] - 128.0f;
+                }
+                encodeBlock(block, divisors[0], lastDC[0], dcCodes[0], acCodes[0]);
+            }
+
+            // Cb and Cr blocks, each sample the mean of 2x2 samples
+            for (int c = 0; c < 2; c++)
+            {
+                int offset = (c == 0 ? planeU : planeV) - planeY;
+                for (int j = 0; j < 8; j++)
+                {
+                    ImageType row0 = rowsY[2 * j] + offset;
+                    ImageType row1 = rowsY[2 * j + 1] + offset;
+                    for (int i = 0; i < 8; i++)
+                    {
+                        int x0 = cols[2 * i];
+                        int x1 = cols[2 * i + 1];
+                        block[j * 8 + i] =
+                                ((row0[x0] + row0[x1] + row1[x0] + row1[x1] + 2) >> 2) - 128.0f;
+                    }
+                }
+                encodeBlock(block, divisors[1], lastDC[1 + c], dcCodes[1], acCodes[1]);
+            }
+
+            mcus++;
+        }
+    }
+
+    flushBits();
+    putByte(0xff);
+    putByte(M_EOI);
+    flush();
+
+    return failed ? JPEG_RET_ERROR : JPEG_RET_OK;
+}
+
+void JpegWriter::writeHeaders(int width, int height, int restartInterval)
+{
+    putByte(0xff);
+    putByte(M_SOI);
+
+    // JFIF 1.01, square pixels, no thumbnail
+    static const unsigned char jfif[14] = {
+        'J', 'F', 'I', 'F', 0, 1, 1, 0, 0, 1, 0, 1, 0, 0
+    };
+    writeMarker(M_APP0, sizeof(jfif));
+    for (unsigned int i = 0; i < sizeof(jfif); i++)
+        putByte(jfif[i]);
+
+    writeMarker(M_DQT, 2 * 65);
+    for (int t = 0; t < 2; t++)
+    {
+        putByte((unsigned char) t);
+        for (int k = 0; k < 64; k++)
+            putByte(quant[t][zigzag[k]]);
+    }
+
+    // Y at twice the resolution of Cb and Cr
+    writeMarker(M_SOF0, 15);
+    putByte(8);
+    putByte((unsigned char) (height >> 8));
+    putByte((unsigned char) height);
+    putByte((unsigned char) (width >> 8));
+    putByte((unsigned char) width);
+    putByte(3);
+    for (int c = 1; c <= 3; c++)
+    {
+        putByte((unsigned char) c);
+        putByte(c == 1 ? 0x22 : 0x11);
+        putByte(c == 1 ? 0 : 1);
+    }
+
+    writeHuffmanTable(0, 0, lumaDCBits, dcValues);
+    writeHuffmanTable(1, 0, lumaACBits, lumaACValues);
+    writeHuffmanTable(0, 1, chromaDCBits, dcValues);
+    writeHuffmanTable(1, 1, chromaACBits, chromaACValues);
+
+    if (restartInterval > 0)
+    {
+        writeMarker(M_DRI, 2);
+        putByte((unsigned char) (restartInterval >> 8));
+        putByte((unsigned char) restartInterval);
+    }
+
+    writeMarker(M_SOS, 10);
+    putByte(3);
+    for (int c = 1; c <= 3; c++)
+    {
+        putByte((unsigned char) c);
+        putByte(c == 1 ? 0x00 : 0x11);
+    }
+    putByte(0);
+    putByte(63);
+    putByte(0);
+}
+
+// Marker and length of its data, which the caller writes
+void JpegWriter::writeMarker(int marker, int length)
+{
+    putByte(0xff);
+    putByte((unsigned char) marker);
+    putByte((unsigned char) ((length + 2) >> 8));
+    putByte((unsigned char) (length + 2));
+}
+
+void JpegWriter::writeHuffmanTable(int tableClass, int id, const unsigned char *bits,
+        const unsigned char *values)
+{
+    int count = 0;
+    for (int i = 0; i < 16; i++)
+        count += bits[i];
+
+    writeMarker(M_DHT, 1 + 16 + count);
+    putByte((unsigned char) ((tableClass << 4) | id));
+    for (int i = 0; i < 16; i++)
+        putByte(bits[i]);
+    for (int i = 0; i < count; i++)
+        putByte(values[i]);
+}
+
+void JpegWriter::encodeBlock(float block[64], const float *divisors, int &lastDC,
+        const HuffmanCodes &dc, const HuffmanCodes &ac)
+{
+    int coef[64];
+
+    for (int j = 0; j < 8; j++)
+        fdct8(block + j * 8, 1);
+    for (int i = 0; i < 8; i++)
+        fdct8(block + i, 8);
+
+    // Round to nearest, also for negative values
+    for (int i = 0; i < 64; i++)
+        coef[i] = (int) (block[i] * divisors[i] + 16384.5f) - 16384;
+
+    int diff = coef[0] - lastDC;
+    lastDC = coef[0];
+
+    int size = bitLength(diff);
+    putBits(dc.code[size], dc.size[size]);
+    if (size)
+        putBits(diff < 0 ? diff - 1 : diff, size);
+
+    int run = 0;
+    for (int k = 1; k < 64; k++)
+    {
+        int v = coef[zigzag[k]];
+        if (v == 0)
+        {
+            run++;
+            continue;
+        }
+
+        while (run > 15)
+        {
+            putBits(ac.code[0xf0], ac.size[0xf0]);
+            run -= 16;
+        }
+
+        size = bitLength(v);
+        int symbol = (run << 4) | size;
+        putBits(ac.code[symbol], ac.size[symbol]);
+        putBits(v < 0 ? v - 1 : v, size);
+        run = 0;
+    }
+
+    if (run > 0)
+        putBits(ac.code[0x00], ac.size[0x00]);
+}
+
+void JpegWriter::writeRestart()
+{
+    flushBits();
+    putByte(0xff);
+    putByte((unsigned char) (M_RST0 + restartCount));
+    restartCount = (restartCount + 1) & 7;
+}
+
+void JpegWriter::putBits(unsigned int bits, int size)
+{
+    bitBuffer = (bitBuffer << size) | (bits & ((1u << size) - 1));
+    bitCount += size;
+
+    while (bitCount >= 8)
+    {
+        unsigned char byte = (unsigned char) (bitBuffer >> (bitCount - 8));
+        putByte(byte);
+        if (byte == 0xff)
+            putByte(0);     // byte stuffing
+        bitCount -= 8;
+    }
+}
+
+// Pads the last byte of entropy coded data with ones
+void JpegWriter::flushBits()
+{
+    if (bitCount > 0)
+        putBits(0x7f, 8 - bitCount);
+    bitBuffer = 0;
+    bitCount = 0;
+}
+
+void JpegWriter::putByte(unsigned char byte)
+{
+    if (bufferUsed == BUFFER_SIZE)
+        flush();
+    buffer[bufferUsed++] = byte;
+}
+
+void JpegWriter::flush()
+{
+    unsigned char *p = buffer;
+
+    while (bufferUsed > 0 && !failed)
+    {
+        ssize_t n = ::write(fd, p, bufferUsed);
+        if (n < 0)
+        {
+            if (errno == EINTR)
+                continue;
+            LOGE("Could not write the JPEG file: %s", strerror(errno));
+            failed = true;
+            break;
+        }
+        p += n;
+        bufferUsed -= (int) n;
+        bytesWritten += n;
+    }
+    bufferUsed = 0;
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+///////////////////////////////////////////////////
+// JpegWriter.h
+
+#ifndef JPEGWRITER_H_
+#define JPEGWRITER_H_
+
+#include <stddef.h>
+
+#include "ImageUtils.h"
+
+/**
+ *  Writes a planar YVU 4:4:4 image, such as a mosaic, as a baseline JFIF
+ *  file with 4:2:0 chroma.
+ *
+ *  The image is encoded one row of 16x16 blocks at a time straight into a
+ *  file descriptor through a small buffer, so no copy of the image or of the
+ *  compressed file is made. The quantization and Huffman tables are the
+ *  example tables of the JPEG standard, scaled for the quality as libjpeg
+ *  does.
+ */
+class JpegWriter
+{
+
+public:
+
+  JpegWriter();
+
+   /*!
+    *   Encodes the image and writes it to the file descriptor, which is left
+    *   open.
+    *   \param fd               File descriptor open for writing
+    *   \param yvu              Y plane, then V plane, then U plane
+    *   \param width            Width of the image
+    *   \param height           Height of the image
+    *   \param quality          1 to 100, as for libjpeg
+    *   \param restartInterval  Blocks of 16x16 pixels between restart
+    *                           markers, or 0 for none
+    *   \return                 Return code signifying success or failure.
+    */
+  int write(int fd, ImageType yvu, int width, int height, int quality,
+          int restartInterval);
+
+  size_t getBytesWritten() { return bytesWritten; }
+
+  static const int JPEG_RET_OK = 0;
+  static const int JPEG_RET_ERROR = -1;
+
+protected:
+
+  static const int BUFFER_SIZE = 16384;
+
+  /**
+   *  Huffman code and its length for each symbol.
+   */
+  struct HuffmanCodes
+  {
+    unsigned short code[256];
+    unsigned char size[256];
+  };
+
+  void setQuality(int quality);
+  static void buildCodes(const unsigned char *bits, const unsigned char *values,
+          HuffmanCodes &codes);
+
+  void writeHeaders(int width, int height, int restartInterval);
+  void writeMarker(int marker, int length);
+  void writeHuffmanTable(int tableClass, int id, const unsigned char *bits,
+          const unsigned char *values);
+
+  void encodeBlock(float block[64], const float *divisors, int &lastDC,
+          const HuffmanCodes &dc, const HuffmanCodes &ac);
+  void writeRestart();
+
+  void putBits(unsigned int bits, int size);
+  void flushBits();
+  void putByte(unsigned char byte);
+  void flush();
+
+  int fd;
+  bool failed;
+  size_t bytesWritten;
+
+  unsigned char quant[2][64];   // natural order
+  float divisors[2][64];        // for the scaled output of the DCT
+
+  HuffmanCodes dcCodes[2];
+  HuffmanCodes acCodes[2];
+
+  unsigned int bitBuffer;
+  int bitCount;
+  int restartCount;
+
+  unsigned char buffer[BUFFER_SIZE];
+  int bufferUsed;
+};
+
+#endif
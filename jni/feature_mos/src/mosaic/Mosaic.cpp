@@ -21,7 +21,9 @@
 // $Id: Mosaic.cpp,v 1.20 2011/06/24 04:22:14 mbansal Exp $
 
 #include <stdio.h>
+#include <stdlib.h>
 #include <string.h>
+#include <math.h>
 
 #include "Mosaic.h"
 #include "trsMatrix.h"
@@ -35,10 +37,18 @@ Mosaic::Mosaic()
     imageMosaicYVU = NULL;
     frames_size = 0;
     max_frames = 200;
+
+    streaming = false;
+    pthread_mutex_init(&streamMutex, NULL);
+    pthread_cond_init(&streamCond, NULL);
 }
 
 Mosaic::~Mosaic()
 {
+    stopStreaming();
+    pthread_cond_destroy(&streamCond);
+    pthread_mutex_destroy(&streamMutex);
+
     for (int i = 0; i < frames_size; i++)
     {
         if (frames[i])
@@ -139,31 +149,57 @@ int Mosaic::addFrameRGB(ImageType imageRGB)
     return ret;
 }
 
-int Mosaic::addFrame(ImageType imageYVU)
+MosaicFrame *Mosaic::nextFrame()
 {
+    if (frames_size >= max_frames)
+    {
+        LOGV("WARNING: More frames than preallocated, ignoring."
+             "Increase maximum number of frames (-f <max_frames>) to avoid this");
+        return NULL;
+    }
+
     if(frames[frames_size]==NULL)
         frames[frames_size] = new MosaicFrame(this->width,this->height,false);
 
-    MosaicFrame *frame = frames[frames_size];
+    return frames[frames_size];
+}
+
+int Mosaic::addFrame(ImageType imageYVU)
+{
+    MosaicFrame *frame = nextFrame();
+    if (frame == NULL)
+        return MOSAIC_RET_ERROR;
 
     frame->image = imageYVU;
+    frame->store = NULL;
+
+    return alignFrame(frame);
+}
+
+int Mosaic::addFrame(FrameStore *store, int index)
+{
+    MosaicFrame *frame = nextFrame();
+    if (frame == NULL)
+        return MOSAIC_RET_ERROR;
+
+    frame->image = NULL;
+    frame->store = store;
+    frame->store_index = index;
 
+    return alignFrame(frame);
+}
+
+int Mosaic::alignFrame(MosaicFrame *frame)
+{
     // Add frame to aligner
     int ret = MOSAIC_RET_ERROR;
     if (aligner != NULL)
     {
         // Note aligner takes in RGB images
         int align_flag = Align::ALIGN_RET_OK;
-        align_flag = aligner->addFrame(frame->image);
+        align_flag = aligner->addFrame(frame->getY());
         aligner->getLastTRS(frame->trs);
 
-        if (frames_size >= max_frames)
-        {
-            LOGV("WARNING: More frames than preallocated, ignoring."
-                 "Increase maximum number of frames (-f <max_frames>) to avoid this");
-            return MOSAIC_RET_ERROR;
-        }
-
         switch (align_flag)
         {
             case Align::ALIGN_RET_OK:
@@ -185,9 +221,263 @@ int Mosaic::addFrame(ImageType imageYVU)
         }
     }
 
+    // The aligner keeps its own copy of the reference frame
+    if (frames_size > 1)
+        frames[frames_size - 2]->releaseImage();
+
+    if (streaming)
+        queueStreamFrames();
+
     return ret;
 }
 
+int Mosaic::addFrame(ImageType imageYVU, double trs[3][3], int refineRadius)
+{
+    MosaicFrame *frame = nextFrame();
+    if (frame == NULL)
+        return MOSAIC_RET_ERROR;
+
+    frame->image = imageYVU;
+    frame->store = NULL;
+
+    return placeFrame(frame, trs, refineRadius);
+}
+
+int Mosaic::addFrame(FrameStore *store, int index, double trs[3][3],
+        int refineRadius)
+{
+    MosaicFrame *frame = nextFrame();
+    if (frame == NULL)
+        return MOSAIC_RET_ERROR;
+
+    frame->image = NULL;
+    frame->store = store;
+    frame->store_index = index;
+
+    return placeFrame(frame, trs, refineRadius);
+}
+
+int Mosaic::placeFrame(MosaicFrame *frame, double trs[3][3], int refineRadius)
+{
+    memcpy(frame->trs, trs, sizeof(frame->trs));
+    normProjMat33d(frame->trs);
+
+    if (refineRadius > 0 && frames_size > 0)
+    {
+        refineTranslation(frames[frames_size - 1], frame, refineRadius);
+        frames[frames_size - 1]->releaseImage();
+    }
+
+    frames_size++;
+
+    if (streaming)
+        queueStreamFrames();
+
+    return MOSAIC_RET_OK;
+}
+
+int Mosaic::getFrameTRS(int index, double trs[3][3])
+{
+    if (index < 0 || index >= frames_size)
+        return MOSAIC_RET_ERROR;
+
+    memcpy(trs, frames[index]->trs, sizeof(frames[index]->trs));
+    return MOSAIC_RET_OK;
+}
+
+int Mosaic::setNumThreads(int numThreads)
+{
+    if (blender == NULL || blender->setNumThreads(numThreads) != Blend::BLEND_RET_OK)
+        return MOSAIC_RET_ERROR;
+
+    return MOSAIC_RET_OK;
+}
+
+int Mosaic::startStreaming()
+{
+    if (blender == NULL || streaming || frames_size > 0)
+        return MOSAIC_RET_ERROR;
+
+    if (blender->beginStream(max_frames) != Blend::BLEND_RET_OK)
+        return MOSAIC_RET_ERROR;
+
+    streamAdded = 0;
+    streamBlended = 0;
+    streamQuit = false;
+    streamFailed = false;
+
+    if (pthread_create(&streamThread, NULL, streamMain, this) != 0)
+    {
+        LOGE("Could not start the streaming thread");
+        blender->abortStream();
+        return MOSAIC_RET_ERROR;
+    }
+
+    streaming = true;
+
+    return MOSAIC_RET_OK;
+}
+
+void *Mosaic::streamMain(void *arg)
+{
+    ((Mosaic *) arg)->runStream();
+    return NULL;
+}
+
+void Mosaic::runStream()
+{
+    pthread_mutex_lock(&streamMutex);
+
+    while (!streamQuit)
+    {
+        if (streamBlended == streamAdded)
+        {
+            pthread_cond_wait(&streamCond, &streamMutex);
+            continue;
+        }
+
+        MosaicFrame *frame = frames[streamBlended];
+        pthread_mutex_unlock(&streamMutex);
+
+        int ret = blender->addStreamFrame(frame);
+
+        pthread_mutex_lock(&streamMutex);
+        if (ret != Blend::BLEND_RET_OK)
+        {
+            // createMosaic() blends all the frames at once instead
+            streamFailed = true;
+            break;
+        }
+        streamBlended++;
+    }
+
+    pthread_mutex_unlock(&streamMutex);
+}
+
+void Mosaic::queueStreamFrames()
+{
+    pthread_mutex_lock(&streamMutex);
+    streamAdded = frames_size;
+    pthread_cond_signal(&streamCond);
+    pthread_mutex_unlock(&streamMutex);
+}
+
+void Mosaic::stopStreaming()
+{
+    if (!streaming)
+        return;
+
+    pthread_mutex_lock(&streamMutex);
+    streamQuit = true;
+    pthread_cond_signal(&streamCond);
+    pthread_mutex_unlock(&streamMutex);
+
+    pthread_join(streamThread, NULL);
+    streaming = false;
+}
+
+void Mosaic::refineTranslation(MosaicFrame *prev, MosaicFrame *curr, int radius)
+{
+    // Transformation from the current frame to the previous one
+    double inv[3][3], rel[3][3];
+    inv33d(prev->trs, inv);
+    mult33d(rel, inv, curr->trs);
+    if (!normProjMat33d(rel))
+        return;
+
+    // Map a sparse grid of the current frame into the previous frame once,
+    // the candidate offsets below only shift the mapped positions.
+    int nx = (width - 2 * radius) / REFINE_GRID_STEP;
+    int ny = (height - 2 * radius) / REFINE_GRID_STEP;
+    if (nx <= 0 || ny <= 0)
+        return;
+
+    int *src = new int[nx * ny];
+    int *dstX = new int[nx * ny];
+    int *dstY = new int[nx * ny];
+    int count = 0;
+
+    for (int j = 0; j < ny; j++)
+    {
+        for (int i = 0; i < nx; i++)
+        {
+            double x = radius + i * REFINE_GRID_STEP;
+            double y = radius + j * REFINE_GRID_STEP;
+            double z = ProjZ(rel, x, y, 1.0);
+            int px = (int) floor(ProjX(rel, x, y, z, 1.0) + 0.5);
+            int py = (int) floor(ProjY(rel, x, y, z, 1.0) + 0.5);
+            if (px < radius || px >= width - radius ||
+                    py < radius || py >= height - radius)
+                continue;
+            src[count] = (int) y * width + (int) x;
+            dstX[count] = px;
+            dstY[count] = py;
+            count++;
+        }
+    }
+
+    // Not enough overlap to judge, keep the given transformation
+    if (count < nx * ny / 4)
+    {
+        delete[] src;
+        delete[] dstX;
+        delete[] dstY;
+        return;
+    }
+
+    ImageType currY = curr->getY();
+    ImageType prevY = prev->getY();
+
+    int bestDx = 0, bestDy = 0;
+    long bestSad = -1;
+
+    // Search around the given transformation, starting from it so that ties
+    // keep it unchanged
+    for (int r = 0; r <= radius; r++)
+    {
+        for (int dy = -r; dy <= r; dy++)
+        {
+            for (int dx = -r; dx <= r; dx++)
+            {
+                if (abs(dx) != r && abs(dy) != r)
+                    continue;
+
+                long sad = 0;
+                int offset = dy * width + dx;
+                for (int k = 0; k < count && (bestSad < 0 || sad < bestSad); k++)
+                {
+                    sad += abs((int) currY[src[k]] -
+                            (int) prevY[dstY[k] * width + dstX[k] + offset]);
+                }
+
+                if (bestSad < 0 || sad < bestSad)
+                {
+                    bestSad = sad;
+                    bestDx = dx;
+                    bestDy = dy;
+                }
+            }
+        }
+    }
+
+    delete[] src;
+    delete[] dstX;
+    delete[] dstY;
+
+    if (bestDx == 0 && bestDy == 0)
+        return;
+
+    // curr->trs = prev->trs * T(bestDx, bestDy) * rel
+    rel[0][0] += bestDx * rel[2][0];
+    rel[0][1] += bestDx * rel[2][1];
+    rel[0][2] += bestDx * rel[2][2];
+    rel[1][0] += bestDy * rel[2][0];
+    rel[1][1] += bestDy * rel[2][1];
+    rel[1][2] += bestDy * rel[2][2];
+
+    mult33d(curr->trs, prev->trs, rel);
+    normProjMat33d(curr->trs);
+}
 
 int Mosaic::createMosaic(float &progress, bool &cancelComputation)
 {
@@ -207,11 +497,38 @@ int Mosaic::createMosaic(float &progress, bool &cancelComputation)
     }
 
     int ret = Blend::BLEND_RET_ERROR;
+    bool streamed = false;
+
+    // Finish the mosaic blended while the frames were added. The thread is
+    // stopped first, so the frames it has not got to are blended here.
+    if (streaming)
+    {
+        float startProgress = progress;
+
+        stopStreaming();
+        if (!streamFailed)
+        {
+            ret = blender->endStream((MosaicFrame **) frames, frames_size,
+                    imageMosaicYVU, mosaicWidth, mosaicHeight, progress,
+                    cancelComputation);
+        }
+
+        if (ret == Blend::BLEND_RET_OK || ret == Blend::BLEND_RET_CANCELLED)
+        {
+            streamed = true;
+        }
+        else
+        {
+            LOGE("Could not blend the frames as they were added, blending them at once");
+            blender->abortStream();
+            progress = startProgress;
+        }
+    }
 
     // Blend the mosaic (alignment has already been done)
-    if (blender != NULL)
+    if (blender != NULL && !streamed)
     {
-        ret = blender->runBlend((MosaicFrame **) frames, (MosaicFrame **) rframes, 
+        ret = blender->runBlend((MosaicFrame **) frames, (MosaicFrame **) rframes,
                 frames_size, imageMosaicYVU,
                 mosaicWidth, mosaicHeight, progress, cancelComputation);
     }
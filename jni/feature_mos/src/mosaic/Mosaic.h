@@ -23,6 +23,8 @@
 #ifndef MOSAIC_H
 #define MOSAIC_H
 
+#include <pthread.h>
+
 #include "ImageUtils.h"
 #include "AlignFeatures.h"
 #include "Blend.h"
@@ -111,6 +113,42 @@ public:
     */
   int addFrameRGB(ImageType imageRGB);
 
+   /*!
+    *   Adds a YVU frame whose transformation is already known, e.g. from the
+    *   alignment of the same frame at a lower resolution. No feature
+    *   alignment is done for the frame.
+    *   \param imageYVU     Pointer to a YVU image.
+    *   \param trs          Transformation of the frame to the mosaic.
+    *   \param refineRadius If positive, the translation relative to the last
+    *                       frame is refined by searching this many pixels
+    *                       around the given transformation.
+    *   \return             Return code signifying success or failure.
+    */
+  int addFrame(ImageType imageYVU, double trs[3][3], int refineRadius = 0);
+
+   /*!
+    *   Adds a frame kept in a frame store, as addFrame(ImageType) and
+    *   addFrame(ImageType, double[3][3], int) do for frames in memory. The
+    *   frame is only read from the store while it is aligned and blended.
+    *   \param store        Store holding the frame.
+    *   \param index        Index of the frame in the store.
+    *   \return             Return code signifying success or failure.
+    */
+  int addFrame(FrameStore *store, int index);
+  int addFrame(FrameStore *store, int index, double trs[3][3], int refineRadius = 0);
+
+   /*!
+    *   Starts blending the frames on a background thread as they are added,
+    *   so that createMosaic() is left with the last few frames and the final
+    *   blending. Call it after initialize() and before adding frames. The
+    *   added frames must stay readable until createMosaic() returns. See
+    *   Blend::beginStream() for how the mosaic differs from the one blended
+    *   at once; if it cannot be blended this way, createMosaic() falls back
+    *   to blending all the frames at once.
+    *   \return             Return code signifying success or failure.
+    */
+  int startStreaming();
+
    /*!
     *   After adding all frames, call this function to perform the final blending.
     *   \param progress     Variable to set the current progress in.
@@ -132,6 +170,26 @@ public:
     */
   Align* getAligner() { return aligner; }
 
+    /*!
+    *   Obtains the transformation of an added frame to the mosaic.
+    *   \param index        Index of the frame among the added frames.
+    *   \param trs          Transformation of the frame (returned)
+    *   \return             Return code signifying success or failure.
+    */
+  int getFrameTRS(int index, double trs[3][3]);
+
+    /*!
+    *   Obtain the number of frames added to the mosaic.
+    */
+  int getNumFrames() { return frames_size; }
+
+    /*!
+    *   Sets the number of threads used to blend the mosaic.
+    *   \param numThreads   Number of threads, including the calling thread.
+    *   \return             Return code signifying success or failure.
+    */
+  int setNumThreads(int numThreads);
+
     /*!
     *   Obtain initialization state.
     *
@@ -221,6 +279,61 @@ protected:
    */
   int balanceRotations();
 
+  /**
+   *  Returns the next free frame, or NULL if there is none left.
+   */
+  MosaicFrame *nextFrame();
+
+  /**
+   *  Aligns the frame with the aligner and accepts it if that works.
+   */
+  int alignFrame(MosaicFrame *frame);
+
+  /**
+   *  Accepts the frame with the given transformation.
+   */
+  int placeFrame(MosaicFrame *frame, double trs[3][3], int refineRadius);
+
+  /**
+   *  Refines the translation of a frame relative to the previous frame by
+   *  matching their luma on a sparse grid within the given radius.
+   *
+   * Side effect: TRS matrix of the current frame is modified
+   */
+  void refineTranslation(MosaicFrame *prev, MosaicFrame *curr, int radius);
+
+  /**
+   *  Spacing of the grid of pixels matched by refineTranslation.
+   */
+  static const int REFINE_GRID_STEP = 8;
+
+  /**
+   *  Background thread blending the added frames, see startStreaming().
+   *  streamAdded is the number of frames handed to it and streamBlended the
+   *  number it has blended, both guarded by streamMutex.
+   */
+  bool streaming;
+  pthread_t streamThread;
+  pthread_mutex_t streamMutex;
+  pthread_cond_t streamCond;
+  int streamAdded;
+  int streamBlended;
+  bool streamQuit;
+  bool streamFailed;
+
+  static void *streamMain(void *arg);
+  void runStream();
+
+  /**
+   *  Hands the frames added so far to the streaming thread.
+   */
+  void queueStreamFrames();
+
+  /**
+   *  Stops the streaming thread once it is done with its current frame.
+   */
+  void stopStreaming();
+
 };
 
 #endif
@@ -25,6 +25,7 @@
 #define MOSAIC_TYPES_H
 
 #include "ImageUtils.h"
+#include "FrameStore.h"
 
 /**
  *  Definition of rectangle in a mosaic.
@@ -64,6 +65,8 @@ class BlendRect
  *  Note: Currently assumes a YVU image
  *  containing separate Y,V, and U planes
  *  in contiguous memory (in that order).
+ *  The image is either held in memory or
+ *  kept in a FrameStore until it is used.
  */
 class MosaicFrame {
 public:
@@ -73,12 +76,15 @@ public:
   BlendRect brect;  // This frame warped to the Mosaic coordinate system
   BlendRect vcrect; // brect clipped using the voronoi neighbors
   bool internal_allocation;
+  FrameStore *store;
+  int store_index;
 
-  MosaicFrame() { };
+  MosaicFrame() : store(NULL) { };
   MosaicFrame(int _width, int _height, bool allocate=true)
   {
     width = _width;
     height = _height;
+    store = NULL;
     internal_allocation = allocate;
     if(internal_allocation)
         image = ImageUtils::allocateImage(width, height, ImageUtils::IMAGE_TYPE_NUM_CHANNELS);
@@ -92,6 +98,29 @@ public:
         free(image);
   }
 
+  /**
+  *  Get the Y plane of the image.
+  */
+  inline ImageType getY()
+  {
+    return store ? store->getY(store_index) : image;
+  }
+
+  /**
+  *  Get the whole YVU image, expanding it from the store
+  *  if needed. Call releaseImage() when done with it.
+  */
+  inline ImageType acquireImage()
+  {
+    return store ? store->getYVU24(store_index) : image;
+  }
+
+  inline void releaseImage()
+  {
+    if (store)
+        store->evict(store_index);
+  }
+
   /**
   *  Get the V plane of the image.
   */
@@ -145,17 +145,24 @@ void PyramidShort::BorderSpread(PyramidShort *pyr, int left, int right,
     }
 }
 
-void PyramidShort::BorderExpandOdd(PyramidShort *in, PyramidShort *out, PyramidShort *scr,
-        int mode)
+// Rows of one filter pass of BorderExpandOdd() or BorderReduceOdd(), passed
+// to ThreadPool::run().
+struct FilterPass
 {
-    int i,j;
-    int off = in->border / 2;
+    PyramidShort *in, *out, *scr;
+    int mode;
+};
 
-    // Vertical Filter
-    for (j = -off; j < in->height + off; j++) {
+static void ExpandVerticalRows(void *arg, int begin, int end)
+{
+    FilterPass *pass = (FilterPass *) arg;
+    PyramidShort *in = pass->in;
+    PyramidShort *scr = pass->scr;
+
+    for (int j = begin; j < end; j++) {
         int j2 = j * 2;
         int limit = scr->width + scr->border;
-        for (i = -scr->border; i < limit; i++) {
+        for (int i = -scr->border; i < limit; i++) {
             int t1 = in->ptr[j][i];
             int t2 = in->ptr[j+1][i];
             scr->ptr[j2][i] = (short)
@@ -163,13 +170,18 @@ void PyramidShort::BorderExpandOdd(PyramidShort *in, PyramidShort *out, PyramidS
             scr->ptr[j2+1][i] = (short)((t1 + t2 + 1) >> 1);
         }
     }
+}
 
-    BorderSpread(scr, 0, 0, 3, 3);
-
-    // Horizontal Filter
-    int limit = out->height + out->border;
-    for (j = -out->border; j < limit; j++) {
-        for (i = -off; i < scr->width + off; i++) {
+static void ExpandHorizontalRows(void *arg, int begin, int end)
+{
+    FilterPass *pass = (FilterPass *) arg;
+    PyramidShort *out = pass->out;
+    PyramidShort *scr = pass->scr;
+    int mode = pass->mode;
+    int off = pass->in->border / 2;
+
+    for (int j = begin; j < end; j++) {
+        for (int i = -off; i < scr->width + off; i++) {
             int i2 = i * 2;
             int t1 = scr->ptr[j][i];
             int t2 = scr->ptr[j][i+1];
@@ -180,10 +192,26 @@ void PyramidShort::BorderExpandOdd(PyramidShort *in, PyramidShort *out, PyramidS
                     (mode * ((t1 + t2 + 1) >> 1)));
         }
     }
+}
+
+void PyramidShort::BorderExpandOdd(PyramidShort *in, PyramidShort *out, PyramidShort *scr,
+        int mode, ThreadPool *pool)
+{
+    int off = in->border / 2;
+    FilterPass pass = { in, out, scr, mode };
+
+    // Vertical Filter
+    ThreadPool::run(pool, ExpandVerticalRows, &pass, -off, in->height + off,
+            scr->width + 2 * scr->border);
 
+    BorderSpread(scr, 0, 0, 3, 3);
+
+    // Horizontal Filter
+    ThreadPool::run(pool, ExpandHorizontalRows, &pass, -out->border,
+            out->height + out->border, scr->width + 2 * off);
 }
 
-int PyramidShort::BorderExpand(PyramidShort *pyr, int nlev, int mode)
+int PyramidShort::BorderExpand(PyramidShort *pyr, int nlev, int mode, ThreadPool *pool)
 {
     PyramidShort *tpyr = pyr + nlev - 1;
     PyramidShort *scr = allocateImage(pyr[1].width, pyr[0].height, pyr->border);
@@ -194,7 +222,7 @@ int PyramidShort::BorderExpand(PyramidShort *pyr, int nlev, int mode)
         for (; tpyr > pyr; tpyr--) {
             scr->width = tpyr[0].width;
             scr->height = tpyr[-1].height;
-            BorderExpandOdd(tpyr, tpyr - 1, scr, 1);
+            BorderExpandOdd(tpyr, tpyr - 1, scr, 1, pool);
         }
     }
     else if (mode < 0) {
@@ -202,7 +230,7 @@ int PyramidShort::BorderExpand(PyramidShort *pyr, int nlev, int mode)
         while ((pyr++) < tpyr) {
             scr->width = pyr[0].width;
             scr->height = pyr[-1].height;
-            BorderExpandOdd(pyr, pyr - 1, scr, -1);
+            BorderExpandOdd(pyr, pyr - 1, scr, -1, pool);
         }
     }
 
@@ -210,48 +238,72 @@ int PyramidShort::BorderExpand(PyramidShort *pyr, int nlev, int mode)
     return 1;
 }
 
-void PyramidShort::BorderReduceOdd(PyramidShort *in, PyramidShort *out, PyramidShort *scr)
+// Filters row k of the scratch image, counted from the top of its border.
+static void ReduceHorizontalRows(void *arg, int begin, int end)
 {
-    ImageTypeShortBase *s, *ns, *ls, *p, *np;
+    FilterPass *pass = (FilterPass *) arg;
+    PyramidShort *in = pass->in;
+    PyramidShort *scr = pass->scr;
 
     int off = scr->border - 2;
-    s = scr->ptr[-scr->border] - (off >> 1);
-    ns = s + scr->pitch;
-    ls = scr->ptr[scr->height + scr->border - 1] + scr->pitch - (off >> 1);
+    ImageTypeShortBase *s0 = scr->ptr[-scr->border] - (off >> 1);
+    ImageTypeShortBase *p0 = in->ptr[-scr->border] - off;
     int width = scr->width + scr->border;
-    p = in->ptr[-scr->border] - off;
-    np = p + in->pitch;
 
     // treat it as if the whole thing were the image
-    for (; s < ls; s = ns, ns += scr->pitch, p = np, np += in->pitch) {
+    for (int k = begin; k < end; k++) {
+        ImageTypeShortBase *s = s0 + k * scr->pitch;
+        ImageTypeShortBase *p = p0 + k * in->pitch;
         for (int w = width; w--; s++, p += 2) {
             *s = (short)((((int) p[-2]) + ((int) p[2]) + 8 +    // 1
                         ((((int) p[-1]) + ((int) p[1])) << 2) + // 4
                         ((int) *p) * 6) >> 4);          // 6
         }
     }
+}
 
-    BorderSpread(scr, 5, 4 + ((in->width ^ 1) & 1), 0, 0); //
+// Filters row k of the output image, counted from the first row written.
+static void ReduceVerticalRows(void *arg, int begin, int end)
+{
+    FilterPass *pass = (FilterPass *) arg;
+    PyramidShort *out = pass->out;
+    PyramidShort *scr = pass->scr;
 
-    s = out->ptr[-(off >> 1)] - out->border;
-    ns = s + out->pitch;
-    ls = s + out->pitch * (out->height + off);
-    p = scr->ptr[-off] - out->border;
+    int off = scr->border - 2;
+    ImageTypeShortBase *s0 = out->ptr[-(off >> 1)] - out->border;
+    ImageTypeShortBase *p0 = scr->ptr[-off] - out->border;
     int pitch = scr->pitch;
     int pitch2 = pitch << 1;
-    np = p + pitch2;
-    for (; s < ls; s = ns, ns += out->pitch, p = np, np += pitch2) {
+
+    for (int k = begin; k < end; k++) {
+        ImageTypeShortBase *s = s0 + k * out->pitch;
+        ImageTypeShortBase *p = p0 + k * pitch2;
         for (int w = out->pitch; w--; s++, p++) {
             *s = (short)((((int) p[-pitch2]) + ((int) p[pitch2]) + 8 + // 1
                         ((((int) p[-pitch]) + ((int) p[pitch])) << 2) + // 4
                         ((int) *p) * 6) >> 4);              // 6
         }
     }
+}
+
+void PyramidShort::BorderReduceOdd(PyramidShort *in, PyramidShort *out, PyramidShort *scr,
+        ThreadPool *pool)
+{
+    int off = scr->border - 2;
+    FilterPass pass = { in, out, scr, 0 };
+
+    ThreadPool::run(pool, ReduceHorizontalRows, &pass, 0,
+            scr->height + 2 * scr->border, scr->width + scr->border);
+
+    BorderSpread(scr, 5, 4 + ((in->width ^ 1) & 1), 0, 0); //
+
+    ThreadPool::run(pool, ReduceVerticalRows, &pass, 0, out->height + off,
+            out->pitch);
     BorderSpread(out, 0, 0, 5, 5);
 
 }
 
-int PyramidShort::BorderReduce(PyramidShort *pyr, int nlev)
+int PyramidShort::BorderReduce(PyramidShort *pyr, int nlev, ThreadPool *pool)
 {
     PyramidShort *scr = allocateImage(pyr[1].width, pyr[0].height, pyr->border);
     if (scr == NULL)
@@ -259,7 +311,7 @@ int PyramidShort::BorderReduce(PyramidShort *pyr, int nlev)
 
     BorderSpread(pyr, pyr->border, pyr->border, pyr->border, pyr->border);
     while (--nlev) {
-        BorderReduceOdd(pyr, pyr + 1, scr);
+        BorderReduceOdd(pyr, pyr + 1, scr, pool);
         pyr++;
         scr->width = pyr[1].width;
         scr->height = pyr[0].height;
@@ -20,11 +20,13 @@
 #define PYRAMID_H
 
 #include "ImageUtils.h"
+#include "ThreadPool.h"
 
 typedef unsigned short int real;
 
 //  Structure containing a packed pyramid of type ImageTypeShort.  Used for pyramid
-//  blending, among other things.
+//  blending, among other things.  The reduce and expand functions take an
+//  optional thread pool to filter the rows of each level in parallel.
 
 class PyramidShort
 {
@@ -45,10 +47,12 @@ public:
   static unsigned int calcStorage(real width, real height, real border2, int levels, int *lines);
 
   static void BorderSpread(PyramidShort *pyr, int left, int right, int top, int bot);
-  static void BorderExpandOdd(PyramidShort *in, PyramidShort *out, PyramidShort *scr, int mode);
-  static int BorderExpand(PyramidShort *pyr, int nlev, int mode);
-  static int BorderReduce(PyramidShort *pyr, int nlev);
-  static void BorderReduceOdd(PyramidShort *in, PyramidShort *out, PyramidShort *scr);
+  static void BorderExpandOdd(PyramidShort *in, PyramidShort *out, PyramidShort *scr, int mode,
+          ThreadPool *pool = NULL);
+  static int BorderExpand(PyramidShort *pyr, int nlev, int mode, ThreadPool *pool = NULL);
+  static int BorderReduce(PyramidShort *pyr, int nlev, ThreadPool *pool = NULL);
+  static void BorderReduceOdd(PyramidShort *in, PyramidShort *out, PyramidShort *scr,
+          ThreadPool *pool = NULL);
 };
 
 #endif
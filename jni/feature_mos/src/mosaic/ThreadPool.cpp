@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+///////////////////////////////////////////////////
+// ThreadPool.cpp
+
+#include "ThreadPool.h"
+
+#include "Log.h"
+#define LOG_TAG "ThreadPool"
+
+ThreadPool::ThreadPool()
+{
+    numThreads = 1;
+    func = NULL;
+    arg = NULL;
+    begin = end = 0;
+    numTasks = 0;
+    pending = 0;
+    generation = 0;
+    quit = false;
+
+    pthread_mutex_init(&mutex, NULL);
+    pthread_cond_init(&startCond, NULL);
+    pthread_cond_init(&doneCond, NULL);
+}
+
+ThreadPool::~ThreadPool()
+{
+    release();
+
+    pthread_cond_destroy(&doneCond);
+    pthread_cond_destroy(&startCond);
+    pthread_mutex_destroy(&mutex);
+}
+
+int ThreadPool::initialize(int threads)
+{
+    release();
+
+    if (threads < 1) threads = 1;
+    if (threads > MAX_THREADS) threads = MAX_THREADS;
+
+    // Worker 0 is the calling thread
+    for (int i = 1; i < threads; i++)
+    {
+        workers[i].pool = this;
+        workers[i].index = i;
+        workers[i].generation = generation;
+        if (pthread_create(&workers[i].thread, NULL, workerMain, &workers[i]) != 0)
+        {
+            LOGE("Could not start thread %d", i);
+            release();
+            return THREADPOOL_RET_ERROR;
+        }
+        numThreads = i + 1;
+    }
+
+    return THREADPOOL_RET_OK;
+}
+
+void ThreadPool::release()
+{
+    if (numThreads == 1)
+        return;
+
+    pthread_mutex_lock(&mutex);
+    quit = true;
+    pthread_cond_broadcast(&startCond);
+    pthread_mutex_unlock(&mutex);
+
+    for (int i = 1; i < numThreads; i++)
+    {
+        pthread_join(workers[i].thread, NULL);
+    }
+
+    quit = false;
+    numThreads = 1;
+}
+
+void ThreadPool::run(ThreadPool *pool, RangeFunc func, void *arg, int begin,
+        int end, int rowPixels)
+{
+    int rows = end - begin;
+    if (rows <= 0)
+        return;
+
+    int tasks = 1;
+    if (pool != NULL && pool->numThreads > 1)
+    {
+        long long pixels = (long long) rows * rowPixels;
+        tasks = (int) (pixels / MIN_TASK_PIXELS);
+        if (tasks > pool->numThreads) tasks = pool->numThreads;
+        if (tasks > rows) tasks = rows;
+    }
+
+    if (tasks <= 1)
+    {
+        func(arg, begin, end);
+        return;
+    }
+
+    pthread_mutex_lock(&pool->mutex);
+    pool->func = func;
+    pool->arg = arg;
+    pool->begin = begin;
+    pool->end = end;
+    pool->numTasks = tasks;
+    pool->pending = tasks - 1;
+    pool->generation++;
+    pthread_cond_broadcast(&pool->startCond);
+    pthread_mutex_unlock(&pool->mutex);
+
+    pool->runTask(0);
+
+    pthread_mutex_lock(&pool->mutex);
+    while (pool->pending > 0)
+    {
+        pthread_cond_wait(&pool->doneCond, &pool->mutex);
+    }
+    pthread_mutex_unlock(&pool->mutex);
+}
+
+void ThreadPool::runTask(int task)
+{
+    int rows = end - begin;
+    int first = begin + (int) ((long long) rows * task / numTasks);
+    int last = begin + (int) ((long long) rows * (task + 1) / numTasks);
+    func(arg, first, last);
+}
+
+void *ThreadPool::workerMain(void *arg)
+{
+    Worker *worker = (Worker *) arg;
+    ThreadPool *pool = worker->pool;
+    // Taken from the worker rather than the pool, since a loop may already
+    // have started by the time the thread gets here.
+    unsigned int generation = worker->generation;
+
+    pthread_mutex_lock(&pool->mutex);
+    for (;;)
+    {
+        while (pool->generation == generation && !pool->quit)
+        {
+            pthread_cond_wait(&pool->startCond, &pool->mutex);
+        }
+        if (pool->quit)
+            break;
+
+        generation = pool->generation;
+        if (worker->index < pool->numTasks)
+        {
+            pthread_mutex_unlock(&pool->mutex);
+            pool->runTask(worker->index);
+            pthread_mutex_lock(&pool->mutex);
+
+            if (--pool->pending == 0)
+                pthread_cond_signal(&pool->doneCond);
+        }
+    }
+    pthread_mutex_unlock(&pool->mutex);
+
+    return NULL;
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+///////////////////////////////////////////////////
+// ThreadPool.h
+
+#ifndef THREADPOOL_H_
+#define THREADPOOL_H_
+
+#include <pthread.h>
+
+/**
+ *  Runs loops over image rows on a fixed set of threads.
+ *
+ *  The rows of a loop are split into one contiguous band per thread and the
+ *  calling thread works on the first band. Each row must only write its own
+ *  outputs, so the result does not depend on the number of threads.
+ */
+class ThreadPool
+{
+
+public:
+
+  /**
+   *  Processes the rows [begin, end) of a loop.
+   */
+  typedef void (*RangeFunc)(void *arg, int begin, int end);
+
+  ThreadPool();
+  ~ThreadPool();
+
+   /*!
+    *   Starts the threads of the pool, stopping the previous ones.
+    *   \param numThreads   Number of threads working on a loop, including
+    *                       the calling thread. 1 runs everything inline.
+    *   \return             Return code signifying success or failure.
+    */
+  int initialize(int numThreads);
+
+   /*!
+    *   Stops the threads of the pool.
+    */
+  void release();
+
+  int getNumThreads() { return numThreads; }
+
+   /*!
+    *   Runs func over the rows [begin, end) and returns once all of them are
+    *   done. Loops with fewer than MIN_TASK_PIXELS pixels per thread use
+    *   fewer threads, and pool may be NULL to run the loop inline.
+    *   \param rowPixels    Pixels processed per row, to size the bands
+    */
+  static void run(ThreadPool *pool, RangeFunc func, void *arg, int begin,
+          int end, int rowPixels);
+
+  static const int MAX_THREADS = 8;
+  static const int MIN_TASK_PIXELS = 8192;
+
+  static const int THREADPOOL_RET_OK = 0;
+  static const int THREADPOOL_RET_ERROR = -1;
+
+protected:
+
+  struct Worker
+  {
+    ThreadPool *pool;
+    int index;
+    unsigned int generation;    // Last loop started, set before the thread
+    pthread_t thread;
+  };
+
+  static void *workerMain(void *arg);
+  void runTask(int task);
+
+  int numThreads;
+  Worker workers[MAX_THREADS];
+
+  pthread_mutex_t mutex;
+  pthread_cond_t startCond;
+  pthread_cond_t doneCond;
+
+  /**
+   *  The current loop. It is changed with the mutex held, and generation
+   *  counts the loops so that each worker starts every loop once.
+   */
+  RangeFunc func;
+  void *arg;
+  int begin, end;
+  int numTasks;
+  int pending;
+  unsigned int generation;
+  bool quit;
+};
+
+#endif
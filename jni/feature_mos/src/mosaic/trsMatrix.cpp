@@ -92,3 +92,19 @@ void inv33d(const double m[3][3], double out[3][3])
     out[1][2] = (m[0][2]*m[1][0] - m[0][0]*m[1][2]) / det;
     out[2][2] = (m[0][0]*m[1][1] - m[0][1]*m[1][0]) / det;
 }
+
+// scale33d
+// Expresses the transformation m in pixels s times as large:
+// out = S * m * inv(S) with S = diag(s, s, 1)
+void scale33d(const double m[3][3], double s, double out[3][3])
+{
+    out[0][0] = m[0][0];
+    out[0][1] = m[0][1];
+    out[0][2] = m[0][2] * s;
+    out[1][0] = m[1][0];
+    out[1][1] = m[1][1];
+    out[1][2] = m[1][2] * s;
+    out[2][0] = m[2][0] / s;
+    out[2][1] = m[2][1] / s;
+    out[2][2] = m[2][2];
+}
@@ -34,6 +34,9 @@ void mult33d(double a[3][3], double b[3][3], double c[3][3]);
 // Normalize matrix so matrix[2][2] is '1'
 int normProjMat33d(double m[3][3]);
 
+// Scale a matrix to images s times as large, e.g. from low to high resolution
+void scale33d(const double m[3][3], double s, double out[3][3]);
+
 inline double ProjZ(double trs[3][3], double x, double y, double f)
 {
     return ((trs)[2][0]*(x) + (trs)[2][1]*(y) + (trs)[2][2]*(f));
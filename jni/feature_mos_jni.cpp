@@ -17,16 +17,23 @@
 /*
 *
  */
+#include <limits.h>
+#include <pthread.h>
 #include <string.h>
 #include <jni.h>
 #include <stdio.h>
 #include <stdlib.h>
 #include <time.h>
+#include <unistd.h>
 #include <db_utilities_camera.h>
 
 #include "mosaic/AlignFeatures.h"
 #include "mosaic/Blend.h"
+#include "mosaic/ColorKernels.h"
+#include "mosaic/FrameStore.h"
+#include "mosaic/JpegWriter.h"
 #include "mosaic/Mosaic.h"
+#include "mosaic/trsMatrix.h"
 #include "mosaic/Log.h"
 #define LOG_TAG "FEATURE_MOS_JNI"
 
@@ -38,34 +45,114 @@ extern "C" {
 
 char buffer[1024];
 
-const int MAX_FRAMES = 100;
+const int MAX_FRAMES = 200;
 
-static double mTx;
+// Bytes of high-res frames kept on the heap by default. The other frames go to
+// the scratch file given to setFrameStore(), if any.
+const int DEFAULT_FRAME_STORE_BUDGET = 64 * 1024 * 1024;
 
-int tWidth[NR];
-int tHeight[NR];
+// The high-res frames reuse the alignment of the low-res frames, refined by
+// a search of this many high-res pixels. Set to 0 to skip the refinement.
+const int HR_REFINE_RADIUS = H2L_FACTOR / 2;
 
-ImageType tImage[NR][MAX_FRAMES];// = {{ImageUtils::IMAGE_TYPE_NOIMAGE}}; // YVU24 format image
-Mosaic *mosaic[NR] = {NULL,NULL};
-ImageType resultYVU = (ImageType)ImageUtils::IMAGE_TYPE_NOIMAGE;
-ImageType resultBGR = (ImageType)ImageUtils::IMAGE_TYPE_NOIMAGE;
-float gTRS[11]; // 9 elements of the transformation, 1 for frame-number, 1 for alignment error code.
-// Variables to keep track of the mosaic computation progress for both LR & HR.
-float gProgress[NR];
-// Variables to be able to cancel the mosaic computation when the GUI says so.
-bool gCancelComputation[NR];
+// The mosaics are blended on up to this many cores.
+const int MAX_BLEND_THREADS = 4;
 
-int c;
-int width=0, height=0;
-int mosaicWidth=0, mosaicHeight=0;
+// Everything about one panorama, from its first frame to its final mosaic.
+// Each Java Mosaic owns one, so a panorama can be captured while the one
+// before is still being stitched.
+struct MosaicSession
+{
+    MosaicSession();
+    ~MosaicSession();
+
+    int tWidth[NR];
+    int tHeight[NR];
+
+    ImageType tImage[NR][MAX_FRAMES]; // YVU24 format image, LR only
+    // The HR frames are kept compactly until the HR mosaic is created.
+    FrameStore hrFrames;
+    ImageType hrImage; // YVU24 format image of the incoming HR frame
+    size_t frameStoreBudget;
+    char frameStorePath[PATH_MAX];
+    Mosaic *mosaic[NR];
+    ImageType resultYVU;
+    int mosaicWidth, mosaicHeight;
+    float trs[11]; // 9 elements of the transformation, 1 for frame-number, 1 for alignment error code.
+    // Variables to keep track of the mosaic computation progress for both LR & HR.
+    float progress[NR];
+    // Variables to be able to cancel the mosaic computation when the GUI says so.
+    bool cancelComputation[NR];
+
+    int frameNumber[NR];
+
+    int blendingType;
+    int stripType;
+    // Whether the HR mosaic is blended on a background thread during capture.
+    bool streaming;
+    bool quarterRes[NR];
+    float threshStill[NR];
+};
+
+MosaicSession::MosaicSession()
+{
+    for (int mID = 0; mID < NR; mID++)
+    {
+        tWidth[mID] = 0;
+        tHeight[mID] = 0;
+        for (int i = 0; i < MAX_FRAMES; i++)
+            tImage[mID][i] = (ImageType)ImageUtils::IMAGE_TYPE_NOIMAGE;
+        mosaic[mID] = NULL;
+        progress[mID] = 0.0;
+        cancelComputation[mID] = false;
+        frameNumber[mID] = 0;
+        quarterRes[mID] = false;
+    }
+    hrImage = (ImageType)ImageUtils::IMAGE_TYPE_NOIMAGE;
+    frameStoreBudget = DEFAULT_FRAME_STORE_BUDGET;
+    frameStorePath[0] = 0;
+    resultYVU = (ImageType)ImageUtils::IMAGE_TYPE_NOIMAGE;
+    mosaicWidth = 0;
+    mosaicHeight = 0;
+    memset(trs, 0, sizeof(trs));
+    //blendingType = Blend::BLEND_TYPE_FULL;
+    //blendingType = Blend::BLEND_TYPE_CYLPAN;
+    blendingType = Blend::BLEND_TYPE_HORZ;
+    stripType = Blend::STRIP_TYPE_THIN;
+    streaming = false;
+    threshStill[LR] = 5.0f;
+    threshStill[HR] = 0.0f;
+}
+
+MosaicSession::~MosaicSession()
+{
+    // A streaming HR mosaic still reads the stored frames.
+    for (int mID = 0; mID < NR; mID++)
+        delete mosaic[mID];
+    for (int i = 0; i < MAX_FRAMES; i++)
+        ImageUtils::freeImage(tImage[LR][i]);
+    ImageUtils::freeImage(hrImage);
+    ImageUtils::freeImage(resultYVU);
+}
+
+// The preview renderer has a single set of buffers, which belong to the
+// session that allocated its memory last: the one being captured.
+static MosaicSession *gPreviewSession = NULL;
+static pthread_mutex_t gPreviewSessionLock = PTHREAD_MUTEX_INITIALIZER;
+
+static jfieldID gSessionField = NULL;
 
-//int blendingType = Blend::BLEND_TYPE_FULL;
-//int blendingType = Blend::BLEND_TYPE_CYLPAN;
-int blendingType = Blend::BLEND_TYPE_HORZ;
-int stripType = Blend::STRIP_TYPE_THIN;
-bool high_res = false;
-bool quarter_res[NR] = {false,false};
-float thresh_still[NR] = {5.0f,0.0f};
+// Returns the session of the Java Mosaic
+static MosaicSession *GetSession(JNIEnv* env, jobject thiz)
+{
+    if (gSessionField == NULL)
+    {
+        jclass clazz = env->GetObjectClass(thiz);
+        gSessionField = env->GetFieldID(clazz, "mNativeSession", "J");
+        env->DeleteLocalRef(clazz);
+    }
+    return (MosaicSession *) (intptr_t) env->GetLongField(thiz, gSessionField);
+}
 
 /* return current time in milliseconds*/
 
@@ -82,36 +169,37 @@ now_ms(void)
 #endif
 
 
-static int frame_number_HR = 0;
-static int frame_number_LR = 0;
-
-int Init(int mID, int nmax)
+int Init(MosaicSession *s, int mID, int nmax)
 {
         double  t0, t1, time_c;
 
-        if(mosaic[mID]!=NULL)
+        if(s->mosaic[mID]!=NULL)
         {
-                delete mosaic[mID];
-                mosaic[mID] = NULL;
+                delete s->mosaic[mID];
+                s->mosaic[mID] = NULL;
         }
 
-        mosaic[mID] = new Mosaic();
+        s->mosaic[mID] = new Mosaic();
 
         t0 = now_ms();
 
         // When processing higher than 720x480 video, process low-res at
         // quarter resolution
-        if(tWidth[LR]>180)
-            quarter_res[LR] = true;
+        if(s->tWidth[LR]>180)
+            s->quarterRes[LR] = true;
 
 
         // Check for initialization and if not, initialize
-        if (!mosaic[mID]->isInitialized())
+        if (!s->mosaic[mID]->isInitialized())
         {
-                mosaic[mID]->initialize(blendingType, stripType, tWidth[mID], tHeight[mID],
-                        nmax, quarter_res[mID], thresh_still[mID]);
+                s->mosaic[mID]->initialize(s->blendingType, s->stripType,
+                        s->tWidth[mID], s->tHeight[mID], nmax, s->quarterRes[mID],
+                        s->threshStill[mID]);
         }
 
+        int cores = (int) sysconf(_SC_NPROCESSORS_ONLN);
+        s->mosaic[mID]->setNumThreads(cores < MAX_BLEND_THREADS ? cores : MAX_BLEND_THREADS);
+
         t1 = now_ms();
         time_c = t1 - t0;
         LOGV("Init[%d]: %g ms [%d frames]",mID,time_c,nmax);
@@ -121,56 +209,21 @@ int Init(int mID, int nmax)
 void GenerateQuarterResImagePlanar(ImageType im, int input_w, int input_h,
         ImageType &out)
 {
-    ImageType imp;
-    ImageType outp;
-
-    int count = 0;
-
-    for (int j = 0; j < input_h; j += H2L_FACTOR)
-    {
-        imp = im + j * input_w;
-        outp = out + (j / H2L_FACTOR) * (input_w / H2L_FACTOR);
-
-        for (int i = 0; i < input_w; i += H2L_FACTOR)
-        {
-            *outp++ = *(imp + i);
-            count++;
-        }
-    }
-
-    for (int j = input_h; j < 2 * input_h; j += H2L_FACTOR)
-    {
-        imp = im + j * input_w;
-        outp = out + (j / H2L_FACTOR) * (input_w / H2L_FACTOR);
-
-        for (int i = 0; i < input_w; i += H2L_FACTOR)
-        {
-            *outp++ = *(imp + i);
-            count++;
-        }
-    }
-
-    for (int j = 2 * input_h; j < 3 * input_h; j += H2L_FACTOR)
-    {
-        imp = im + j * input_w;
-        outp = out + (j / H2L_FACTOR) * (input_w / H2L_FACTOR);
-
-        for (int i = 0; i < input_w; i += H2L_FACTOR)
-        {
-            *outp++ = *(imp + i);
-            count++;
-        }
-    }
+    ColorKernels::get()->subsampleYvu444(out, im, input_w, input_h, H2L_FACTOR);
 }
 
-int AddFrame(int mID, int k, float* trs1d)
+int AddFrame(MosaicSession *s, int mID, int k, float* trs1d)
 {
     double  t0, t1, time_c;
     double trs[3][3];
 
-    int ret_code = mosaic[mID]->addFrame(tImage[mID][k]);
+    int ret_code;
+    if (mID == HR)
+        ret_code = s->mosaic[HR]->addFrame(&s->hrFrames, k);
+    else
+        ret_code = s->mosaic[mID]->addFrame(s->tImage[mID][k]);
 
-    mosaic[mID]->getAligner()->getLastTRS(trs);
+    s->mosaic[mID]->getAligner()->getLastTRS(trs);
 
     if(trs1d!=NULL)
     {
@@ -189,157 +242,140 @@ int AddFrame(int mID, int k, float* trs1d)
     return ret_code;
 }
 
-int Finalize(int mID)
+// Adds the high-res frame k with the transformation found for the matching
+// low-res frame during capture, instead of aligning it again.
+int AddLiftedFrame(MosaicSession *s, int k)
+{
+    double lrtrs[3][3];
+    double trs[3][3];
+
+    int ret_code = s->mosaic[LR]->getFrameTRS(k, lrtrs);
+    if (ret_code != Mosaic::MOSAIC_RET_OK)
+        return ret_code;
+
+    scale33d(lrtrs, double(s->tWidth[HR]) / s->tWidth[LR], trs);
+
+    return s->mosaic[HR]->addFrame(&s->hrFrames, k, trs, HR_REFINE_RADIUS);
+}
+
+int Finalize(MosaicSession *s, int mID)
 {
     double  t0, t1, time_c;
 
     t0 = now_ms();
     // Create the mosaic
-    int ret = mosaic[mID]->createMosaic(gProgress[mID], gCancelComputation[mID]);
+    int ret = s->mosaic[mID]->createMosaic(s->progress[mID], s->cancelComputation[mID]);
     t1 = now_ms();
     time_c = t1 - t0;
     LOGV("CreateMosaic: %g ms",time_c);
 
-    // Get back the result
-    resultYVU = mosaic[mID]->getMosaic(mosaicWidth, mosaicHeight);
+    // Get back the result, replacing one that was never read
+    ImageUtils::freeImage(s->resultYVU);
+    s->resultYVU = s->mosaic[mID]->getMosaic(s->mosaicWidth, s->mosaicHeight);
 
     return ret;
 }
 
 void YUV420toYVU24(ImageType yvu24, ImageType yuv420sp, int width, int height)
 {
-    int frameSize = width * height;
-
-    ImageType oyp = yvu24;
-    ImageType ovp = yvu24+frameSize;
-    ImageType oup = yvu24+frameSize+frameSize;
-
-    for (int j = 0, yp = 0; j < height; j++)
-    {
-        unsigned char u = 0, v = 0;
-        int uvp = frameSize + (j >> 1) * width;
-        for (int i = 0; i < width; i++, yp++)
-        {
-            *oyp++ = yuv420sp[yp];
-            //int y = (0xff & (int)yuv420sp[yp]) -16;
-            //yvu24p[yp] = (y<0)?0:y;
-
-            if ((i & 1) == 0)
-            {
-                v = yuv420sp[uvp++];
-                u = yuv420sp[uvp++];
-            }
-
-            *ovp++ = v;
-            *oup++ = u;
-        }
-    }
+    ColorKernels::get()->yuv420spToYvu444(yvu24, yuv420sp, width, height);
 }
 
 void YUV420toYVU24_NEW(ImageType yvu24, ImageType yuv420sp, int width,
         int height)
 {
-    int frameSize = width * height;
-
-    ImageType oyp = yvu24;
-    ImageType ovp = yvu24 + frameSize;
-    ImageType oup = yvu24 + frameSize + frameSize;
-
-    memcpy(yvu24, yuv420sp, frameSize * sizeof(unsigned char));
-
-    for (int j = 0; j < height; j += 2)
-    {
-        unsigned char u = 0, v = 0;
-        int uvp = frameSize + (j >> 1) * width;
-        ovp = yvu24 + frameSize + j * width;
-        oup = ovp + frameSize;
-
-        ImageType iuvp = yuv420sp + uvp;
+    ColorKernels::get()->yuv420spToYvu444(yvu24, yuv420sp, width, height);
+}
 
-        for (int i = 0; i < width; i += 2)
-        {
-            v = *iuvp++;
-            u = *iuvp++;
 
-            *ovp++ = v;
-            *oup++ = u;
+JNIEXPORT jlong JNICALL Java_com_android_camera_Mosaic_createSession(
+        JNIEnv* env, jclass clazz)
+{
+    return (jlong) (intptr_t) new MosaicSession();
+}
 
-            *ovp++ = v;
-            *oup++ = u;
+JNIEXPORT void JNICALL Java_com_android_camera_Mosaic_destroySession(
+        JNIEnv* env, jclass clazz, jlong session)
+{
+    MosaicSession *s = (MosaicSession *) (intptr_t) session;
 
-        }
-        memcpy(ovp, ovp - width, width * sizeof(unsigned char));
-        memcpy(oup, oup - width, width * sizeof(unsigned char));
+    pthread_mutex_lock(&gPreviewSessionLock);
+    if (gPreviewSession == s)
+    {
+        FreeTextureMemory();
+        gPreviewSession = NULL;
     }
-}
+    pthread_mutex_unlock(&gPreviewSessionLock);
 
+    delete s;
+}
 
 JNIEXPORT void JNICALL Java_com_android_camera_Mosaic_allocateMosaicMemory(
         JNIEnv* env, jobject thiz, jint width, jint height)
 {
-    tWidth[HR] = width;
-    tHeight[HR] = height;
-    tWidth[LR] = int(width / H2L_FACTOR);
-    tHeight[LR] = int(height / H2L_FACTOR);
+    MosaicSession *s = GetSession(env, thiz);
+
+    s->tWidth[HR] = width;
+    s->tHeight[HR] = height;
+    s->tWidth[LR] = int(width / H2L_FACTOR);
+    s->tHeight[LR] = int(height / H2L_FACTOR);
 
     for(int i=0; i<MAX_FRAMES; i++)
     {
-            tImage[LR][i] = ImageUtils::allocateImage(tWidth[LR], tHeight[LR],
-                    ImageUtils::IMAGE_TYPE_NUM_CHANNELS);
-            tImage[HR][i] = ImageUtils::allocateImage(tWidth[HR], tHeight[HR],
+            s->tImage[LR][i] = ImageUtils::allocateImage(s->tWidth[LR], s->tHeight[LR],
                     ImageUtils::IMAGE_TYPE_NUM_CHANNELS);
     }
 
-    AllocateTextureMemory(tWidth[HR], tHeight[HR], tWidth[LR], tHeight[LR]);
+    s->hrImage = ImageUtils::allocateImage(s->tWidth[HR], s->tHeight[HR],
+            ImageUtils::IMAGE_TYPE_NUM_CHANNELS);
+    s->hrFrames.initialize(s->tWidth[HR], s->tHeight[HR], MAX_FRAMES, s->frameStoreBudget,
+            s->frameStorePath[0] ? s->frameStorePath : NULL);
+
+    // The preview now shows this session; another one may still be stitching.
+    pthread_mutex_lock(&gPreviewSessionLock);
+    if (gPreviewSession != NULL)
+        FreeTextureMemory();
+    AllocateTextureMemory(s->tWidth[HR], s->tHeight[HR], s->tWidth[LR], s->tHeight[LR]);
+    gPreviewSession = s;
+    pthread_mutex_unlock(&gPreviewSessionLock);
 }
 
 JNIEXPORT void JNICALL Java_com_android_camera_Mosaic_freeMosaicMemory(
         JNIEnv* env, jobject thiz)
 {
+    MosaicSession *s = GetSession(env, thiz);
+
     for(int i = 0; i < MAX_FRAMES; i++)
     {
-        ImageUtils::freeImage(tImage[LR][i]);
-        ImageUtils::freeImage(tImage[HR][i]);
+        ImageUtils::freeImage(s->tImage[LR][i]);
+        s->tImage[LR][i] = (ImageType)ImageUtils::IMAGE_TYPE_NOIMAGE;
     }
 
-    FreeTextureMemory();
+    ImageUtils::freeImage(s->hrImage);
+    s->hrImage = (ImageType)ImageUtils::IMAGE_TYPE_NOIMAGE;
+
+    // A streaming HR mosaic still reads the stored frames.
+    if (s->mosaic[HR] != NULL)
+    {
+        delete s->mosaic[HR];
+        s->mosaic[HR] = NULL;
+    }
+    s->hrFrames.release();
+
+    pthread_mutex_lock(&gPreviewSessionLock);
+    if (gPreviewSession == s)
+    {
+        FreeTextureMemory();
+        gPreviewSession = NULL;
+    }
+    pthread_mutex_unlock(&gPreviewSessionLock);
 }
 
 
 void decodeYUV444SP(unsigned char* rgb, unsigned char* yuv420sp, int width,
         int height)
 {
-    int frameSize = width * height;
-
-    for (int j = 0, yp = 0; j < height; j++)
-    {
-        int vp = frameSize + j * width, u = 0, v = 0;
-        int up = vp + frameSize;
-
-        for (int i = 0; i < width; i++, yp++, vp++, up++)
-        {
-            int y = (0xff & ((int) yuv420sp[yp])) - 16;
-            if (y < 0) y = 0;
-
-            v = (0xff & yuv420sp[vp]) - 128;
-            u = (0xff & yuv420sp[up]) - 128;
-
-            int y1192 = 1192 * y;
-            int r = (y1192 + 1634 * v);
-            int g = (y1192 - 833 * v - 400 * u);
-            int b = (y1192 + 2066 * u);
-
-            if (r < 0) r = 0; else if (r > 262143) r = 262143;
-            if (g < 0) g = 0; else if (g > 262143) g = 262143;
-            if (b < 0) b = 0; else if (b > 262143) b = 262143;
-
-            //rgb[yp] = 0xff000000 | ((r << 6) & 0xff0000) | ((g >> 2) & 0xff00) | ((b >> 10) & 0xff);
-            int p = j*width*3+i*3;
-            rgb[p+0] = (r<<6 & 0xFF0000)>>16;
-            rgb[p+1] = (g>>2 & 0xFF00)>>8;
-            rgb[p+2] =  b>>10 & 0xFF;
-        }
-    }
+    ColorKernels::get()->yvu444ToRgbFixed(rgb, yuv420sp, width, height);
 }
 
 static int count = 0;
@@ -347,66 +383,60 @@ static int count = 0;
 void ConvertYVUAiToPlanarYVU(unsigned char *planar, unsigned char *in, int width,
         int height)
 {
-    int planeSize = width * height;
-    unsigned char* Yptr = planar;
-    unsigned char* Vptr = planar + planeSize;
-    unsigned char* Uptr = Vptr + planeSize;
-
-    for (int i = 0; i < planeSize; i++)
-    {
-        *Yptr++ = *in++;
-        *Vptr++ = *in++;
-        *Uptr++ = *in++;
-        in++;   // Alpha
-    }
+    ColorKernels::get()->yvuaToYvu444(planar, in, width, height);
 }
 
 JNIEXPORT jfloatArray JNICALL Java_com_android_camera_Mosaic_setSourceImageFromGPU(
         JNIEnv* env, jobject thiz)
 {
+    MosaicSession *s = GetSession(env, thiz);
     double  t0, t1, time_c;
     t0 = now_ms();
     int ret_code = Mosaic::MOSAIC_RET_OK;
 
-    if(frame_number_HR<MAX_FRAMES && frame_number_LR<MAX_FRAMES)
+    if(s->frameNumber[HR]<MAX_FRAMES && s->frameNumber[LR]<MAX_FRAMES)
     {
-        double last_tx = mTx;
-
         sem_wait(&gPreviewImage_semaphore);
-        ConvertYVUAiToPlanarYVU(tImage[LR][frame_number_LR], gPreviewImage[LR],
-                tWidth[LR], tHeight[LR]);
+        ConvertYVUAiToPlanarYVU(s->tImage[LR][s->frameNumber[LR]], gPreviewImage[LR],
+                s->tWidth[LR], s->tHeight[LR]);
 
         sem_post(&gPreviewImage_semaphore);
 
-        ret_code = AddFrame(LR, frame_number_LR, gTRS);
+        ret_code = AddFrame(s, LR, s->frameNumber[LR], s->trs);
 
         if(ret_code == Mosaic::MOSAIC_RET_OK || ret_code == Mosaic::MOSAIC_RET_FEW_INLIERS)
         {
             // Copy into HR buffer only if this is a valid frame
             sem_wait(&gPreviewImage_semaphore);
-            ConvertYVUAiToPlanarYVU(tImage[HR][frame_number_HR], gPreviewImage[HR],
-                    tWidth[HR], tHeight[HR]);
+            ConvertYVUAiToPlanarYVU(s->hrImage, gPreviewImage[HR],
+                    s->tWidth[HR], s->tHeight[HR]);
             sem_post(&gPreviewImage_semaphore);
 
-            frame_number_LR++;
-            frame_number_HR++;
+            s->hrFrames.putYVU24(s->frameNumber[HR], s->hrImage);
+
+            s->frameNumber[LR]++;
+            s->frameNumber[HR]++;
+
+            // There is no HR mosaic if the stream did not start.
+            if (s->streaming && s->mosaic[HR] != NULL)
+                AddLiftedFrame(s, s->frameNumber[HR] - 1);
         }
     }
     else
     {
-        gTRS[1] = gTRS[2] = gTRS[3] = gTRS[5] = gTRS[6] = gTRS[7] = 0.0f;
-        gTRS[0] = gTRS[4] = gTRS[8] = 1.0f;
+        s->trs[1] = s->trs[2] = s->trs[3] = s->trs[5] = s->trs[6] = s->trs[7] = 0.0f;
+        s->trs[0] = s->trs[4] = s->trs[8] = 1.0f;
     }
 
-    UpdateWarpTransformation(gTRS);
+    UpdateWarpTransformation(s->trs);
 
-    gTRS[9] = frame_number_HR;
-    gTRS[10] = ret_code;
+    s->trs[9] = s->frameNumber[HR];
+    s->trs[10] = ret_code;
 
     jfloatArray bytes = env->NewFloatArray(11);
     if(bytes != 0)
     {
-        env->SetFloatArrayRegion(bytes, 0, 11, (jfloat*) gTRS);
+        env->SetFloatArrayRegion(bytes, 0, 11, (jfloat*) s->trs);
     }
     return bytes;
 }
@@ -416,153 +446,210 @@ JNIEXPORT jfloatArray JNICALL Java_com_android_camera_Mosaic_setSourceImageFromG
 JNIEXPORT jfloatArray JNICALL Java_com_android_camera_Mosaic_setSourceImage(
         JNIEnv* env, jobject thiz, jbyteArray photo_data)
 {
+    MosaicSession *s = GetSession(env, thiz);
     double  t0, t1, time_c;
     t0 = now_ms();
 
     int ret_code = Mosaic::MOSAIC_RET_OK;
 
-    if(frame_number_HR<MAX_FRAMES && frame_number_LR<MAX_FRAMES)
+    if(s->frameNumber[HR]<MAX_FRAMES && s->frameNumber[LR]<MAX_FRAMES)
     {
         jbyte *pixels = env->GetByteArrayElements(photo_data, 0);
 
-        YUV420toYVU24_NEW(tImage[HR][frame_number_HR], (ImageType)pixels,
-                tWidth[HR], tHeight[HR]);
+        // The store keeps the NV21 frame as it is. It is only expanded to
+        // make the LR frame.
+        s->hrFrames.putYUV420SP(s->frameNumber[HR], (ImageType)pixels);
+        YUV420toYVU24_NEW(s->hrImage, (ImageType)pixels,
+                s->tWidth[HR], s->tHeight[HR]);
 
         env->ReleaseByteArrayElements(photo_data, pixels, 0);
 
-        double last_tx = mTx;
-
         t0 = now_ms();
-        GenerateQuarterResImagePlanar(tImage[HR][frame_number_HR], tWidth[HR],
-                tHeight[HR], tImage[LR][frame_number_LR]);
+        GenerateQuarterResImagePlanar(s->hrImage, s->tWidth[HR],
+                s->tHeight[HR], s->tImage[LR][s->frameNumber[LR]]);
 
 
         sem_wait(&gPreviewImage_semaphore);
-        decodeYUV444SP(gPreviewImage[LR], tImage[LR][frame_number_LR],
+        decodeYUV444SP(gPreviewImage[LR], s->tImage[LR][s->frameNumber[LR]],
                 gPreviewImageWidth[LR], gPreviewImageHeight[LR]);
         sem_post(&gPreviewImage_semaphore);
 
-        ret_code = AddFrame(LR, frame_number_LR, gTRS);
+        ret_code = AddFrame(s, LR, s->frameNumber[LR], s->trs);
 
         if(ret_code == Mosaic::MOSAIC_RET_OK || ret_code == Mosaic::MOSAIC_RET_FEW_INLIERS)
         {
-            frame_number_LR++;
-            frame_number_HR++;
+            s->frameNumber[LR]++;
+            s->frameNumber[HR]++;
+
+            // There is no HR mosaic if the stream did not start.
+            if (s->streaming && s->mosaic[HR] != NULL)
+                AddLiftedFrame(s, s->frameNumber[HR] - 1);
         }
 
     }
     else
     {
-        gTRS[1] = gTRS[2] = gTRS[3] = gTRS[5] = gTRS[6] = gTRS[7] = 0.0f;
-        gTRS[0] = gTRS[4] = gTRS[8] = 1.0f;
+        s->trs[1] = s->trs[2] = s->trs[3] = s->trs[5] = s->trs[6] = s->trs[7] = 0.0f;
+        s->trs[0] = s->trs[4] = s->trs[8] = 1.0f;
     }
 
-    UpdateWarpTransformation(gTRS);
+    UpdateWarpTransformation(s->trs);
 
-    gTRS[9] = frame_number_HR;
-    gTRS[10] = ret_code;
+    s->trs[9] = s->frameNumber[HR];
+    s->trs[10] = ret_code;
 
     jfloatArray bytes = env->NewFloatArray(11);
     if(bytes != 0)
     {
-        env->SetFloatArrayRegion(bytes, 0, 11, (jfloat*) gTRS);
+        env->SetFloatArrayRegion(bytes, 0, 11, (jfloat*) s->trs);
     }
     return bytes;
 }
 
+JNIEXPORT void JNICALL Java_com_android_camera_Mosaic_setFrameStore(
+        JNIEnv* env, jobject thiz, jstring scratchPath, jint memoryBudget)
+{
+    MosaicSession *s = GetSession(env, thiz);
+
+    s->frameStorePath[0] = 0;
+    if (scratchPath != NULL)
+    {
+        const char *path = env->GetStringUTFChars(scratchPath, NULL);
+        strncpy(s->frameStorePath, path, PATH_MAX - 1);
+        s->frameStorePath[PATH_MAX - 1] = 0;
+        env->ReleaseStringUTFChars(scratchPath, path);
+    }
+    s->frameStoreBudget = memoryBudget;
+}
+
 JNIEXPORT void JNICALL Java_com_android_camera_Mosaic_setBlendingType(
         JNIEnv* env, jobject thiz, jint type)
 {
-    blendingType = int(type);
+    GetSession(env, thiz)->blendingType = int(type);
 }
 
 JNIEXPORT void JNICALL Java_com_android_camera_Mosaic_setStripType(
         JNIEnv* env, jobject thiz, jint type)
 {
-    stripType = int(type);
+    GetSession(env, thiz)->stripType = int(type);
+}
+
+JNIEXPORT void JNICALL Java_com_android_camera_Mosaic_setStreaming(
+        JNIEnv* env, jobject thiz, jboolean enable)
+{
+    GetSession(env, thiz)->streaming = bool(enable);
 }
 
 JNIEXPORT void JNICALL Java_com_android_camera_Mosaic_reset(
         JNIEnv* env, jobject thiz)
 {
-    frame_number_HR = 0;
-    frame_number_LR = 0;
+    MosaicSession *s = GetSession(env, thiz);
 
-    gProgress[LR] = 0.0;
-    gProgress[HR] = 0.0;
+    s->frameNumber[HR] = 0;
+    s->frameNumber[LR] = 0;
 
-    gCancelComputation[LR] = false;
-    gCancelComputation[HR] = false;
+    s->progress[LR] = 0.0;
+    s->progress[HR] = 0.0;
 
-    Init(LR,MAX_FRAMES);
+    s->cancelComputation[LR] = false;
+    s->cancelComputation[HR] = false;
+
+    Init(s, LR, MAX_FRAMES);
+
+    // The HR frames are blended as they are captured. If the stream cannot
+    // start, the HR mosaic is made from the stored frames afterwards.
+    if (s->streaming)
+    {
+        Init(s, HR, MAX_FRAMES);
+        if (s->mosaic[HR]->startStreaming() != Mosaic::MOSAIC_RET_OK)
+        {
+            delete s->mosaic[HR];
+            s->mosaic[HR] = NULL;
+        }
+    }
 }
 
 JNIEXPORT jint JNICALL Java_com_android_camera_Mosaic_reportProgress(
         JNIEnv* env, jobject thiz, jboolean hires, jboolean cancel_computation)
 {
+    MosaicSession *s = GetSession(env, thiz);
+
     if(bool(hires))
-        gCancelComputation[HR] = cancel_computation;
+        s->cancelComputation[HR] = cancel_computation;
     else
-        gCancelComputation[LR] = cancel_computation;
+        s->cancelComputation[LR] = cancel_computation;
 
     if(bool(hires))
-        return (jint) gProgress[HR];
+        return (jint) s->progress[HR];
     else
-        return (jint) gProgress[LR];
+        return (jint) s->progress[LR];
 }
 
 JNIEXPORT jint JNICALL Java_com_android_camera_Mosaic_createMosaic(
         JNIEnv* env, jobject thiz, jboolean value)
 {
-    high_res = bool(value);
-
+    MosaicSession *s = GetSession(env, thiz);
+    int frame_number_HR = s->frameNumber[HR];
     int ret;
 
-    if(high_res)
+    if(bool(value))
     {
         LOGV("createMosaic() - High-Res Mode");
         double  t0, t1, time_c;
 
-        gProgress[HR] = 0.0;
+        s->progress[HR] = 0.0;
         t0 = now_ms();
 
-        Init(HR, frame_number_HR);
+        // The streamed mosaic already holds every frame when none was lost
+        // on the way; otherwise start again from the stored frames.
+        bool streamed = s->streaming && s->mosaic[HR] != NULL &&
+                s->mosaic[HR]->getNumFrames() == frame_number_HR;
+
+        if (!streamed)
+            Init(s, HR, frame_number_HR);
 
-        for(int k = 0; k < frame_number_HR; k++)
+        // Every stored high-res frame has a low-res frame aligned during
+        // capture. Only align again if they somehow got out of step.
+        bool lifted = s->mosaic[LR] != NULL &&
+                s->mosaic[LR]->getNumFrames() == frame_number_HR;
+
+        for(int k = 0; k < frame_number_HR && !streamed; k++)
         {
-            if (gCancelComputation[HR])
+            if (s->cancelComputation[HR])
                 break;
-            AddFrame(HR, k, NULL);
-            gProgress[HR] += TIME_PERCENT_ALIGN/frame_number_HR;
+            if (lifted)
+                AddLiftedFrame(s, k);
+            else
+                AddFrame(s, HR, k, NULL);
+            s->progress[HR] += TIME_PERCENT_ALIGN/frame_number_HR;
         }
 
-        if (gCancelComputation[HR])
+        if (s->cancelComputation[HR])
         {
             ret = Mosaic::MOSAIC_RET_CANCELLED;
         }
         else
         {
-            gProgress[HR] = TIME_PERCENT_ALIGN;
+            s->progress[HR] = TIME_PERCENT_ALIGN;
 
             t1 = now_ms();
             time_c = t1 - t0;
-            LOGV("AlignAll - %d frames [HR]: %g ms", frame_number_HR, time_c);
+            LOGV("AlignAll - %d frames [HR]: %g ms%s", frame_number_HR, time_c,
+                    streamed ? " (streamed)" : lifted ? " (lifted from LR)" : "");
 
-            ret = Finalize(HR);
+            ret = Finalize(s, HR);
 
-            gProgress[HR] = 100.0;
+            s->progress[HR] = 100.0;
         }
-
-        high_res = false;
     }
     else
     {
         LOGV("createMosaic() - Low-Res Mode");
-        gProgress[LR] = TIME_PERCENT_ALIGN;
+        s->progress[LR] = TIME_PERCENT_ALIGN;
 
-        ret = Finalize(LR);
+        ret = Finalize(s, LR);
 
-        gProgress[LR] = 100.0;
+        s->progress[LR] = 100.0;
     }
 
     return (jint) ret;
@@ -571,15 +658,16 @@ JNIEXPORT jint JNICALL Java_com_android_camera_Mosaic_createMosaic(
 JNIEXPORT jintArray JNICALL Java_com_android_camera_Mosaic_getFinalMosaic(
         JNIEnv* env, jobject thiz)
 {
+    MosaicSession *s = GetSession(env, thiz);
     int y,x;
-    int width = mosaicWidth;
-    int height = mosaicHeight;
+    int width = s->mosaicWidth;
+    int height = s->mosaicHeight;
     int imageSize = width * height;
 
     // Convert back to RGB24
-    resultBGR = ImageUtils::allocateImage(mosaicWidth, mosaicHeight,
+    ImageType resultBGR = ImageUtils::allocateImage(width, height,
             ImageUtils::IMAGE_TYPE_NUM_CHANNELS);
-    ImageUtils::yvu2bgr(resultBGR, resultYVU, mosaicWidth, mosaicHeight);
+    ImageUtils::yvu2bgr(resultBGR, s->resultYVU, width, height);
 
     LOGV("MosBytes: %d, W = %d, H = %d", imageSize, width, height);
 
@@ -616,24 +704,27 @@ JNIEXPORT jintArray JNICALL Java_com_android_camera_Mosaic_getFinalMosaic(
 JNIEXPORT jbyteArray JNICALL Java_com_android_camera_Mosaic_getFinalMosaicNV21(
         JNIEnv* env, jobject thiz)
 {
+    MosaicSession *s = GetSession(env, thiz);
     int y,x;
     int width;
     int height;
 
-    width = mosaicWidth;
-    height = mosaicHeight;
+    width = s->mosaicWidth;
+    height = s->mosaicHeight;
 
     int imageSize = 1.5*width * height;
 
     // Convert YVU to NV21 format in-place
-    ImageType V = resultYVU+mosaicWidth*mosaicHeight;
-    ImageType U = V+mosaicWidth*mosaicHeight;
-    for(int j=0; j<mosaicHeight/2; j++)
+    ImageType resultYVU = s->resultYVU;
+    s->resultYVU = (ImageType)ImageUtils::IMAGE_TYPE_NOIMAGE;
+    ImageType V = resultYVU+width*height;
+    ImageType U = V+width*height;
+    for(int j=0; j<height/2; j++)
     {
-        for(int i=0; i<mosaicWidth; i+=2)
+        for(int i=0; i<width; i+=2)
         {
-            V[j*mosaicWidth+i] = V[(2*j)*mosaicWidth+i];        // V
-            V[j*mosaicWidth+i+1] = U[(2*j)*mosaicWidth+i];        // U
+            V[j*width+i] = V[(2*j)*width+i];        // V
+            V[j*width+i+1] = U[(2*j)*width+i];        // U
         }
     }
 
@@ -664,6 +755,44 @@ JNIEXPORT jbyteArray JNICALL Java_com_android_camera_Mosaic_getFinalMosaicNV21(
     return bytes;
 }
 
+JNIEXPORT jintArray JNICALL Java_com_android_camera_Mosaic_writeFinalMosaicJpeg(
+        JNIEnv* env, jobject thiz, jint fd, jint quality, jint restartInterval)
+{
+    MosaicSession *s = GetSession(env, thiz);
+    int mosaicWidth = s->mosaicWidth;
+    int mosaicHeight = s->mosaicHeight;
+    double t0 = now_ms();
+
+    // The JPEG is encoded from the YVU mosaic as it is written, so neither
+    // the NV21 image nor the compressed file ever goes through the Java heap.
+    // A file that could not be opened only frees the mosaic.
+    JpegWriter writer;
+    int ret = JpegWriter::JPEG_RET_ERROR;
+    if (fd >= 0)
+        ret = writer.write(fd, s->resultYVU, mosaicWidth, mosaicHeight, quality,
+                restartInterval);
+    ImageUtils::freeImage(s->resultYVU);
+    s->resultYVU = (ImageType)ImageUtils::IMAGE_TYPE_NOIMAGE;
+
+    if (ret != JpegWriter::JPEG_RET_OK)
+    {
+        LOGE("Error in writing the mosaic as JPEG.");
+        return 0;
+    }
+
+    LOGV("JPEG: %d bytes, W = %d, H = %d, %g ms", (int) writer.getBytesWritten(),
+            mosaicWidth, mosaicHeight, now_ms() - t0);
+
+    jint dims[2] = { mosaicWidth, mosaicHeight };
+    jintArray result = env->NewIntArray(2);
+    if (result == 0) {
+        LOGE("Error in creating the image.");
+        return 0;
+    }
+    env->SetIntArrayRegion(result, 0, 2, dims);
+    return result;
+}
+
 #ifdef __cplusplus
 }
 #endif
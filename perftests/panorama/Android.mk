@@ -24,3 +24,259 @@ LOCAL_MODULE := panorama_bench
 LOCAL_MODULE_PATH := $(local_target_dir)
 
 include $(BUILD_EXECUTABLE)
+
+include $(CLEAR_VARS)
+
+LOCAL_C_INCLUDES := \
+    $(LOCAL_PATH)/../../jni/feature_mos/src \
+    $(LOCAL_PATH)/../../jni/feature_stab/src \
+    $(LOCAL_PATH)/../../jni/feature_stab/db_vlvm
+
+LOCAL_CFLAGS := -O3 -DNDEBUG
+
+LOCAL_SRC_FILES := capture_bench.cpp
+
+LOCAL_SHARED_LIBRARIES := libjni_mosaic libGLESv2 libEGL
+
+LOCAL_MODULE_TAGS := tests
+
+LOCAL_LDFLAGS :=  -llog -lGLESv2
+
+LOCAL_MODULE := panorama_capture_bench
+
+LOCAL_MODULE_PATH := $(local_target_dir)
+
+include $(BUILD_EXECUTABLE)
+
+include $(CLEAR_VARS)
+
+LOCAL_C_INCLUDES := \
+    $(LOCAL_PATH)/../../jni/feature_mos/src \
+    $(LOCAL_PATH)/../../jni/feature_stab/src \
+    $(LOCAL_PATH)/../../jni/feature_stab/db_vlvm
+
+LOCAL_CFLAGS := -O3 -DNDEBUG
+
+LOCAL_SRC_FILES := jpeg_bench.cpp
+
+LOCAL_SHARED_LIBRARIES := libjni_mosaic libGLESv2 libEGL
+
+LOCAL_MODULE_TAGS := tests
+
+LOCAL_LDFLAGS :=  -llog -lGLESv2
+
+LOCAL_MODULE := panorama_jpeg_bench
+
+LOCAL_MODULE_PATH := $(local_target_dir)
+
+include $(BUILD_EXECUTABLE)
+
+# Host test checking that aligning frames does not allocate memory. The
+# aligner sources are built in, since the allocation hooks need to see them.
+include $(CLEAR_VARS)
+
+LOCAL_C_INCLUDES := \
+    $(LOCAL_PATH)/../../jni/feature_mos/src \
+    $(LOCAL_PATH)/../../jni/feature_mos/src/mosaic \
+    $(LOCAL_PATH)/../../jni/feature_stab/src \
+    $(LOCAL_PATH)/../../jni/feature_stab/src/dbreg \
+    $(LOCAL_PATH)/../../jni/feature_stab/db_vlvm
+
+LOCAL_CFLAGS := -O3 -DNDEBUG
+
+LOCAL_SRC_FILES := \
+    alloc_test.cpp \
+    ../../jni/feature_mos/src/mosaic/trsMatrix.cpp \
+    ../../jni/feature_mos/src/mosaic/AlignFeatures.cpp \
+    ../../jni/feature_mos/src/mosaic/Blend.cpp \
+    ../../jni/feature_mos/src/mosaic/ColorKernels.cpp \
+    ../../jni/feature_mos/src/mosaic/ColorKernels_x86.cpp \
+    ../../jni/feature_mos/src/mosaic/Delaunay.cpp \
+    ../../jni/feature_mos/src/mosaic/FrameStore.cpp \
+    ../../jni/feature_mos/src/mosaic/ImageUtils.cpp \
+    ../../jni/feature_mos/src/mosaic/Mosaic.cpp \
+    ../../jni/feature_mos/src/mosaic/Pyramid.cpp \
+    ../../jni/feature_mos/src/mosaic/ThreadPool.cpp \
+    ../../jni/feature_stab/db_vlvm/db_feature_detection.cpp \
+    ../../jni/feature_stab/db_vlvm/db_feature_matching.cpp \
+    ../../jni/feature_stab/db_vlvm/db_framestitching.cpp \
+    ../../jni/feature_stab/db_vlvm/db_image_homography.cpp \
+    ../../jni/feature_stab/db_vlvm/db_rob_image_homography.cpp \
+    ../../jni/feature_stab/db_vlvm/db_utilities.cpp \
+    ../../jni/feature_stab/db_vlvm/db_utilities_camera.cpp \
+    ../../jni/feature_stab/db_vlvm/db_utilities_indexing.cpp \
+    ../../jni/feature_stab/db_vlvm/db_utilities_linalg.cpp \
+    ../../jni/feature_stab/db_vlvm/db_utilities_poly.cpp \
+    ../../jni/feature_stab/src/dbreg/dbreg.cpp \
+    ../../jni/feature_stab/src/dbreg/dbstabsmooth.cpp \
+    ../../jni/feature_stab/src/dbreg/vp_motionmodel.c
+
+LOCAL_STATIC_LIBRARIES := liblog
+
+LOCAL_MODULE_TAGS := tests
+
+LOCAL_MODULE := panorama_alloc_test
+
+include $(BUILD_HOST_EXECUTABLE)
+
+# Checks that every colour conversion kernel gives the same bytes as the
+# original code, and prints their throughput. Built for the host and the
+# device, which have different kernels.
+color_kernels_src_files := \
+    color_kernels_test.cpp \
+    ../../jni/feature_mos/src/mosaic/ColorKernels.cpp \
+    ../../jni/feature_mos/src/mosaic/ColorKernels_x86.cpp
+
+include $(CLEAR_VARS)
+
+LOCAL_C_INCLUDES := $(LOCAL_PATH)/../../jni/feature_mos/src/mosaic
+
+LOCAL_CFLAGS := -O3 -DNDEBUG
+
+LOCAL_SRC_FILES := $(color_kernels_src_files)
+
+LOCAL_MODULE_TAGS := tests
+
+LOCAL_MODULE := panorama_color_kernels_test
+
+include $(BUILD_HOST_EXECUTABLE)
+
+include $(CLEAR_VARS)
+
+LOCAL_C_INCLUDES := $(LOCAL_PATH)/../../jni/feature_mos/src/mosaic
+
+LOCAL_CFLAGS := -O3 -DNDEBUG
+
+LOCAL_SRC_FILES := $(color_kernels_src_files)
+
+ifeq ($(TARGET_ARCH), arm)
+ifeq ($(ARCH_ARM_HAVE_NEON), true)
+LOCAL_CFLAGS += -DHAVE_NEON
+LOCAL_SRC_FILES += ../../jni/feature_mos/src/mosaic/ColorKernels_neon.cpp.neon
+endif
+endif
+
+LOCAL_MODULE_TAGS := tests
+
+LOCAL_MODULE := panorama_color_kernels_test
+
+LOCAL_MODULE_PATH := $(local_target_dir)
+
+include $(BUILD_EXECUTABLE)
+
+# Checks that inserting the panorama sites one at a time into the Delaunay
+# triangulation gives the same neighbors as triangulating them all at once,
+# and times both.
+delaunay_src_files := \
+    delaunay_test.cpp \
+    ../../jni/feature_mos/src/mosaic/Delaunay.cpp
+
+include $(CLEAR_VARS)
+
+LOCAL_C_INCLUDES := \
+    $(LOCAL_PATH)/../../jni/feature_mos/src \
+    $(LOCAL_PATH)/../../jni/feature_mos/src/mosaic
+
+LOCAL_CFLAGS := -O3 -DNDEBUG
+
+LOCAL_SRC_FILES := $(delaunay_src_files)
+
+LOCAL_MODULE_TAGS := tests
+
+LOCAL_MODULE := panorama_delaunay_test
+
+include $(BUILD_HOST_EXECUTABLE)
+
+include $(CLEAR_VARS)
+
+LOCAL_C_INCLUDES := \
+    $(LOCAL_PATH)/../../jni/feature_mos/src \
+    $(LOCAL_PATH)/../../jni/feature_mos/src/mosaic
+
+LOCAL_CFLAGS := -O3 -DNDEBUG
+
+LOCAL_SRC_FILES := $(delaunay_src_files)
+
+LOCAL_MODULE_TAGS := tests
+
+LOCAL_MODULE := panorama_delaunay_test
+
+LOCAL_MODULE_PATH := $(local_target_dir)
+
+include $(BUILD_EXECUTABLE)
+
+# Stitches panoramas out of directories of frames, several at a time, and
+# prints how long each took and how much memory it needed. Built for the host
+# to stitch a corpus of captures without a device.
+include $(CLEAR_VARS)
+
+LOCAL_C_INCLUDES := \
+    $(LOCAL_PATH)/../../jni/feature_mos/src \
+    $(LOCAL_PATH)/../../jni/feature_mos/src/mosaic \
+    $(LOCAL_PATH)/../../jni/feature_stab/src \
+    $(LOCAL_PATH)/../../jni/feature_stab/src/dbreg \
+    $(LOCAL_PATH)/../../jni/feature_stab/db_vlvm
+
+LOCAL_CFLAGS := -O3 -DNDEBUG
+
+LOCAL_SRC_FILES := \
+    batch_stitch.cpp \
+    ../../jni/feature_mos/src/mosaic/trsMatrix.cpp \
+    ../../jni/feature_mos/src/mosaic/AlignFeatures.cpp \
+    ../../jni/feature_mos/src/mosaic/Blend.cpp \
+    ../../jni/feature_mos/src/mosaic/BatchStitcher.cpp \
+    ../../jni/feature_mos/src/mosaic/ColorKernels.cpp \
+    ../../jni/feature_mos/src/mosaic/ColorKernels_x86.cpp \
+    ../../jni/feature_mos/src/mosaic/Delaunay.cpp \
+    ../../jni/feature_mos/src/mosaic/FrameStore.cpp \
+    ../../jni/feature_mos/src/mosaic/ImageUtils.cpp \
+    ../../jni/feature_mos/src/mosaic/JpegWriter.cpp \
+    ../../jni/feature_mos/src/mosaic/Mosaic.cpp \
+    ../../jni/feature_mos/src/mosaic/Pyramid.cpp \
+    ../../jni/feature_mos/src/mosaic/ThreadPool.cpp \
+    ../../jni/feature_stab/db_vlvm/db_feature_detection.cpp \
+    ../../jni/feature_stab/db_vlvm/db_feature_matching.cpp \
+    ../../jni/feature_stab/db_vlvm/db_framestitching.cpp \
+    ../../jni/feature_stab/db_vlvm/db_image_homography.cpp \
+    ../../jni/feature_stab/db_vlvm/db_rob_image_homography.cpp \
+    ../../jni/feature_stab/db_vlvm/db_utilities.cpp \
+    ../../jni/feature_stab/db_vlvm/db_utilities_camera.cpp \
+    ../../jni/feature_stab/db_vlvm/db_utilities_indexing.cpp \
+    ../../jni/feature_stab/db_vlvm/db_utilities_linalg.cpp \
+    ../../jni/feature_stab/db_vlvm/db_utilities_poly.cpp \
+    ../../jni/feature_stab/src/dbreg/dbreg.cpp \
+    ../../jni/feature_stab/src/dbreg/dbstabsmooth.cpp \
+    ../../jni/feature_stab/src/dbreg/vp_motionmodel.c
+
+LOCAL_STATIC_LIBRARIES := liblog
+
+LOCAL_LDLIBS := -lpthread
+
+LOCAL_MODULE_TAGS := tests
+
+LOCAL_MODULE := panorama_batch_stitch
+
+include $(BUILD_HOST_EXECUTABLE)
+
+include $(CLEAR_VARS)
+
+LOCAL_C_INCLUDES := \
+    $(LOCAL_PATH)/../../jni/feature_mos/src \
+    $(LOCAL_PATH)/../../jni/feature_stab/src \
+    $(LOCAL_PATH)/../../jni/feature_stab/db_vlvm
+
+LOCAL_CFLAGS := -O3 -DNDEBUG
+
+LOCAL_SRC_FILES := batch_stitch.cpp
+
+LOCAL_SHARED_LIBRARIES := libjni_mosaic libGLESv2 libEGL
+
+LOCAL_MODULE_TAGS := tests
+
+LOCAL_LDFLAGS :=  -llog -lGLESv2
+
+LOCAL_MODULE := panorama_batch_stitch
+
+LOCAL_MODULE_PATH := $(local_target_dir)
+
+include $(BUILD_EXECUTABLE)
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Host test checking that aligning a frame during the capture does not touch
+// the heap once the mosaic is initialized. Allocations are counted by hooking
+// malloc and friends, which the C++ allocation operators also go through.
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+
+#include "mosaic/Mosaic.h"
+#include "mosaic/ImageUtils.h"
+
+#define MAX_FRAMES 200
+
+// Frames aligned before the aligner is in steady state: the reference frame
+// and the first frame aligned to it.
+#define WARMUP_FRAMES 2
+
+extern "C" {
+void *__libc_malloc(size_t size);
+void *__libc_calloc(size_t count, size_t size);
+void *__libc_realloc(void *ptr, size_t size);
+void *__libc_memalign(size_t alignment, size_t size);
+}
+
+static long allocations = 0;
+
+extern "C" void *malloc(size_t size)
+{
+    allocations++;
+    return __libc_malloc(size);
+}
+
+extern "C" void *calloc(size_t count, size_t size)
+{
+    allocations++;
+    return __libc_calloc(count, size);
+}
+
+extern "C" void *realloc(void *ptr, size_t size)
+{
+    allocations++;
+    return __libc_realloc(ptr, size);
+}
+
+extern "C" void *memalign(size_t alignment, size_t size)
+{
+    allocations++;
+    return __libc_memalign(alignment, size);
+}
+
+extern "C" int posix_memalign(void **ptr, size_t alignment, size_t size)
+{
+    allocations++;
+    *ptr = __libc_memalign(alignment, size);
+    return *ptr != NULL ? 0 : 12;  // ENOMEM
+}
+
+ImageType yvuFrames[MAX_FRAMES];
+
+int loadImages(const char* basename, int &width, int &height)
+{
+    char filename[512];
+    int i;
+
+    for (i = 0; i < MAX_FRAMES; i++) {
+        sprintf(filename, "%s_%03d.ppm", basename, i + 1);
+        FILE *file = fopen(filename, "r");
+        if (file == NULL) break;
+        fclose(file);
+        ImageType rgbFrame = ImageUtils::readBinaryPPM(filename, width, height);
+        yvuFrames[i] = ImageUtils::allocateImage(width, height,
+                                ImageUtils::IMAGE_TYPE_NUM_CHANNELS);
+        ImageUtils::rgb2yvu(yvuFrames[i], rgbFrame, width, height);
+        ImageUtils::freeImage(rgbFrame);
+    }
+    return i;
+}
+
+// Aligns all the frames as the capture does and returns the number of steady
+// state frames that allocated memory.
+int runCapture(int totalFrames, int width, int height, bool quarterRes)
+{
+    Mosaic mosaic;
+
+    // The frames are preallocated as the JNI does for the capture
+    mosaic.initialize(Blend::BLEND_TYPE_HORZ, Blend::STRIP_TYPE_WIDE,
+                      width, height, totalFrames, quarterRes, 0);
+
+    int failures = 0;
+    long total = 0;
+    for (int i = 0; i < totalFrames; i++) {
+        long before = allocations;
+        mosaic.addFrame(yvuFrames[i]);
+        long count = allocations - before;
+
+        if (i >= WARMUP_FRAMES) {
+            total += count;
+            if (count > 0) failures++;
+        }
+    }
+
+    printf("%s: %ld allocations in %d steady state frames\n",
+           quarterRes ? "quarter res" : "full res", total,
+           totalFrames - WARMUP_FRAMES);
+    return failures;
+}
+
+int main(int argc, char **argv)
+{
+    if (argc != 2) {
+        printf("Usage: %s input_dir\n", argv[0]);
+        return 0;
+    }
+
+    int width, height;
+    int totalFrames = loadImages(argv[1], width, height);
+    if (totalFrames <= WARMUP_FRAMES) {
+        printf("Image files not found. Make sure %s exists.\n", argv[1]);
+        return 1;
+    }
+
+    int failures = runCapture(totalFrames, width, height, false) +
+            runCapture(totalFrames, width, height, true);
+
+    if (failures > 0) {
+        printf("FAILED: %d frames allocated memory\n", failures);
+        return 1;
+    }
+    printf("PASSED\n");
+    return 0;
+}
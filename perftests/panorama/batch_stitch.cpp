@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Stitches a panorama out of each directory of frames given, several at a
+// time, with the same code as the app, and prints what each one took. Meant
+// for stitching captures pulled off a device again, and for running a corpus
+// of captures before and after a change to the mosaic code.
+
+#include <limits.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <sys/resource.h>
+#include <sys/stat.h>
+#include <sys/time.h>
+#include <unistd.h>
+
+#include "mosaic/BatchStitcher.h"
+
+struct Options
+{
+    const char *outputDir;
+    const char *trsDir;
+    const char *format;
+    bool writeTrs;
+};
+
+double now_ms()
+{
+    struct timeval tv;
+    gettimeofday(&tv, NULL);
+    return 1000.0 * tv.tv_sec + tv.tv_usec / 1000.0;
+}
+
+// Last component of a path, without trailing slashes
+void baseName(const char *path, char *name, size_t size)
+{
+    size_t end = strlen(path);
+    while (end > 1 && path[end - 1] == '/')
+        end--;
+    size_t start = end;
+    while (start > 0 && path[start - 1] != '/')
+        start--;
+    size_t n = end - start < size - 1 ? end - start : size - 1;
+    memcpy(name, path + start, n);
+    name[n] = '\0';
+}
+
+void printStats(void *arg, int index, const StitchJob &job, const StitchStats &stats)
+{
+    char name[NAME_MAX + 1];
+    baseName(job.frameDir, name, sizeof(name));
+
+    if (stats.ret != BatchStitcher::STITCH_RET_OK)
+    {
+        printf("%-20s FAILED\n", name);
+    }
+    else
+    {
+        printf("%-20s %3d/%-3d %5dx%-5d %7.1f %7.1f %7.1f %7.1f %8.1f %8d %4d %8d %8d %8ld\n",
+                name, stats.numFrames, stats.numInputFrames, stats.mosaicWidth,
+                stats.mosaicHeight, stats.loadMs, stats.alignMs, stats.blendMs,
+                stats.writeMs, stats.totalMs, (int) (stats.frameHeapBytes / 1024),
+                stats.mappedFrames, (int) (stats.mosaicBytes / 1024),
+                (int) (stats.outputBytes / 1024), stats.peakRssKb);
+    }
+    fflush(stdout);
+}
+
+void usage(const char *program)
+{
+    printf("Usage: %s [options] <output dir> <frame dir>...\n\n", program);
+    printf("  -j <jobs>     panoramas to stitch at a time (default: number of cores)\n");
+    printf("  -t <threads>  threads blending each panorama (default: 1)\n");
+    printf("  -l            align at a quarter of the size and refine, as the app does\n");
+    printf("  -T <dir>      place the frames with <dir>/<name>.trs instead of aligning\n");
+    printf("  -w            write the transformations to <output dir>/<name>.trs\n");
+    printf("  -f <jpg|ppm>  format of the panoramas (default: jpg)\n");
+    printf("  -q <quality>  JPEG quality (default: 100)\n");
+    printf("  -b <MB>       frames of each panorama to keep on the heap (default: 64)\n");
+    printf("  -s <dir>      directory for the scratch files of the other frames\n");
+    printf("  -n <w>x<h>    size of raw NV21 frames\n");
+}
+
+int main(int argc, char **argv)
+{
+    BatchStitcher stitcher;
+    Options options = { NULL, NULL, "jpg", false };
+    int parallelJobs = (int) sysconf(_SC_NPROCESSORS_ONLN);
+    int rawWidth = 0, rawHeight = 0;
+    size_t budget = 64;
+    const char *scratchDir = NULL;
+
+    int opt;
+    while ((opt = getopt(argc, argv, "j:t:lT:wf:q:b:s:n:")) != -1)
+    {
+        switch (opt)
+        {
+            case 'j':
+                parallelJobs = atoi(optarg);
+                break;
+            case 't':
+                stitcher.setThreadsPerJob(atoi(optarg));
+                break;
+            case 'l':
+                stitcher.setLowResAlignment(true);
+                break;
+            case 'T':
+                options.trsDir = optarg;
+                break;
+            case 'w':
+                options.writeTrs = true;
+                break;
+            case 'f':
+                options.format = optarg;
+                break;
+            case 'q':
+                stitcher.setJpegQuality(atoi(optarg));
+                break;
+            case 'b':
+                budget = atoi(optarg);
+                break;
+            case 's':
+                scratchDir = optarg;
+                break;
+            case 'n':
+                if (sscanf(optarg, "%dx%d", &rawWidth, &rawHeight) != 2)
+                {
+                    usage(argv[0]);
+                    return 1;
+                }
+                break;
+            default:
+                usage(argv[0]);
+                return 1;
+        }
+    }
+    if (argc - optind < 2 || parallelJobs < 1 ||
+            (strcmp(options.format, "jpg") != 0 && strcmp(options.format, "ppm") != 0))
+    {
+        usage(argv[0]);
+        return 1;
+    }
+    stitcher.setFrameStore(budget * 1024 * 1024, scratchDir);
+
+    options.outputDir = argv[optind];
+    mkdir(options.outputDir, 0755);
+
+    int numJobs = argc - optind - 1;
+    StitchJob *jobs = new StitchJob[numJobs];
+    StitchStats *stats = new StitchStats[numJobs];
+    char (*paths)[3][PATH_MAX] = new char[numJobs][3][PATH_MAX];
+
+    for (int i = 0; i < numJobs; i++)
+    {
+        char name[NAME_MAX + 1];
+        StitchJob &job = jobs[i];
+        job.frameDir = argv[optind + 1 + i];
+        job.width = rawWidth;
+        job.height = rawHeight;
+        baseName(job.frameDir, name, sizeof(name));
+
+        snprintf(paths[i][0], PATH_MAX, "%s/%s.%s", options.outputDir, name,
+                options.format);
+        job.outputPath = paths[i][0];
+
+        job.trsPath = NULL;
+        if (options.trsDir != NULL)
+        {
+            snprintf(paths[i][1], PATH_MAX, "%s/%s.trs", options.trsDir, name);
+            job.trsPath = paths[i][1];
+        }
+
+        job.trsOutPath = NULL;
+        if (options.writeTrs)
+        {
+            snprintf(paths[i][2], PATH_MAX, "%s/%s.trs", options.outputDir, name);
+            job.trsOutPath = paths[i][2];
+        }
+    }
+
+    printf("%d panoramas, %d at a time\n\n", numJobs,
+            parallelJobs < numJobs ? parallelJobs : numJobs);
+    printf("%-20s %7s %11s %7s %7s %7s %7s %8s %8s %4s %8s %8s %8s\n", "panorama",
+            "frames", "size", "load", "align", "blend", "write", "total",
+            "heap KB", "map", "mosaic", "file KB", "peak RSS");
+
+    double start = now_ms();
+    int failed = stitcher.run(jobs, numJobs, stats, parallelJobs, printStats, NULL);
+    double elapsed = now_ms() - start;
+
+    double jobMs = 0;
+    for (int i = 0; i < numJobs; i++)
+        jobMs += stats[i].totalMs;
+
+    struct rusage usage;
+    getrusage(RUSAGE_SELF, &usage);
+
+    printf("\n");
+    if (failed == BatchStitcher::STITCH_RET_ERROR)
+        printf("Could not start stitching\n");
+    else
+        printf("%d stitched, %d failed\n", numJobs - failed, failed);
+    printf("Wall time: %.2f s (jobs took %.2f s in all)\n", elapsed / 1000.0,
+            jobMs / 1000.0);
+    printf("Peak resident memory: %ld KB\n", usage.ru_maxrss);
+
+    delete[] jobs;
+    delete[] stats;
+    delete[] paths;
+    return failed == 0 ? 0 : 1;
+}
@@ -14,6 +14,9 @@
  * limitations under the License.
  */
 
+#include <math.h>
+#include <stdlib.h>
+#include <string.h>
 #include <time.h>
 #include <sys/types.h>
 #include <sys/stat.h>
@@ -21,14 +24,28 @@
 
 #include "mosaic/Mosaic.h"
 #include "mosaic/ImageUtils.h"
+#include "mosaic/trsMatrix.h"
 
 #define MAX_FRAMES 200
 #define KERNEL_ITERATIONS 10
 
+// Same factor as the low-res frames of the app (H2L_FACTOR in the JNI)
+#define LR_FACTOR 4
+#define REFINE_RADIUS (LR_FACTOR / 2)
+
+// Alignment modes for the frames of the final mosaic
+enum {
+    ALIGN_FULL,     // Align every frame at full resolution
+    ALIGN_LIFTED,   // Reuse the alignment of the low-res frames
+    ALIGN_REFINED   // Reuse it and refine it with a local search
+};
+
 const int blendingType = Blend::BLEND_TYPE_HORZ;
 const int stripType = Blend::STRIP_TYPE_WIDE;
 
 ImageType yvuFrames[MAX_FRAMES];
+ImageType lowResFrames[MAX_FRAMES];
+double lowResTRS[MAX_FRAMES][3][3];
 
 int loadImages(const char* basename, int &width, int &height)
 {
@@ -48,22 +65,172 @@ int loadImages(const char* basename, int &width, int &height)
     return i;
 }
 
+// Subsamples the planar YVU frames as the app does for its low-res frames
+void makeLowResImages(int totalFrames, int width, int height)
+{
+    int lw = width / LR_FACTOR;
+    int lh = height / LR_FACTOR;
+
+    for (int i = 0; i < totalFrames; i++) {
+        lowResFrames[i] = ImageUtils::allocateImage(lw, lh,
+                                ImageUtils::IMAGE_TYPE_NUM_CHANNELS);
+        for (int c = 0; c < ImageUtils::IMAGE_TYPE_NUM_CHANNELS; c++) {
+            ImageType in = yvuFrames[i] + c * width * height;
+            ImageType out = lowResFrames[i] + c * lw * lh;
+            for (int y = 0; y < lh; y++) {
+                for (int x = 0; x < lw; x++) {
+                    *out++ = in[y * LR_FACTOR * width + x * LR_FACTOR];
+                }
+            }
+        }
+    }
+}
+
+// Aligns the low-res frames as the app does during capture. Returns the
+// number of accepted frames and their transformations in lowResTRS.
+int alignLowResImages(int totalFrames, int width, int height)
+{
+    Mosaic mosaic;
+    mosaic.initialize(blendingType, stripType, width / LR_FACTOR,
+                      height / LR_FACTOR, -1, false, 0);
+
+    for (int i = 0; i < totalFrames; i++) {
+        mosaic.addFrame(lowResFrames[i]);
+    }
+
+    int frames = mosaic.getNumFrames();
+    for (int i = 0; i < frames; i++) {
+        mosaic.getFrameTRS(i, lowResTRS[i]);
+    }
+    return frames;
+}
+
+// Returns the mean absolute luma difference between consecutive frames where
+// they overlap under their transformations, which is how far off the seams
+// of the mosaic are independently of where the mosaic ends up.
+double registrationError(Mosaic &mosaic, int width, int height)
+{
+    double sum = 0;
+    long count = 0;
+
+    for (int k = 1; k < mosaic.getNumFrames(); k++) {
+        double prev[3][3], curr[3][3], inv[3][3], rel[3][3];
+        mosaic.getFrameTRS(k - 1, prev);
+        mosaic.getFrameTRS(k, curr);
+        inv33d(prev, inv);
+        mult33d(rel, inv, curr);
+        normProjMat33d(rel);
+
+        ImageType prevY = yvuFrames[k - 1];
+        ImageType currY = yvuFrames[k];
+        for (int y = 0; y < height; y += 2) {
+            for (int x = 0; x < width; x += 2) {
+                double z = ProjZ(rel, x, y, 1.0);
+                double px = ProjX(rel, x, y, z, 1.0);
+                double py = ProjY(rel, x, y, z, 1.0);
+                if (px < 0 || py < 0 || px >= width - 1 || py >= height - 1)
+                    continue;
+                int ix = (int) px, iy = (int) py;
+                double fx = px - ix, fy = py - iy;
+                ImageType p = prevY + iy * width + ix;
+                double v = (1 - fx) * (1 - fy) * p[0] + fx * (1 - fy) * p[1] +
+                        (1 - fx) * fy * p[width] + fx * fy * p[width + 1];
+                sum += fabs(v - currY[y * width + x]);
+                count++;
+            }
+        }
+    }
+    return count > 0 ? sum / count : 0;
+}
+
+// Compares the RGB image to the golden one over their common area. Returns
+// the mean absolute difference and the percentage of pixels off by more
+// than 32 in any channel.
+void compareImages(ImageType imageRGB, int width, int height,
+                   const char *goldenFilename)
+{
+    int goldenWidth, goldenHeight;
+    ImageType golden = ImageUtils::readBinaryPPM(goldenFilename,
+                                                 goldenWidth, goldenHeight);
+    if (golden == NULL) {
+        printf("Golden image %s not found\n", goldenFilename);
+        return;
+    }
+
+    int w = width < goldenWidth ? width : goldenWidth;
+    int h = height < goldenHeight ? height : goldenHeight;
+    const int channels = ImageUtils::IMAGE_TYPE_NUM_CHANNELS;
+    double sum = 0;
+    int different = 0;
+
+    for (int y = 0; y < h; y++) {
+        for (int x = 0; x < w; x++) {
+            ImageType p = imageRGB + (y * width + x) * channels;
+            ImageType q = golden + (y * goldenWidth + x) * channels;
+            int maxDiff = 0;
+            for (int c = 0; c < channels; c++) {
+                int diff = abs((int) p[c] - (int) q[c]);
+                sum += diff;
+                if (diff > maxDiff) maxDiff = diff;
+            }
+            if (maxDiff > 32) different++;
+        }
+    }
+
+    printf("Compared to %s (%dx%d): mean difference %.2f, "
+           "%.2f%% pixels differ by more than 32\n",
+           goldenFilename, goldenWidth, goldenHeight,
+           sum / ((double) w * h * channels), 100.0 * different / (w * h));
+    ImageUtils::freeImage(golden);
+}
+
 int main(int argc, char **argv)
 {
-    struct timespec t1, t2, t3;
+    struct timespec t0, t1, t2, t3;
 
     int width, height;
     float totalElapsedTime = 0;
+    float totalAlignTime = 0;
+    float totalStitchTime = 0;
 
     const char *basename;
     const char *filename;
+    const char *goldenFilename = NULL;
+    int alignMode = ALIGN_FULL;
+    int numThreads = 1;
+
+    int opt;
+    while ((opt = getopt(argc, argv, "t:")) != -1) {
+        if (opt == 't') {
+            numThreads = atoi(optarg);
+        } else {
+            argc = 0;
+        }
+    }
+    argc -= optind;
+    argv += optind;
 
-    if (argc != 3) {
-        printf("Usage: %s input_dir output_filename\n", argv[0]);
+    if (argc < 2 || argc > 4) {
+        printf("Usage: panorama_bench [-t threads] input_dir output_filename "
+               "[full|lifted|refined] [golden_filename]\n");
         return 0;
     } else {
-        basename = argv[1];
-        filename = argv[2];
+        basename = argv[0];
+        filename = argv[1];
+    }
+
+    if (argc > 2) {
+        if (strcmp(argv[2], "lifted") == 0) {
+            alignMode = ALIGN_LIFTED;
+        } else if (strcmp(argv[2], "refined") == 0) {
+            alignMode = ALIGN_REFINED;
+        } else if (strcmp(argv[2], "full") != 0) {
+            printf("Unknown alignment mode %s\n", argv[2]);
+            return 1;
+        }
+    }
+    if (argc > 3) {
+        goldenFilename = argv[3];
     }
 
     // Load the images outside the computational kernel
@@ -77,16 +244,42 @@ int main(int argc, char **argv)
 
     printf("%d frames loaded\n", totalFrames);
 
+    // The low-res alignment is done during capture in the app, so it is
+    // timed separately from the kernel.
+    int lowResFrames = 0;
+    if (alignMode != ALIGN_FULL) {
+        makeLowResImages(totalFrames, width, height);
+
+        clock_gettime(CLOCK_MONOTONIC, &t0);
+        lowResFrames = alignLowResImages(totalFrames, width, height);
+        clock_gettime(CLOCK_MONOTONIC, &t1);
+
+        printf("%d low-res frames aligned: %.2f seconds\n", lowResFrames,
+               (t1.tv_sec - t0.tv_sec) + (t1.tv_nsec - t0.tv_nsec)/1e9);
+    }
 
     // Interesting stuff is here
     for (int iteration = 0; iteration < KERNEL_ITERATIONS; iteration++)  {
         Mosaic mosaic;
 
         mosaic.initialize(blendingType, stripType, width, height, -1, false, 0);
+        if (mosaic.setNumThreads(numThreads) != Mosaic::MOSAIC_RET_OK) {
+            printf("Could not start %d threads\n", numThreads);
+            return 1;
+        }
 
         clock_gettime(CLOCK_MONOTONIC, &t1);
-        for (int i = 0; i < totalFrames; i++) {
-            mosaic.addFrame(yvuFrames[i]);
+        if (alignMode == ALIGN_FULL) {
+            for (int i = 0; i < totalFrames; i++) {
+                mosaic.addFrame(yvuFrames[i]);
+            }
+        } else {
+            int radius = alignMode == ALIGN_REFINED ? REFINE_RADIUS : 0;
+            double trs[3][3];
+            for (int i = 0; i < lowResFrames; i++) {
+                scale33d(lowResTRS[i], LR_FACTOR, trs);
+                mosaic.addFrame(yvuFrames[i], trs, radius);
+            }
         }
         clock_gettime(CLOCK_MONOTONIC, &t2);
 
@@ -111,6 +304,8 @@ int main(int argc, char **argv)
             (t3.tv_sec - t2.tv_sec) + (t3.tv_nsec - t2.tv_nsec)/1e9;
 
         totalElapsedTime += elapsedTime;
+        totalAlignTime += addImageTime;
+        totalStitchTime += stitchImageTime;
 
         printf("Iteration %d: %dx%d moasic created: "
                "%.2f seconds (%.2f + %.2f)\n",
@@ -123,9 +318,17 @@ int main(int argc, char **argv)
                                 mosaicHeight);
             ImageUtils::writeBinaryPPM(imageRGB, filename, mosaicWidth,
                                        mosaicHeight);
+            printf("Registration error %.2f\n",
+                   registrationError(mosaic, width, height));
+            if (goldenFilename != NULL) {
+                compareImages(imageRGB, mosaicWidth, mosaicHeight,
+                              goldenFilename);
+            }
         }
+        ImageUtils::freeImage(imageRGB);
     }
-    printf("Total elapsed time: %.2f seconds\n", totalElapsedTime);
+    printf("Total elapsed time: %.2f seconds (align %.2f, stitch %.2f)\n",
+           totalElapsedTime, totalAlignTime, totalStitchTime);
 
     return 0;
 }
@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Replays a panorama capture from the benchmark input and reports the peak
+// resident memory, to compare how the high-res frames are kept, and how long
+// the high-res mosaic takes once the capture stops, to compare blending the
+// frames at the end with blending them as they come in.
+
+#include <stdlib.h>
+#include <string.h>
+#include <sys/resource.h>
+#include <sys/stat.h>
+#include <sys/time.h>
+#include <unistd.h>
+
+#include "mosaic/FrameStore.h"
+#include "mosaic/Mosaic.h"
+#include "mosaic/ImageUtils.h"
+#include "mosaic/trsMatrix.h"
+
+#define MAX_FRAMES 200
+#define INPUT_FRAMES 200
+
+// Same as the app (H2L_FACTOR and HR_REFINE_RADIUS in the JNI)
+#define LR_FACTOR 4
+#define REFINE_RADIUS (LR_FACTOR / 2)
+
+// Frames are replayed at the rate of the camera preview
+#define FRAME_INTERVAL_MS 33
+
+const int blendingType = Blend::BLEND_TYPE_HORZ;
+const int stripType = Blend::STRIP_TYPE_WIDE;
+
+ImageType lowResFrames[MAX_FRAMES];
+ImageType highResFrames[MAX_FRAMES];
+
+double now_ms()
+{
+    struct timeval tv;
+    gettimeofday(&tv, NULL);
+    return 1000.0 * tv.tv_sec + tv.tv_usec / 1000.0;
+}
+
+// Peak resident set size of the process in KB
+long peakRss()
+{
+    struct rusage usage;
+    getrusage(RUSAGE_SELF, &usage);
+    return usage.ru_maxrss;
+}
+
+int countImages(const char *basename)
+{
+    char filename[512];
+    struct stat filestat;
+    int i;
+
+    for (i = 0; i < INPUT_FRAMES; i++) {
+        sprintf(filename, "%s_%03d.ppm", basename, i + 1);
+        if (stat(filename, &filestat) != 0) break;
+    }
+    return i;
+}
+
+// Reads an input frame as planar YVU into the given buffer, as the camera
+// would deliver it during the capture.
+void readImage(const char *basename, int index, ImageType yvu)
+{
+    char filename[512];
+    int width, height;
+
+    sprintf(filename, "%s_%03d.ppm", basename, index + 1);
+    ImageType rgbFrame = ImageUtils::readBinaryPPM(filename, width, height);
+    ImageUtils::rgb2yvu(yvu, rgbFrame, width, height);
+    ImageUtils::freeImage(rgbFrame);
+}
+
+void subsample(ImageType in, ImageType out, int width, int height)
+{
+    int lw = width / LR_FACTOR;
+    int lh = height / LR_FACTOR;
+
+    for (int c = 0; c < ImageUtils::IMAGE_TYPE_NUM_CHANNELS; c++) {
+        ImageType plane = in + c * width * height;
+        for (int y = 0; y < lh; y++) {
+            for (int x = 0; x < lw; x++) {
+                *out++ = plane[y * LR_FACTOR * width + x * LR_FACTOR];
+            }
+        }
+    }
+}
+
+int main(int argc, char **argv)
+{
+    if (argc < 4 || argc > 7) {
+        printf("Usage: %s input_dir frames legacy|store|stream [budget_mb "
+               "[scratch_filename [output_filename]]]\n", argv[0]);
+        return 0;
+    }
+
+    const char *basename = argv[1];
+    int frames = atoi(argv[2]);
+    const char *mode = argv[3];
+    bool legacy = strcmp(mode, "legacy") == 0;
+    bool stream = strcmp(mode, "stream") == 0;
+    if (!legacy && !stream && strcmp(mode, "store") != 0) {
+        printf("Unknown mode %s\n", mode);
+        return 1;
+    }
+    size_t budget = (argc > 4 ? atoi(argv[4]) : 64) * 1024 * 1024;
+    const char *scratchPath = argc > 5 ? argv[5] : NULL;
+    const char *filename = argc > 6 ? argv[6] : NULL;
+
+    if (frames <= 0 || frames > MAX_FRAMES) {
+        printf("Between 1 and %d frames can be replayed\n", MAX_FRAMES);
+        return 1;
+    }
+
+    int inputFrames = countImages(basename);
+    if (inputFrames == 0) {
+        printf("Image files not found. Make sure %s exists.\n", basename);
+        return 1;
+    }
+
+    // Size of the frames
+    char firstFilename[512];
+    int width, height;
+    sprintf(firstFilename, "%s_%03d.ppm", basename, 1);
+    ImageUtils::freeImage(ImageUtils::readBinaryPPM(firstFilename, width, height));
+    int lw = width / LR_FACTOR;
+    int lh = height / LR_FACTOR;
+
+    // The JNI keeps one buffer for the incoming frame and the low-res frames
+    ImageType frame = ImageUtils::allocateImage(width, height,
+            ImageUtils::IMAGE_TYPE_NUM_CHANNELS);
+    for (int i = 0; i < frames; i++) {
+        lowResFrames[i] = ImageUtils::allocateImage(lw, lh,
+                ImageUtils::IMAGE_TYPE_NUM_CHANNELS);
+    }
+
+    FrameStore store;
+    if (!legacy) {
+        store.initialize(width, height, frames, budget, scratchPath);
+    }
+
+    long startRss = peakRss();
+
+    // Capture: the input is spread over the replayed frames, so longer
+    // captures are slower pans over the same scene.
+    Mosaic lowRes;
+    lowRes.initialize(blendingType, stripType, lw, lh, frames, false, 0);
+
+    // When streaming, the high-res frames are blended during the capture
+    Mosaic highRes;
+    highRes.initialize(blendingType, stripType, width, height, frames, false, 0);
+    if (stream && highRes.startStreaming() != Mosaic::MOSAIC_RET_OK) {
+        printf("Could not start streaming\n");
+        return 1;
+    }
+
+    int captured = 0;
+    double captureStart = now_ms();
+    for (int i = 0; i < frames; i++) {
+        double wait = captureStart + i * FRAME_INTERVAL_MS - now_ms();
+        if (wait > 0) {
+            usleep((useconds_t) (wait * 1000));
+        }
+
+        readImage(basename, i * inputFrames / frames, frame);
+        subsample(frame, lowResFrames[captured], width, height);
+
+        int ret = lowRes.addFrame(lowResFrames[captured]);
+        if (ret != Mosaic::MOSAIC_RET_OK && ret != Mosaic::MOSAIC_RET_FEW_INLIERS)
+            continue;
+
+        if (legacy) {
+            highResFrames[captured] = ImageUtils::allocateImage(width, height,
+                    ImageUtils::IMAGE_TYPE_NUM_CHANNELS);
+            memcpy(highResFrames[captured], frame,
+                   width * height * ImageUtils::IMAGE_TYPE_NUM_CHANNELS);
+        } else {
+            store.putYVU24(captured, frame);
+        }
+
+        if (stream) {
+            double lrtrs[3][3], trs[3][3];
+            lowRes.getFrameTRS(captured, lrtrs);
+            scale33d(lrtrs, LR_FACTOR, trs);
+            highRes.addFrame(&store, captured, trs, REFINE_RADIUS);
+        }
+        captured++;
+    }
+
+    double captureEnd = now_ms();
+    long captureRss = peakRss();
+
+    // Create the high-res mosaic from the low-res alignment
+    if (!stream) {
+        for (int i = 0; i < captured; i++) {
+            double lrtrs[3][3], trs[3][3];
+            lowRes.getFrameTRS(i, lrtrs);
+            scale33d(lrtrs, LR_FACTOR, trs);
+            if (legacy) {
+                highRes.addFrame(highResFrames[i], trs, REFINE_RADIUS);
+            } else {
+                highRes.addFrame(&store, i, trs, REFINE_RADIUS);
+            }
+        }
+    }
+
+    float progress = 0.0;
+    bool cancelComputation = false;
+    int ret = highRes.createMosaic(progress, cancelComputation);
+
+    int mosaicWidth, mosaicHeight;
+    ImageType resultYVU = highRes.getMosaic(mosaicWidth, mosaicHeight);
+
+    double mosaicEnd = now_ms();
+    long finalRss = peakRss();
+
+    printf("%d of %d frames captured (%s), %dx%d mosaic created%s\n",
+           captured, frames, mode, mosaicWidth, mosaicHeight,
+           ret == Mosaic::MOSAIC_RET_OK ? "" : " with errors");
+    printf("Capture: %.0f ms, mosaic ready %.0f ms after the capture\n",
+           captureEnd - captureStart, mosaicEnd - captureEnd);
+    if (!legacy) {
+        printf("Frame store: %d KB per frame, %d KB peak on the heap, "
+               "%d frames mapped\n", store.getFrameSize() / 1024,
+               (int) (store.getPeakHeapBytes() / 1024),
+               store.getNumMappedFrames());
+    }
+    printf("Peak RSS: %ld KB at start, %ld KB after capture, "
+           "%ld KB after blending\n", startRss, captureRss, finalRss);
+
+    if (filename != NULL && ret == Mosaic::MOSAIC_RET_OK) {
+        ImageType imageRGB = ImageUtils::allocateImage(
+            mosaicWidth, mosaicHeight, ImageUtils::IMAGE_TYPE_NUM_CHANNELS);
+        ImageUtils::yvu2rgb(imageRGB, resultYVU, mosaicWidth, mosaicHeight);
+        ImageUtils::writeBinaryPPM(imageRGB, filename, mosaicWidth,
+                                   mosaicHeight);
+        ImageUtils::freeImage(imageRGB);
+    }
+
+    return 0;
+}
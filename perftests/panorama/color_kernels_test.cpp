@@ -0,0 +1,588 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Checks that every table of colour conversion kernels the CPU supports gives
+// the same bytes as the code it replaced, then prints the throughput of each
+// kernel. The per-pixel conversions are checked on every possible input.
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+
+#include "ColorKernels.h"
+
+#define MAX_TABLES 4
+
+// Rows of the exhaustive images: 4096 x 256 pixels cover all the values of
+// the two low channels for one value of the first.
+#define EXHAUSTIVE_WIDTH 4096
+#define EXHAUSTIVE_HEIGHT 256
+
+#define BENCH_WIDTH 1280
+#define BENCH_HEIGHT 720
+#define BENCH_SECONDS 0.2
+
+// The conversions as they were before the kernels, copied unchanged.
+
+static void refYUV420toYVU24(ImageType yvu24, ImageType yuv420sp, int width, int height)
+{
+    int frameSize = width * height;
+
+    ImageType oyp = yvu24;
+    ImageType ovp = yvu24+frameSize;
+    ImageType oup = yvu24+frameSize+frameSize;
+
+    for (int j = 0, yp = 0; j < height; j++)
+    {
+        unsigned char u = 0, v = 0;
+        int uvp = frameSize + (j >> 1) * width;
+        for (int i = 0; i < width; i++, yp++)
+        {
+            *oyp++ = yuv420sp[yp];
+
+            if ((i & 1) == 0)
+            {
+                v = yuv420sp[uvp++];
+                u = yuv420sp[uvp++];
+            }
+
+            *ovp++ = v;
+            *oup++ = u;
+        }
+    }
+}
+
+static void refConvertYVUAiToPlanarYVU(unsigned char *planar, unsigned char *in, int width,
+        int height)
+{
+    int planeSize = width * height;
+    unsigned char* Yptr = planar;
+    unsigned char* Vptr = planar + planeSize;
+    unsigned char* Uptr = Vptr + planeSize;
+
+    for (int i = 0; i < planeSize; i++)
+    {
+        *Yptr++ = *in++;
+        *Vptr++ = *in++;
+        *Uptr++ = *in++;
+        in++;   // Alpha
+    }
+}
+
+static void refDecodeYUV444SP(unsigned char* rgb, unsigned char* yuv420sp, int width,
+        int height)
+{
+    int frameSize = width * height;
+
+    for (int j = 0, yp = 0; j < height; j++)
+    {
+        int vp = frameSize + j * width, u = 0, v = 0;
+        int up = vp + frameSize;
+
+        for (int i = 0; i < width; i++, yp++, vp++, up++)
+        {
+            int y = (0xff & ((int) yuv420sp[yp])) - 16;
+            if (y < 0) y = 0;
+
+            v = (0xff & yuv420sp[vp]) - 128;
+            u = (0xff & yuv420sp[up]) - 128;
+
+            int y1192 = 1192 * y;
+            int r = (y1192 + 1634 * v);
+            int g = (y1192 - 833 * v - 400 * u);
+            int b = (y1192 + 2066 * u);
+
+            if (r < 0) r = 0; else if (r > 262143) r = 262143;
+            if (g < 0) g = 0; else if (g > 262143) g = 262143;
+            if (b < 0) b = 0; else if (b > 262143) b = 262143;
+
+            int p = j*width*3+i*3;
+            rgb[p+0] = (r<<6 & 0xFF0000)>>16;
+            rgb[p+1] = (g>>2 & 0xFF00)>>8;
+            rgb[p+2] =  b>>10 & 0xFF;
+        }
+    }
+}
+
+// GenerateQuarterResImagePlanar with the factor as an argument.
+static void refGenerateQuarterResImagePlanar(ImageType out, ImageType im, int input_w,
+        int input_h, int factor)
+{
+    ImageType imp;
+    ImageType outp;
+
+    for (int j = 0; j < input_h; j += factor)
+    {
+        imp = im + j * input_w;
+        outp = out + (j / factor) * (input_w / factor);
+
+        for (int i = 0; i < input_w; i += factor)
+        {
+            *outp++ = *(imp + i);
+        }
+    }
+
+    for (int j = input_h; j < 2 * input_h; j += factor)
+    {
+        imp = im + j * input_w;
+        outp = out + (j / factor) * (input_w / factor);
+
+        for (int i = 0; i < input_w; i += factor)
+        {
+            *outp++ = *(imp + i);
+        }
+    }
+
+    for (int j = 2 * input_h; j < 3 * input_h; j += factor)
+    {
+        imp = im + j * input_w;
+        outp = out + (j / factor) * (input_w / factor);
+
+        for (int i = 0; i < input_w; i += factor)
+        {
+            *outp++ = *(imp + i);
+        }
+    }
+}
+
+static const int REDY = ImageUtils::REDY;
+static const int REDV = ImageUtils::REDV;
+static const int REDU = ImageUtils::REDU;
+static const int GREENY = ImageUtils::GREENY;
+static const int GREENV = ImageUtils::GREENV;
+static const int GREENU = ImageUtils::GREENU;
+static const int BLUEY = ImageUtils::BLUEY;
+static const int BLUEV = ImageUtils::BLUEV;
+static const int BLUEU = ImageUtils::BLUEU;
+
+static void refRgb2yvu(ImageType out, ImageType in, int width, int height)
+{
+  int r,g,b;
+  ImageType yimg = out;
+  ImageType vimg = yimg + width*height;
+  ImageType uimg = vimg + width*height;
+  ImageType image = in;
+
+  for (int ii = 0; ii < height; ii++) {
+    for (int ij = 0; ij < width; ij++) {
+      r = (*image++);
+      g = (*image++);
+      b = (*image++);
+
+      if (r < 0) r = 0;
+      if (r > 255) r = 255;
+      if (g < 0) g = 0;
+      if (g > 255) g = 255;
+      if (b < 0) b = 0;
+      if (b > 255) b = 255;
+
+      int val = (int) (REDY * r + GREENY * g + BLUEY * b) / 1000 + 16;
+      if (val < 0) val = 0;
+      if (val > 255) val = 255;
+      *(yimg) = val;
+
+      val = (int) (REDV * r - GREENV * g - BLUEV * b) / 1000 + 128;
+      if (val < 0) val = 0;
+      if (val > 255) val = 255;
+      *(vimg) = val;
+
+      val = (int) (-REDU * r - GREENU * g + BLUEU * b) / 1000 + 128;
+      if (val < 0) val = 0;
+      if (val > 255) val = 255;
+      *(uimg) = val;
+
+      yimg++;
+      uimg++;
+      vimg++;
+    }
+  }
+}
+
+static void refYvu2rgb(ImageType out, ImageType in, int width, int height, bool bgr)
+{
+  int y,v,u, r, g, b;
+  unsigned char *yimg = in;
+  unsigned char *vimg = yimg + width*height;
+  unsigned char *uimg = vimg + width*height;
+  unsigned char *image = out;
+
+  for (int i = 0; i < height; i++) {
+    for (int j = 0; j < width; j++) {
+
+      y = (*yimg);
+      v = (*vimg);
+      u = (*uimg);
+
+      if (y < 0) y = 0;
+      if (y > 255) y = 255;
+      if (u < 0) u = 0;
+      if (u > 255) u = 255;
+      if (v < 0) v = 0;
+      if (v > 255) v = 255;
+
+      b = (int) ( 1.164*(y - 16) + 2.018*(u-128));
+      g = (int) ( 1.164*(y - 16) - 0.813*(v-128) - 0.391*(u-128));
+      r = (int) ( 1.164*(y - 16) + 1.596*(v-128));
+
+      if (r < 0) r = 0;
+      if (r > 255) r = 255;
+      if (g < 0) g = 0;
+      if (g > 255) g = 255;
+      if (b < 0) b = 0;
+      if (b > 255) b = 255;
+
+      *(image++) = bgr ? b : r;
+      *(image++) = g;
+      *(image++) = bgr ? r : b;
+
+      yimg++;
+      uimg++;
+      vimg++;
+
+    }
+  }
+}
+
+static void refYvu2rgb(ImageType out, ImageType in, int width, int height)
+{
+    refYvu2rgb(out, in, width, height, false);
+}
+
+static void refYvu2bgr(ImageType out, ImageType in, int width, int height)
+{
+    refYvu2rgb(out, in, width, height, true);
+}
+
+static void refRgb2gray(ImageType out, ImageType in, int width, int height)
+{
+  int r,g,b;
+  ImageType image = in;
+  ImageType outCopy = out;
+
+  for (int ii = 0; ii < height; ii++) {
+    for (int ij = 0; ij < width; ij++) {
+      r = (*image++);
+      g = (*image++);
+      b = (*image++);
+
+      if (r < 0) r = 0;
+      if (r > 255) r = 255;
+      if (g < 0) g = 0;
+      if (g > 255) g = 255;
+      if (b < 0) b = 0;
+      if (b > 255) b = 255;
+
+      (*outCopy) = ( 0.3*r + 0.59*g + 0.11*b);
+
+      outCopy++;
+    }
+  }
+}
+
+// Sizes of the input and output buffers of each kernel, in bytes, for a
+// width x height image.
+static int yuv420spSize(int width, int height)
+{
+    // The odd last column reads the first byte of the next chroma row.
+    return width * height + ((height + 1) / 2) * width + 1;
+}
+
+static int planarSize(int width, int height)
+{
+    return 3 * width * height;
+}
+
+static int yvuaSize(int width, int height)
+{
+    return 4 * width * height;
+}
+
+static int graySize(int width, int height)
+{
+    return width * height;
+}
+
+typedef int (*SizeFunc)(int width, int height);
+
+// Layout of the input of the kernels converting every pixel on its own, which
+// are checked on all inputs.
+enum PixelLayout
+{
+    NOT_PER_PIXEL,
+    PLANAR,
+    INTERLEAVED
+};
+
+struct KernelInfo
+{
+    const char *name;
+    ColorKernels::ConvertFunc ColorKernels::*kernel;
+    ColorKernels::ConvertFunc reference;
+    SizeFunc inSize;
+    SizeFunc outSize;
+    PixelLayout layout;
+};
+
+static const KernelInfo kernels[] = {
+    { "yuv420spToYvu444", &ColorKernels::yuv420spToYvu444, refYUV420toYVU24,
+            yuv420spSize, planarSize, NOT_PER_PIXEL },
+    { "yvuaToYvu444", &ColorKernels::yvuaToYvu444, refConvertYVUAiToPlanarYVU,
+            yvuaSize, planarSize, NOT_PER_PIXEL },
+    { "yvu444ToRgbFixed", &ColorKernels::yvu444ToRgbFixed, refDecodeYUV444SP,
+            planarSize, planarSize, PLANAR },
+    { "rgbToYvu444", &ColorKernels::rgbToYvu444, refRgb2yvu,
+            planarSize, planarSize, INTERLEAVED },
+    { "yvu444ToRgb", &ColorKernels::yvu444ToRgb, refYvu2rgb,
+            planarSize, planarSize, PLANAR },
+    { "yvu444ToBgr", &ColorKernels::yvu444ToBgr, refYvu2bgr,
+            planarSize, planarSize, PLANAR },
+    { "rgbToGray", &ColorKernels::rgbToGray, refRgb2gray,
+            planarSize, graySize, INTERLEAVED },
+};
+
+#define NUM_KERNELS (int) (sizeof(kernels) / sizeof(kernels[0]))
+
+static const int testSizes[][2] = {
+    { 1, 1 }, { 2, 2 }, { 3, 5 }, { 7, 3 }, { 16, 1 }, { 17, 9 }, { 31, 4 },
+    { 33, 7 }, { 64, 2 }, { 65, 33 }, { 127, 6 }, { 130, 31 }, { 257, 18 },
+    { 160, 90 }, { 641, 11 }, { 640, 360 },
+};
+
+#define NUM_SIZES (int) (sizeof(testSizes) / sizeof(testSizes[0]))
+
+static void fillRandom(ImageType image, int size)
+{
+    for (int i = 0; i < size; i++)
+    {
+        image[i] = rand() & 0xff;
+    }
+}
+
+static int compare(const char *table, const char *kernel, ImageType expected,
+        ImageType actual, int size, int width, int height)
+{
+    for (int i = 0; i < size; i++)
+    {
+        if (expected[i] != actual[i])
+        {
+            printf("FAILED: %s %s %dx%d: byte %d is %d instead of %d\n", table, kernel,
+                    width, height, i, actual[i], expected[i]);
+            return 1;
+        }
+    }
+    return 0;
+}
+
+// Converts an image holding every value of the three input channels, one
+// value of the first channel per pass.
+static int testExhaustive(const ColorKernels *table, const KernelInfo &info)
+{
+    int width = EXHAUSTIVE_WIDTH;
+    int height = EXHAUSTIVE_HEIGHT;
+    int planeSize = width * height;
+    ImageType in = new unsigned char[info.inSize(width, height)];
+    ImageType expected = new unsigned char[info.outSize(width, height)];
+    ImageType actual = new unsigned char[info.outSize(width, height)];
+    int failures = 0;
+
+    for (int c0 = 0; c0 < 256 && failures == 0; c0++)
+    {
+        for (int p = 0; p < planeSize; p++)
+        {
+            unsigned char c1 = p >> 8;
+            unsigned char c2 = p & 0xff;
+            if (info.layout == PLANAR)
+            {
+                in[p] = c0;
+                in[planeSize + p] = c1;
+                in[2 * planeSize + p] = c2;
+            }
+            else
+            {
+                in[3 * p] = c0;
+                in[3 * p + 1] = c1;
+                in[3 * p + 2] = c2;
+            }
+        }
+
+        info.reference(expected, in, width, height);
+        (table->*info.kernel)(actual, in, width, height);
+        failures += compare(table->name, info.name, expected, actual,
+                info.outSize(width, height), width, height);
+    }
+
+    delete[] in;
+    delete[] expected;
+    delete[] actual;
+    return failures;
+}
+
+static int testRandom(const ColorKernels *table, const KernelInfo &info, int width,
+        int height)
+{
+    int inSize = info.inSize(width, height);
+    int outSize = info.outSize(width, height);
+    ImageType in = new unsigned char[inSize];
+    ImageType expected = new unsigned char[outSize];
+    ImageType actual = new unsigned char[outSize];
+
+    fillRandom(in, inSize);
+    memset(expected, 0, outSize);
+    memset(actual, 0, outSize);
+
+    info.reference(expected, in, width, height);
+    (table->*info.kernel)(actual, in, width, height);
+    int failures = compare(table->name, info.name, expected, actual, outSize,
+            width, height);
+
+    delete[] in;
+    delete[] expected;
+    delete[] actual;
+    return failures;
+}
+
+static int testSubsample(const ColorKernels *table, int width, int height, int factor)
+{
+    int size = planarSize(width, height);
+    ImageType in = new unsigned char[size];
+    ImageType expected = new unsigned char[size];
+    ImageType actual = new unsigned char[size];
+    char name[32];
+
+    fillRandom(in, size);
+    memset(expected, 0, size);
+    memset(actual, 0, size);
+
+    refGenerateQuarterResImagePlanar(expected, in, width, height, factor);
+    table->subsampleYvu444(actual, in, width, height, factor);
+    snprintf(name, sizeof(name), "subsampleYvu444/%d", factor);
+    int failures = compare(table->name, name, expected, actual, size, width, height);
+
+    delete[] in;
+    delete[] expected;
+    delete[] actual;
+    return failures;
+}
+
+static double now()
+{
+    struct timespec t;
+    clock_gettime(CLOCK_MONOTONIC, &t);
+    return t.tv_sec + t.tv_nsec / 1e9;
+}
+
+// Runs a kernel on a frame of BENCH_WIDTH x BENCH_HEIGHT until BENCH_SECONDS
+// have passed and returns the throughput in megapixels per second.
+static double benchmark(const ColorKernels *table, const KernelInfo *info, int factor,
+        ImageType in, ImageType out)
+{
+    int runs = 0;
+    double start = now();
+    double elapsed;
+
+    do
+    {
+        if (info != NULL)
+            (table->*info->kernel)(out, in, BENCH_WIDTH, BENCH_HEIGHT);
+        else
+            table->subsampleYvu444(out, in, BENCH_WIDTH, BENCH_HEIGHT, factor);
+        runs++;
+        elapsed = now() - start;
+    } while (elapsed < BENCH_SECONDS);
+
+    return (double) runs * BENCH_WIDTH * BENCH_HEIGHT / elapsed / 1e6;
+}
+
+int main(int argc, char **argv)
+{
+    const ColorKernels *tables[MAX_TABLES];
+    int numTables = ColorKernels::getAll(tables, MAX_TABLES);
+    int failures = 0;
+
+    printf("Kernels: ");
+    for (int t = 0; t < numTables; t++)
+    {
+        printf("%s%s", tables[t]->name, t + 1 < numTables ? ", " : "\n");
+    }
+    printf("Selected: %s\n", ColorKernels::get()->name);
+
+    for (int t = 0; t < numTables; t++)
+    {
+        for (int k = 0; k < NUM_KERNELS; k++)
+        {
+            if (kernels[k].layout != NOT_PER_PIXEL)
+                failures += testExhaustive(tables[t], kernels[k]);
+
+            for (int s = 0; s < NUM_SIZES; s++)
+            {
+                failures += testRandom(tables[t], kernels[k], testSizes[s][0],
+                        testSizes[s][1]);
+            }
+        }
+
+        for (int s = 0; s < NUM_SIZES; s++)
+        {
+            failures += testSubsample(tables[t], testSizes[s][0], testSizes[s][1], 2);
+            failures += testSubsample(tables[t], testSizes[s][0], testSizes[s][1], 4);
+            failures += testSubsample(tables[t], testSizes[s][0], testSizes[s][1], 3);
+        }
+    }
+
+    if (failures != 0)
+    {
+        printf("FAILED: %d mismatches\n", failures);
+        return 1;
+    }
+    printf("PASSED: all kernels match the original conversions\n\n");
+
+    // Throughput on a camera frame
+    ImageType in = new unsigned char[yvuaSize(BENCH_WIDTH, BENCH_HEIGHT)];
+    ImageType out = new unsigned char[planarSize(BENCH_WIDTH, BENCH_HEIGHT)];
+    fillRandom(in, yvuaSize(BENCH_WIDTH, BENCH_HEIGHT));
+
+    printf("Throughput on %dx%d frames, MPix/s:\n\n", BENCH_WIDTH, BENCH_HEIGHT);
+    printf("%-20s", "kernel");
+    for (int t = 0; t < numTables; t++)
+    {
+        printf("%10s", tables[t]->name);
+    }
+    printf("\n");
+
+    for (int k = 0; k < NUM_KERNELS + 2; k++)
+    {
+        const KernelInfo *info = k < NUM_KERNELS ? &kernels[k] : NULL;
+        int factor = k == NUM_KERNELS ? 2 : 4;
+        char name[32];
+
+        if (info != NULL)
+            snprintf(name, sizeof(name), "%s", info->name);
+        else
+            snprintf(name, sizeof(name), "subsampleYvu444/%d", factor);
+        printf("%-20s", name);
+
+        for (int t = 0; t < numTables; t++)
+        {
+            printf("%10.1f", benchmark(tables[t], info, factor, in, out));
+            fflush(stdout);
+        }
+        printf("\n");
+    }
+
+    delete[] in;
+    delete[] out;
+    return 0;
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Checks that inserting the sites one at a time into a CDelaunay gives every
+// site the same neighbors as triangulating them all at once, then prints how
+// long both take for 40, 100 and 500 sites.
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <math.h>
+#include <time.h>
+
+#include "Delaunay.h"
+
+#define FRAME_WIDTH 640
+#define FRAME_HEIGHT 360
+
+#define NUM_SEEDS 50
+#define BENCH_SECONDS 0.2
+
+static const int siteCounts[] = { 40, 100, 500 };
+#define NUM_SITE_COUNTS (int) (sizeof(siteCounts) / sizeof(siteCounts[0]))
+
+enum Layout
+{
+    // Uniform in a square, with no edge thrown out for its length
+    LAYOUT_RANDOM,
+    // Centres of the frames of a sweep, left to right with some shake
+    LAYOUT_SWEEP,
+    // A sweep that goes back now and then, starting with frames on one line
+    LAYOUT_WOBBLY,
+    NUM_LAYOUTS
+};
+
+static const char *layoutNames[] = { "random", "sweep", "wobbly" };
+
+static double uniform()
+{
+    return rand() / (RAND_MAX + 1.0);
+}
+
+static void placeSites(CSite *sites, int n, Layout layout)
+{
+    double x = 0.0;
+    double step = 4.0 * FRAME_WIDTH / n;
+
+    for (int i = 0; i < n; i++)
+    {
+        SVec2d &c = sites[i].getVCenter();
+
+        switch (layout)
+        {
+            case LAYOUT_RANDOM:
+                c.x = 2000.0 * uniform();
+                c.y = 2000.0 * uniform();
+                break;
+            case LAYOUT_SWEEP:
+                c.x = i * step + step * (uniform() - 0.5);
+                c.y = FRAME_HEIGHT / 2 + 20.0 * sin(i * 0.05) + 4.0 * uniform();
+                break;
+            case LAYOUT_WOBBLY:
+                x += step * (uniform() * 1.6 - 0.4);
+                c.x = x;
+                c.y = i < 5 ? FRAME_HEIGHT / 2 : FRAME_HEIGHT / 2 + 30.0 * uniform();
+                break;
+            default:
+                break;
+        }
+    }
+}
+
+static void copySites(CSite *out, CSite *in, int n)
+{
+    for (int i = 0; i < n; i++)
+    {
+        out[i].getVCenter() = in[i].getVCenter();
+    }
+}
+
+static int cmpNeighbor(const void *a, const void *b)
+{
+    return ((const SEdgeVector *) a)->second - ((const SEdgeVector *) b)->second;
+}
+
+static int insertAll(CDelaunay &triangulator, int n)
+{
+    triangulator.beginInsertion();
+    for (int i = 0; i < n; i++)
+    {
+        if (!triangulator.insertSite((SitePointer) i))
+            return i;
+    }
+    return n;
+}
+
+// Returns the number of sites whose neighbors differ
+static int compare(int n, Layout layout, int seed)
+{
+    int width = layout == LAYOUT_RANDOM ? 1 << 20 : FRAME_WIDTH;
+    int height = layout == LAYOUT_RANDOM ? 1 << 20 : FRAME_HEIGHT;
+    CDelaunay batch, incremental;
+    CSite *batchSites = batch.allocMemory(n);
+    CSite *sites = incremental.allocMemory(n);
+    SEdgeVector *expected = new SEdgeVector[n];
+    SEdgeVector *actual = new SEdgeVector[n];
+    int failures = 0;
+
+    srand(seed);
+    placeSites(sites, n, layout);
+    copySites(batchSites, sites, n);
+
+    SEdgeVector *edge;
+    int nedge = batch.triangulate(&edge, n, width, height);
+    batch.linkNeighbors(edge, nedge, n);
+
+    int inserted = insertAll(incremental, n);
+    if (inserted != n)
+    {
+        printf("FAILED: %s, %d sites, seed %d: site %d could not be inserted\n",
+                layoutNames[layout], n, seed, inserted);
+        failures = 1;
+    }
+
+    for (int i = 0; i < n && failures == 0; i++)
+    {
+        int num = batchSites[i].getNumNeighbors();
+        for (int k = 0; k < num; k++)
+        {
+            expected[k] = batchSites[i].getNeighbor()[k];
+        }
+        int numActual = incremental.neighbors((SitePointer) i, actual, width, height);
+
+        qsort(expected, num, sizeof(SEdgeVector), cmpNeighbor);
+        qsort(actual, numActual, sizeof(SEdgeVector), cmpNeighbor);
+
+        int same = num == numActual;
+        for (int k = 0; k < num && same; k++)
+        {
+            same = expected[k].second == actual[k].second;
+        }
+        if (!same)
+        {
+            printf("FAILED: %s, %d sites, seed %d: site %d has %d neighbors instead of %d\n",
+                    layoutNames[layout], n, seed, i, numActual, num);
+            failures++;
+        }
+    }
+
+    batch.freeMemory();
+    incremental.freeMemory();
+    delete[] expected;
+    delete[] actual;
+    return failures;
+}
+
+static double now()
+{
+    struct timespec t;
+    clock_gettime(CLOCK_MONOTONIC, &t);
+    return t.tv_sec + t.tv_nsec / 1e9;
+}
+
+// Microseconds to find the neighbors of all the n sites of a sweep, either
+// all at once or inserting them one at a time as a streamed mosaic does
+static double benchmark(int n, bool incremental)
+{
+    CDelaunay triangulator;
+    CSite *sites = triangulator.allocMemory(n);
+    SEdgeVector *edge = new SEdgeVector[n];
+    int runs = 0;
+    double start = now();
+    double elapsed;
+
+    srand(1);
+    placeSites(sites, n, LAYOUT_SWEEP);
+
+    do
+    {
+        if (incremental)
+        {
+            triangulator.beginInsertion();
+            for (int i = 0; i < n; i++)
+            {
+                triangulator.insertSite((SitePointer) i);
+                triangulator.neighbors((SitePointer) i, edge, FRAME_WIDTH, FRAME_HEIGHT);
+            }
+        }
+        else
+        {
+            SEdgeVector *edges;
+            int nedge = triangulator.triangulate(&edges, n, FRAME_WIDTH, FRAME_HEIGHT);
+            triangulator.linkNeighbors(edges, nedge, n);
+        }
+        runs++;
+        elapsed = now() - start;
+    } while (elapsed < BENCH_SECONDS);
+
+    triangulator.freeMemory();
+    delete[] edge;
+    return elapsed / runs * 1e6;
+}
+
+int main(int argc, char **argv)
+{
+    int failures = 0;
+
+    for (int l = 0; l < NUM_LAYOUTS; l++)
+    {
+        for (int s = 0; s < NUM_SITE_COUNTS; s++)
+        {
+            for (int seed = 0; seed < NUM_SEEDS; seed++)
+            {
+                failures += compare(siteCounts[s], (Layout) l, seed);
+            }
+        }
+    }
+
+    if (failures != 0)
+    {
+        printf("FAILED: %d mismatches\n", failures);
+        return 1;
+    }
+    printf("PASSED: every site has the same neighbors both ways\n\n");
+
+    printf("Time to find the neighbors of all the sites of a sweep, us:\n\n");
+    printf("%-8s%14s%14s\n", "sites", "all at once", "one by one");
+    for (int s = 0; s < NUM_SITE_COUNTS; s++)
+    {
+        printf("%-8d", siteCounts[s]);
+        printf("%14.1f", benchmark(siteCounts[s], false));
+        printf("%14.1f\n", benchmark(siteCounts[s], true));
+        fflush(stdout);
+    }
+
+    return 0;
+}
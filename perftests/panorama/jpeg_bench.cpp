@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Saves a finished mosaic as a JPEG file and reports how long it took and how
+// much memory it needed on top of the mosaic itself, either the way the app
+// used to (NV21 byte[], YuvImage into a ByteArrayOutputStream, toByteArray,
+// then a file write) or with the JpegWriter writing straight to the file.
+//
+// YuvImage is not available here, so the old path encodes with the same
+// JpegWriter into a pipe drained into a buffer that grows the way a
+// ByteArrayOutputStream does. Run one mode per process so that the peak
+// resident memory of one does not hide the other.
+
+#include <fcntl.h>
+#include <pthread.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <sys/time.h>
+#include <unistd.h>
+
+#include "mosaic/ImageUtils.h"
+#include "mosaic/JpegWriter.h"
+
+// Same as PanoramaModule
+#define JPEG_QUALITY 100
+#define RESTART_INTERVAL 0
+
+// Size of the chunks YuvImage hands to the OutputStream
+#define CHUNK_SIZE 4096
+
+// Bytes of the old path that live on the Java heap, which is much smaller
+// than the native one and is not helped by the mosaic being freed
+size_t javaHeapBytes = 0;
+size_t peakJavaHeapBytes = 0;
+
+unsigned char *javaAlloc(size_t size)
+{
+    javaHeapBytes += size;
+    if (javaHeapBytes > peakJavaHeapBytes)
+        peakJavaHeapBytes = javaHeapBytes;
+    return new unsigned char[size];
+}
+
+void javaFree(unsigned char *array, size_t size)
+{
+    javaHeapBytes -= size;
+    delete[] array;
+}
+
+struct EncodeArgs
+{
+    int fd;
+    ImageType yvu;
+    int width;
+    int height;
+    int quality;
+    int restartInterval;
+    int ret;
+};
+
+double now_ms()
+{
+    struct timeval tv;
+    gettimeofday(&tv, NULL);
+    return 1000.0 * tv.tv_sec + tv.tv_usec / 1000.0;
+}
+
+// Reads a line such as "VmHWM:  1234 kB" of /proc/self/status, in KB
+long readStatus(const char *field)
+{
+    char line[256];
+    long value = -1;
+    FILE *f = fopen("/proc/self/status", "r");
+    if (f == NULL)
+        return -1;
+    while (fgets(line, sizeof(line), f) != NULL)
+    {
+        if (strncmp(line, field, strlen(field)) == 0)
+        {
+            value = atol(line + strlen(field) + 1);
+            break;
+        }
+    }
+    fclose(f);
+    return value;
+}
+
+// Restarts the peak resident memory from the current one
+void resetPeakRss()
+{
+    FILE *f = fopen("/proc/self/clear_refs", "w");
+    if (f != NULL)
+    {
+        fputs("5", f);
+        fclose(f);
+    }
+}
+
+void *encodeThread(void *data)
+{
+    EncodeArgs *args = (EncodeArgs *) data;
+    JpegWriter writer;
+    args->ret = writer.write(args->fd, args->yvu, args->width, args->height,
+            args->quality, args->restartInterval);
+    close(args->fd);
+    return NULL;
+}
+
+// The old path: the mosaic is converted to NV21 in place and copied into a
+// Java byte[], the buffer of the mosaic is freed, and YuvImage compresses the
+// byte[] into a ByteArrayOutputStream whose array is copied once more by
+// toByteArray before it is written to the file. The encoder reads source,
+// which holds the same pixels as the byte[].
+int saveByteArray(ImageType yvu, ImageType source, int width, int height,
+        int quality, int restartInterval, int fd)
+{
+    int imageSize = 1.5 * width * height;
+
+    ImageType V = yvu + width * height;
+    ImageType U = V + width * height;
+    for (int j = 0; j < height / 2; j++)
+    {
+        for (int i = 0; i < width; i += 2)
+        {
+            V[j * width + i] = V[(2 * j) * width + i];
+            V[j * width + i + 1] = U[(2 * j) * width + i];
+        }
+    }
+
+    unsigned char *nv21 = javaAlloc(imageSize + 8);
+    memcpy(nv21, yvu, imageSize);
+    ImageUtils::freeImage(yvu);
+
+    int pipeFd[2];
+    if (pipe(pipeFd) != 0)
+    {
+        javaFree(nv21, imageSize + 8);
+        return -1;
+    }
+
+    EncodeArgs args = { pipeFd[1], source, width, height, quality, restartInterval, 0 };
+    pthread_t thread;
+    pthread_create(&thread, NULL, encodeThread, &args);
+
+    size_t capacity = 32;
+    size_t count = 0;
+    unsigned char *stream = javaAlloc(capacity);
+    unsigned char chunk[CHUNK_SIZE];
+    ssize_t n;
+    while ((n = read(pipeFd[0], chunk, CHUNK_SIZE)) > 0)
+    {
+        if (count + n > capacity)
+        {
+            size_t grown = capacity * 2 > count + n ? capacity * 2 : count + n;
+            unsigned char *bigger = javaAlloc(grown);
+            memcpy(bigger, stream, count);
+            javaFree(stream, capacity);
+            stream = bigger;
+            capacity = grown;
+        }
+        memcpy(stream + count, chunk, n);
+        count += n;
+    }
+    pthread_join(thread, NULL);
+    close(pipeFd[0]);
+
+    unsigned char *jpeg = javaAlloc(count);
+    memcpy(jpeg, stream, count);
+    javaFree(stream, capacity);
+    javaFree(nv21, imageSize + 8);
+
+    int ret = args.ret;
+    if (ret == JpegWriter::JPEG_RET_OK && write(fd, jpeg, count) != (ssize_t) count)
+        ret = -1;
+    javaFree(jpeg, count);
+    return ret;
+}
+
+int saveDirect(ImageType yvu, int width, int height, int quality,
+        int restartInterval, int fd)
+{
+    JpegWriter writer;
+    int ret = writer.write(fd, yvu, width, height, quality, restartInterval);
+    ImageUtils::freeImage(yvu);
+    return ret;
+}
+
+// Scales the image up by a whole factor, to get the size of a high-res mosaic
+// out of a low-res one
+ImageType enlarge(ImageType in, int width, int height, int factor)
+{
+    int outWidth = width * factor;
+    ImageType out = ImageUtils::allocateImage(outWidth, height * factor, 3);
+    for (int y = 0; y < height * factor; y++)
+    {
+        ImageType src = in + (y / factor) * width * 3;
+        ImageType dst = out + y * outWidth * 3;
+        for (int x = 0; x < outWidth; x++)
+        {
+            memcpy(dst + x * 3, src + (x / factor) * 3, 3);
+        }
+    }
+    return out;
+}
+
+int main(int argc, char **argv)
+{
+    if (argc < 4)
+    {
+        printf("Usage: %s <mosaic.ppm> <output.jpg> <bytearray|direct> "
+                "[scale] [quality] [restart interval]\n", argv[0]);
+        return 1;
+    }
+
+    bool direct = strcmp(argv[3], "direct") == 0;
+    if (!direct && strcmp(argv[3], "bytearray") != 0)
+    {
+        printf("Unknown mode %s\n", argv[3]);
+        return 1;
+    }
+    int scale = argc > 4 ? atoi(argv[4]) : 1;
+    int quality = argc > 5 ? atoi(argv[5]) : JPEG_QUALITY;
+    int restartInterval = argc > 6 ? atoi(argv[6]) : RESTART_INTERVAL;
+
+    int width, height;
+    ImageType rgb = ImageUtils::readBinaryPPM(argv[1], width, height);
+    if (rgb == NULL)
+    {
+        printf("Could not read %s\n", argv[1]);
+        return 1;
+    }
+    if (scale > 1)
+    {
+        ImageType large = enlarge(rgb, width, height, scale);
+        ImageUtils::freeImage(rgb);
+        rgb = large;
+        width *= scale;
+        height *= scale;
+    }
+
+    // The YVU mosaic as Blend leaves it, and for the old path a copy that
+    // stands for the NV21 byte[] the encoder reads
+    ImageType yvu = ImageUtils::allocateImage(width, height, 3);
+    ImageUtils::rgb2yvu(yvu, rgb, width, height);
+    ImageType source = NULL;
+    if (!direct)
+    {
+        source = ImageUtils::allocateImage(width, height, 3);
+        memcpy(source, yvu, width * height * 3);
+    }
+    ImageUtils::freeImage(rgb);
+
+    int fd = open(argv[2], O_WRONLY | O_CREAT | O_TRUNC, 0644);
+    if (fd < 0)
+    {
+        printf("Could not open %s\n", argv[2]);
+        return 1;
+    }
+
+    long startRss = readStatus("VmRSS");
+    resetPeakRss();
+    double start = now_ms();
+
+    int ret;
+    if (direct)
+        ret = saveDirect(yvu, width, height, quality, restartInterval, fd);
+    else
+        ret = saveByteArray(yvu, source, width, height, quality, restartInterval, fd);
+    ret |= close(fd);
+
+    double elapsed = now_ms() - start;
+    long peakRss = readStatus("VmHWM");
+
+    if (source != NULL)
+        ImageUtils::freeImage(source);
+
+    if (ret != 0)
+    {
+        printf("Could not write %s\n", argv[2]);
+        return 1;
+    }
+
+    printf("%s: %dx%d, quality %d, restart interval %d\n", argv[3], width, height,
+            quality, restartInterval);
+    printf("Time to save: %.1f ms\n", elapsed);
+    printf("Memory on top of the mosaic: %ld KB (mosaic %d KB)\n",
+            peakRss - startRss, width * height * 3 / 1024);
+    if (!direct)
+        printf("Java heap buffers at their peak: %d KB\n", (int) (peakJavaHeapBytes / 1024));
+    return 0;
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import com.android.gallery3d.ui.RawTexture;
+
+/**
+ * Keeps the textures the capture and switch camera animations copy the
+ * preview into, one per preview size. The front and back cameras usually
+ * have different preview sizes, so two sizes are kept; restarting the
+ * preview or switching back and forth reuses them instead of allocating a
+ * new render target each time.
+ *
+ * It is not thread safe.
+ */
+public class AnimTexturePool {
+    private static final int MAX_SIZES = 2;
+
+    // The most recently used texture first.
+    private final RawTexture[] mTextures = new RawTexture[MAX_SIZES];
+    private int mCreated;
+
+    /**
+     * Returns a texture of the given size. The least recently used texture
+     * is recycled if there are too many sizes.
+     */
+    public RawTexture get(int width, int height) {
+        int i = 0;
+        while (i < MAX_SIZES - 1) {
+            RawTexture t = mTextures[i];
+            if (t == null || (t.getWidth() == width && t.getHeight() == height)) break;
+            i++;
+        }
+        RawTexture texture = mTextures[i];
+        if (texture != null && (texture.getWidth() != width || texture.getHeight() != height)) {
+            texture.recycle();
+            texture = null;
+        }
+        if (texture == null) {
+            texture = new RawTexture(width, height, true);
+            mCreated++;
+        }
+        System.arraycopy(mTextures, 0, mTextures, 1, i);
+        mTextures[0] = texture;
+        return texture;
+    }
+
+    /** Recycles all the textures. */
+    public void clear() {
+        for (int i = 0; i < MAX_SIZES; i++) {
+            if (mTextures[i] != null) {
+                mTextures[i].recycle();
+                mTextures[i] = null;
+            }
+        }
+    }
+
+    /** Returns the number of textures created. */
+    public int getCreatedCount() {
+        return mCreated;
+    }
+}
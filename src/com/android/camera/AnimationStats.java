@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+/**
+ * Statistics of the capture and switch camera animations: how many times
+ * the preview was copied to a texture on the GPU, how many copies were
+ * skipped, and how much CPU time drawing an animated frame took.
+ *
+ * It is not thread safe. The times are passed in by the caller, so it can
+ * also be driven by a test harness.
+ */
+public class AnimationStats {
+    private int mCopies;
+    private int mSkippedCopies;
+    private int mFrames;
+    private long mTotalFrameTimeNs;
+    private long mMaxFrameTimeNs;
+
+    public void reset() {
+        mCopies = 0;
+        mSkippedCopies = 0;
+        mFrames = 0;
+        mTotalFrameTimeNs = 0;
+        mMaxFrameTimeNs = 0;
+    }
+
+    /** Records a copy of the preview to a texture. */
+    public void onCopy() {
+        mCopies++;
+    }
+
+    /** Records a copy that was skipped because the last one could be reused. */
+    public void onCopySkipped() {
+        mSkippedCopies++;
+    }
+
+    /**
+     * Records an animated frame.
+     *
+     * @param frameTimeNs the CPU time taken to draw the frame
+     */
+    public void onFrameDrawn(long frameTimeNs) {
+        mFrames++;
+        mTotalFrameTimeNs += frameTimeNs;
+        mMaxFrameTimeNs = Math.max(mMaxFrameTimeNs, frameTimeNs);
+    }
+
+    public int getCopies() {
+        return mCopies;
+    }
+
+    public int getSkippedCopies() {
+        return mSkippedCopies;
+    }
+
+    public int getFrames() {
+        return mFrames;
+    }
+
+    public long getAverageFrameTimeNs() {
+        return mFrames == 0 ? 0 : mTotalFrameTimeNs / mFrames;
+    }
+
+    public long getMaxFrameTimeNs() {
+        return mMaxFrameTimeNs;
+    }
+
+    @Override
+    public String toString() {
+        return "animation: copies=" + mCopies + " skipped=" + mSkippedCopies
+                + " frames=" + mFrames
+                + " avgFrameTime=" + getAverageFrameTimeNs() / 1000 + "us"
+                + " maxFrameTime=" + mMaxFrameTimeNs / 1000 + "us";
+    }
+}
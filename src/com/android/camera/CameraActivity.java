@@ -285,6 +285,9 @@ public class CameraActivity extends ActivityBase
         mCurrentModule.onPauseBeforeSuper();
         super.onPause();
         mCurrentModule.onPauseAfterSuper();
+        if (mCameraScreenNail instanceof CameraScreenNail) {
+            ((CameraScreenNail) mCameraScreenNail).releaseAnimTextures();
+        }
     }
 
     @Override
@@ -76,8 +76,11 @@ public class CameraManager {
     private static final int SET_PREVIEW_DISPLAY_ASYNC = 23;
     private static final int SET_PREVIEW_CALLBACK = 24;
     private static final int ENABLE_SHUTTER_SOUND = 25;
+    private static final int START_SMOOTH_ZOOM_ASYNC = 26;
+    private static final int STOP_SMOOTH_ZOOM_ASYNC = 27;
 
     private Handler mCameraHandler;
+    private Handler mMainHandler;
     private CameraProxy mCameraProxy;
     private android.hardware.Camera mCamera;
 
@@ -89,6 +92,13 @@ public class CameraManager {
         HandlerThread ht = new HandlerThread("Camera Handler Thread");
         ht.start();
         mCameraHandler = new CameraHandler(ht.getLooper());
+        mMainHandler = new Handler(Looper.getMainLooper());
+    }
+
+    // Called on the main thread when the camera refuses to start or stop a
+    // smooth zoom.
+    public interface SmoothZoomErrorCallback {
+        public void onSmoothZoomError();
     }
 
     private class CameraHandler extends Handler {
@@ -125,6 +135,21 @@ public class CameraManager {
             mCamera.enableShutterSound(enable);
         }
 
+        // Some drivers refuse smooth zoom when the preview is stopped or
+        // while recording. That is not worth releasing the camera for, so
+        // the caller is told and sets the zoom in the parameters instead.
+        private void notifySmoothZoomError(RuntimeException e,
+                final SmoothZoomErrorCallback cb) {
+            Log.w(TAG, "Smooth zoom failed", e);
+            if (cb == null) return;
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    cb.onSmoothZoomError();
+                }
+            });
+        }
+
         /*
          * This method does not deal with the build version check.  Everyone should
          * check first before sending message to this handler.
@@ -242,6 +267,22 @@ public class CameraManager {
                         enableShutterSound((msg.arg1 == 1) ? true : false);
                         break;
 
+                    case START_SMOOTH_ZOOM_ASYNC:
+                        try {
+                            mCamera.startSmoothZoom(msg.arg1);
+                        } catch (RuntimeException e) {
+                            notifySmoothZoomError(e, (SmoothZoomErrorCallback) msg.obj);
+                        }
+                        return;  // no need to call mSig.open()
+
+                    case STOP_SMOOTH_ZOOM_ASYNC:
+                        try {
+                            mCamera.stopSmoothZoom();
+                        } catch (RuntimeException e) {
+                            notifySmoothZoomError(e, (SmoothZoomErrorCallback) msg.obj);
+                        }
+                        return;  // no need to call mSig.open()
+
                     case WAIT_FOR_IDLE:
                         // do nothing
                         break;
@@ -465,6 +506,14 @@ public class CameraManager {
             mCameraHandler.obtainMessage(SET_PARAMETERS_ASYNC, params).sendToTarget();
         }
 
+        public void startSmoothZoomAsync(int value, SmoothZoomErrorCallback cb) {
+            mCameraHandler.obtainMessage(START_SMOOTH_ZOOM_ASYNC, value, 0, cb).sendToTarget();
+        }
+
+        public void stopSmoothZoomAsync(SmoothZoomErrorCallback cb) {
+            mCameraHandler.obtainMessage(STOP_SMOOTH_ZOOM_ASYNC, cb).sendToTarget();
+        }
+
         public Parameters getParameters() {
             mSig.close();
             mCameraHandler.sendEmptyMessage(GET_PARAMETERS);
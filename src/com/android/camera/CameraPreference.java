@@ -46,6 +46,13 @@ public abstract class CameraPreference {
         a.recycle();
     }
 
+    // Copies the preference for the given context. The value is not copied;
+    // it is loaded from the shared preferences of the context.
+    protected CameraPreference(Context context, CameraPreference other) {
+        mContext = context;
+        mTitle = other.mTitle;
+    }
+
     public String getTitle() {
         return mTitle;
     }
@@ -58,4 +65,7 @@ public abstract class CameraPreference {
     }
 
     public abstract void reloadValue();
+
+    /** Returns a copy of this preference that uses the given context. */
+    public abstract CameraPreference copy(Context context);
 }
@@ -26,6 +26,9 @@ import com.android.gallery3d.ui.GLCanvas;
 import com.android.gallery3d.ui.RawTexture;
 import com.android.gallery3d.ui.SurfaceTextureScreenNail;
 
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
 /*
  * This is a ScreenNail which can display camera's preview.
  */
@@ -49,25 +52,49 @@ public class CameraScreenNail extends SurfaceTextureScreenNail {
     // Switch camera animation is running.
     private static final int ANIM_SWITCH_RUNNING = 7;
 
-    private boolean mVisible;
-    // True if first onFrameAvailable has been called. If screen nail is drawn
-    // too early, it will be all white.
-    private boolean mFirstFrameArrived;
+    // The type of capture animation.
+    private static final int CAPTURE_FLASH_AND_SLIDE = 0;
+    private static final int CAPTURE_FLASH = 1;
+
+    // A frame drawn later than this after it became available is late.
+    private static final long LATE_FRAME_THRESHOLD_NS = 33 * 1000 * 1000;
+
+    private volatile boolean mVisible;
     private Listener mListener;
     private final float[] mTextureTransformMatrix = new float[16];
 
-    // Animation.
+    // Animation. The managers are only used by the GL thread.
     private CaptureAnimManager mCaptureAnimManager = new CaptureAnimManager();
     private SwitchAnimManager mSwitchAnimManager = new SwitchAnimManager();
-    private int mAnimState = ANIM_NONE;
     private RawTexture mAnimTexture;
-    // Some methods are called by GL thread and some are called by main thread.
-    // This protects mAnimState, mVisible, and surface texture. This also makes
-    // sure some code are atomic. For example, requestRender and setting
-    // mAnimState.
+    private final AnimTexturePool mAnimTexturePool = new AnimTexturePool();
+    // The texture the last capture animation copied the preview into, or
+    // null if it was overwritten since.
+    private RawTexture mCaptureTexture;
+    // The number of slide requests the GL thread has passed to
+    // mCaptureAnimManager.
+    private int mSlideRequestsHandled;
+
+    // The state shared by the main thread, the GL thread and the
+    // SurfaceTexture callback thread. It is replaced, never modified, so the
+    // GL thread reads it without blocking.
+    private final AtomicReference<State> mState =
+            new AtomicReference<State>(new State());
+    // The number of onFrameAvailable calls, and the time of the last one.
+    private final AtomicInteger mFrameAvailableCount = new AtomicInteger();
+    private volatile long mFrameAvailableTimeNs;
+    // The last frame the GL thread drew. Only used by the GL thread.
+    private int mLastDrawnFrame;
+
+    // Protects the surface texture and the render size. These only change
+    // when the preview starts, stops or is laid out, so the GL thread does not
+    // have to wait for this lock in the steady state.
     private Object mLock = new Object();
+    // Updated by the GL thread with mLock held.
+    private final PreviewFrameStats mFrameStats =
+            new PreviewFrameStats(LATE_FRAME_THRESHOLD_NS);
+    private final AnimationStats mAnimStats = new AnimationStats();
 
-    private OnFrameDrawnListener mOneTimeFrameDrawnListener;
     private int mRenderWidth;
     private int mRenderHeight;
     // This represents the scaled, uncropped size of the texture
@@ -75,10 +102,44 @@ public class CameraScreenNail extends SurfaceTextureScreenNail {
     private int mUncroppedRenderWidth;
     private int mUncroppedRenderHeight;
     private float mScaleX = 1f, mScaleY = 1f;
-    private boolean mFullScreen;
     private boolean mEnableAspectRatioClamping = false;
-    private float mAlpha = 1f;
-    private Runnable mOnFrameDrawnListener;
+
+    /**
+     * A snapshot of the animation state. Updates copy the current snapshot,
+     * change the copy and swap it in with compareAndSet, so a snapshot is
+     * never modified once it is published.
+     */
+    private static final class State {
+        // Incremented by every update.
+        int version;
+        int animState = ANIM_NONE;
+        float alpha = 1f;
+        boolean fullScreen;
+        int captureType;
+        int captureOrientation;
+        // Incremented by every animateSlide.
+        int slideRequests;
+        // The first frame arrives when mFrameAvailableCount exceeds this. If
+        // screen nail is drawn too early, it will be all white.
+        int framesBeforeFirst;
+        OnFrameDrawnListener oneTimeFrameDrawnListener;
+        Runnable onFrameDrawnListener;
+
+        State copy() {
+            State s = new State();
+            s.version = version + 1;
+            s.animState = animState;
+            s.alpha = alpha;
+            s.fullScreen = fullScreen;
+            s.captureType = captureType;
+            s.captureOrientation = captureOrientation;
+            s.slideRequests = slideRequests;
+            s.framesBeforeFirst = framesBeforeFirst;
+            s.oneTimeFrameDrawnListener = oneTimeFrameDrawnListener;
+            s.onFrameDrawnListener = onFrameDrawnListener;
+            return s;
+        }
+    }
 
     public interface Listener {
         void requestRender();
@@ -97,9 +158,35 @@ public class CameraScreenNail extends SurfaceTextureScreenNail {
     }
 
     public void setFullScreen(boolean full) {
-        synchronized (mLock) {
-            mFullScreen = full;
-        }
+        State s, next;
+        do {
+            s = mState.get();
+            if (s.fullScreen == full) return;
+            next = s.copy();
+            next.fullScreen = full;
+        } while (!mState.compareAndSet(s, next));
+    }
+
+    private void setAnimState(int animState) {
+        State s, next;
+        do {
+            s = mState.get();
+            next = s.copy();
+            next.animState = animState;
+        } while (!mState.compareAndSet(s, next));
+    }
+
+    // Moves the animation to state to if it is in state from. Returns false if
+    // it is not, e.g. because the main thread changed it in the meantime.
+    private boolean advanceAnimState(int from, int to) {
+        State s, next;
+        do {
+            s = mState.get();
+            if (s.animState != from) return false;
+            next = s.copy();
+            next.animState = to;
+        } while (!mState.compareAndSet(s, next));
+        return true;
     }
 
     /**
@@ -201,9 +288,12 @@ public class CameraScreenNail extends SurfaceTextureScreenNail {
     @Override
     public void acquireSurfaceTexture() {
         synchronized (mLock) {
-            mFirstFrameArrived = false;
+            resetFirstFrame(null, false);
             super.acquireSurfaceTexture();
-            mAnimTexture = new RawTexture(getTextureWidth(), getTextureHeight(), true);
+            mAnimTexture = mAnimTexturePool.get(getTextureWidth(), getTextureHeight());
+            mCaptureTexture = null;
+            mFrameStats.reset();
+            mAnimStats.reset();
         }
     }
 
@@ -211,67 +301,109 @@ public class CameraScreenNail extends SurfaceTextureScreenNail {
     public void releaseSurfaceTexture() {
         synchronized (mLock) {
             super.releaseSurfaceTexture();
-            mAnimState = ANIM_NONE; // stop the animation
+            setAnimState(ANIM_NONE); // stop the animation
+            Log.v(TAG, "Preview " + mFrameStats);
+            Log.v(TAG, "Preview " + mAnimStats);
         }
     }
 
-    public void copyTexture() {
+    // Recycles the pooled animation textures once the preview is gone, when
+    // the activity is paused. Restarting the preview while the activity
+    // stays resumed keeps reusing them.
+    public void releaseAnimTextures() {
         synchronized (mLock) {
-            mListener.requestRender();
-            mAnimState = ANIM_SWITCH_COPY_TEXTURE;
+            if (getSurfaceTexture() != null) return;
+            mAnimTexture = null;
+            mCaptureTexture = null;
+            mAnimTexturePool.clear();
         }
     }
 
+    public void copyTexture() {
+        setAnimState(ANIM_SWITCH_COPY_TEXTURE);
+        mListener.requestRender();
+    }
+
     public void animateSwitchCamera() {
         Log.v(TAG, "animateSwitchCamera");
-        synchronized (mLock) {
-            if (mAnimState == ANIM_SWITCH_DARK_PREVIEW) {
-                // Do not request render here because camera has been just
-                // started. We do not want to draw black frames.
-                mAnimState = ANIM_SWITCH_WAITING_FIRST_FRAME;
-            }
-        }
+        // Do not request render here because camera has been just
+        // started. We do not want to draw black frames.
+        advanceAnimState(ANIM_SWITCH_DARK_PREVIEW, ANIM_SWITCH_WAITING_FIRST_FRAME);
     }
 
     public void animateCapture(int displayRotation) {
-        synchronized (mLock) {
-            mCaptureAnimManager.setOrientation(displayRotation);
-            mCaptureAnimManager.animateFlashAndSlide();
-            mListener.requestRender();
-            mAnimState = ANIM_CAPTURE_START;
-        }
+        startCaptureAnimation(CAPTURE_FLASH_AND_SLIDE, displayRotation);
     }
 
     public void animateFlash(int displayRotation) {
-        synchronized (mLock) {
-            mCaptureAnimManager.setOrientation(displayRotation);
-            mCaptureAnimManager.animateFlash();
-            mListener.requestRender();
-            mAnimState = ANIM_CAPTURE_START;
-        }
+        startCaptureAnimation(CAPTURE_FLASH, displayRotation);
+    }
+
+    // The capture animation is set up by the GL thread when it draws the
+    // ANIM_CAPTURE_START state.
+    private void startCaptureAnimation(int captureType, int displayRotation) {
+        State s, next;
+        do {
+            s = mState.get();
+            next = s.copy();
+            next.animState = ANIM_CAPTURE_START;
+            next.captureType = captureType;
+            next.captureOrientation = displayRotation;
+        } while (!mState.compareAndSet(s, next));
+        mListener.requestRender();
     }
 
     public void animateSlide() {
-        synchronized (mLock) {
+        State s, next;
+        do {
+            s = mState.get();
             // Ignore the case where animateFlash is skipped but animateSlide is called
             // e.g. Double tap shutter and immediately swipe to gallery, and quickly swipe back
             // to camera. This case only happens in monkey tests, not applicable to normal
             // human beings.
-            if (mAnimState != ANIM_CAPTURE_RUNNING) {
+            if (s.animState != ANIM_CAPTURE_RUNNING) {
                 Log.v(TAG, "Cannot animateSlide outside of animateCapture!"
-                        + " Animation state = " + mAnimState);
+                        + " Animation state = " + s.animState);
                 return;
             }
-            mCaptureAnimManager.animateSlide();
-            mListener.requestRender();
-        }
+            next = s.copy();
+            next.slideRequests++;
+        } while (!mState.compareAndSet(s, next));
+        mListener.requestRender();
     }
 
     private void callbackIfNeeded() {
-        if (mOneTimeFrameDrawnListener != null) {
-            mOneTimeFrameDrawnListener.onFrameDrawn(this);
-            mOneTimeFrameDrawnListener = null;
-        }
+        State s, next;
+        do {
+            s = mState.get();
+            if (s.oneTimeFrameDrawnListener == null) return;
+            next = s.copy();
+            next.oneTimeFrameDrawnListener = null;
+        } while (!mState.compareAndSet(s, next));
+        s.oneTimeFrameDrawnListener.onFrameDrawn(this);
+    }
+
+    private void runOnFrameDrawnListener() {
+        State s, next;
+        do {
+            s = mState.get();
+            if (s.onFrameDrawnListener == null) return;
+            next = s.copy();
+            next.onFrameDrawnListener = null;
+        } while (!mState.compareAndSet(s, next));
+        s.onFrameDrawnListener.run();
+    }
+
+    // Waits for a frame that arrives after this call before drawing again,
+    // and optionally sets the one time frame drawn listener.
+    private void resetFirstFrame(OnFrameDrawnListener l, boolean setListener) {
+        State s, next;
+        do {
+            s = mState.get();
+            next = s.copy();
+            next.framesBeforeFirst = mFrameAvailableCount.get();
+            if (setListener) next.oneTimeFrameDrawnListener = l;
+        } while (!mState.compareAndSet(s, next));
     }
 
     @Override
@@ -288,26 +420,29 @@ public class CameraScreenNail extends SurfaceTextureScreenNail {
 
     @Override
     public void draw(GLCanvas canvas, int x, int y, int width, int height) {
+        if (!mVisible) mVisible = true;
+        long waitStart = System.nanoTime();
         synchronized (mLock) {
-            if (!mVisible) mVisible = true;
+            long lockWait = System.nanoTime() - waitStart;
             SurfaceTexture surfaceTexture = getSurfaceTexture();
-            if (surfaceTexture == null || !mFirstFrameArrived) return;
-            if (mOnFrameDrawnListener != null) {
-                mOnFrameDrawnListener.run();
-                mOnFrameDrawnListener = null;
-            }
+            State state = mState.get();
+            int frame = mFrameAvailableCount.get();
+            if (surfaceTexture == null || frame <= state.framesBeforeFirst) return;
+            runOnFrameDrawnListener();
             float oldAlpha = canvas.getAlpha();
-            canvas.setAlpha(mAlpha);
+            canvas.setAlpha(state.alpha);
 
-            switch (mAnimState) {
+            int animState = state.animState;
+            switch (animState) {
                 case ANIM_NONE:
                     super.draw(canvas, x, y, width, height);
                     break;
                 case ANIM_SWITCH_COPY_TEXTURE:
                     copyPreviewTexture(canvas);
+                    mCaptureTexture = null;
                     mSwitchAnimManager.setReviewDrawingSize(width, height);
                     mListener.onPreviewTextureCopied();
-                    mAnimState = ANIM_SWITCH_DARK_PREVIEW;
+                    advanceAnimState(ANIM_SWITCH_COPY_TEXTURE, ANIM_SWITCH_DARK_PREVIEW);
                     // The texture is ready. Fall through to draw darkened
                     // preview.
                 case ANIM_SWITCH_DARK_PREVIEW:
@@ -321,20 +456,46 @@ public class CameraScreenNail extends SurfaceTextureScreenNail {
                     break;
                 case ANIM_SWITCH_START:
                     mSwitchAnimManager.startAnimation();
-                    mAnimState = ANIM_SWITCH_RUNNING;
+                    // If the main thread changed the state in the meantime,
+                    // the next frame follows it.
+                    advanceAnimState(ANIM_SWITCH_START, ANIM_SWITCH_RUNNING);
+                    animState = ANIM_SWITCH_RUNNING;
                     break;
                 case ANIM_CAPTURE_START:
-                    copyPreviewTexture(canvas);
+                    // In a burst, the preview has hardly changed since the
+                    // last shot, so its copy is reused.
+                    if (mCaptureTexture == mAnimTexture
+                            && mCaptureAnimManager.isStartedRecently()) {
+                        mAnimStats.onCopySkipped();
+                    } else {
+                        copyPreviewTexture(canvas);
+                        mCaptureTexture = mAnimTexture;
+                    }
                     mListener.onCaptureTextureCopied();
+                    mCaptureAnimManager.setOrientation(state.captureOrientation);
+                    if (state.captureType == CAPTURE_FLASH) {
+                        mCaptureAnimManager.animateFlash();
+                    } else {
+                        mCaptureAnimManager.animateFlashAndSlide();
+                    }
                     mCaptureAnimManager.startAnimation(x, y, width, height);
-                    mAnimState = ANIM_CAPTURE_RUNNING;
+                    mSlideRequestsHandled = state.slideRequests;
+                    advanceAnimState(ANIM_CAPTURE_START, ANIM_CAPTURE_RUNNING);
+                    animState = ANIM_CAPTURE_RUNNING;
+                    break;
+                case ANIM_CAPTURE_RUNNING:
+                    if (mSlideRequestsHandled != state.slideRequests) {
+                        mSlideRequestsHandled = state.slideRequests;
+                        mCaptureAnimManager.animateSlide();
+                    }
                     break;
             }
 
-            if (mAnimState == ANIM_CAPTURE_RUNNING || mAnimState == ANIM_SWITCH_RUNNING) {
+            if (animState == ANIM_CAPTURE_RUNNING || animState == ANIM_SWITCH_RUNNING) {
+                long animStart = System.nanoTime();
                 boolean drawn;
-                if (mAnimState == ANIM_CAPTURE_RUNNING) {
-                    if (!mFullScreen) {
+                if (animState == ANIM_CAPTURE_RUNNING) {
+                    if (!state.fullScreen) {
                         // Skip the animation if no longer in full screen mode
                         drawn = false;
                     } else {
@@ -345,15 +506,24 @@ public class CameraScreenNail extends SurfaceTextureScreenNail {
                             width, height, this, mAnimTexture);
                 }
                 if (drawn) {
+                    mAnimStats.onFrameDrawn(System.nanoTime() - animStart);
                     mListener.requestRender();
                 } else {
                     // Continue to the normal draw procedure if the animation is
                     // not drawn.
-                    mAnimState = ANIM_NONE;
+                    advanceAnimState(animState, ANIM_NONE);
                     super.draw(canvas, x, y, width, height);
                 }
             }
             canvas.setAlpha(oldAlpha);
+
+            if (frame != mLastDrawnFrame) {
+                mFrameStats.onFrameDrawn(frame - mLastDrawnFrame,
+                        System.nanoTime() - mFrameAvailableTimeNs, lockWait);
+                mLastDrawnFrame = frame;
+            } else {
+                mFrameStats.onRedraw(lockWait);
+            }
             callbackIfNeeded();
         } // mLock
     }
@@ -361,6 +531,7 @@ public class CameraScreenNail extends SurfaceTextureScreenNail {
     private void copyPreviewTexture(GLCanvas canvas) {
         int width = mAnimTexture.getWidth();
         int height = mAnimTexture.getHeight();
+        mAnimStats.onCopy();
         canvas.beginRenderTarget(mAnimTexture);
         // Flip preview texture vertically. OpenGL uses bottom left point
         // as the origin (0, 0).
@@ -375,33 +546,28 @@ public class CameraScreenNail extends SurfaceTextureScreenNail {
 
     @Override
     public void noDraw() {
-        synchronized (mLock) {
-            mVisible = false;
-        }
+        mVisible = false;
     }
 
     @Override
     public void recycle() {
-        synchronized (mLock) {
-            mVisible = false;
-        }
+        mVisible = false;
     }
 
     @Override
     public void onFrameAvailable(SurfaceTexture surfaceTexture) {
-        synchronized (mLock) {
-            if (getSurfaceTexture() != surfaceTexture) {
-                return;
-            }
-            mFirstFrameArrived = true;
-            if (mVisible) {
-                if (mAnimState == ANIM_SWITCH_WAITING_FIRST_FRAME) {
-                    mAnimState = ANIM_SWITCH_START;
-                }
-                // We need to ask for re-render if the SurfaceTexture receives a new
-                // frame.
-                mListener.requestRender();
-            }
+        if (getSurfaceTexture() != surfaceTexture) {
+            return;
+        }
+        // Set the time first, so the GL thread never pairs a new frame with
+        // the time of an older one.
+        mFrameAvailableTimeNs = System.nanoTime();
+        mFrameAvailableCount.incrementAndGet();
+        if (mVisible) {
+            advanceAnimState(ANIM_SWITCH_WAITING_FIRST_FRAME, ANIM_SWITCH_START);
+            // We need to ask for re-render if the SurfaceTexture receives a new
+            // frame.
+            mListener.requestRender();
         }
     }
 
@@ -417,28 +583,42 @@ public class CameraScreenNail extends SurfaceTextureScreenNail {
     }
 
     public void setOneTimeOnFrameDrawnListener(OnFrameDrawnListener l) {
-        synchronized (mLock) {
-            mFirstFrameArrived = false;
-            mOneTimeFrameDrawnListener = l;
-        }
+        resetFirstFrame(l, true);
     }
 
     public void setOnFrameDrawnOneShot(Runnable run) {
-        synchronized (mLock) {
-            mOnFrameDrawnListener = run;
-        }
+        State s, next;
+        do {
+            s = mState.get();
+            next = s.copy();
+            next.onFrameDrawnListener = run;
+        } while (!mState.compareAndSet(s, next));
     }
 
     public float getAlpha() {
-        synchronized (mLock) {
-            return mAlpha;
-        }
+        return mState.get().alpha;
     }
 
     public void setAlpha(float alpha) {
-        synchronized (mLock) {
-            mAlpha = alpha;
-            mListener.requestRender();
-        }
+        State s, next;
+        do {
+            s = mState.get();
+            next = s.copy();
+            next.alpha = alpha;
+        } while (!mState.compareAndSet(s, next));
+        mListener.requestRender();
+    }
+
+    /**
+     * Returns the frame pacing statistics of the current preview. They are
+     * updated by the GL thread, so read them with care while it is drawing.
+     */
+    public PreviewFrameStats getFrameStats() {
+        return mFrameStats;
+    }
+
+    /** Returns the animation statistics of the current preview. */
+    public AnimationStats getAnimationStats() {
+        return mAnimStats;
     }
 }
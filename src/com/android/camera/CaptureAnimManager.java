@@ -42,6 +42,7 @@ public class CaptureAnimManager {
 
     private int mAnimOrientation;  // Could be 0, 90, 180 or 270 degrees.
     private long mAnimStartTime;  // milliseconds.
+    private long mCaptureStartTime = -1;  // milliseconds.
     private float mX;  // The center of the whole view including preview and review.
     private float mY;
     private float mDelta;
@@ -78,6 +79,7 @@ public class CaptureAnimManager {
     // x, y, w and h: the rectangle area where the animation takes place.
     public void startAnimation(int x, int y, int w, int h) {
         mAnimStartTime = SystemClock.uptimeMillis();
+        mCaptureStartTime = mAnimStartTime;
         // Set the views to the initial positions.
         mDrawWidth = w;
         mDrawHeight = h;
@@ -99,6 +101,13 @@ public class CaptureAnimManager {
         }
     }
 
+    // Returns true if the last animation started less than the length of an
+    // animation ago, e.g. when the shots of a burst come faster than that.
+    public boolean isStartedRecently() {
+        return mCaptureStartTime >= 0
+                && SystemClock.uptimeMillis() - mCaptureStartTime < TIME_HOLD + TIME_SLIDE;
+    }
+
     // Returns true if the animation has been drawn.
     public boolean drawAnimation(GLCanvas canvas, CameraScreenNail preview,
                 RawTexture review) {
@@ -22,8 +22,11 @@ import android.graphics.SurfaceTexture;
 import android.hardware.Camera;
 import android.media.CamcorderProfile;
 import android.media.MediaRecorder;
+import android.os.ConditionVariable;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.android.gallery3d.common.ApiHelper;
@@ -35,11 +38,18 @@ import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 
 
 /**
  * Encapsulates the mobile filter framework components needed to record video
  * with effects applied. Modeled after MediaRecorder.
+ *
+ * All graph and camera work is done one command at a time on a dedicated
+ * command thread. Configuration setters only publish a new immutable
+ * {@link Config} snapshot, so they never wait for the filter graph.
  */
 @TargetApi(ApiHelper.VERSION_CODES.HONEYCOMB) // uses SurfaceTexture
 public class EffectsRecorder {
@@ -133,29 +143,27 @@ public class EffectsRecorder {
     public static final int  EFFECT_MSG_RECORDING_DONE   = 4;
     public static final int  EFFECT_MSG_PREVIEW_RUNNING  = 5;
 
+    // How often a blocked caller checks that the command thread is still alive.
+    private static final long COMMAND_WAIT_POLL_MS = 500;
+
     private Context mContext;
     private Handler mHandler;
+    private HandlerThread mCommandThread;
+    private Handler mCommandHandler;
+
+    // Guards publishing a new mConfig only; never held during graph work.
+    private final Object mConfigLock = new Object();
+    private volatile Config mConfig = new Config();
 
+    // The fields below are only touched on the command thread.
     private CameraManager.CameraProxy mCameraDevice;
-    private CamcorderProfile mProfile;
-    private double mCaptureRate = 0;
     private SurfaceTexture mPreviewSurfaceTexture;
     private int mPreviewWidth;
     private int mPreviewHeight;
-    private MediaRecorder.OnInfoListener mInfoListener;
-    private MediaRecorder.OnErrorListener mErrorListener;
-
-    private String mOutputFile;
-    private FileDescriptor mFd;
-    private int mOrientationHint = 0;
-    private long mMaxFileSize = 0;
-    private int mMaxDurationMs = 0;
-    private int mCameraFacing = Camera.CameraInfo.CAMERA_FACING_BACK;
-    private int mCameraDisplayOrientation;
 
     private int mEffect = EFFECT_NONE;
     private int mCurrentEffect = EFFECT_NONE;
-    private EffectsListener mEffectsListener;
+    private volatile EffectsListener mEffectsListener;
 
     private Object mEffectParameter;
 
@@ -166,17 +174,65 @@ public class EffectsRecorder {
 
     private SurfaceTexture mTextureSource;
 
+    // Graphs already loaded into mGraphEnv, keyed by effect ID. Switching back
+    // to a recently used effect reuses its runner instead of reparsing the
+    // graph. The profile and display orientation are bound into mGraphEnv, so
+    // the whole cache is dropped when either of them changes.
+    private static final int GRAPH_CACHE_SIZE = 2;
+    private final LinkedHashMap<Integer, CachedGraph> mGraphCache =
+            new LinkedHashMap<Integer, CachedGraph>(GRAPH_CACHE_SIZE, 0.75f, true);
+    // Runners dropped from the cache. They are torn down once the graph
+    // runner is idle, in the runner done callback.
+    private final ArrayList<Object> mStaleRunners = new ArrayList<Object>();
+    private CamcorderProfile mGraphEnvProfile;
+    private int mGraphEnvDisplayOrientation;
+
+    private long mLearningStartTime;
+    private long mRunnerStartTime;
+
+    // These latency time are for the effects latency measurements.
+    public long mGraphBuildTime;
+    public long mLearningTime;
+    public long mFirstFrameTime;
+    public int mGraphCacheHits;
+    public int mGraphCacheMisses;
+
     private static final int STATE_CONFIGURE              = 0;
     private static final int STATE_WAITING_FOR_SURFACE    = 1;
     private static final int STATE_STARTING_PREVIEW       = 2;
     private static final int STATE_PREVIEW                = 3;
     private static final int STATE_RECORD                 = 4;
     private static final int STATE_RELEASED               = 5;
-    private int mState = STATE_CONFIGURE;
+    // Written on the command thread, read anywhere to validate calls.
+    private volatile int mState = STATE_CONFIGURE;
 
     private boolean mLogVerbose = Log.isLoggable(TAG, Log.VERBOSE);
     private SoundClips.Player mSoundPlayer;
 
+    // An immutable snapshot of the recording configuration. Setters publish a
+    // modified copy, so a command always sees one consistent configuration.
+    private static class Config implements Cloneable {
+        CamcorderProfile profile;
+        double captureRate = 0;
+        String outputFile;
+        FileDescriptor fd;
+        int orientationHint = 0;
+        long maxFileSize = 0;
+        int maxDurationMs = 0;
+        int cameraFacing = Camera.CameraInfo.CAMERA_FACING_BACK;
+        int cameraDisplayOrientation;
+        MediaRecorder.OnInfoListener infoListener;
+        MediaRecorder.OnErrorListener errorListener;
+
+        Config copy() {
+            try {
+                return (Config) clone();
+            } catch (CloneNotSupportedException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+    }
+
     /** Determine if a given effect is supported at runtime
      * Some effects require libraries not available on all devices
      */
@@ -310,10 +366,59 @@ public class EffectsRecorder {
 
         mContext = context;
         mHandler = new Handler(Looper.getMainLooper());
+        mCommandThread = new HandlerThread("EffectsRecorder Command Thread");
+        mCommandThread.start();
+        mCommandHandler = new Handler(mCommandThread.getLooper());
         mSoundPlayer = SoundClips.getPlayer(context);
     }
 
-    public synchronized void setCamera(CameraManager.CameraProxy cameraDevice) {
+    // Runs the command on the command thread and waits for it to finish.
+    // Exceptions thrown by the command are rethrown to the caller.
+    private void runCommand(final Runnable command) {
+        if (Looper.myLooper() == mCommandThread.getLooper()) {
+            command.run();
+            return;
+        }
+        final ConditionVariable done = new ConditionVariable();
+        final RuntimeException[] failure = new RuntimeException[1];
+        boolean posted = mCommandHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    command.run();
+                } catch (RuntimeException ex) {
+                    failure[0] = ex;
+                } finally {
+                    done.open();
+                }
+            }
+        });
+        if (!posted) {
+            Log.w(TAG, "Command thread already quit, dropping command");
+            return;
+        }
+        // The command thread quits on release(); stop waiting if it is gone.
+        while (!done.block(COMMAND_WAIT_POLL_MS)) {
+            if (!mCommandThread.isAlive()) break;
+        }
+        if (failure[0] != null) throw failure[0];
+    }
+
+    // Queues the command on the command thread without waiting for it.
+    private void postCommand(Runnable command) {
+        mCommandHandler.post(command);
+    }
+
+    public void setCamera(final CameraManager.CameraProxy cameraDevice) {
+        runCommand(new Runnable() {
+            @Override
+            public void run() {
+                doSetCamera(cameraDevice);
+            }
+        });
+    }
+
+    private void doSetCamera(CameraManager.CameraProxy cameraDevice) {
         switch (mState) {
             case STATE_PREVIEW:
                 throw new RuntimeException("setCamera cannot be called while previewing!");
@@ -337,7 +442,32 @@ public class EffectsRecorder {
             default:
                 break;
         }
-        mProfile = profile;
+        synchronized (mConfigLock) {
+            Config config = mConfig.copy();
+            config.profile = profile;
+            mConfig = config;
+        }
+        postCommand(new Runnable() {
+            @Override
+            public void run() {
+                if (mGraphEnvProfile != null
+                        && !isSameProfile(mGraphEnvProfile, mConfig.profile)) {
+                    invalidateGraphCache();
+                }
+            }
+        });
+    }
+
+    private static boolean isSameProfile(CamcorderProfile a, CamcorderProfile b) {
+        if (a == b) return true;
+        if (a == null || b == null) return false;
+        return a.quality == b.quality
+                && a.fileFormat == b.fileFormat
+                && a.videoCodec == b.videoCodec
+                && a.videoBitRate == b.videoBitRate
+                && a.videoFrameRate == b.videoFrameRate
+                && a.videoFrameWidth == b.videoFrameWidth
+                && a.videoFrameHeight == b.videoFrameHeight;
     }
 
     public void setOutputFile(String outputFile) {
@@ -350,8 +480,12 @@ public class EffectsRecorder {
                 break;
         }
 
-        mOutputFile = outputFile;
-        mFd = null;
+        synchronized (mConfigLock) {
+            Config config = mConfig.copy();
+            config.outputFile = outputFile;
+            config.fd = null;
+            mConfig = config;
+        }
     }
 
     public void setOutputFile(FileDescriptor fd) {
@@ -364,8 +498,12 @@ public class EffectsRecorder {
                 break;
         }
 
-        mOutputFile = null;
-        mFd = fd;
+        synchronized (mConfigLock) {
+            Config config = mConfig.copy();
+            config.outputFile = null;
+            config.fd = fd;
+            mConfig = config;
+        }
     }
 
     /**
@@ -374,7 +512,7 @@ public class EffectsRecorder {
      * MediaRecorder ultimately. If zero or negative, the MediaRecorder will
      * disable the limit
     */
-    public synchronized void setMaxFileSize(long maxFileSize) {
+    public void setMaxFileSize(long maxFileSize) {
         switch (mState) {
             case STATE_RECORD:
                 throw new RuntimeException("setMaxFileSize cannot be called while recording!");
@@ -384,14 +522,18 @@ public class EffectsRecorder {
             default:
                 break;
         }
-        mMaxFileSize = maxFileSize;
+        synchronized (mConfigLock) {
+            Config config = mConfig.copy();
+            config.maxFileSize = maxFileSize;
+            mConfig = config;
+        }
     }
 
     /**
     * Sets the maximum recording duration (in ms) for the next recording session
     * Setting it to zero (the default) disables the limit.
     */
-    public synchronized void setMaxDuration(int maxDurationMs) {
+    public void setMaxDuration(int maxDurationMs) {
         switch (mState) {
             case STATE_RECORD:
                 throw new RuntimeException("setMaxDuration cannot be called while recording!");
@@ -401,7 +543,11 @@ public class EffectsRecorder {
             default:
                 break;
         }
-        mMaxDurationMs = maxDurationMs;
+        synchronized (mConfigLock) {
+            Config config = mConfig.copy();
+            config.maxDurationMs = maxDurationMs;
+            mConfig = config;
+        }
     }
 
 
@@ -417,12 +563,26 @@ public class EffectsRecorder {
         }
 
         if (mLogVerbose) Log.v(TAG, "Setting time lapse capture rate to " + fps + " fps");
-        mCaptureRate = fps;
+        synchronized (mConfigLock) {
+            Config config = mConfig.copy();
+            config.captureRate = fps;
+            mConfig = config;
+        }
+    }
+
+    public void setPreviewSurfaceTexture(final SurfaceTexture previewSurfaceTexture,
+                                  final int previewWidth,
+                                  final int previewHeight) {
+        runCommand(new Runnable() {
+            @Override
+            public void run() {
+                doSetPreviewSurfaceTexture(previewSurfaceTexture, previewWidth, previewHeight);
+            }
+        });
     }
 
-    public void setPreviewSurfaceTexture(SurfaceTexture previewSurfaceTexture,
-                                  int previewWidth,
-                                  int previewHeight) {
+    private void doSetPreviewSurfaceTexture(SurfaceTexture previewSurfaceTexture,
+            int previewWidth, int previewHeight) {
         if (mLogVerbose) Log.v(TAG, "setPreviewSurfaceTexture(" + this + ")");
         switch (mState) {
             case STATE_RECORD:
@@ -441,7 +601,7 @@ public class EffectsRecorder {
 
         switch (mState) {
             case STATE_WAITING_FOR_SURFACE:
-                startPreview();
+                doStartPreview();
                 break;
             case STATE_STARTING_PREVIEW:
             case STATE_PREVIEW:
@@ -450,7 +610,16 @@ public class EffectsRecorder {
         }
     }
 
-    public void setEffect(int effect, Object effectParameter) {
+    public void setEffect(final int effect, final Object effectParameter) {
+        runCommand(new Runnable() {
+            @Override
+            public void run() {
+                doSetEffect(effect, effectParameter);
+            }
+        });
+    }
+
+    private void doSetEffect(int effect, Object effectParameter) {
         if (mLogVerbose) Log.v(TAG,
                                "setEffect: effect ID " + effect +
                                ", parameter " + effectParameter.toString());
@@ -483,28 +652,30 @@ public class EffectsRecorder {
 
     private void setFaceDetectOrientation() {
         if (mCurrentEffect == EFFECT_GOOFY_FACE) {
+            int orientationHint = mConfig.orientationHint;
             Object rotateFilter = getGraphFilter(mRunner, "rotate");
             Object metaRotateFilter = getGraphFilter(mRunner, "metarotate");
-            setInputValue(rotateFilter, "rotation", mOrientationHint);
-            int reverseDegrees = (360 - mOrientationHint) % 360;
+            setInputValue(rotateFilter, "rotation", orientationHint);
+            int reverseDegrees = (360 - orientationHint) % 360;
             setInputValue(metaRotateFilter, "rotation", reverseDegrees);
         }
     }
 
     private void setRecordingOrientation() {
         if (mState != STATE_RECORD && mRunner != null) {
+            Config config = mConfig;
             Object bl = newInstance(sCtPoint, new Object[] {0, 0});
             Object br = newInstance(sCtPoint, new Object[] {1, 0});
             Object tl = newInstance(sCtPoint, new Object[] {0, 1});
             Object tr = newInstance(sCtPoint, new Object[] {1, 1});
             Object recordingRegion;
-            if (mCameraFacing == Camera.CameraInfo.CAMERA_FACING_BACK) {
+            if (config.cameraFacing == Camera.CameraInfo.CAMERA_FACING_BACK) {
                 // The back camera is not mirrored, so use a identity transform
                 recordingRegion = newInstance(sCtQuad, new Object[] {bl, br, tl, tr});
             } else {
                 // Recording region needs to be tweaked for front cameras, since they
                 // mirror their preview
-                if (mOrientationHint == 0 || mOrientationHint == 180) {
+                if (config.orientationHint == 0 || config.orientationHint == 180) {
                     // Horizontal flip in landscape
                     recordingRegion = newInstance(sCtQuad, new Object[] {br, bl, tr, tl});
                 } else {
@@ -525,17 +696,41 @@ public class EffectsRecorder {
                 break;
         }
         if (mLogVerbose) Log.v(TAG, "Setting orientation hint to: " + degrees);
-        mOrientationHint = degrees;
-        setFaceDetectOrientation();
-        setRecordingOrientation();
+        synchronized (mConfigLock) {
+            Config config = mConfig.copy();
+            config.orientationHint = degrees;
+            mConfig = config;
+        }
+        postOrientationUpdate();
+    }
+
+    // A burst of orientation changes only needs the latest one applied, so
+    // an update still pending is replaced instead of queued behind.
+    private void postOrientationUpdate() {
+        mCommandHandler.removeCallbacks(mApplyOrientation);
+        postCommand(mApplyOrientation);
     }
 
+    // Rebinds the latest orientation and facing to the running graph.
+    private final Runnable mApplyOrientation = new Runnable() {
+        @Override
+        public void run() {
+            if (mState == STATE_RELEASED) return;
+            setFaceDetectOrientation();
+            setRecordingOrientation();
+        }
+    };
+
     public void setCameraDisplayOrientation(int orientation) {
         if (mState != STATE_CONFIGURE) {
             throw new RuntimeException(
                 "setCameraDisplayOrientation called after configuration!");
         }
-        mCameraDisplayOrientation = orientation;
+        synchronized (mConfigLock) {
+            Config config = mConfig.copy();
+            config.cameraDisplayOrientation = orientation;
+            mConfig = config;
+        }
     }
 
     public void setCameraFacing(int facing) {
@@ -546,8 +741,12 @@ public class EffectsRecorder {
             default:
                 break;
         }
-        mCameraFacing = facing;
-        setRecordingOrientation();
+        synchronized (mConfigLock) {
+            Config config = mConfig.copy();
+            config.cameraFacing = facing;
+            mConfig = config;
+        }
+        postOrientationUpdate();
     }
 
     public void setOnInfoListener(MediaRecorder.OnInfoListener infoListener) {
@@ -560,7 +759,11 @@ public class EffectsRecorder {
             default:
                 break;
         }
-        mInfoListener = infoListener;
+        synchronized (mConfigLock) {
+            Config config = mConfig.copy();
+            config.infoListener = infoListener;
+            mConfig = config;
+        }
     }
 
     public void setOnErrorListener(MediaRecorder.OnErrorListener errorListener) {
@@ -573,16 +776,27 @@ public class EffectsRecorder {
             default:
                 break;
         }
-        mErrorListener = errorListener;
+        synchronized (mConfigLock) {
+            Config config = mConfig.copy();
+            config.errorListener = errorListener;
+            mConfig = config;
+        }
     }
 
     private void initializeFilterFramework() {
+        // Graphs of the previous environment go away with it.
+        tearDownIdleGraphs();
+        Config config = mConfig;
+        mGraphEnvProfile = config.profile;
+        mGraphEnvDisplayOrientation = config.cameraDisplayOrientation;
+
         mGraphEnv = newInstance(sCtGraphEnvironment);
         invoke(mGraphEnv, sGraphEnvironmentCreateGLEnvironment);
 
-        int videoFrameWidth = mProfile.videoFrameWidth;
-        int videoFrameHeight = mProfile.videoFrameHeight;
-        if (mCameraDisplayOrientation == 90 || mCameraDisplayOrientation == 270) {
+        int videoFrameWidth = config.profile.videoFrameWidth;
+        int videoFrameHeight = config.profile.videoFrameHeight;
+        if (config.cameraDisplayOrientation == 90
+                || config.cameraDisplayOrientation == 270) {
             int tmp = videoFrameWidth;
             videoFrameWidth = videoFrameHeight;
             videoFrameHeight = tmp;
@@ -593,7 +807,7 @@ public class EffectsRecorder {
                 "textureSourceCallback", mSourceReadyCallback,
                 "recordingWidth", videoFrameWidth,
                 "recordingHeight", videoFrameHeight,
-                "recordingProfile", mProfile,
+                "recordingProfile", config.profile,
                 "learningDoneListener", mLearningDoneListener,
                 "recordingDoneListener", mRecordingDoneListener}});
         mRunner = null;
@@ -601,45 +815,40 @@ public class EffectsRecorder {
         mCurrentEffect = EFFECT_NONE;
     }
 
-    private synchronized void initializeEffect(boolean forceReset) {
+    private void initializeEffect(boolean forceReset) {
         if (forceReset ||
             mCurrentEffect != mEffect ||
             mCurrentEffect == EFFECT_BACKDROPPER) {
 
-            invoke(mGraphEnv, sGraphEnvironmentAddReferences,
-                    new Object[] {new Object[] {
-                    "previewSurfaceTexture", mPreviewSurfaceTexture,
-                    "previewWidth", mPreviewWidth,
-                    "previewHeight", mPreviewHeight,
-                    "orientation", mOrientationHint}});
+            if (forceReset) {
+                // The preview surface changed; no loaded graph can be reused.
+                invalidateGraphCache();
+            }
             if (mState == STATE_PREVIEW ||
                     mState == STATE_STARTING_PREVIEW) {
                 // Switching effects while running. Inform video camera.
                 sendMessage(mCurrentEffect, EFFECT_MSG_SWITCHING_EFFECT);
             }
+            if (mEffect == EFFECT_BACKDROPPER) {
+                // The learner starts over whenever the graph (re)starts.
+                mLearningStartTime = SystemClock.uptimeMillis();
+                sendMessage(EFFECT_BACKDROPPER, EFFECT_MSG_STARTED_LEARNING);
+            }
 
-            switch (mEffect) {
-                case EFFECT_GOOFY_FACE:
-                    mGraphId = (Integer) invoke(mGraphEnv,
-                            sGraphEnvironmentLoadGraph,
-                            new Object[] {mContext, R.raw.goofy_face});
-                    break;
-                case EFFECT_BACKDROPPER:
-                    sendMessage(EFFECT_BACKDROPPER, EFFECT_MSG_STARTED_LEARNING);
-                    mGraphId = (Integer) invoke(mGraphEnv,
-                            sGraphEnvironmentLoadGraph,
-                            new Object[] {mContext, R.raw.backdropper});
-                    break;
-                default:
-                    throw new RuntimeException("Unknown effect ID" + mEffect + "!");
+            // Restarting the running backdropper always reloads its graph.
+            CachedGraph graph = (mCurrentEffect == mEffect) ? null : getCachedGraph(mEffect);
+            if (graph != null) {
+                mGraphCacheHits++;
+                if (mLogVerbose) Log.v(TAG, "Reusing cached graph for effect " + mEffect);
+            } else {
+                mGraphCacheMisses++;
+                graph = loadGraph(mEffect);
             }
+            mGraphId = graph.graphId;
             mCurrentEffect = mEffect;
 
             mOldRunner = mRunner;
-            mRunner = invoke(mGraphEnv, sGraphEnvironmentGetRunner,
-                    new Object[] {mGraphId,
-                    getConstant(sClsGraphEnvironment, "MODE_ASYNCHRONOUS")});
-            invoke(mRunner, sGraphRunnerSetDoneCallback, new Object[] {mRunnerDoneCallback});
+            mRunner = graph.runner;
             if (mLogVerbose) {
                 Log.v(TAG, "New runner: " + mRunner
                       + ". Old runner: " + mOldRunner);
@@ -672,7 +881,7 @@ public class EffectsRecorder {
                 setInputValue(backgroundSrc, "sourceUrl", mEffectParameter);
                 // For front camera, the background video needs to be mirrored in the
                 // backdropper filter
-                if (mCameraFacing == Camera.CameraInfo.CAMERA_FACING_FRONT) {
+                if (mConfig.cameraFacing == Camera.CameraInfo.CAMERA_FACING_FRONT) {
                     Object replacer = getGraphFilter(mRunner, "replacer");
                     setInputValue(replacer, "mirrorBg", true);
                     if (mLogVerbose) Log.v(TAG, "Setting the background to be mirrored");
@@ -685,7 +894,139 @@ public class EffectsRecorder {
         setRecordingOrientation();
     }
 
-    public synchronized void startPreview() {
+    private CachedGraph loadGraph(int effect) {
+        long start = SystemClock.uptimeMillis();
+        int orientationHint = mConfig.orientationHint;
+        invoke(mGraphEnv, sGraphEnvironmentAddReferences,
+                new Object[] {new Object[] {
+                "previewSurfaceTexture", mPreviewSurfaceTexture,
+                "previewWidth", mPreviewWidth,
+                "previewHeight", mPreviewHeight,
+                "orientation", orientationHint}});
+
+        int graphResource;
+        switch (effect) {
+            case EFFECT_GOOFY_FACE:
+                graphResource = R.raw.goofy_face;
+                break;
+            case EFFECT_BACKDROPPER:
+                graphResource = R.raw.backdropper;
+                break;
+            default:
+                throw new RuntimeException("Unknown effect ID" + effect + "!");
+        }
+
+        CachedGraph graph = new CachedGraph();
+        graph.graphId = (Integer) invoke(mGraphEnv, sGraphEnvironmentLoadGraph,
+                new Object[] {mContext, graphResource});
+        graph.runner = invoke(mGraphEnv, sGraphEnvironmentGetRunner,
+                new Object[] {graph.graphId,
+                getConstant(sClsGraphEnvironment, "MODE_ASYNCHRONOUS")});
+        invoke(graph.runner, sGraphRunnerSetDoneCallback, new Object[] {mRunnerDoneCallback});
+        graph.previewSurfaceTexture = mPreviewSurfaceTexture;
+        graph.previewWidth = mPreviewWidth;
+        graph.previewHeight = mPreviewHeight;
+        graph.orientation = orientationHint;
+
+        CachedGraph replaced = mGraphCache.put(effect, graph);
+        if (replaced != null) dropCachedRunner(replaced.runner);
+        if (mGraphCache.size() > GRAPH_CACHE_SIZE) {
+            Iterator<CachedGraph> it = mGraphCache.values().iterator();
+            dropCachedRunner(it.next().runner);
+            it.remove();
+        }
+
+        mGraphBuildTime = SystemClock.uptimeMillis() - start;
+        Log.v(TAG, "mGraphBuildTime = " + mGraphBuildTime + "ms");
+        return graph;
+    }
+
+    // Returns the graph loaded earlier for the effect if it was built with the
+    // current preview references and is not shutting down, or null otherwise.
+    private CachedGraph getCachedGraph(int effect) {
+        CachedGraph graph = mGraphCache.get(effect);
+        if (graph == null) return null;
+        if (graph.previewSurfaceTexture != mPreviewSurfaceTexture
+                || graph.previewWidth != mPreviewWidth
+                || graph.previewHeight != mPreviewHeight
+                || graph.orientation != mConfig.orientationHint
+                || graph.runner == mOldRunner) {
+            mGraphCache.remove(effect);
+            dropCachedRunner(graph.runner);
+            return null;
+        }
+        return graph;
+    }
+
+    private void invalidateGraphCache() {
+        for (CachedGraph graph : mGraphCache.values()) {
+            dropCachedRunner(graph.runner);
+        }
+        mGraphCache.clear();
+    }
+
+    private boolean isGraphCached(Object runner) {
+        for (CachedGraph graph : mGraphCache.values()) {
+            if (graph.runner == runner) return true;
+        }
+        return false;
+    }
+
+    // The running runner is torn down through mOldRunner once it stops.
+    private void dropCachedRunner(Object runner) {
+        if (runner != mRunner && !mStaleRunners.contains(runner)) {
+            mStaleRunners.add(runner);
+        }
+    }
+
+    // Called from the runner done callback, when no graph is running.
+    private void tearDownStaleGraphs() {
+        if (mStaleRunners.isEmpty()) return;
+        if (mLogVerbose) Log.v(TAG, "Tearing down " + mStaleRunners.size() + " old graph(s).");
+        Object glEnv = getContextGLEnvironment(mGraphEnv);
+        if (glEnv != null && !(Boolean) invoke(glEnv, sGLEnvironmentIsActive)) {
+            invoke(glEnv, sGLEnvironmentActivate);
+        }
+        Object filterContext = invoke(mGraphEnv, sGraphEnvironmentGetContext);
+        for (Object runner : mStaleRunners) {
+            getGraphTearDown(runner, filterContext);
+        }
+        mStaleRunners.clear();
+        if (glEnv != null && (Boolean) invoke(glEnv, sGLEnvironmentIsActive)) {
+            invoke(glEnv, sGLEnvironmentDeactivate);
+        }
+    }
+
+    // Tears down every graph of the environment but the one running or
+    // shutting down, before the environment is replaced or released. The
+    // graph shutting down is torn down in the runner done callback.
+    private void tearDownIdleGraphs() {
+        if (mGraphEnv == null) return;
+        invalidateGraphCache();
+        mStaleRunners.remove(mOldRunner);
+        tearDownStaleGraphs();
+    }
+
+    private static class CachedGraph {
+        int graphId;
+        Object runner;
+        // The references the graph was loaded with.
+        SurfaceTexture previewSurfaceTexture;
+        int previewWidth;
+        int previewHeight;
+        int orientation;
+    }
+
+    public void startPreview() {
+        runCommand(new Runnable() {
+            @Override
+            public void run() {
+                doStartPreview();
+            }
+        });
+    }
+
+    private void doStartPreview() {
         if (mLogVerbose) Log.v(TAG, "Starting preview (" + this + ")");
 
         switch (mState) {
@@ -708,7 +1049,8 @@ public class EffectsRecorder {
         if (mEffectParameter == null) {
             throw new RuntimeException("No effect parameter provided!");
         }
-        if (mProfile == null) {
+        Config config = mConfig;
+        if (config.profile == null) {
             throw new RuntimeException("No recording profile provided!");
         }
         if (mPreviewSurfaceTexture == null) {
@@ -720,12 +1062,20 @@ public class EffectsRecorder {
             throw new RuntimeException("No camera to record from!");
         }
 
-        if (mLogVerbose) Log.v(TAG, "Initializing filter framework and running the graph.");
-        initializeFilterFramework();
-
-        initializeEffect(true);
+        // A graph that is still shutting down keeps using the old environment.
+        if (mGraphEnv == null || mOldRunner != null
+                || !isSameProfile(mGraphEnvProfile, config.profile)
+                || mGraphEnvDisplayOrientation != config.cameraDisplayOrientation) {
+            if (mLogVerbose) Log.v(TAG, "Initializing filter framework and running the graph.");
+            initializeFilterFramework();
+            initializeEffect(true);
+        } else {
+            if (mLogVerbose) Log.v(TAG, "Reusing filter framework and running the graph.");
+            initializeEffect(false);
+        }
 
         mState = STATE_STARTING_PREVIEW;
+        mRunnerStartTime = SystemClock.uptimeMillis();
         invoke(mRunner, sGraphRunnerRun);
         // Rest of preview startup handled in mSourceReadyCallback
     }
@@ -740,141 +1090,166 @@ public class EffectsRecorder {
 
     private void invokeOnLearningDone() {
         if (mLogVerbose) Log.v(TAG, "Learning done callback triggered");
+        mLearningTime = SystemClock.uptimeMillis() - mLearningStartTime;
+        Log.v(TAG, "mLearningTime = " + mLearningTime + "ms");
         // Called in a processing thread, so have to post message back to UI
         // thread
         sendMessage(EFFECT_BACKDROPPER, EFFECT_MSG_DONE_LEARNING);
-        enable3ALocks(true);
+        postCommand(new Runnable() {
+            @Override
+            public void run() {
+                enable3ALocks(true);
+            }
+        });
     }
 
     private void invokeOnRunnerDone(Object[] args) {
-        int runnerDoneResult = (Integer) args[0];
-        synchronized (EffectsRecorder.this) {
-            if (mLogVerbose) {
-                Log.v(TAG,
-                      "Graph runner done (" + EffectsRecorder.this
-                      + ", mRunner " + mRunner
-                      + ", mOldRunner " + mOldRunner + ")");
+        final int runnerDoneResult = (Integer) args[0];
+        postCommand(new Runnable() {
+            @Override
+            public void run() {
+                doRunnerDone(runnerDoneResult);
             }
-            if (runnerDoneResult ==
-                    (Integer) getConstant(sClsGraphRunner, "RESULT_ERROR")) {
-                // Handle error case
-                Log.e(TAG, "Error running filter graph!");
-                Exception e = null;
-                if (mRunner != null) {
-                    e = (Exception) invoke(mRunner, sGraphRunnerGetError);
-                } else if (mOldRunner != null) {
-                    e = (Exception) invoke(mOldRunner, sGraphRunnerGetError);
-                }
-                raiseError(e);
+        });
+    }
+
+    private void doRunnerDone(int runnerDoneResult) {
+        if (mLogVerbose) {
+            Log.v(TAG,
+                  "Graph runner done (" + EffectsRecorder.this
+                  + ", mRunner " + mRunner
+                  + ", mOldRunner " + mOldRunner + ")");
+        }
+        if (runnerDoneResult ==
+                (Integer) getConstant(sClsGraphRunner, "RESULT_ERROR")) {
+            // Handle error case
+            Log.e(TAG, "Error running filter graph!");
+            Exception e = null;
+            if (mRunner != null) {
+                e = (Exception) invoke(mRunner, sGraphRunnerGetError);
+            } else if (mOldRunner != null) {
+                e = (Exception) invoke(mOldRunner, sGraphRunnerGetError);
             }
-            if (mOldRunner != null) {
-                // Tear down old graph if available
-                if (mLogVerbose) Log.v(TAG, "Tearing down old graph.");
-                Object glEnv = getContextGLEnvironment(mGraphEnv);
-                if (glEnv != null && !(Boolean) invoke(glEnv, sGLEnvironmentIsActive)) {
-                    invoke(glEnv, sGLEnvironmentActivate);
-                }
-                getGraphTearDown(mOldRunner,
-                        invoke(mGraphEnv, sGraphEnvironmentGetContext));
-                if (glEnv != null && (Boolean) invoke(glEnv, sGLEnvironmentIsActive)) {
-                    invoke(glEnv, sGLEnvironmentDeactivate);
-                }
-                mOldRunner = null;
+            raiseError(e);
+        }
+        if (mOldRunner != null) {
+            // Tear down old graph unless it is kept for reuse
+            if (!isGraphCached(mOldRunner) && !mStaleRunners.contains(mOldRunner)) {
+                mStaleRunners.add(mOldRunner);
             }
-            if (mState == STATE_PREVIEW ||
-                    mState == STATE_STARTING_PREVIEW) {
-                // Switching effects, start up the new runner
-                if (mLogVerbose) {
-                    Log.v(TAG, "Previous effect halted. Running graph again. state: "
-                            + mState);
-                }
-                tryEnable3ALocks(false);
-                // In case of an error, the graph restarts from beginning and in case
-                // of the BACKDROPPER effect, the learner re-learns the background.
-                // Hence, we need to show the learning dialogue to the user
-                // to avoid recording before the learning is done. Else, the user
-                // could start recording before the learning is done and the new
-                // background comes up later leading to an end result video
-                // with a heterogeneous background.
-                // For BACKDROPPER effect, this path is also executed sometimes at
-                // the end of a normal recording session. In such a case, the graph
-                // does not restart and hence the learner does not re-learn. So we
-                // do not want to show the learning dialogue then.
-                if (runnerDoneResult == (Integer) getConstant(
-                        sClsGraphRunner, "RESULT_ERROR")
-                        && mCurrentEffect == EFFECT_BACKDROPPER) {
-                    sendMessage(EFFECT_BACKDROPPER, EFFECT_MSG_STARTED_LEARNING);
-                }
-                invoke(mRunner, sGraphRunnerRun);
-            } else if (mState != STATE_RELEASED) {
-                // Shutting down effects
-                if (mLogVerbose) Log.v(TAG, "Runner halted, restoring direct preview");
-                tryEnable3ALocks(false);
-                sendMessage(EFFECT_NONE, EFFECT_MSG_EFFECTS_STOPPED);
-            } else {
-                // STATE_RELEASED - camera will be/has been released as well, do nothing.
+            mOldRunner = null;
+        }
+        tearDownStaleGraphs();
+        if (mState == STATE_PREVIEW ||
+                mState == STATE_STARTING_PREVIEW) {
+            // Switching effects, start up the new runner
+            if (mLogVerbose) {
+                Log.v(TAG, "Previous effect halted. Running graph again. state: "
+                        + mState);
+            }
+            tryEnable3ALocks(false);
+            // In case of an error, the graph restarts from beginning and in case
+            // of the BACKDROPPER effect, the learner re-learns the background.
+            // Hence, we need to show the learning dialogue to the user
+            // to avoid recording before the learning is done. Else, the user
+            // could start recording before the learning is done and the new
+            // background comes up later leading to an end result video
+            // with a heterogeneous background.
+            // For BACKDROPPER effect, this path is also executed sometimes at
+            // the end of a normal recording session. In such a case, the graph
+            // does not restart and hence the learner does not re-learn. So we
+            // do not want to show the learning dialogue then.
+            if (runnerDoneResult == (Integer) getConstant(
+                    sClsGraphRunner, "RESULT_ERROR")
+                    && mCurrentEffect == EFFECT_BACKDROPPER) {
+                mLearningStartTime = SystemClock.uptimeMillis();
+                sendMessage(EFFECT_BACKDROPPER, EFFECT_MSG_STARTED_LEARNING);
             }
+            mRunnerStartTime = SystemClock.uptimeMillis();
+            invoke(mRunner, sGraphRunnerRun);
+        } else if (mState != STATE_RELEASED) {
+            // Shutting down effects
+            if (mLogVerbose) Log.v(TAG, "Runner halted, restoring direct preview");
+            tryEnable3ALocks(false);
+            sendMessage(EFFECT_NONE, EFFECT_MSG_EFFECTS_STOPPED);
+        } else {
+            // STATE_RELEASED - camera will be/has been released as well, do nothing.
         }
     }
 
     private void invokeOnSurfaceTextureSourceReady(Object[] args) {
-        SurfaceTexture source = (SurfaceTexture) args[0];
+        final SurfaceTexture source = (SurfaceTexture) args[0];
         if (mLogVerbose) Log.v(TAG, "SurfaceTexture ready callback received");
-        synchronized (EffectsRecorder.this) {
-            mTextureSource = source;
-
-            if (mState == STATE_CONFIGURE) {
-                // Stop preview happened while the runner was doing startup tasks
-                // Since we haven't started anything up, don't do anything
-                // Rest of cleanup will happen in onRunnerDone
-                if (mLogVerbose) Log.v(TAG, "Ready callback: Already stopped, skipping.");
-                return;
+        Runnable command = new Runnable() {
+            @Override
+            public void run() {
+                doSurfaceTextureSourceReady(source);
             }
-            if (mState == STATE_RELEASED) {
-                // EffectsRecorder has been released, so don't touch the camera device
-                // or anything else
-                if (mLogVerbose) Log.v(TAG, "Ready callback: Already released, skipping.");
-                return;
+        };
+        if (source == null) {
+            // The preview has to be stopped before the source goes away.
+            runCommand(command);
+        } else {
+            postCommand(command);
+        }
+    }
+
+    private void doSurfaceTextureSourceReady(SurfaceTexture source) {
+        mTextureSource = source;
+
+        if (mState == STATE_CONFIGURE) {
+            // Stop preview happened while the runner was doing startup tasks
+            // Since we haven't started anything up, don't do anything
+            // Rest of cleanup will happen in onRunnerDone
+            if (mLogVerbose) Log.v(TAG, "Ready callback: Already stopped, skipping.");
+            return;
+        }
+        if (mState == STATE_RELEASED) {
+            // EffectsRecorder has been released, so don't touch the camera device
+            // or anything else
+            if (mLogVerbose) Log.v(TAG, "Ready callback: Already released, skipping.");
+            return;
+        }
+        if (source == null) {
+            if (mLogVerbose) {
+                Log.v(TAG, "Ready callback: source null! Looks like graph was closed!");
             }
-            if (source == null) {
+            if (mState == STATE_PREVIEW ||
+                    mState == STATE_STARTING_PREVIEW ||
+                    mState == STATE_RECORD) {
+                // A null source here means the graph is shutting down
+                // unexpectedly, so we need to turn off preview before
+                // the surface texture goes away.
                 if (mLogVerbose) {
-                    Log.v(TAG, "Ready callback: source null! Looks like graph was closed!");
+                    Log.v(TAG, "Ready callback: State: " + mState
+                            + ". stopCameraPreview");
                 }
-                if (mState == STATE_PREVIEW ||
-                        mState == STATE_STARTING_PREVIEW ||
-                        mState == STATE_RECORD) {
-                    // A null source here means the graph is shutting down
-                    // unexpectedly, so we need to turn off preview before
-                    // the surface texture goes away.
-                    if (mLogVerbose) {
-                        Log.v(TAG, "Ready callback: State: " + mState
-                                + ". stopCameraPreview");
-                    }
 
-                    stopCameraPreview();
-                }
-                return;
+                doStopCameraPreview();
             }
+            return;
+        }
 
-            // Lock AE/AWB to reduce transition flicker
-            tryEnable3ALocks(true);
+        // Lock AE/AWB to reduce transition flicker
+        tryEnable3ALocks(true);
 
-            mCameraDevice.stopPreview();
-            if (mLogVerbose) Log.v(TAG, "Runner active, connecting effects preview");
-            mCameraDevice.setPreviewTextureAsync(mTextureSource);
+        mCameraDevice.stopPreview();
+        if (mLogVerbose) Log.v(TAG, "Runner active, connecting effects preview");
+        mCameraDevice.setPreviewTextureAsync(mTextureSource);
 
-            mCameraDevice.startPreviewAsync();
+        mCameraDevice.startPreviewAsync();
 
-            // Unlock AE/AWB after preview started
-            tryEnable3ALocks(false);
+        // Unlock AE/AWB after preview started
+        tryEnable3ALocks(false);
 
-            mState = STATE_PREVIEW;
+        mState = STATE_PREVIEW;
 
-            if (mLogVerbose) Log.v(TAG, "Start preview/effect switch complete");
+        mFirstFrameTime = SystemClock.uptimeMillis() - mRunnerStartTime;
+        Log.v(TAG, "mFirstFrameTime = " + mFirstFrameTime + "ms");
+        if (mLogVerbose) Log.v(TAG, "Start preview/effect switch complete");
 
-            // Sending a message to listener that preview is complete
-            sendMessage(mCurrentEffect, EFFECT_MSG_PREVIEW_RUNNING);
-        }
+        // Sending a message to listener that preview is complete
+        sendMessage(mCurrentEffect, EFFECT_MSG_PREVIEW_RUNNING);
     }
 
     private void invokeOnRecordingDone() {
@@ -883,7 +1258,16 @@ public class EffectsRecorder {
         sendMessage(EFFECT_NONE, EFFECT_MSG_RECORDING_DONE);
     }
 
-    public synchronized void startRecording() {
+    public void startRecording() {
+        runCommand(new Runnable() {
+            @Override
+            public void run() {
+                doStartRecording();
+            }
+        });
+    }
+
+    private void doStartRecording() {
         if (mLogVerbose) Log.v(TAG, "Starting recording (" + this + ")");
 
         switch (mState) {
@@ -896,32 +1280,33 @@ public class EffectsRecorder {
                 break;
         }
 
-        if ((mOutputFile == null) && (mFd == null)) {
+        Config config = mConfig;
+        if ((config.outputFile == null) && (config.fd == null)) {
             throw new RuntimeException("No output file name or descriptor provided!");
         }
 
         if (mState == STATE_CONFIGURE) {
-            startPreview();
+            doStartPreview();
         }
 
         Object recorder = getGraphFilter(mRunner, "recorder");
-        if (mFd != null) {
-            setInputValue(recorder, "outputFileDescriptor", mFd);
+        if (config.fd != null) {
+            setInputValue(recorder, "outputFileDescriptor", config.fd);
         } else {
-            setInputValue(recorder, "outputFile", mOutputFile);
+            setInputValue(recorder, "outputFile", config.outputFile);
         }
         // It is ok to set the audiosource without checking for timelapse here
         // since that check will be done in the MediaEncoderFilter itself
         setInputValue(recorder, "audioSource", MediaRecorder.AudioSource.CAMCORDER);
-        setInputValue(recorder, "recordingProfile", mProfile);
-        setInputValue(recorder, "orientationHint", mOrientationHint);
+        setInputValue(recorder, "recordingProfile", config.profile);
+        setInputValue(recorder, "orientationHint", config.orientationHint);
         // Important to set the timelapseinterval to 0 if the capture rate is not >0
         // since the recorder does not get created every time the recording starts.
         // The recorder infers whether the capture is timelapsed based on the value of
         // this interval
-        boolean captureTimeLapse = mCaptureRate > 0;
+        boolean captureTimeLapse = config.captureRate > 0;
         if (captureTimeLapse) {
-            double timeBetweenFrameCapture = 1 / mCaptureRate;
+            double timeBetweenFrameCapture = 1 / config.captureRate;
             setInputValue(recorder, "timelapseRecordingIntervalUs",
                     (long) (1000000 * timeBetweenFrameCapture));
 
@@ -929,20 +1314,29 @@ public class EffectsRecorder {
             setInputValue(recorder, "timelapseRecordingIntervalUs", 0L);
         }
 
-        if (mInfoListener != null) {
-            setInputValue(recorder, "infoListener", mInfoListener);
+        if (config.infoListener != null) {
+            setInputValue(recorder, "infoListener", config.infoListener);
         }
-        if (mErrorListener != null) {
-            setInputValue(recorder, "errorListener", mErrorListener);
+        if (config.errorListener != null) {
+            setInputValue(recorder, "errorListener", config.errorListener);
         }
-        setInputValue(recorder, "maxFileSize", mMaxFileSize);
-        setInputValue(recorder, "maxDurationMs", mMaxDurationMs);
+        setInputValue(recorder, "maxFileSize", config.maxFileSize);
+        setInputValue(recorder, "maxDurationMs", config.maxDurationMs);
         setInputValue(recorder, "recording", true);
         mSoundPlayer.play(SoundClips.START_VIDEO_RECORDING);
         mState = STATE_RECORD;
     }
 
-    public synchronized void stopRecording() {
+    public void stopRecording() {
+        runCommand(new Runnable() {
+            @Override
+            public void run() {
+                doStopRecording();
+            }
+        });
+    }
+
+    private void doStopRecording() {
         if (mLogVerbose) Log.v(TAG, "Stop recording (" + this + ")");
 
         switch (mState) {
@@ -964,12 +1358,17 @@ public class EffectsRecorder {
 
     // Called to tell the filter graph that the display surfacetexture is not valid anymore.
     // So the filter graph should not hold any reference to the surface created with that.
-    public synchronized void disconnectDisplay() {
-        if (mLogVerbose) Log.v(TAG, "Disconnecting the graph from the " +
-            "SurfaceTexture");
-        Object display = getGraphFilter(mRunner, "display");
-        invoke(display, sSurfaceTextureTargetDisconnect, new Object[] {
-                invoke(mGraphEnv, sGraphEnvironmentGetContext)});
+    public void disconnectDisplay() {
+        runCommand(new Runnable() {
+            @Override
+            public void run() {
+                if (mLogVerbose) Log.v(TAG, "Disconnecting the graph from the " +
+                    "SurfaceTexture");
+                Object display = getGraphFilter(mRunner, "display");
+                invoke(display, sSurfaceTextureTargetDisconnect, new Object[] {
+                        invoke(mGraphEnv, sGraphEnvironmentGetContext)});
+            }
+        });
     }
 
     // The VideoModule will call this to notify that the camera is being
@@ -978,16 +1377,30 @@ public class EffectsRecorder {
     // With the recording stopped, the stopPreview call will not try to
     // release the camera again.
     // This must be called in onPause() if the effects are ON.
-    public synchronized void disconnectCamera() {
-        if (mLogVerbose) Log.v(TAG, "Disconnecting the effects from Camera");
-        stopCameraPreview();
-        mCameraDevice = null;
+    public void disconnectCamera() {
+        runCommand(new Runnable() {
+            @Override
+            public void run() {
+                if (mLogVerbose) Log.v(TAG, "Disconnecting the effects from Camera");
+                doStopCameraPreview();
+                mCameraDevice = null;
+            }
+        });
     }
 
     // In a normal case, when the disconnect is not called, we should not
     // set the camera device to null, since on return callback, we try to
     // enable 3A locks, which need the cameradevice.
-    public synchronized void stopCameraPreview() {
+    public void stopCameraPreview() {
+        runCommand(new Runnable() {
+            @Override
+            public void run() {
+                doStopCameraPreview();
+            }
+        });
+    }
+
+    private void doStopCameraPreview() {
         if (mLogVerbose) Log.v(TAG, "Stopping camera preview.");
         if (mCameraDevice == null) {
             Log.d(TAG, "Camera already null. Nothing to disconnect");
@@ -998,7 +1411,16 @@ public class EffectsRecorder {
     }
 
     // Stop and release effect resources
-    public synchronized void stopPreview() {
+    public void stopPreview() {
+        runCommand(new Runnable() {
+            @Override
+            public void run() {
+                doStopPreview();
+            }
+        });
+    }
+
+    private void doStopPreview() {
         if (mLogVerbose) Log.v(TAG, "Stopping preview (" + this + ")");
         switch (mState) {
             case STATE_CONFIGURE:
@@ -1011,13 +1433,13 @@ public class EffectsRecorder {
         }
 
         if (mState == STATE_RECORD) {
-            stopRecording();
+            doStopRecording();
         }
 
         mCurrentEffect = EFFECT_NONE;
 
         // This will not do anything if the camera has already been disconnected.
-        stopCameraPreview();
+        doStopCameraPreview();
 
         mState = STATE_CONFIGURE;
         mOldRunner = mRunner;
@@ -1027,7 +1449,7 @@ public class EffectsRecorder {
     }
 
     // Try to enable/disable video stabilization if supported; otherwise return false
-    // It is called from a synchronized block.
+    // It is called on the command thread.
     boolean tryEnableVideoStabilization(boolean toggle) {
         if (mLogVerbose) Log.v(TAG, "tryEnableVideoStabilization.");
         if (mCameraDevice == null) {
@@ -1049,7 +1471,7 @@ public class EffectsRecorder {
 
     // Try to enable/disable 3A locks if supported; otherwise return false
     @TargetApi(ApiHelper.VERSION_CODES.ICE_CREAM_SANDWICH)
-    synchronized boolean tryEnable3ALocks(boolean toggle) {
+    boolean tryEnable3ALocks(boolean toggle) {
         if (mLogVerbose) Log.v(TAG, "tryEnable3ALocks");
         if (mCameraDevice == null) {
             Log.d(TAG, "Camera already null. Not tryenabling 3A locks.");
@@ -1068,7 +1490,7 @@ public class EffectsRecorder {
 
     // Try to enable/disable 3A locks if supported; otherwise, throw error
     // Use this when locks are essential to success
-    synchronized void enable3ALocks(boolean toggle) {
+    void enable3ALocks(boolean toggle) {
         if (mLogVerbose) Log.v(TAG, "Enable3ALocks");
         if (mCameraDevice == null) {
             Log.d(TAG, "Camera already null. Not enabling 3A locks.");
@@ -1114,14 +1536,24 @@ public class EffectsRecorder {
     }
 
     // Indicates that all camera/recording activity needs to halt
-    public synchronized void release() {
+    public void release() {
+        runCommand(new Runnable() {
+            @Override
+            public void run() {
+                doRelease();
+            }
+        });
+        mCommandThread.quit();
+    }
+
+    private void doRelease() {
         if (mLogVerbose) Log.v(TAG, "Releasing (" + this + ")");
 
         switch (mState) {
             case STATE_RECORD:
             case STATE_STARTING_PREVIEW:
             case STATE_PREVIEW:
-                stopPreview();
+                doStopPreview();
                 // Fall-through
             default:
                 if (mSoundPlayer != null) {
@@ -1131,6 +1563,8 @@ public class EffectsRecorder {
                 mState = STATE_RELEASED;
                 break;
         }
+        // The graph environment is dropped along with the recorder.
+        tearDownIdleGraphs();
         sEffectsRecorder = null;
     }
 
@@ -1147,13 +1581,14 @@ public class EffectsRecorder {
 
     private void raiseError(final Exception exception) {
         if (mEffectsListener != null) {
+            final Config config = mConfig;
             mHandler.post(new Runnable() {
                 @Override
                 public void run() {
-                    if (mFd != null) {
+                    if (config.fd != null) {
                         mEffectsListener.onEffectsError(exception, null);
                     } else {
-                        mEffectsListener.onEffectsError(exception, mOutputFile);
+                        mEffectsListener.onEffectsError(exception, config.outputFile);
                     }
                 }
             });
@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import android.annotation.TargetApi;
+import android.graphics.Rect;
+import android.hardware.Camera.Face;
+
+import com.android.gallery3d.common.ApiHelper;
+
+/**
+ * Tracks the faces reported by the face detection callbacks across frames.
+ *
+ * Face detection is flaky: faces drop out for a frame, false positives show
+ * up for a frame, and the rectangles jitter. The tracker matches each
+ * detected face to the face it continues, gives it an id that is stable for
+ * as long as it is tracked, smooths its rectangle, and only reports a face
+ * after it has been seen in a few callbacks in a row and until it has been
+ * missing for a few callbacks.
+ *
+ * The tracked faces are kept in preallocated slots, in driver coordinates
+ * (-1000 to 1000), so the face indicator and the focus and metering areas
+ * can both read them and {@link #update(Face[])} does not allocate. It is
+ * not thread safe and is expected to be used from the main thread.
+ */
+@TargetApi(ApiHelper.VERSION_CODES.ICE_CREAM_SANDWICH)
+public class FaceTracker {
+    public static final int MAX_FACES = 16;
+    // Faces with a lower score are likely false positives.
+    public static final int MIN_SCORE = 50;
+    // A new face is reported after it has been detected in this many
+    // callbacks in a row.
+    public static final int MIN_HITS = 2;
+    // A reported face is dropped after it has been missing in more than this
+    // many callbacks in a row.
+    public static final int MAX_MISSES = 2;
+    // The weight of the newly detected rectangle in the smoothed rectangle.
+    private static final float SMOOTHING = 0.5f;
+    // The minimum intersection over union for a detected face to continue a
+    // tracked face.
+    private static final float MIN_OVERLAP = 0.3f;
+
+    private static class Track {
+        boolean active;
+        boolean matched;
+        // True once the face has been detected in enough frames in a row.
+        boolean reported;
+        int id;
+        // The id assigned by the driver, or -1 if it does not support it.
+        int driverId;
+        int score;
+        int hits;
+        int misses;
+        float left, top, right, bottom;
+    }
+
+    private final Track[] mTracks = new Track[MAX_FACES];
+    private int mNextId = 1;
+
+    // The reported faces, sorted by id.
+    private final Rect[] mRects = new Rect[MAX_FACES];
+    private final int[] mIds = new int[MAX_FACES];
+    private final int[] mScores = new int[MAX_FACES];
+    private final int[] mOrder = new int[MAX_FACES];
+    private int mCount;
+
+    public FaceTracker() {
+        for (int i = 0; i < MAX_FACES; i++) {
+            mTracks[i] = new Track();
+            mRects[i] = new Rect();
+        }
+    }
+
+    /**
+     * Updates the tracked faces with the faces detected in a new frame.
+     *
+     * @return true if the reported faces changed
+     */
+    public boolean update(Face[] faces) {
+        for (int i = 0; i < MAX_FACES; i++) {
+            mTracks[i].matched = false;
+        }
+        int length = (faces == null) ? 0 : faces.length;
+        for (int i = 0; i < length; i++) {
+            Face face = faces[i];
+            if (face.score < MIN_SCORE) continue;
+            Track track = findTrack(face);
+            if (track != null) {
+                smooth(track, face.rect);
+                track.misses = 0;
+                if (++track.hits >= MIN_HITS) track.reported = true;
+            } else {
+                track = startTrack(face);
+                if (track == null) continue;
+            }
+            track.matched = true;
+            track.score = face.score;
+            track.driverId = face.id;
+        }
+        for (int i = 0; i < MAX_FACES; i++) {
+            Track track = mTracks[i];
+            if (track.active && !track.matched) {
+                track.hits = 0;
+                if (++track.misses > MAX_MISSES) {
+                    track.active = false;
+                    track.reported = false;
+                }
+            }
+        }
+        return updateOutput();
+    }
+
+    /** Drops all the tracked faces. */
+    public void reset() {
+        for (int i = 0; i < MAX_FACES; i++) {
+            mTracks[i].active = false;
+            mTracks[i].reported = false;
+        }
+        mCount = 0;
+    }
+
+    /** Returns the number of reported faces. */
+    public int getFaceCount() {
+        return mCount;
+    }
+
+    /**
+     * Returns the smoothed rectangle of the i-th reported face in driver
+     * coordinates. The rectangle is owned by the tracker and must not be
+     * modified.
+     */
+    public Rect getFaceRect(int i) {
+        return mRects[i];
+    }
+
+    /** Returns the stable id of the i-th reported face. */
+    public int getFaceId(int i) {
+        return mIds[i];
+    }
+
+    public int getFaceScore(int i) {
+        return mScores[i];
+    }
+
+    /**
+     * Copies the rectangle of the largest reported face to rect.
+     *
+     * @return false if no face is reported
+     */
+    public boolean getPrimaryFace(Rect rect) {
+        int primary = -1;
+        int maxArea = 0;
+        for (int i = 0; i < mCount; i++) {
+            Rect r = mRects[i];
+            int area = r.width() * r.height();
+            if (primary < 0 || area > maxArea) {
+                primary = i;
+                maxArea = area;
+            }
+        }
+        if (primary < 0) return false;
+        rect.set(mRects[primary]);
+        return true;
+    }
+
+    private Track findTrack(Face face) {
+        Rect r = face.rect;
+        Track best = null;
+        float bestOverlap = MIN_OVERLAP;
+        for (int i = 0; i < MAX_FACES; i++) {
+            Track track = mTracks[i];
+            if (!track.active || track.matched) continue;
+            if (face.id != -1 && face.id == track.driverId) return track;
+            float overlap = overlap(track, r);
+            if (overlap >= bestOverlap) {
+                best = track;
+                bestOverlap = overlap;
+            }
+        }
+        return best;
+    }
+
+    private Track startTrack(Face face) {
+        for (int i = 0; i < MAX_FACES; i++) {
+            Track track = mTracks[i];
+            if (track.active) continue;
+            Rect r = face.rect;
+            track.active = true;
+            track.reported = false;
+            track.id = mNextId++;
+            track.hits = 1;
+            track.misses = 0;
+            track.left = r.left;
+            track.top = r.top;
+            track.right = r.right;
+            track.bottom = r.bottom;
+            return track;
+        }
+        return null;
+    }
+
+    private static void smooth(Track track, Rect r) {
+        track.left += (r.left - track.left) * SMOOTHING;
+        track.top += (r.top - track.top) * SMOOTHING;
+        track.right += (r.right - track.right) * SMOOTHING;
+        track.bottom += (r.bottom - track.bottom) * SMOOTHING;
+    }
+
+    // Returns the intersection over union of the track and the rectangle.
+    private static float overlap(Track track, Rect r) {
+        float w = Math.min(track.right, r.right) - Math.max(track.left, r.left);
+        float h = Math.min(track.bottom, r.bottom) - Math.max(track.top, r.top);
+        if (w <= 0 || h <= 0) return 0;
+        float intersection = w * h;
+        float union = (track.right - track.left) * (track.bottom - track.top)
+                + (float) r.width() * r.height() - intersection;
+        return intersection / union;
+    }
+
+    private boolean updateOutput() {
+        // Sort the reported tracks by id.
+        int count = 0;
+        for (int i = 0; i < MAX_FACES; i++) {
+            Track track = mTracks[i];
+            if (!track.active || !track.reported) continue;
+            int j = count++;
+            while (j > 0 && mTracks[mOrder[j - 1]].id > track.id) {
+                mOrder[j] = mOrder[j - 1];
+                j--;
+            }
+            mOrder[j] = i;
+        }
+
+        boolean changed = (count != mCount);
+        for (int i = 0; i < count; i++) {
+            Track track = mTracks[mOrder[i]];
+            int left = Math.round(track.left);
+            int top = Math.round(track.top);
+            int right = Math.round(track.right);
+            int bottom = Math.round(track.bottom);
+            Rect rect = mRects[i];
+            if (i >= mCount || mIds[i] != track.id || rect.left != left
+                    || rect.top != top || rect.right != right || rect.bottom != bottom) {
+                changed = true;
+            }
+            rect.set(left, top, right, bottom);
+            mIds[i] = track.id;
+            mScores[i] = track.score;
+        }
+        mCount = count;
+        return changed;
+    }
+}
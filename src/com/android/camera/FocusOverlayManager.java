@@ -17,14 +17,13 @@
 package com.android.camera;
 
 import android.annotation.TargetApi;
-import android.graphics.Matrix;
 import android.graphics.Rect;
-import android.graphics.RectF;
 import android.hardware.Camera.Area;
 import android.hardware.Camera.Parameters;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.android.camera.ui.FaceView;
@@ -61,6 +60,12 @@ public class FocusOverlayManager {
     private static final String TAG = "CAM_FocusManager";
 
     private static final int RESET_TOUCH_FOCUS = 0;
+    private static final int UPDATE_FOCUS_AREAS = 1;
+
+    // The minimum interval in ms between two focus and metering area updates
+    // sent to the camera while the focus ring is dragged. Touch events come
+    // faster than the camera can apply parameters.
+    private static final int FOCUS_AREA_UPDATE_INTERVAL = 66;
 
     private int mState = STATE_IDLE;
     private static final int STATE_IDLE = 0; // Focus is not active.
@@ -75,17 +80,24 @@ public class FocusOverlayManager {
     private boolean mMeteringAreaSupported;
     private boolean mLockAeAwbNeeded;
     private boolean mAeAwbLock;
-    private Matrix mMatrix;
+    // Converts the touched areas to driver coordinates.
+    private final TapAreaTransform mTransform = new TapAreaTransform();
 
     private PieRenderer mPieRenderer;
 
     private int mPreviewWidth; // The width of the preview frame layout.
     private int mPreviewHeight; // The height of the preview frame layout.
-    private boolean mMirror; // true if the camera is front-facing.
-    private int mDisplayOrientation;
     private FaceView mFaceView;
     private List<Object> mFocusArea; // focus area in driver format
     private List<Object> mMeteringArea; // metering area in driver format
+    // The lists mFocusArea and mMeteringArea point to when they are set. They
+    // are reused for every tap.
+    private List<Object> mFocusAreaPool;
+    private List<Object> mMeteringAreaPool;
+    // True if the focus and metering areas are on the largest tracked face
+    // rather than on a touched point.
+    private boolean mFaceFocus;
+    private final Rect mFaceRect = new Rect();
     private String mFocusMode;
     private String[] mDefaultFocusModes;
     private String mOverrideFocusMode;
@@ -96,6 +108,9 @@ public class FocusOverlayManager {
 
     private int mFocusTime; // time after touch-to-focus
 
+    private boolean mFocusDragging; // true if the focus ring is being dragged
+    private long mLastFocusAreaUpdateTime;
+
     public interface Listener {
         public void autoFocus();
         public void cancelAutoFocus();
@@ -103,6 +118,9 @@ public class FocusOverlayManager {
         public void startFaceDetection();
         public void stopFaceDetection();
         public void setFocusParameters();
+        // Sends only the focus and metering areas to the camera, without
+        // blocking. Used while the focus ring is dragged.
+        public void setFocusAreas();
     }
 
     private class MainHandler extends Handler {
@@ -118,6 +136,10 @@ public class FocusOverlayManager {
                     mListener.startFaceDetection();
                     break;
                 }
+                case UPDATE_FOCUS_AREAS: {
+                    updateFocusAreas();
+                    break;
+                }
             }
         }
     }
@@ -126,7 +148,6 @@ public class FocusOverlayManager {
             Parameters parameters, Listener listener,
             boolean mirror, Looper looper) {
         mHandler = new MainHandler(looper);
-        mMatrix = new Matrix();
         mPreferences = preferences;
         mDefaultFocusModes = defaultFocusModes;
         setParameters(parameters);
@@ -136,7 +157,7 @@ public class FocusOverlayManager {
 
     public void setFocusRenderer(PieRenderer renderer) {
         mPieRenderer = renderer;
-        mInitialized = (mMatrix != null);
+        mInitialized = mTransform.isValid();
     }
 
     public void setParameters(Parameters parameters) {
@@ -156,33 +177,27 @@ public class FocusOverlayManager {
         if (mPreviewWidth != previewWidth || mPreviewHeight != previewHeight) {
             mPreviewWidth = previewWidth;
             mPreviewHeight = previewHeight;
-            setMatrix();
+            mTransform.setPreviewSize(previewWidth, previewHeight);
+            updateInitialized();
         }
     }
 
     public void setMirror(boolean mirror) {
-        mMirror = mirror;
-        setMatrix();
+        mTransform.setMirror(mirror);
+        updateInitialized();
     }
 
     public void setDisplayOrientation(int displayOrientation) {
-        mDisplayOrientation = displayOrientation;
-        setMatrix();
+        mTransform.setDisplayOrientation(displayOrientation);
+        updateInitialized();
     }
 
     public void setFaceView(FaceView faceView) {
         mFaceView = faceView;
     }
 
-    private void setMatrix() {
-        if (mPreviewWidth != 0 && mPreviewHeight != 0) {
-            Matrix matrix = new Matrix();
-            Util.prepareMatrix(matrix, mMirror, mDisplayOrientation,
-                    mPreviewWidth, mPreviewHeight);
-            // In face detection, the matrix converts the driver coordinates to UI
-            // coordinates. In tap focus, the inverted matrix converts the UI
-            // coordinates to driver coordinates.
-            matrix.invert(mMatrix);
+    private void updateInitialized() {
+        if (mTransform.isValid()) {
             mInitialized = (mPieRenderer != null);
         }
     }
@@ -208,6 +223,7 @@ public class FocusOverlayManager {
         if (needAutoFocusCall()) {
             // Do not focus if touch focus has been triggered.
             if (mState != STATE_SUCCESS && mState != STATE_FAIL) {
+                initializeFaceAreas();
                 autoFocus();
                 autoFocusCalled = true;
             }
@@ -283,7 +299,7 @@ public class FocusOverlayManager {
             updateFocusUI();
             // If this is triggered by touch focus, cancel focus after a
             // while.
-            if ((mFocusArea != null) && (mFocusTime != 0)) {
+            if ((mFocusArea != null) && !mFaceFocus && (mFocusTime != 0)) {
                 mHandler.sendEmptyMessageDelayed(RESET_TOUCH_FOCUS, mFocusTime);
             }
             if (shutterButtonPressed) {
@@ -317,32 +333,71 @@ public class FocusOverlayManager {
 
     @TargetApi(ApiHelper.VERSION_CODES.ICE_CREAM_SANDWICH)
     private void initializeFocusAreas(int focusWidth, int focusHeight,
-            int x, int y, int previewWidth, int previewHeight) {
-        if (mFocusArea == null) {
-            mFocusArea = new ArrayList<Object>();
-            mFocusArea.add(new Area(new Rect(), 1));
-        }
+            int x, int y) {
+        mFocusArea = getFocusAreaPool();
 
         // Convert the coordinates to driver format.
-        calculateTapArea(focusWidth, focusHeight, 1f, x, y, previewWidth, previewHeight,
+        calculateTapArea(focusWidth, focusHeight, 1f, x, y,
                 ((Area) mFocusArea.get(0)).rect);
     }
 
     @TargetApi(ApiHelper.VERSION_CODES.ICE_CREAM_SANDWICH)
     private void initializeMeteringAreas(int focusWidth, int focusHeight,
-            int x, int y, int previewWidth, int previewHeight) {
-        if (mMeteringArea == null) {
-            mMeteringArea = new ArrayList<Object>();
-            mMeteringArea.add(new Area(new Rect(), 1));
-        }
+            int x, int y) {
+        mMeteringArea = getMeteringAreaPool();
 
         // Convert the coordinates to driver format.
         // AE area is bigger because exposure is sensitive and
         // easy to over- or underexposure if area is too small.
-        calculateTapArea(focusWidth, focusHeight, 1.5f, x, y, previewWidth, previewHeight,
+        calculateTapArea(focusWidth, focusHeight, 1.5f, x, y,
                 ((Area) mMeteringArea.get(0)).rect);
     }
 
+    @TargetApi(ApiHelper.VERSION_CODES.ICE_CREAM_SANDWICH)
+    private List<Object> getFocusAreaPool() {
+        if (mFocusAreaPool == null) {
+            mFocusAreaPool = new ArrayList<Object>();
+            mFocusAreaPool.add(new Area(new Rect(), 1));
+        }
+        return mFocusAreaPool;
+    }
+
+    @TargetApi(ApiHelper.VERSION_CODES.ICE_CREAM_SANDWICH)
+    private List<Object> getMeteringAreaPool() {
+        if (mMeteringAreaPool == null) {
+            mMeteringAreaPool = new ArrayList<Object>();
+            mMeteringAreaPool.add(new Area(new Rect(), 1));
+        }
+        return mMeteringAreaPool;
+    }
+
+    // Focuses and meters on the largest tracked face if the user has not
+    // touched the preview. The face tracker keeps the faces in driver
+    // coordinates, so they are used as they are.
+    @TargetApi(ApiHelper.VERSION_CODES.ICE_CREAM_SANDWICH)
+    private void initializeFaceAreas() {
+        if (mFocusArea != null || mFaceView == null) return;
+        if (!Parameters.FOCUS_MODE_AUTO.equals(getFocusMode())) return;
+        if (!mFocusAreaSupported && !mMeteringAreaSupported) return;
+        if (!mFaceView.getFaceTracker().getPrimaryFace(mFaceRect)) return;
+
+        if (mFocusAreaSupported) {
+            mFocusArea = getFocusAreaPool();
+            ((Area) mFocusArea.get(0)).rect.set(mFaceRect);
+        }
+        if (mMeteringAreaSupported) {
+            mMeteringArea = getMeteringAreaPool();
+            // As with tap areas, meter on a bigger area than the face.
+            Rect rect = ((Area) mMeteringArea.get(0)).rect;
+            int dx = mFaceRect.width() / 4;
+            int dy = mFaceRect.height() / 4;
+            rect.set(Math.max(mFaceRect.left - dx, -1000), Math.max(mFaceRect.top - dy, -1000),
+                    Math.min(mFaceRect.right + dx, 1000), Math.min(mFaceRect.bottom + dy, 1000));
+        }
+        mFaceFocus = true;
+        mListener.setFocusParameters();
+    }
+
     public void onSingleTapUp(int x, int y) {
         if (!mInitialized || mState == STATE_FOCUSING_SNAP_ON_FINISH) return;
 
@@ -351,32 +406,42 @@ public class FocusOverlayManager {
                     mState == STATE_SUCCESS || mState == STATE_FAIL)) {
             cancelAutoFocus();
         }
+        if (!initializeTouchAreas(x, y)) return;
+
+        // Stop face detection because we want to specify focus and metering area.
+        mListener.stopFaceDetection();
+
+        // Set the focus area and metering area.
+        mListener.setFocusParameters();
+        startTouchFocus();
+    }
+
+    // Sets the focus and metering areas and the focus indicator to the
+    // touched point. Returns false if the focus indicator is not laid out.
+    private boolean initializeTouchAreas(int x, int y) {
         // Initialize variables.
         int focusWidth = mPieRenderer.getSize();
         int focusHeight = mPieRenderer.getSize();
         if (focusWidth == 0 || mPieRenderer.getWidth() == 0
-                || mPieRenderer.getHeight() == 0) return;
-        int previewWidth = mPreviewWidth;
-        int previewHeight = mPreviewHeight;
+                || mPieRenderer.getHeight() == 0) return false;
         // Initialize mFocusArea.
         if (mFocusAreaSupported) {
-            initializeFocusAreas(
-                    focusWidth, focusHeight, x, y, previewWidth, previewHeight);
+            initializeFocusAreas(focusWidth, focusHeight, x, y);
         }
         // Initialize mMeteringArea.
         if (mMeteringAreaSupported) {
-            initializeMeteringAreas(
-                    focusWidth, focusHeight, x, y, previewWidth, previewHeight);
+            initializeMeteringAreas(focusWidth, focusHeight, x, y);
         }
 
+        mFaceFocus = false;
+
         // Use margin to set the focus indicator to the touched area.
         mPieRenderer.setFocus(x, y);
+        return true;
+    }
 
-        // Stop face detection because we want to specify focus and metering area.
-        mListener.stopFaceDetection();
-
-        // Set the focus area and metering area.
-        mListener.setFocusParameters();
+    // Focuses on the touched areas, which have been sent to the camera.
+    private void startTouchFocus() {
         if (mFocusAreaSupported) {
             autoFocus();
         } else {  // Just show the indicator in all other cases.
@@ -388,6 +453,69 @@ public class FocusOverlayManager {
         }
     }
 
+    /**
+     * Starts moving the focus and metering areas with the finger, from the
+     * focus ring at (x, y). While the ring is dragged, the areas are sent to
+     * the camera at most every FOCUS_AREA_UPDATE_INTERVAL ms, always ending
+     * with the latest ones, and autofocus runs when the finger is lifted.
+     *
+     * @return false if the focus cannot be dragged now
+     */
+    public boolean onFocusDragStart(int x, int y) {
+        if (!mInitialized || mState == STATE_FOCUSING_SNAP_ON_FINISH) return false;
+        if (!mFocusAreaSupported && !mMeteringAreaSupported) return false;
+        if (!initializeTouchAreas(x, y)) return false;
+
+        mFocusDragging = true;
+        mHandler.removeMessages(RESET_TOUCH_FOCUS);
+        // A running or finished autofocus is for the point the finger is
+        // moving away from.
+        if (mState != STATE_IDLE) {
+            mListener.cancelAutoFocus();
+            mState = STATE_IDLE;
+        }
+        mListener.stopFaceDetection();
+        // The first update also switches the focus mode to auto.
+        mListener.setFocusParameters();
+        mLastFocusAreaUpdateTime = SystemClock.uptimeMillis();
+        // Show the ring under the finger while it moves.
+        mPieRenderer.showStart();
+        return true;
+    }
+
+    public void onFocusDrag(int x, int y) {
+        if (!mFocusDragging) return;
+        if (!initializeTouchAreas(x, y)) return;
+        // Coalesce the areas of the touch events that come before the next
+        // update is due.
+        if (mHandler.hasMessages(UPDATE_FOCUS_AREAS)) return;
+        long delay = mLastFocusAreaUpdateTime + FOCUS_AREA_UPDATE_INTERVAL
+                - SystemClock.uptimeMillis();
+        if (delay <= 0) {
+            updateFocusAreas();
+        } else {
+            mHandler.sendEmptyMessageDelayed(UPDATE_FOCUS_AREAS, delay);
+        }
+    }
+
+    public void onFocusDragEnd(int x, int y) {
+        if (!mFocusDragging) return;
+        mFocusDragging = false;
+        initializeTouchAreas(x, y);
+        mHandler.removeMessages(UPDATE_FOCUS_AREAS);
+        updateFocusAreas();
+        startTouchFocus();
+    }
+
+    public boolean isFocusDragging() {
+        return mFocusDragging;
+    }
+
+    private void updateFocusAreas() {
+        mLastFocusAreaUpdateTime = SystemClock.uptimeMillis();
+        mListener.setFocusAreas();
+    }
+
     public void onPreviewStarted() {
         mState = STATE_IDLE;
     }
@@ -395,6 +523,8 @@ public class FocusOverlayManager {
     public void onPreviewStopped() {
         // If auto focus was in progress, it would have been stopped.
         mState = STATE_IDLE;
+        mFocusDragging = false;
+        mHandler.removeMessages(UPDATE_FOCUS_AREAS);
         resetTouchFocus();
         updateFocusUI();
     }
@@ -516,18 +646,14 @@ public class FocusOverlayManager {
 
         mFocusArea = null;
         mMeteringArea = null;
+        mFaceFocus = false;
     }
 
     private void calculateTapArea(int focusWidth, int focusHeight, float areaMultiple,
-            int x, int y, int previewWidth, int previewHeight, Rect rect) {
+            int x, int y, Rect rect) {
         int areaWidth = (int) (focusWidth * areaMultiple);
         int areaHeight = (int) (focusHeight * areaMultiple);
-        int left = Util.clamp(x - areaWidth / 2, 0, previewWidth - areaWidth);
-        int top = Util.clamp(y - areaHeight / 2, 0, previewHeight - areaHeight);
-
-        RectF rectF = new RectF(left, top, left + areaWidth, top + areaHeight);
-        mMatrix.mapRect(rectF);
-        Util.rectFToRect(rectF, rect);
+        mTransform.calculateTapArea(areaWidth, areaHeight, x, y, rect);
     }
 
     /* package */ int getFocusState() {
@@ -544,6 +670,7 @@ public class FocusOverlayManager {
 
     public void removeMessages() {
         mHandler.removeMessages(RESET_TOUCH_FOCUS);
+        mHandler.removeMessages(UPDATE_FOCUS_AREAS);
     }
 
     public void overrideFocusMode(String focusMode) {
@@ -47,6 +47,20 @@ public class IconListPreference extends ListPreference {
         a.recycle();
     }
 
+    protected IconListPreference(Context context, IconListPreference other) {
+        super(context, other);
+        mSingleIconId = other.mSingleIconId;
+        mIconIds = other.mIconIds;
+        mLargeIconIds = other.mLargeIconIds;
+        mImageIds = other.mImageIds;
+        mUseSingleIcon = other.mUseSingleIcon;
+    }
+
+    @Override
+    public IconListPreference copy(Context context) {
+        return new IconListPreference(context, this);
+    }
+
     public int getSingleIcon() {
         return mSingleIconId;
     }
@@ -70,6 +70,20 @@ public class ListPreference extends CameraPreference {
         a.recycle();
     }
 
+    // The arrays are shared. They are replaced, never modified.
+    protected ListPreference(Context context, ListPreference other) {
+        super(context, other);
+        mKey = other.mKey;
+        mDefaultValues = other.mDefaultValues;
+        mEntries = other.mEntries;
+        mEntryValues = other.mEntryValues;
+    }
+
+    @Override
+    public ListPreference copy(Context context) {
+        return new ListPreference(context, this);
+    }
+
     public String getKey() {
         return mKey;
     }
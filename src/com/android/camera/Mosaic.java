@@ -31,6 +31,10 @@ package com.android.camera;
  *
  * mosaic.createMosaic(highRes);
  * byte[] result = mosaic.getFinalMosaic();
+ * mosaic.release();
+ *
+ * Each Mosaic keeps its own native state, but only the one that allocated its memory last
+ * drives the preview renderer.
  *
  */
 public class Mosaic {
@@ -96,6 +100,38 @@ public class Mosaic {
         System.loadLibrary("jni_mosaic");
     }
 
+    // The native state of this mosaic. Each Mosaic has its own, so a mosaic can be captured
+    // while another one is still being created.
+    private long mNativeSession;
+
+    public Mosaic() {
+        mNativeSession = createSession();
+    }
+
+    /**
+     * Free the native state of this mosaic, including any memory still allocated by
+     * allocateMosaicMemory. The mosaic cannot be used afterwards.
+     */
+    public synchronized void release() {
+        if (mNativeSession != 0) {
+            destroySession(mNativeSession);
+            mNativeSession = 0;
+        }
+    }
+
+    @Override
+    protected void finalize() throws Throwable {
+        try {
+            release();
+        } finally {
+            super.finalize();
+        }
+    }
+
+    private static native long createSession();
+
+    private static native void destroySession(long session);
+
     /**
      * Allocate memory for the image frames at the given resolution.
      *
@@ -139,6 +175,27 @@ public class Mosaic {
      */
     public native float[] setSourceImageFromGPU();
 
+    /**
+     * Set where the high-resolution frames are kept during the capture. The
+     * first frames are kept in memory up to the given budget and the others
+     * in the scratch file, which is removed when the memory is freed. Must be
+     * called before allocateMosaicMemory to take effect.
+     *
+     * @param scratchPath path of the scratch file, or null to keep all the
+     *        frames in memory
+     * @param memoryBudget bytes of frames to keep in memory
+     */
+    public native void setFrameStore(String scratchPath, int memoryBudget);
+
+    /**
+     * Blend the high-resolution mosaic on a background thread while the
+     * frames are captured, so that it is almost ready when the capture stops.
+     * Takes effect on the next reset.
+     *
+     * @param enable whether to blend the high-resolution frames as they come
+     */
+    public native void setStreaming(boolean enable);
+
     /**
      * Set the type of blending.
      *
@@ -187,6 +244,20 @@ public class Mosaic {
      */
     public native byte[] getFinalMosaicNV21();
 
+    /**
+     * Encode the created mosaic as JPEG straight into a file, without passing the image or the
+     * compressed data through the Java heap. Like getFinalMosaicNV21(), this can only be called
+     * once for each created mosaic.
+     *
+     * @param fd the file descriptor to write to, open for writing. It is left open. A negative
+     *        value only frees the mosaic.
+     * @param quality the JPEG quality, from 1 to 100.
+     * @param restartInterval the number of 16x16 blocks between restart markers, or 0 for none.
+     * @return Returns an integer array containing MosaicWidth and MosaicHeight, or null if the
+     *         file could not be written.
+     */
+    public native int[] writeFinalMosaicJpeg(int fd, int quality, int restartInterval);
+
     /**
      * Reset the state of the frame arrays which maintain the captured frame data.
      * Also re-initializes the native mosaic object to make it ready for capturing a new mosaic.
@@ -18,13 +18,15 @@ package com.android.camera;
 
 import android.util.Log;
 
+import java.io.File;
+
 /**
  * Class to handle the processing of each frame by Mosaicer.
  */
 public class MosaicFrameProcessor {
     private static final String TAG = "MosaicFrameProcessor";
     private static final int NUM_FRAMES_IN_BUFFER = 2;
-    private static final int MAX_NUMBER_OF_FRAMES = 100;
+    private static final int MAX_NUMBER_OF_FRAMES = 200;
     private static final int MOSAIC_RET_CODE_INDEX = 10;
     private static final int FRAME_COUNT_INDEX = 9;
     private static final int X_COORD_INDEX = 2;
@@ -60,32 +62,46 @@ public class MosaicFrameProcessor {
     private int mPreviewHeight;
     private int mPreviewBufferSize;
 
-    private static MosaicFrameProcessor sMosaicFrameProcessor; // singleton
-
     public interface ProgressListener {
         public void onProgress(boolean isFinished, float panningRateX, float panningRateY,
                 float progressX, float progressY);
     }
 
-    public static MosaicFrameProcessor getInstance() {
-        if (sMosaicFrameProcessor == null) {
-            sMosaicFrameProcessor = new MosaicFrameProcessor();
-        }
-        return sMosaicFrameProcessor;
+    // Each processor has its own mosaicer, so one can capture a panorama while another is still
+    // stitching the previous one.
+    public MosaicFrameProcessor() {
+        mMosaicer = new Mosaic();
     }
 
-    private MosaicFrameProcessor() {
-        mMosaicer = new Mosaic();
+    // A released processor gets a new mosaicer when it is used again.
+    private Mosaic getMosaicer() {
+        if (mMosaicer == null) mMosaicer = new Mosaic();
+        return mMosaicer;
     }
 
     public void setProgressListener(ProgressListener listener) {
         mProgressListener = listener;
     }
 
-    public int reportProgress(boolean hires, boolean cancel) {
+    // Called from the progress thread, which may still poll once the processor is released.
+    public synchronized int reportProgress(boolean hires, boolean cancel) {
+        if (mMosaicer == null) return 0;
         return mMosaicer.reportProgress(hires, cancel);
     }
 
+    // Keeps the frames past the memory budget in the scratch file. Takes
+    // effect on the next initialize().
+    public void setFrameStore(File scratchFile, int memoryBudget) {
+        getMosaicer().setFrameStore(
+                scratchFile == null ? null : scratchFile.getPath(), memoryBudget);
+    }
+
+    // Blends the high-res mosaic during the capture. Takes effect on the next
+    // reset().
+    public void setStreaming(boolean enable) {
+        getMosaicer().setStreaming(enable);
+    }
+
     public void initialize(int previewWidth, int previewHeight, int bufSize) {
         mPreviewWidth = previewWidth;
         mPreviewHeight = previewHeight;
@@ -97,7 +113,7 @@ public class MosaicFrameProcessor {
 
     public void clear() {
         if (mIsMosaicMemoryAllocated) {
-            mMosaicer.freeMosaicMemory();
+            getMosaicer().freeMosaicMemory();
             mIsMosaicMemoryAllocated = false;
         }
         synchronized (this) {
@@ -105,12 +121,22 @@ public class MosaicFrameProcessor {
         }
     }
 
+    // Frees the native state of the mosaicer as well, which clear() keeps for the next
+    // capture. Must not be called while a mosaic is being created.
+    public synchronized void release() {
+        clear();
+        if (mMosaicer != null) {
+            mMosaicer.release();
+            mMosaicer = null;
+        }
+    }
+
     public boolean isMosaicMemoryAllocated() {
         return mIsMosaicMemoryAllocated;
     }
 
     public void setStripType(int type) {
-        mMosaicer.setStripType(type);
+        getMosaicer().setStripType(type);
     }
 
     private void setupMosaicer(int previewWidth, int previewHeight, int bufSize) {
@@ -118,7 +144,7 @@ public class MosaicFrameProcessor {
 
         if (mIsMosaicMemoryAllocated) throw new RuntimeException("MosaicFrameProcessor in use!");
         mIsMosaicMemoryAllocated = true;
-        mMosaicer.allocateMosaicMemory(previewWidth, previewHeight);
+        getMosaicer().allocateMosaicMemory(previewWidth, previewHeight);
     }
 
     public void reset() {
@@ -139,15 +165,19 @@ public class MosaicFrameProcessor {
             mDeltaX[i] = 0f;
             mDeltaY[i] = 0f;
         }
-        mMosaicer.reset();
+        getMosaicer().reset();
     }
 
     public int createMosaic(boolean highRes) {
-        return mMosaicer.createMosaic(highRes);
+        return getMosaicer().createMosaic(highRes);
     }
 
     public byte[] getFinalMosaicNV21() {
-        return mMosaicer.getFinalMosaicNV21();
+        return getMosaicer().getFinalMosaicNV21();
+    }
+
+    public int[] writeFinalMosaicJpeg(int fd, int quality, int restartInterval) {
+        return getMosaicer().writeFinalMosaicJpeg(fd, quality, restartInterval);
     }
 
     // Processes the last filled image frame through the mosaicer and
@@ -193,7 +223,7 @@ public class MosaicFrameProcessor {
     }
 
     public void calculateTranslationRate() {
-        float[] frameData = mMosaicer.setSourceImageFromGPU();
+        float[] frameData = getMosaicer().setSourceImageFromGPU();
         int ret_code = (int) frameData[MOSAIC_RET_CODE_INDEX];
         mTotalFrameCount  = (int) frameData[FRAME_COUNT_INDEX];
         float translationCurrX = frameData[X_COORD_INDEX];
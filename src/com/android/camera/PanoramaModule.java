@@ -37,9 +37,9 @@ import android.hardware.Camera.Parameters;
 import android.hardware.Camera.Size;
 import android.media.ExifInterface;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Handler;
 import android.os.Message;
+import android.os.ParcelFileDescriptor;
 import android.os.PowerManager;
 import android.util.Log;
 import android.view.KeyEvent;
@@ -91,6 +91,15 @@ public class PanoramaModule implements CameraModule,
 
     private static final int SCREEN_DELAY = 2 * 60 * 1000;
 
+    // Bytes of high-res frames kept in memory during a capture. The others
+    // go to a scratch file in the cache directory.
+    private static final int FRAME_STORE_BUDGET = 64 * 1024 * 1024;
+    private static final String FRAME_STORE_FILE = "panorama_frames";
+
+    // The high-res mosaic is encoded by the native code straight into its file.
+    private static final int JPEG_QUALITY = 100;
+    private static final int JPEG_RESTART_INTERVAL = 0;
+
     private static final String TAG = "CAM PanoModule";
     private static final int PREVIEW_STOPPED = 0;
     private static final int PREVIEW_ACTIVE = 1;
@@ -132,7 +141,6 @@ public class PanoramaModule implements CameraModule,
     private String mDialogTitle;
     private String mDialogOkString;
     private String mDialogPanoramaFailedString;
-    private String mDialogWaitingPreviousString;
 
     private int mIndicatorColor;
     private int mIndicatorColorFast;
@@ -145,7 +153,6 @@ public class PanoramaModule implements CameraModule,
     private PowerManager.WakeLock mPartialWakeLock;
     private MosaicFrameProcessor mMosaicFrameProcessor;
     private boolean mMosaicFrameProcessorInitialized;
-    private AsyncTask <Void, Void, Void> mWaitProcessorTask;
     private long mTimeTaken;
     private Handler mMainHandler;
     private SurfaceTexture mCameraTexture;
@@ -180,6 +187,15 @@ public class PanoramaModule implements CameraModule,
     private class MosaicJpeg {
         public MosaicJpeg(byte[] data, int width, int height) {
             this.data = data;
+            this.path = null;
+            this.width = width;
+            this.height = height;
+            this.isValid = true;
+        }
+
+        public MosaicJpeg(String path, int width, int height) {
+            this.data = null;
+            this.path = path;
             this.width = width;
             this.height = height;
             this.isValid = true;
@@ -187,12 +203,15 @@ public class PanoramaModule implements CameraModule,
 
         public MosaicJpeg() {
             this.data = null;
+            this.path = null;
             this.width = 0;
             this.height = 0;
             this.isValid = false;
         }
 
         public final byte[] data;
+        // Set instead of data when the JPEG was written straight to its file.
+        public final String path;
         public final int width;
         public final int height;
         public final boolean isValid;
@@ -269,14 +288,13 @@ public class PanoramaModule implements CameraModule,
 
         mOrientationEventListener = new PanoOrientationEventListener(mActivity);
 
-        mMosaicFrameProcessor = MosaicFrameProcessor.getInstance();
+        mMosaicFrameProcessor = new MosaicFrameProcessor();
 
         Resources appRes = mActivity.getResources();
         mPreparePreviewString = appRes.getString(R.string.pano_dialog_prepare_preview);
         mDialogTitle = appRes.getString(R.string.pano_dialog_title);
         mDialogOkString = appRes.getString(R.string.dialog_ok);
         mDialogPanoramaFailedString = appRes.getString(R.string.pano_dialog_panorama_failed);
-        mDialogWaitingPreviousString = appRes.getString(R.string.pano_dialog_waiting_previous);
 
         mGLRootView = (GLRootView) mActivity.getGLRoot();
 
@@ -441,7 +459,7 @@ public class PanoramaModule implements CameraModule,
                 screenNail.getSurfaceTexture(), w, h, isLandscape);
 
         mCameraTexture = mMosaicPreviewRenderer.getInputSurfaceTexture();
-        if (!mPaused && !mThreadRunning && mWaitProcessorTask == null) {
+        if (!mPaused && !mThreadRunning) {
             resetToPreview();
         }
     }
@@ -757,9 +775,12 @@ public class PanoramaModule implements CameraModule,
             @Override
             public void run() {
                 mPartialWakeLock.acquire();
+                String filename = PanoUtil.createName(
+                        mActivity.getResources().getString(R.string.pano_file_name_format),
+                        mTimeTaken);
                 MosaicJpeg jpeg;
                 try {
-                    jpeg = generateFinalMosaic(true);
+                    jpeg = writeFinalMosaic(filename);
                 } finally {
                     mPartialWakeLock.release();
                 }
@@ -770,7 +791,8 @@ public class PanoramaModule implements CameraModule,
                     mMainHandler.sendEmptyMessage(MSG_GENERATE_FINAL_MOSAIC_ERROR);
                 } else {
                     int orientation = getCaptureOrientation();
-                    Uri uri = savePanorama(jpeg.data, jpeg.width, jpeg.height, orientation);
+                    Uri uri = savePanorama(filename, jpeg.path, jpeg.width, jpeg.height,
+                            orientation);
                     if (uri != null) {
                         mActivity.addSecureAlbumItemIfNeeded(false, uri);
                         Util.broadcastNewPicture(mActivity, uri);
@@ -862,12 +884,9 @@ public class PanoramaModule implements CameraModule,
         mReviewLayout.setVisibility(View.VISIBLE);
     }
 
-    private Uri savePanorama(byte[] jpegData, int width, int height, int orientation) {
-        if (jpegData != null) {
-            String filename = PanoUtil.createName(
-                    mActivity.getResources().getString(R.string.pano_file_name_format), mTimeTaken);
-            String filepath = Storage.getStorage().writeFile(filename, jpegData);
-
+    private Uri savePanorama(String filename, String filepath, int width, int height,
+            int orientation) {
+        if (filepath != null) {
             // Add Exif tags.
             try {
                 ExifInterface exif = new ExifInterface(filepath);
@@ -906,18 +925,19 @@ public class PanoramaModule implements CameraModule,
         }
     }
 
+    // The module may never be resumed, so the native mosaic is released here, once no
+    // stitching thread uses it, rather than when it is finalized.
     private void clearMosaicFrameProcessorIfNeeded() {
         if (!mPaused || mThreadRunning) return;
-        // Only clear the processor if it is initialized by this activity
-        // instance. Other activity instances may be using it.
-        if (mMosaicFrameProcessorInitialized) {
-            mMosaicFrameProcessor.clear();
-            mMosaicFrameProcessorInitialized = false;
-        }
+        mMosaicFrameProcessor.release();
+        mMosaicFrameProcessorInitialized = false;
     }
 
     private void initMosaicFrameProcessorIfNeeded() {
         if (mPaused || mThreadRunning) return;
+        mMosaicFrameProcessor.setFrameStore(
+                new File(mActivity.getCacheDir(), FRAME_STORE_FILE), FRAME_STORE_BUDGET);
+        mMosaicFrameProcessor.setStreaming(true);
         mMosaicFrameProcessor.initialize(
                 mPreviewWidth, mPreviewHeight, getPreviewBufSize());
         mMosaicFrameProcessorInitialized = true;
@@ -952,10 +972,6 @@ public class PanoramaModule implements CameraModule,
         }
 
         clearMosaicFrameProcessorIfNeeded();
-        if (mWaitProcessorTask != null) {
-            mWaitProcessorTask.cancel(true);
-            mWaitProcessorTask = null;
-        }
         resetScreenOn();
         if (mSoundPlayer != null) {
             mSoundPlayer.release();
@@ -1021,25 +1037,17 @@ public class PanoramaModule implements CameraModule,
         // Set up sound playback for shutter button
         mSoundPlayer = SoundClips.getPlayer(mActivity);
 
-        // Check if another panorama instance is using the mosaic frame processor.
+        // Another panorama instance may still be stitching with its own mosaic frame
+        // processor, which does not keep this one from starting.
         mRotateDialog.dismissDialog();
-        if (!mThreadRunning && mMosaicFrameProcessor.isMosaicMemoryAllocated()) {
-            mGLRootView.setVisibility(View.GONE);
-            mRotateDialog.showWaitingDialog(mDialogWaitingPreviousString);
-            // If stitching is still going on, make sure switcher and shutter button
-            // are not showing
-            mActivity.hideUI();
-            mWaitProcessorTask = new WaitProcessorTask().execute();
-        } else {
-            if (!mThreadRunning) mGLRootView.setVisibility(View.VISIBLE);
-            // Camera must be initialized before MosaicFrameProcessor is
-            // initialized. The preview size has to be decided by camera device.
-            initMosaicFrameProcessorIfNeeded();
-            int w = mPreviewArea.getWidth();
-            int h = mPreviewArea.getHeight();
-            if (w != 0 && h != 0) {  // The layout has been calculated.
-                configMosaicPreview(w, h);
-            }
+        if (!mThreadRunning) mGLRootView.setVisibility(View.VISIBLE);
+        // Camera must be initialized before MosaicFrameProcessor is
+        // initialized. The preview size has to be decided by camera device.
+        initMosaicFrameProcessorIfNeeded();
+        int w = mPreviewArea.getWidth();
+        int h = mPreviewArea.getHeight();
+        if (w != 0 && h != 0) {  // The layout has been calculated.
+            configMosaicPreview(w, h);
         }
         keepScreenOnAwhile();
 
@@ -1096,6 +1104,58 @@ public class PanoramaModule implements CameraModule,
         return new MosaicJpeg(out.toByteArray(), width, height);
     }
 
+    /**
+     * Generate the final high-res mosaic and write it as a JPEG file in the camera directory.
+     * The native code encodes the mosaic as it writes the file, so neither the image nor the
+     * JPEG data is copied to the Java heap.
+     *
+     * @param title the name of the file, without its extension.
+     * @return a MosaicJpeg with the path of the file and its isValid flag set to true if
+     *         successful; null if the generation process is cancelled; and a MosaicJpeg with its
+     *         isValid flag set to false if there is an error in generating or writing the mosaic.
+     */
+    public MosaicJpeg writeFinalMosaic(String title) {
+        int mosaicReturnCode = mMosaicFrameProcessor.createMosaic(true);
+        if (mosaicReturnCode == Mosaic.MOSAIC_RET_CANCELLED) {
+            return null;
+        } else if (mosaicReturnCode == Mosaic.MOSAIC_RET_ERROR) {
+            return new MosaicJpeg();
+        }
+
+        String filepath = Storage.getStorage().generateFilepath(title);
+        File file = new File(filepath);
+        int[] dims = null;
+        int fd = -1;
+        ParcelFileDescriptor pfd = null;
+        try {
+            pfd = ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_CREATE
+                    | ParcelFileDescriptor.MODE_TRUNCATE | ParcelFileDescriptor.MODE_WRITE_ONLY);
+            fd = pfd.getFd();
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot open " + filepath, e);
+        }
+        try {
+            // Also frees the native mosaic when the file could not be opened.
+            dims = mMosaicFrameProcessor.writeFinalMosaicJpeg(fd, JPEG_QUALITY,
+                    JPEG_RESTART_INTERVAL);
+        } finally {
+            try {
+                if (pfd != null) pfd.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot close " + filepath, e);
+                dims = null;
+            }
+        }
+
+        if (dims == null || dims[0] <= 0 || dims[1] <= 0) {
+            Log.e(TAG, "writeFinalMosaicJpeg() failed for " + filepath);
+            file.delete();
+            return new MosaicJpeg();
+        }
+        Log.v(TAG, "JpegLength = " + file.length() + ", W = " + dims[0] + ", H = " + dims[1]);
+        return new MosaicJpeg(filepath, dims[0], dims[1]);
+    }
+
     private void startCameraPreview() {
         if (mCameraDevice == null) {
             // Camera open failed. Return.
@@ -1162,36 +1222,6 @@ public class PanoramaModule implements CameraModule,
         mActivity.getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
     }
 
-    private class WaitProcessorTask extends AsyncTask<Void, Void, Void> {
-        @Override
-        protected Void doInBackground(Void... params) {
-            synchronized (mMosaicFrameProcessor) {
-                while (!isCancelled() && mMosaicFrameProcessor.isMosaicMemoryAllocated()) {
-                    try {
-                        mMosaicFrameProcessor.wait();
-                    } catch (Exception e) {
-                        // ignore
-                    }
-                }
-            }
-            return null;
-        }
-
-        @Override
-        protected void onPostExecute(Void result) {
-            mWaitProcessorTask = null;
-            mRotateDialog.dismissDialog();
-            mGLRootView.setVisibility(View.VISIBLE);
-            initMosaicFrameProcessorIfNeeded();
-            int w = mPreviewArea.getWidth();
-            int h = mPreviewArea.getHeight();
-            if (w != 0 && h != 0) {  // The layout has been calculated.
-                configMosaicPreview(w, h);
-            }
-            resetToPreview();
-        }
-    }
-
     @Override
     public void onFullScreenChanged(boolean full) {
     }
@@ -18,6 +18,7 @@ package com.android.camera;
 
 import android.content.Context;
 import android.hardware.Camera.Parameters;
+import android.os.SystemClock;
 import android.view.LayoutInflater;
 
 import com.android.camera.ui.AbstractSettingPopup;
@@ -142,9 +143,11 @@ public class PhotoController extends PieController
         settingsItem.setOnClickListener(new OnClickListener() {
             @Override
             public void onClick(PieItem item) {
+                long openTime = SystemClock.uptimeMillis();
                 if (mPopup == null) {
                     initializePopup();
                 }
+                mPopup.setOpenTime(openTime);
                 mActivePopup = mPopup;
                 mModule.showPopup(mPopup);
             }
@@ -156,9 +159,11 @@ public class PhotoController extends PieController
         pictureItem.setOnClickListener(new OnClickListener() {
             @Override
             public void onClick(PieItem item) {
+                long openTime = SystemClock.uptimeMillis();
                 if (mPicturePopup == null) {
                     initializePicturePopup();
                 }
+                mPicturePopup.setOpenTime(openTime);
                 mActivePopup = mPicturePopup;
                 mModule.showPopup(mPicturePopup);
             }
@@ -266,6 +271,7 @@ public class PhotoController extends PieController
     // the second-level popup
     public void onPreferenceClicked(ListPreference pref) {
         if (mSecondPopup != null) return;
+        long openTime = SystemClock.uptimeMillis();
 
         LayoutInflater inflater = (LayoutInflater) mActivity.getSystemService(
                 Context.LAYOUT_INFLATER_SERVICE);
@@ -275,6 +281,7 @@ public class PhotoController extends PieController
         basic.setSettingChangedListener(this);
         mModule.dismissPopup(true);
         mSecondPopup = basic;
+        mSecondPopup.setOpenTime(openTime);
         mModule.showPopup(mSecondPopup);
     }
 }
@@ -30,6 +30,7 @@ import android.graphics.SurfaceTexture;
 import android.hardware.Camera.CameraInfo;
 import android.hardware.Camera.Face;
 import android.hardware.Camera.FaceDetectionListener;
+import android.hardware.Camera.OnZoomChangeListener;
 import android.hardware.Camera.Parameters;
 import android.hardware.Camera.PictureCallback;
 import android.hardware.Camera.Size;
@@ -95,7 +96,8 @@ public class PhotoModule
     PreviewFrameLayout.OnSizeChangedListener,
     ShutterButton.OnShutterButtonListener,
     SurfaceHolder.Callback,
-    PieRenderer.PieListener {
+    PieRenderer.PieListener,
+    PreviewGestures.FocusDragListener {
 
     private static final String TAG = "CAM_PhotoModule";
 
@@ -153,6 +155,8 @@ public class PhotoModule
     private static final int SCREEN_DELAY = 2 * 60 * 1000;
 
     private int mZoomValue;  // The current zoom value.
+    private final ZoomUpdateListener mZoomUpdateListener = new ZoomUpdateListener();
+    private final ZoomController mZoomController = new ZoomController(mZoomUpdateListener);
     private int mZoomMax;
     private List<Integer> mZoomRatios;
 
@@ -464,6 +468,8 @@ public class PhotoModule
         mPreferences = new ComboPreferences(mActivity);
         CameraSettings.upgradeGlobalPreferences(mPreferences.getGlobal());
         mCameraId = getPreferredCameraId(mPreferences);
+        // Inflate the preferences while the camera opens.
+        PreferenceInflater.preload(mActivity, R.xml.camera_preferences);
 
         mContentResolver = mActivity.getContentResolver();
 
@@ -587,6 +593,7 @@ public class PhotoModule
         if (mGestures == null) {
             // this will handle gesture disambiguation and dispatching
             mGestures = new PreviewGestures(mActivity, this, mZoomRenderer, mPieRenderer);
+            mGestures.setFocusDragListener(this);
         }
         initializeRenderOverlay();
         initializePhotoControl();
@@ -699,26 +706,67 @@ public class PhotoModule
         }
     }
 
-    private void processZoomValueChanged(int index) {
+    private void processZoomValueChanged(int index, long eventTime) {
         if (index >= 0 && index <= mZoomMax && mZoomValue != index) {
             mZoomValue = index;
-            mZoomRenderer. setZoom(index);
+            mZoomRenderer.setZoom(index);
             // Not useful to change zoom value when the activity is paused.
             if (mPaused) return;
             if (mParameters == null || mCameraDevice == null) return;
-            // Set zoom parameters asynchronously
-            mParameters.setZoom(mZoomValue);
+            // Set zoom parameters asynchronously, at most once per frame.
+            mZoomController.setZoom(index, eventTime);
+            mZoomRenderer.setZoomValue(mZoomRatios.get(index));
+        }
+    }
+
+    private class ZoomUpdateListener implements ZoomController.Listener,
+            OnZoomChangeListener, CameraManager.SmoothZoomErrorCallback {
+        @Override
+        public void onZoomUpdate(int index) {
+            if (mPaused || mParameters == null || mCameraDevice == null) return;
+            mParameters.setZoom(index);
             mCameraDevice.setParametersAsync(mParameters);
-            // for our camera we dont need to refetch the parameters again
-            //Parameters p = mCameraDevice.getParameters();
-            mZoomRenderer.setZoomValue(mZoomRatios.get(mParameters.getZoom()));
+        }
+
+        @Override
+        public boolean onSmoothZoom(int index) {
+            if (mPaused || mParameters == null || mCameraDevice == null) return false;
+            // The camera refuses smooth zoom without a running preview.
+            if (mCameraState == PREVIEW_STOPPED || mCameraState == SNAPSHOT_IN_PROGRESS
+                    || mCameraState == SWITCHING_CAMERA) {
+                return false;
+            }
+            // Keep the parameters at the target, so setting them for focus
+            // or metering does not zoom back to where the pinch started.
+            mParameters.setZoom(index);
+            mCameraDevice.startSmoothZoomAsync(index, this);
+            return true;
+        }
+
+        @Override
+        public void onStopSmoothZoom() {
+            if (mPaused || mParameters == null || mCameraDevice == null) return;
+            mCameraDevice.stopSmoothZoomAsync(this);
+        }
+
+        @Override
+        public void onZoomChange(int value, boolean stopped, android.hardware.Camera camera) {
+            // The parameters stay at the target while the zoom moves, and
+            // take the zoom it stopped at, which differs if it was stopped.
+            if (stopped && mParameters != null) mParameters.setZoom(value);
+            mZoomController.onSmoothZoomChanged(value, stopped, SystemClock.uptimeMillis());
+        }
+
+        @Override
+        public void onSmoothZoomError() {
+            mZoomController.onSmoothZoomFailed();
         }
     }
 
     private class ZoomChangeListener implements ZoomRenderer.OnZoomChangedListener {
         @Override
-        public void onZoomValueChanged(int index) {
-            processZoomValueChanged(index);
+        public void onZoomValueChanged(int index, long eventTime) {
+            processZoomValueChanged(index, eventTime);
         }
 
         @Override
@@ -733,6 +781,8 @@ public class PhotoModule
             if (mPieRenderer != null) {
                 mPieRenderer.setBlockFocus(false);
             }
+            Log.v(TAG, mZoomController.toString());
+            mZoomController.resetStats();
         }
     }
 
@@ -741,8 +791,15 @@ public class PhotoModule
                 || (mZoomRenderer == null)) return;
         mZoomMax = mParameters.getMaxZoom();
         mZoomRatios = mParameters.getZoomRatios();
-        // Currently we use immediate zoom for fast zooming to get better UX and
-        // there is no plan to take advantage of the smooth zoom.
+        // Pinch zoom is sent at the rate the camera can apply it and smoothed
+        // toward the target, or left to the camera if it supports smooth zoom.
+        boolean smoothZoom = mParameters.isSmoothZoomSupported();
+        mZoomController.setMaxZoom(mZoomMax);
+        mZoomController.setUpdateInterval(ZoomController.CAMERA_UPDATE_INTERVAL);
+        mZoomController.setSmoothing(ZoomController.DEFAULT_SMOOTHING);
+        mZoomController.setSmoothZoomSupported(smoothZoom);
+        mZoomController.reset(mParameters.getZoom());
+        mCameraDevice.setZoomChangeListener(smoothZoom ? mZoomUpdateListener : null);
         if (mZoomRenderer != null) {
             mZoomRenderer.setZoomMax(mZoomMax);
             mZoomRenderer.setZoom(mParameters.getZoom());
@@ -1399,6 +1456,16 @@ public class PhotoModule
         setCameraParameters(UPDATE_PARAM_PREFERENCE);
     }
 
+    @Override
+    public void setFocusAreas() {
+        // Only the areas change while the focus ring is dragged, so do not
+        // update all the preferences. Pending updates are replaced by the
+        // latest one on the camera handler thread.
+        setFocusAreasIfSupported();
+        setMeteringAreasIfSupported();
+        mCameraDevice.setParametersAsync(mParameters);
+    }
+
     private int getPreferredCameraId(ComboPreferences preferences) {
         int intentCameraId = Util.getCameraFacingIntentExtras(mActivity);
         if (intentCameraId != -1) {
@@ -2129,6 +2196,31 @@ public class PhotoModule
         mFocusManager.onSingleTapUp(x, y);
     }
 
+    // The focus ring is dragged. Handle touch tracking focus.
+    @Override
+    public boolean onFocusDragStart(int x, int y) {
+        if (mPaused || mCameraDevice == null || !mFirstTimeInitialized
+                || mCameraState == SNAPSHOT_IN_PROGRESS
+                || mCameraState == SWITCHING_CAMERA
+                || mCameraState == PREVIEW_STOPPED) {
+            return false;
+        }
+        if (removeTopLevelPopup()) return false;
+        return mFocusManager.onFocusDragStart(x, y);
+    }
+
+    @Override
+    public void onFocusDrag(int x, int y) {
+        if (mPaused || mCameraDevice == null) return;
+        mFocusManager.onFocusDrag(x, y);
+    }
+
+    @Override
+    public void onFocusDragEnd(int x, int y) {
+        if (mPaused || mCameraDevice == null) return;
+        mFocusManager.onFocusDragEnd(x, y);
+    }
+
     @Override
     public boolean onBackPressed() {
         if (mPieRenderer != null && mPieRenderer.showsItems()) {
@@ -2192,13 +2284,13 @@ public class PhotoModule
             case KeyEvent.KEYCODE_VOLUME_UP:
                 if (mParameters.isZoomSupported() && mZoomRenderer != null) {
                     int index = mZoomValue + Util.getManualZoomStep();
-                    processZoomValueChanged(index);
+                    processZoomValueChanged(index, event.getEventTime());
                 }
                 return true;
             case KeyEvent.KEYCODE_VOLUME_DOWN:
                 if (mParameters.isZoomSupported() && mZoomRenderer != null) {
                     int index = mZoomValue - Util.getManualZoomStep();
-                    processZoomValueChanged(index);
+                    processZoomValueChanged(index, event.getEventTime());
                 }
                 return true;
         }
@@ -33,6 +33,19 @@ public class PreferenceGroup extends CameraPreference {
         super(context, attrs);
     }
 
+    protected PreferenceGroup(Context context, PreferenceGroup other) {
+        super(context, other);
+        list.ensureCapacity(other.list.size());
+        for (CameraPreference pref : other.list) {
+            list.add(pref.copy(context));
+        }
+    }
+
+    @Override
+    public PreferenceGroup copy(Context context) {
+        return new PreferenceGroup(context, this);
+    }
+
     public void addChild(CameraPreference child) {
         list.add(child);
     }
@@ -17,7 +17,10 @@
 package com.android.camera;
 
 import android.content.Context;
+import android.os.SystemClock;
 import android.util.AttributeSet;
+import android.util.Log;
+import android.util.SparseArray;
 import android.util.Xml;
 import android.view.InflateException;
 
@@ -25,21 +28,63 @@ import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.IOException;
-import java.lang.reflect.Constructor;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Locale;
 
 /**
  * Inflate <code>CameraPreference</code> from XML resource.
+ *
+ * Each resource is only parsed once per process, with the application
+ * context, and kept as a template. {@link #inflate} returns a copy of the
+ * template for the given context, which the caller can change. The
+ * templates can be inflated ahead of time on a background thread with
+ * {@link #preload}.
  */
 public class PreferenceInflater {
-    private static final String PACKAGE_NAME =
-            PreferenceInflater.class.getPackage().getName();
+    private static final String TAG = "PreferenceInflater";
+
+    private interface Factory {
+        public CameraPreference create(Context context, AttributeSet attrs);
+    }
+
+    // The preference classes by XML tag name.
+    private static final HashMap<String, Factory> sFactories =
+            new HashMap<String, Factory>();
+
+    static {
+        sFactories.put("PreferenceGroup", new Factory() {
+            @Override
+            public CameraPreference create(Context context, AttributeSet attrs) {
+                return new PreferenceGroup(context, attrs);
+            }
+        });
+        sFactories.put("ListPreference", new Factory() {
+            @Override
+            public CameraPreference create(Context context, AttributeSet attrs) {
+                return new ListPreference(context, attrs);
+            }
+        });
+        sFactories.put("IconListPreference", new Factory() {
+            @Override
+            public CameraPreference create(Context context, AttributeSet attrs) {
+                return new IconListPreference(context, attrs);
+            }
+        });
+        sFactories.put("RecordLocationPreference", new Factory() {
+            @Override
+            public CameraPreference create(Context context, AttributeSet attrs) {
+                return new RecordLocationPreference(context, attrs);
+            }
+        });
+    }
 
-    private static final Class<?>[] CTOR_SIGNATURE =
-            new Class[] {Context.class, AttributeSet.class};
-    private static final HashMap<String, Constructor<?>> sConstructorMap =
-            new HashMap<String, Constructor<?>>();
+    // The inflated templates by resource id. They are never handed out, so
+    // they are not modified after inflation. Guarded by itself.
+    private static final SparseArray<CameraPreference> sTemplates =
+            new SparseArray<CameraPreference>();
+    // The locale of the titles and entries of the templates.
+    private static Locale sLocale;
 
     private Context mContext;
 
@@ -48,41 +93,66 @@ public class PreferenceInflater {
     }
 
     public CameraPreference inflate(int resId) {
-        return inflate(mContext.getResources().getXml(resId));
+        return getTemplate(mContext, resId).copy(mContext);
     }
 
-    private CameraPreference newPreference(String tagName, Object[] args) {
-        String name = PACKAGE_NAME + "." + tagName;
-        Constructor<?> constructor = sConstructorMap.get(name);
-        try {
-            if (constructor == null) {
-                // Class not found in the cache, see if it's real, and try to
-                // add it
-                Class<?> clazz = mContext.getClassLoader().loadClass(name);
-                constructor = clazz.getConstructor(CTOR_SIGNATURE);
-                sConstructorMap.put(name, constructor);
+    /**
+     * Inflates the templates of the resources on a background thread, so
+     * that later calls to {@link #inflate} only copy them.
+     */
+    public static void preload(Context context, final int... resIds) {
+        final Context appContext = context.getApplicationContext();
+        new Thread("PreferenceInflater") {
+            @Override
+            public void run() {
+                for (int resId : resIds) {
+                    getTemplate(appContext, resId);
+                }
+            }
+        }.start();
+    }
+
+    // Returns the template of the resource, inflating it if needed. A caller
+    // that asks while the template is being inflated waits for it.
+    private static CameraPreference getTemplate(Context context, int resId) {
+        synchronized (sTemplates) {
+            Locale locale = context.getResources().getConfiguration().locale;
+            if (!locale.equals(sLocale)) {
+                sTemplates.clear();
+                sLocale = locale;
             }
-            return (CameraPreference) constructor.newInstance(args);
-        } catch (NoSuchMethodException e) {
-            throw new InflateException("Error inflating class " + name, e);
-        } catch (ClassNotFoundException e) {
-            throw new InflateException("No such class: " + name, e);
-        } catch (Exception e) {
-            throw new InflateException("While create instance of" + name, e);
+            CameraPreference template = sTemplates.get(resId);
+            if (template == null) {
+                long start = SystemClock.uptimeMillis();
+                Context appContext = context.getApplicationContext();
+                template = inflate(appContext, appContext.getResources().getXml(resId));
+                sTemplates.put(resId, template);
+                Log.v(TAG, "Inflated preferences in "
+                        + (SystemClock.uptimeMillis() - start) + "ms");
+            }
+            return template;
+        }
+    }
+
+    private static CameraPreference newPreference(String tagName, Context context,
+            AttributeSet attrs) {
+        Factory factory = sFactories.get(tagName);
+        if (factory == null) {
+            throw new InflateException("No such class: " + tagName);
         }
+        return factory.create(context, attrs);
     }
 
-    private CameraPreference inflate(XmlPullParser parser) {
+    private static CameraPreference inflate(Context context, XmlPullParser parser) {
 
         AttributeSet attrs = Xml.asAttributeSet(parser);
         ArrayList<CameraPreference> list = new ArrayList<CameraPreference>();
-        Object args[] = new Object[]{mContext, attrs};
 
         try {
             for (int type = parser.next();
                     type != XmlPullParser.END_DOCUMENT; type = parser.next()) {
                 if (type != XmlPullParser.START_TAG) continue;
-                CameraPreference pref = newPreference(parser.getName(), args);
+                CameraPreference pref = newPreference(parser.getName(), context, attrs);
 
                 int depth = parser.getDepth();
                 if (depth > list.size()) {
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+/**
+ * Frame pacing statistics of the camera preview: how many preview frames
+ * were drawn, dropped because a newer one arrived before they were drawn,
+ * or drawn late, and how long the drawing thread waited for its lock.
+ *
+ * It is not thread safe. The times are passed in by the caller, so it can
+ * also be driven by a test harness.
+ */
+public class PreviewFrameStats {
+    private final long mLateThresholdNs;
+
+    private int mDrawnFrames;
+    private int mRedraws;
+    private int mDroppedFrames;
+    private int mLateFrames;
+    private long mTotalLatencyNs;
+    private long mMaxLatencyNs;
+    private long mTotalLockWaitNs;
+    private long mMaxLockWaitNs;
+
+    public PreviewFrameStats(long lateThresholdNs) {
+        mLateThresholdNs = lateThresholdNs;
+    }
+
+    public void reset() {
+        mDrawnFrames = 0;
+        mRedraws = 0;
+        mDroppedFrames = 0;
+        mLateFrames = 0;
+        mTotalLatencyNs = 0;
+        mMaxLatencyNs = 0;
+        mTotalLockWaitNs = 0;
+        mMaxLockWaitNs = 0;
+    }
+
+    /**
+     * Records that a new frame was drawn.
+     *
+     * @param newFrames the number of frames that became available since the
+     *        last drawn frame. All but the last one were dropped.
+     * @param latencyNs the time from the last frame becoming available to it
+     *        being drawn
+     * @param lockWaitNs the time the drawing thread waited for its lock
+     */
+    public void onFrameDrawn(int newFrames, long latencyNs, long lockWaitNs) {
+        mDrawnFrames++;
+        if (newFrames > 1) mDroppedFrames += newFrames - 1;
+        if (latencyNs > mLateThresholdNs) mLateFrames++;
+        mTotalLatencyNs += latencyNs;
+        mMaxLatencyNs = Math.max(mMaxLatencyNs, latencyNs);
+        addLockWait(lockWaitNs);
+    }
+
+    /** Records a draw without a new frame, e.g. during an animation. */
+    public void onRedraw(long lockWaitNs) {
+        mRedraws++;
+        addLockWait(lockWaitNs);
+    }
+
+    private void addLockWait(long lockWaitNs) {
+        mTotalLockWaitNs += lockWaitNs;
+        mMaxLockWaitNs = Math.max(mMaxLockWaitNs, lockWaitNs);
+    }
+
+    public int getDrawnFrames() {
+        return mDrawnFrames;
+    }
+
+    public int getRedraws() {
+        return mRedraws;
+    }
+
+    public int getDroppedFrames() {
+        return mDroppedFrames;
+    }
+
+    public int getLateFrames() {
+        return mLateFrames;
+    }
+
+    public long getAverageLatencyNs() {
+        return mDrawnFrames == 0 ? 0 : mTotalLatencyNs / mDrawnFrames;
+    }
+
+    public long getMaxLatencyNs() {
+        return mMaxLatencyNs;
+    }
+
+    public long getTotalLockWaitNs() {
+        return mTotalLockWaitNs;
+    }
+
+    public long getMaxLockWaitNs() {
+        return mMaxLockWaitNs;
+    }
+
+    @Override
+    public String toString() {
+        return "frames: drawn=" + mDrawnFrames + " redraws=" + mRedraws
+                + " dropped=" + mDroppedFrames + " late=" + mLateFrames
+                + " avgLatency=" + getAverageLatencyNs() / 1000 + "us"
+                + " maxLatency=" + mMaxLatencyNs / 1000 + "us"
+                + " lockWait=" + mTotalLockWaitNs / 1000 + "us"
+                + " maxLockWait=" + mMaxLockWaitNs / 1000 + "us";
+    }
+}
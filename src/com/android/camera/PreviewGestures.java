@@ -43,12 +43,23 @@ public class PreviewGestures
     private static final int MODE_ZOOM = 2;
     private static final int MODE_MODULE = 3;
     private static final int MODE_ALL = 4;
+    private static final int MODE_FOCUS = 5;
+
+    public interface FocusDragListener {
+        // Returns false if the focus cannot be dragged now.
+        public boolean onFocusDragStart(int x, int y);
+        public void onFocusDrag(int x, int y);
+        public void onFocusDragEnd(int x, int y);
+    }
 
     private CameraActivity mActivity;
     private CameraModule mModule;
     private RenderOverlay mOverlay;
     private PieRenderer mPie;
     private ZoomRenderer mZoom;
+    private FocusDragListener mFocusDragListener;
+    // True if the current touch started on the focus ring.
+    private boolean mOnFocusRing;
     private MotionEvent mDown;
     private MotionEvent mCurrent;
     private ScaleGestureDetector mScale;
@@ -89,6 +100,10 @@ public class PreviewGestures
         mOverlay = overlay;
     }
 
+    public void setFocusDragListener(FocusDragListener listener) {
+        mFocusDragListener = listener;
+    }
+
     public void setOrientation(int orientation) {
         mOrientation = orientation;
     }
@@ -128,12 +143,18 @@ public class PreviewGestures
                 return mActivity.superDispatchTouchEvent(m);
             } else {
                 mMode = MODE_ALL;
+                // Reuse the pooled event of the previous touch.
+                if (mDown != null) mDown.recycle();
                 mDown = MotionEvent.obtain(m);
                 if (mPie != null && mPie.showsItems()) {
                     mMode = MODE_PIE;
                     return sendToPie(m);
                 }
-                if (mPie != null && !mZoomOnly) {
+                mOnFocusRing = (mFocusDragListener != null && mPie != null && !mZoomOnly
+                        && mPie.isOnFocusRing(getOverlayX(m), getOverlayY(m)));
+                // Holding the focus ring does not open the pie, so that the
+                // ring can be dragged.
+                if (mPie != null && !mZoomOnly && !mOnFocusRing) {
                     mHandler.sendEmptyMessageDelayed(MSG_PIE, TIMEOUT_PIE);
                 }
                 if (mZoom != null) {
@@ -146,7 +167,7 @@ public class PreviewGestures
             return false;
         } else if (mMode == MODE_PIE) {
             if (MotionEvent.ACTION_POINTER_DOWN == m.getActionMasked()) {
-                sendToPie(makeCancelEvent(m));
+                cancelPieTouch(m);
                 if (mZoom != null) {
                     onScaleBegin(mScale);
                 }
@@ -161,6 +182,18 @@ public class PreviewGestures
                 onScaleEnd(mScale);
             }
             return true;
+        } else if (mMode == MODE_FOCUS) {
+            switch (m.getActionMasked()) {
+                case MotionEvent.ACTION_MOVE:
+                    mFocusDragListener.onFocusDrag(getOverlayX(m), getOverlayY(m));
+                    break;
+                case MotionEvent.ACTION_UP:
+                case MotionEvent.ACTION_CANCEL:
+                    mMode = MODE_NONE;
+                    mFocusDragListener.onFocusDragEnd(getOverlayX(m), getOverlayY(m));
+                    break;
+            }
+            return true;
         } else if (mMode == MODE_MODULE) {
             return mActivity.superDispatchTouchEvent(m);
         } else {
@@ -172,7 +205,7 @@ public class PreviewGestures
             if (MotionEvent.ACTION_POINTER_DOWN == m.getActionMasked()) {
                 if (!mZoomOnly) {
                     cancelPie();
-                    sendToPie(makeCancelEvent(m));
+                    cancelPieTouch(m);
                 }
                 if (mZoom != null) {
                     mScale.onTouchEvent(m);
@@ -210,6 +243,12 @@ public class PreviewGestures
                         || Math.abs(m.getY() - mDown.getY()) > mSlop) {
                     // moved too far and no timeout yet, no focus or pie
                     cancelPie();
+                    if (mOnFocusRing) {
+                        cancelActivityTouchHandling(m);
+                        mMode = mFocusDragListener.onFocusDragStart(
+                                getOverlayX(m), getOverlayY(m)) ? MODE_FOCUS : MODE_NONE;
+                        return true;
+                    }
                     if (isSwipe(m, true)) {
                         mMode = MODE_MODULE;
                         return mActivity.superDispatchTouchEvent(m);
@@ -277,7 +316,15 @@ public class PreviewGestures
     }
 
     public void cancelActivityTouchHandling(MotionEvent m) {
-        mActivity.superDispatchTouchEvent(makeCancelEvent(m));
+        MotionEvent c = makeCancelEvent(m);
+        mActivity.superDispatchTouchEvent(c);
+        c.recycle();
+    }
+
+    private void cancelPieTouch(MotionEvent m) {
+        MotionEvent c = makeCancelEvent(m);
+        sendToPie(c);
+        c.recycle();
     }
 
     private MotionEvent makeCancelEvent(MotionEvent m) {
@@ -286,6 +333,14 @@ public class PreviewGestures
         return c;
     }
 
+    private int getOverlayX(MotionEvent m) {
+        return (int) m.getX() - mOverlay.getWindowPositionX();
+    }
+
+    private int getOverlayY(MotionEvent m) {
+        return (int) m.getY() - mOverlay.getWindowPositionY();
+    }
+
     private void openPie() {
         mDown.offsetLocation(-mOverlay.getWindowPositionX(),
                 -mOverlay.getWindowPositionY());
@@ -38,6 +38,16 @@ public class RecordLocationPreference extends IconListPreference {
         mResolver = context.getContentResolver();
     }
 
+    protected RecordLocationPreference(Context context, RecordLocationPreference other) {
+        super(context, other);
+        mResolver = context.getContentResolver();
+    }
+
+    @Override
+    public RecordLocationPreference copy(Context context) {
+        return new RecordLocationPreference(context, this);
+    }
+
     @Override
     public String getValue() {
         return get(getSharedPreferences(), mResolver) ? CameraSettings.VALUE_ON : CameraSettings.VALUE_OFF;
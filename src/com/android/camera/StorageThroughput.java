@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import android.content.SharedPreferences;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * A persisted model of the sustained write throughput of the directory videos
+ * are recorded to. It combines a short write probe run in the background with
+ * the data rate of recordings that completed on the same storage. A completed
+ * recording only shows that the storage kept up with its own rate, so the
+ * headroom for bursts is applied to the probed speed alone.
+ */
+public class StorageThroughput {
+    private static final String TAG = "StorageThroughput";
+
+    private static final String KEY_PREFIX = "storage_throughput_";
+    private static final String KEY_SUFFIX_PROBE = "_probe";
+    private static final String KEY_SUFFIX_PROBE_TIME = "_probe_time";
+    private static final String KEY_SUFFIX_RECORDED = "_recorded";
+
+    // Recordings need headroom over their average bitrate for bursts and
+    // file system overhead, compared to the probed speed.
+    private static final float HEADROOM = 1.5f;
+    // Weight of a new probe measurement in the running estimate.
+    private static final float PROBE_WEIGHT = 0.5f;
+    private static final int PROBE_SIZE = 8 * 1024 * 1024;
+    private static final int PROBE_CHUNK_SIZE = 256 * 1024;
+    private static final long PROBE_MAX_AGE_MS = 7L * 24 * 60 * 60 * 1000;
+    // Short recordings mostly measure the page cache.
+    private static final long MIN_RECORDING_DURATION_MS = 10000;
+
+    private static Thread sProbeThread;
+
+    private final SharedPreferences mPrefs;
+    private final String mDirectory;
+    private final String mKey;
+
+    public StorageThroughput(SharedPreferences prefs, String directory) {
+        mPrefs = prefs;
+        mDirectory = directory;
+        mKey = KEY_PREFIX + directory.toLowerCase().hashCode();
+    }
+
+    /** Returns the probed write speed in bytes per second, or 0 if unknown. */
+    public long getProbedBytesPerSecond() {
+        return mPrefs.getLong(mKey + KEY_SUFFIX_PROBE, 0);
+    }
+
+    /**
+     * Returns the highest data rate, in bytes per second, of a recording that
+     * completed on this storage, or 0 if there has been none.
+     */
+    public long getRecordedBytesPerSecond() {
+        return mPrefs.getLong(mKey + KEY_SUFFIX_RECORDED, 0);
+    }
+
+    /**
+     * Returns the highest data rate, in bytes per second, the storage is known
+     * to sustain: the probed speed less the headroom, or the rate of a
+     * completed recording if that is higher. Returns 0 if unknown.
+     */
+    public long getSustainableBytesPerSecond() {
+        return Math.max((long) (getProbedBytesPerSecond() / HEADROOM),
+                getRecordedBytesPerSecond());
+    }
+
+    /**
+     * Returns true if the storage can sustain recording at the given bitrate.
+     * Any bitrate up to that of a completed recording is sustainable. Above
+     * it, the probed speed decides, and without a probe the storage is
+     * assumed to be fast enough.
+     */
+    public boolean canSustain(long bitsPerSecond) {
+        long bytesPerSecond = bitsPerSecond / 8;
+        if (bytesPerSecond <= getRecordedBytesPerSecond()) return true;
+        long probed = getProbedBytesPerSecond();
+        if (probed == 0) return true;
+        return bytesPerSecond * HEADROOM <= probed;
+    }
+
+    /** Records a finished recording of {@code bytes} over {@code durationMs}. */
+    public void addRecording(long bytes, long durationMs) {
+        if (durationMs < MIN_RECORDING_DURATION_MS || bytes <= 0) return;
+        long rate = bytes * 1000 / durationMs;
+        if (rate > getRecordedBytesPerSecond()) {
+            mPrefs.edit().putLong(mKey + KEY_SUFFIX_RECORDED, rate).apply();
+        }
+        Log.v(TAG, "Recording sample " + rate + " B/s. " + this);
+    }
+
+    /** Records a write probe of {@code bytes} that took {@code elapsedMs}. */
+    public void addProbe(long bytes, long elapsedMs) {
+        if (elapsedMs <= 0 || bytes <= 0) return;
+        long rate = bytes * 1000 / elapsedMs;
+        long previous = getProbedBytesPerSecond();
+        if (previous > 0) {
+            rate = (long) (PROBE_WEIGHT * rate + (1 - PROBE_WEIGHT) * previous);
+        }
+        mPrefs.edit()
+                .putLong(mKey + KEY_SUFFIX_PROBE, rate)
+                .putLong(mKey + KEY_SUFFIX_PROBE_TIME, System.currentTimeMillis())
+                .apply();
+        Log.v(TAG, "Probe wrote " + bytes + " bytes in " + elapsedMs + "ms. " + this);
+    }
+
+    /**
+     * Starts a short write probe on a background thread, unless the last one
+     * is recent enough or a probe is already running. The caller must make
+     * sure there is enough free space for the probe file.
+     */
+    public void probeIfNeeded() {
+        long lastProbe = mPrefs.getLong(mKey + KEY_SUFFIX_PROBE_TIME, 0);
+        if (System.currentTimeMillis() - lastProbe < PROBE_MAX_AGE_MS) return;
+        synchronized (StorageThroughput.class) {
+            if (sProbeThread != null) return;
+            sProbeThread = new Thread("StorageThroughputProbe") {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    try {
+                        probe();
+                    } finally {
+                        synchronized (StorageThroughput.class) {
+                            sProbeThread = null;
+                        }
+                    }
+                }
+            };
+            sProbeThread.start();
+        }
+    }
+
+    private void probe() {
+        File file = new File(mDirectory, ".throughput_probe");
+        byte[] chunk = new byte[PROBE_CHUNK_SIZE];
+        FileOutputStream out = null;
+        long elapsed;
+        try {
+            long start = SystemClock.elapsedRealtime();
+            out = new FileOutputStream(file);
+            for (int written = 0; written < PROBE_SIZE; written += chunk.length) {
+                out.write(chunk);
+            }
+            // Include the time to get the data to the device.
+            out.getFD().sync();
+            elapsed = Math.max(1, SystemClock.elapsedRealtime() - start);
+        } catch (IOException e) {
+            Log.w(TAG, "Write probe failed", e);
+            return;
+        } finally {
+            Util.closeSilently(out);
+            file.delete();
+        }
+        addProbe(PROBE_SIZE, elapsed);
+    }
+
+    @Override
+    public String toString() {
+        return "StorageThroughput[" + mDirectory
+                + " probed=" + getProbedBytesPerSecond() / 1024 + "KB/s"
+                + " recorded=" + getRecordedBytesPerSecond() / 1024 + "KB/s"
+                + " sustainable=" + getSustainableBytesPerSecond() / 1024 + "KB/s]";
+    }
+}
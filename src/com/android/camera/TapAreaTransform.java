@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import android.graphics.Matrix;
+import android.graphics.Rect;
+
+/**
+ * Converts areas touched on the preview to focus and metering areas in driver
+ * coordinates, which range from (-1000, -1000) to (1000, 1000).
+ *
+ * The conversion is the inverse of the matrix from
+ * {@link Util#prepareMatrix}. It is only computed again when the mirror, the
+ * display orientation or the preview size changes, and areas are mapped with
+ * its coefficients instead of through a Matrix and a RectF, so mapping an
+ * area does not allocate and can be done at touch event rate.
+ */
+public class TapAreaTransform {
+    private boolean mMirror;
+    private int mDisplayOrientation;
+    private int mPreviewWidth;
+    private int mPreviewHeight;
+    private boolean mValid;
+
+    private final Matrix mMatrix = new Matrix();
+    private final Matrix mInverse = new Matrix();
+    private final float[] mValues = new float[9];
+    // x' = mScaleX * x + mSkewX * y + mTransX
+    // y' = mSkewY * x + mScaleY * y + mTransY
+    private float mScaleX, mSkewX, mTransX;
+    private float mSkewY, mScaleY, mTransY;
+
+    public void setMirror(boolean mirror) {
+        if (mValid && mMirror == mirror) return;
+        mMirror = mirror;
+        update();
+    }
+
+    public void setDisplayOrientation(int displayOrientation) {
+        if (mValid && mDisplayOrientation == displayOrientation) return;
+        mDisplayOrientation = displayOrientation;
+        update();
+    }
+
+    public void setPreviewSize(int previewWidth, int previewHeight) {
+        if (mValid && mPreviewWidth == previewWidth && mPreviewHeight == previewHeight) return;
+        mPreviewWidth = previewWidth;
+        mPreviewHeight = previewHeight;
+        update();
+    }
+
+    /** Returns false until the preview size is known. */
+    public boolean isValid() {
+        return mValid;
+    }
+
+    private void update() {
+        mValid = false;
+        if (mPreviewWidth == 0 || mPreviewHeight == 0) return;
+        Util.prepareMatrix(mMatrix, mMirror, mDisplayOrientation,
+                mPreviewWidth, mPreviewHeight);
+        // In face detection, the matrix converts the driver coordinates to UI
+        // coordinates. In tap focus, the inverted matrix converts the UI
+        // coordinates to driver coordinates.
+        mMatrix.invert(mInverse);
+        mInverse.getValues(mValues);
+        mScaleX = mValues[Matrix.MSCALE_X];
+        mSkewX = mValues[Matrix.MSKEW_X];
+        mTransX = mValues[Matrix.MTRANS_X];
+        mSkewY = mValues[Matrix.MSKEW_Y];
+        mScaleY = mValues[Matrix.MSCALE_Y];
+        mTransY = mValues[Matrix.MTRANS_Y];
+        mValid = true;
+    }
+
+    /**
+     * Converts an area of the given size centered at (x, y) on the preview to
+     * driver coordinates. The area is moved inside the preview if needed.
+     */
+    public void calculateTapArea(int areaWidth, int areaHeight, int x, int y, Rect rect) {
+        int left = Util.clamp(x - areaWidth / 2, 0, mPreviewWidth - areaWidth);
+        int top = Util.clamp(y - areaHeight / 2, 0, mPreviewHeight - areaHeight);
+        int right = left + areaWidth;
+        int bottom = top + areaHeight;
+
+        // The matrix only rotates by multiples of 90 degrees, so the mapped
+        // opposite corners of the area are the corners of the mapped area.
+        float x0 = mScaleX * left + mSkewX * top + mTransX;
+        float y0 = mSkewY * left + mScaleY * top + mTransY;
+        float x1 = mScaleX * right + mSkewX * bottom + mTransX;
+        float y1 = mSkewY * right + mScaleY * bottom + mTransY;
+        rect.left = Math.round(Math.min(x0, x1));
+        rect.top = Math.round(Math.min(y0, y1));
+        rect.right = Math.round(Math.max(x0, x1));
+        rect.bottom = Math.round(Math.max(y0, y1));
+    }
+}
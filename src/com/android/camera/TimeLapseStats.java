@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import android.media.MediaMetadataRetriever;
+
+/**
+ * Compares the frame interval a time lapse recording achieved with the one
+ * it was set to. MediaRecorder captures the frames itself and rewrites their
+ * timestamps to the playback rate, so the interval is only known on average:
+ * the recording time over the number of frames that ended up in the file.
+ */
+public class TimeLapseStats {
+    private final long mTargetIntervalMs;
+    private final long mRecordingMs;
+    private final int mCapturedFrames;
+
+    /**
+     * @param targetIntervalMs the capture interval the recording was set to
+     * @param recordingMs how long the recording ran
+     * @param videoLengthMs the length of the video that was written
+     * @param frameRate the playback frame rate of the video
+     */
+    public TimeLapseStats(long targetIntervalMs, long recordingMs, long videoLengthMs,
+            int frameRate) {
+        mTargetIntervalMs = targetIntervalMs;
+        mRecordingMs = recordingMs;
+        mCapturedFrames = (int) Math.round(videoLengthMs * frameRate / 1000.0);
+    }
+
+    /** Returns the length in ms of the video in the file, or -1 if unknown. */
+    public static long readVideoLength(String path) {
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        try {
+            retriever.setDataSource(path);
+            String duration = retriever.extractMetadata(
+                    MediaMetadataRetriever.METADATA_KEY_DURATION);
+            return (duration == null) ? -1 : Long.parseLong(duration);
+        } catch (NumberFormatException ex) {
+            return -1;
+        } catch (RuntimeException ex) {
+            // Assume this is a corrupt video file.
+            return -1;
+        } finally {
+            try {
+                retriever.release();
+            } catch (RuntimeException ex) {
+                // Ignore failures while cleaning up.
+            }
+        }
+    }
+
+    public int getCapturedFrames() {
+        return mCapturedFrames;
+    }
+
+    /** Returns the frames the recording would have had at the target interval. */
+    public int getExpectedFrames() {
+        // The first frame is captured when the recording starts.
+        return (int) (mRecordingMs / mTargetIntervalMs) + 1;
+    }
+
+    public int getMissedFrames() {
+        return Math.max(0, getExpectedFrames() - mCapturedFrames);
+    }
+
+    /** Returns the average time in ms between two captured frames, or 0 if unknown. */
+    public double getAverageIntervalMs() {
+        if (mCapturedFrames < 2) return 0;
+        return (double) mRecordingMs / (mCapturedFrames - 1);
+    }
+
+    /**
+     * Returns how much longer the average interval was than the target, as a
+     * fraction of the target. It is negative if the frames came faster.
+     */
+    public double getIntervalError() {
+        double average = getAverageIntervalMs();
+        return (average == 0) ? 0 : average / mTargetIntervalMs - 1;
+    }
+
+    @Override
+    public String toString() {
+        return "time lapse: target=" + mTargetIntervalMs + "ms"
+                + " actual=" + Math.round(getAverageIntervalMs()) + "ms"
+                + " error=" + Math.round(getIntervalError() * 1000) / 10.0 + "%"
+                + " frames=" + mCapturedFrames + "/" + getExpectedFrames()
+                + " missed=" + getMissedFrames();
+    }
+}
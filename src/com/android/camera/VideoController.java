@@ -17,6 +17,7 @@
 package com.android.camera;
 
 import android.content.Context;
+import android.os.SystemClock;
 import android.view.LayoutInflater;
 import android.hardware.Camera.Size;
 
@@ -130,9 +131,11 @@ public class VideoController extends PieController
         settingsItem.setOnClickListener(new OnClickListener() {
             @Override
             public void onClick(PieItem item) {
+                long openTime = SystemClock.uptimeMillis();
                 if (mPopup == null) {
                     initializePopup();
                 }
+                mPopup.setOpenTime(openTime);
                 mActivePopup = mPopup;
                 mModule.showPopup(mPopup);
             }
@@ -144,9 +147,11 @@ public class VideoController extends PieController
         pictureItem.setOnClickListener(new OnClickListener() {
             @Override
             public void onClick(PieItem item) {
+                long openTime = SystemClock.uptimeMillis();
                 if (mPicturePopup == null) {
                     initializePicturePopup();
                 }
+                mPicturePopup.setOpenTime(openTime);
                 mActivePopup = mPicturePopup;
                 mModule.showPopup(mPicturePopup);
             }
@@ -229,6 +234,7 @@ public class VideoController extends PieController
     // the second-level popup
     public void onPreferenceClicked(ListPreference pref) {
         if (mSecondPopup != null) return;
+        long openTime = SystemClock.uptimeMillis();
 
         LayoutInflater inflater = (LayoutInflater) mActivity.getSystemService(
                 Context.LAYOUT_INFLATER_SERVICE);
@@ -248,6 +254,7 @@ public class VideoController extends PieController
             mModule.dismissPopup(true);
             mSecondPopup = basic;
         }
+        mSecondPopup.setOpenTime(openTime);
         mModule.showPopup(mSecondPopup);
     }
 }
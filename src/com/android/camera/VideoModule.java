@@ -29,6 +29,7 @@ import android.content.SharedPreferences.Editor;
 import android.content.res.Configuration;
 import android.graphics.Bitmap;
 import android.hardware.Camera.CameraInfo;
+import android.hardware.Camera.OnZoomChangeListener;
 import android.hardware.Camera.Parameters;
 import android.hardware.Camera.PictureCallback;
 import android.hardware.Camera.Size;
@@ -61,13 +62,13 @@ import android.widget.FrameLayout;
 import android.widget.FrameLayout.LayoutParams;
 import android.widget.ImageView;
 import android.widget.LinearLayout;
-import android.widget.TextView;
 import android.widget.Toast;
 
 import com.android.camera.ui.AbstractSettingPopup;
 import com.android.camera.ui.PieRenderer;
 import com.android.camera.ui.PopupManager;
 import com.android.camera.ui.PreviewSurfaceView;
+import com.android.camera.ui.RecordingTimeView;
 import com.android.camera.ui.RenderOverlay;
 import com.android.camera.ui.Rotatable;
 import com.android.camera.ui.RotateImageView;
@@ -119,6 +120,15 @@ public class VideoModule implements CameraModule,
             "android.intent.extra.quickCapture";
 
     private static final int MIN_THUMB_SIZE = 64;
+
+    // Qualities to fall back to, best first, when the storage is too slow.
+    private static final int[] DOWNGRADE_VIDEO_QUALITIES = {
+            CamcorderProfile.QUALITY_1080P,
+            CamcorderProfile.QUALITY_720P,
+            CamcorderProfile.QUALITY_480P,
+            CamcorderProfile.QUALITY_CIF,
+            CamcorderProfile.QUALITY_QVGA,
+            CamcorderProfile.QUALITY_QCIF};
     // module fields
     private CameraActivity mActivity;
     private View mRootView;
@@ -127,6 +137,7 @@ public class VideoModule implements CameraModule,
     private Parameters mParameters;
 
     private boolean mSnapshotInProgress = false;
+    private boolean mSlowStorageWarningShown;
 
     private static final String EFFECT_BG_FROM_GALLERY = "gallery";
 
@@ -149,7 +160,9 @@ public class VideoModule implements CameraModule,
     private Rotatable mReviewDoneButton;
     private RotateImageView mReviewPlayButton;
     private ShutterButton mShutterButton;
-    private TextView mRecordingTimeView;
+    private RecordingTimeView mRecordingTimeView;
+    private int mRecordingTimeElapsedColor;
+    private int mRecordingTimeRemainingColor;
     private RotateLayout mBgLearningMessageRotater;
     private View mBgLearningMessageFrame;
     private LinearLayout mLabelsLinearLayout;
@@ -233,6 +246,8 @@ public class VideoModule implements CameraModule,
     private int mOrientation = OrientationEventListener.ORIENTATION_UNKNOWN;
 
     private int mZoomValue;  // The current zoom value.
+    private final ZoomUpdateListener mZoomUpdateListener = new ZoomUpdateListener();
+    private final ZoomController mZoomController = new ZoomController(mZoomUpdateListener);
     private int mZoomMax;
     private List<Integer> mZoomRatios;
     private boolean mRestoreFlash;  // This is used to check if we need to restore the flash
@@ -424,6 +439,8 @@ public class VideoModule implements CameraModule,
         mPreferences = new ComboPreferences(mActivity);
         CameraSettings.upgradeGlobalPreferences(mPreferences.getGlobal());
         mCameraId = getPreferredCameraId(mPreferences);
+        // Inflate the preferences while the camera opens.
+        PreferenceInflater.preload(mActivity, R.xml.video_preferences);
 
         mPreferences.setLocalId(mActivity, mCameraId);
         CameraSettings.upgradeLocalPreferences(mPreferences.getLocal());
@@ -618,6 +635,74 @@ public class VideoModule implements CameraModule,
         }
     }
 
+    private StorageThroughput getStorageThroughput() {
+        return new StorageThroughput(mPreferences.getGlobal(),
+                Storage.getStorage().generateDirectory());
+    }
+
+    private static long getTotalBitRate(CamcorderProfile profile) {
+        return (long) profile.videoBitRate + profile.audioBitRate;
+    }
+
+    // Returns the requested quality if the storage can keep up with it, or
+    // else the best lower quality it can keep up with.
+    @TargetApi(ApiHelper.VERSION_CODES.HONEYCOMB)
+    private int getSustainableVideoQuality(int quality) {
+        StorageThroughput throughput = getStorageThroughput();
+        CamcorderProfile profile = CamcorderProfile.get(mCameraId, quality);
+        Log.v(TAG, throughput + " requested=" + getTotalBitRate(profile) + "bps");
+        if (throughput.canSustain(getTotalBitRate(profile))) return quality;
+
+        if (ApiHelper.HAS_FINE_RESOLUTION_QUALITY_LEVELS) {
+            for (int lower : DOWNGRADE_VIDEO_QUALITIES) {
+                if (!CamcorderProfile.hasProfile(mCameraId, lower)) continue;
+                CamcorderProfile candidate = CamcorderProfile.get(mCameraId, lower);
+                if (candidate.videoBitRate >= profile.videoBitRate) continue;
+                if (throughput.canSustain(getTotalBitRate(candidate))) {
+                    Log.w(TAG, "Storage too slow for quality " + quality
+                            + ", using " + lower);
+                    showSlowStorageWarning(R.string.video_quality_reduced_slow_storage);
+                    return lower;
+                }
+            }
+        }
+        Log.w(TAG, "Storage too slow for quality " + quality);
+        showSlowStorageWarning(R.string.video_storage_too_slow);
+        return quality;
+    }
+
+    // Returns false if the storage cannot keep up with recording at the given
+    // HFR setting. The bitrate grows with the frame rate.
+    private boolean canStorageSustainHfr(String videohfr) {
+        if (mProfile == null || mProfile.videoFrameRate <= 0) return true;
+        int frameRate;
+        try {
+            frameRate = Integer.parseInt(videohfr);
+        } catch (NumberFormatException e) {
+            // "off" or an unknown value.
+            return true;
+        }
+        if (frameRate <= mProfile.videoFrameRate) return true;
+        long bitRate = (long) mProfile.videoBitRate * frameRate / mProfile.videoFrameRate
+                + mProfile.audioBitRate;
+        StorageThroughput throughput = getStorageThroughput();
+        Log.v(TAG, throughput + " hfr=" + frameRate + " requested=" + bitRate + "bps");
+        return throughput.canSustain(bitRate);
+    }
+
+    // The quality and HFR checks also run on the start preview thread, which
+    // has no looper, so the toast is always shown from the main thread.
+    private void showSlowStorageWarning(final int messageId) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mSlowStorageWarningShown) return;
+                mSlowStorageWarningShown = true;
+                Toast.makeText(mActivity, messageId, Toast.LENGTH_LONG).show();
+            }
+        });
+    }
+
 
     @Override
     public void onOrientationChanged(int orientation) {
@@ -815,6 +900,10 @@ public class VideoModule implements CameraModule,
             mTimeBetweenTimeLapseFrameCaptureMs = Integer.parseInt(frameIntervalStr);
             mCaptureTimeLapse = (mTimeBetweenTimeLapseFrameCaptureMs != 0);
         }
+        // Time lapse writes far less than the profile bitrate.
+        if (!mCaptureTimeLapse) {
+            quality = getSustainableVideoQuality(quality);
+        }
         // TODO: This should be checked instead directly +1000.
         if (mCaptureTimeLapse) quality += 1000;
 
@@ -932,6 +1021,11 @@ public class VideoModule implements CameraModule,
         PopupManager.getInstance(mActivity).notifyShowPopup(null);
 
         mVideoNamer = new VideoNamer();
+
+        // Refresh the storage speed estimate while the user frames the shot.
+        if (mActivity.getStorageSpace() > Storage.LOW_STORAGE_THRESHOLD) {
+            getStorageThroughput().probeIfNeeded();
+        }
     }
 
     private void setDisplayOrientation() {
@@ -1152,13 +1246,13 @@ public class VideoModule implements CameraModule,
             case KeyEvent.KEYCODE_VOLUME_UP:
                 if (mParameters.isZoomSupported() && mZoomRenderer != null) {
                     int index = mZoomValue + Util.getManualZoomStep();
-                    processZoomValueChanged(index);
+                    processZoomValueChanged(index, event.getEventTime());
                 }
                 return true;
             case KeyEvent.KEYCODE_VOLUME_DOWN:
                 if (mParameters.isZoomSupported() && mZoomRenderer != null) {
                     int index = mZoomValue - Util.getManualZoomStep();
-                    processZoomValueChanged(index);
+                    processZoomValueChanged(index, event.getEventTime());
                 }
                 return true;
         }
@@ -1508,12 +1602,24 @@ public class VideoModule implements CameraModule,
     private boolean addVideoToMediaStore() {
         boolean fail = false;
         if (mVideoFileDescriptor == null) {
-            mCurrentVideoValues.put(Video.Media.SIZE,
-                    new File(mCurrentVideoFilename).length());
+            long size = new File(mCurrentVideoFilename).length();
+            mCurrentVideoValues.put(Video.Media.SIZE, size);
             long duration = SystemClock.uptimeMillis() - mRecordingStartTime;
             if (duration > 0) {
                 if (mCaptureTimeLapse) {
-                    duration = getTimeLapseVideoLength(duration);
+                    // Report how closely MediaRecorder kept to the interval,
+                    // and store the length of what it wrote rather than the
+                    // length it should have.
+                    long videoLength = TimeLapseStats.readVideoLength(mCurrentVideoFilename);
+                    if (videoLength > 0) {
+                        Log.v(TAG, new TimeLapseStats(mTimeBetweenTimeLapseFrameCaptureMs,
+                                duration, videoLength, mProfile.videoFrameRate).toString());
+                        duration = videoLength;
+                    } else {
+                        duration = getTimeLapseVideoLength(duration);
+                    }
+                } else {
+                    getStorageThroughput().addRecording(size, duration);
                 }
                 mCurrentVideoValues.put(Video.Media.DURATION, duration);
             } else {
@@ -1707,7 +1813,7 @@ public class VideoModule implements CameraModule,
         if (recording) {
             mShutterButton.setImageResource(R.drawable.btn_shutter_video_recording);
             mActivity.hideSwitcher();
-            mRecordingTimeView.setText("");
+            mRecordingTimeView.clear();
             mRecordingTimeView.setVisibility(View.VISIBLE);
             if (mReviewControl != null) mReviewControl.setVisibility(View.GONE);
             // The camera is not allowed to be accessed in older api levels during
@@ -1876,51 +1982,6 @@ public class VideoModule implements CameraModule,
         mActivity.getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
     }
 
-    private static String millisecondToTimeString(long milliSeconds, boolean displayCentiSeconds) {
-        long seconds = milliSeconds / 1000; // round down to compute seconds
-        long minutes = seconds / 60;
-        long hours = minutes / 60;
-        long remainderMinutes = minutes - (hours * 60);
-        long remainderSeconds = seconds - (minutes * 60);
-
-        StringBuilder timeStringBuilder = new StringBuilder();
-
-        // Hours
-        if (hours > 0) {
-            if (hours < 10) {
-                timeStringBuilder.append('0');
-            }
-            timeStringBuilder.append(hours);
-
-            timeStringBuilder.append(':');
-        }
-
-        // Minutes
-        if (remainderMinutes < 10) {
-            timeStringBuilder.append('0');
-        }
-        timeStringBuilder.append(remainderMinutes);
-        timeStringBuilder.append(':');
-
-        // Seconds
-        if (remainderSeconds < 10) {
-            timeStringBuilder.append('0');
-        }
-        timeStringBuilder.append(remainderSeconds);
-
-        // Centi seconds
-        if (displayCentiSeconds) {
-            timeStringBuilder.append('.');
-            long remainderCentiSeconds = (milliSeconds - seconds * 1000) / 10;
-            if (remainderCentiSeconds < 10) {
-                timeStringBuilder.append('0');
-            }
-            timeStringBuilder.append(remainderCentiSeconds);
-        }
-
-        return timeStringBuilder.toString();
-    }
-
     private long getTimeLapseVideoLength(long deltaMs) {
         // For better approximation calculate fractional number of frames captured.
         // This will update the video time at a higher resolution.
@@ -1944,32 +2005,27 @@ public class VideoModule implements CameraModule,
         if (countdownRemainingTime) {
             deltaAdjusted = Math.max(0, mMaxVideoDurationInMs - deltaAdjusted) + 999;
         }
-        String text;
 
         long targetNextUpdateDelay;
         if (!mCaptureTimeLapse) {
-            text = millisecondToTimeString(deltaAdjusted, false);
+            mRecordingTimeView.setTime(deltaAdjusted, false);
             targetNextUpdateDelay = 1000;
         } else {
             // The length of time lapse video is different from the length
             // of the actual wall clock time elapsed. Display the video length
             // only in format hh:mm:ss.dd, where dd are the centi seconds.
-            text = millisecondToTimeString(getTimeLapseVideoLength(delta), true);
+            mRecordingTimeView.setTime(getTimeLapseVideoLength(delta), true);
             targetNextUpdateDelay = mTimeBetweenTimeLapseFrameCaptureMs;
         }
 
-        mRecordingTimeView.setText(text);
-
         if (mRecordingTimeCountsDown != countdownRemainingTime) {
             // Avoid setting the color on every update, do it only
             // when it needs changing.
             mRecordingTimeCountsDown = countdownRemainingTime;
 
-            int color = mActivity.getResources().getColor(countdownRemainingTime
-                    ? R.color.recording_time_remaining_text
-                    : R.color.recording_time_elapsed_text);
-
-            mRecordingTimeView.setTextColor(color);
+            mRecordingTimeView.setTextColor(countdownRemainingTime
+                    ? mRecordingTimeRemainingColor
+                    : mRecordingTimeElapsedColor);
         }
 
         long actualNextUpdateDelay = targetNextUpdateDelay - (delta % targetNextUpdateDelay);
@@ -2108,6 +2164,11 @@ public class VideoModule implements CameraModule,
             String videohfr = mPreferences.getString(
                     CameraSettings.KEY_VIDEOCAMERA_HFR,
                     mActivity.getString(R.string.pref_video_hfr_default));
+            if (!canStorageSustainHfr(videohfr)) {
+                Log.w(TAG, "Storage too slow for HFR " + videohfr);
+                videohfr = mActivity.getString(R.string.setting_off_value);
+                showSlowStorageWarning(R.string.video_hfr_disabled_slow_storage);
+            }
             Util.setVideoHfrMode(mActivity, mParameters, videohfr);
         }
 
@@ -2338,7 +2399,11 @@ public class VideoModule implements CameraModule,
             mShutterButton.setEnabled(false);
         }
 
-        mRecordingTimeView = (TextView) mRootView.findViewById(R.id.recording_time);
+        mRecordingTimeView = (RecordingTimeView) mRootView.findViewById(R.id.recording_time);
+        mRecordingTimeElapsedColor = mActivity.getResources().getColor(
+                R.color.recording_time_elapsed_text);
+        mRecordingTimeRemainingColor = mActivity.getResources().getColor(
+                R.color.recording_time_remaining_text);
         mRecordingTimeRect = (RotateLayout) mRootView.findViewById(R.id.recording_time_rect);
         mTimeLapseLabel = mRootView.findViewById(R.id.time_lapse_label);
         // The R.id.labels can only be found in phone layout.
@@ -2614,25 +2679,63 @@ public class VideoModule implements CameraModule,
         return false;
     }
 
-    private void processZoomValueChanged(int index) {
+    private void processZoomValueChanged(int index, long eventTime) {
         if (index >= 0 && index <= mZoomMax && mZoomValue != index) {
             mZoomValue = index;
             mZoomRenderer.setZoom(index);
             // Not useful to change zoom value when the activity is paused.
             if (mPaused) return;
-            // Set zoom parameters asynchronously
-            mParameters.setZoom(mZoomValue);
+            // Set zoom parameters asynchronously, at most once per frame.
+            mZoomController.setZoom(index, eventTime);
+            mZoomRenderer.setZoomValue(mZoomRatios.get(index));
+        }
+    }
+
+    private class ZoomUpdateListener implements ZoomController.Listener,
+            OnZoomChangeListener, CameraManager.SmoothZoomErrorCallback {
+        @Override
+        public void onZoomUpdate(int index) {
+            if (mPaused || mActivity.mCameraDevice == null) return;
+            mParameters.setZoom(index);
             mActivity.mCameraDevice.setParametersAsync(mParameters);
-            // for our camera we dont need to refetch the parameters again
-            //Parameters p = mActivity.mCameraDevice.getParameters();
-            mZoomRenderer.setZoomValue(mZoomRatios.get(mParameters.getZoom()));
+        }
+
+        @Override
+        public boolean onSmoothZoom(int index) {
+            if (mPaused || mActivity.mCameraDevice == null) return false;
+            // The camera refuses smooth zoom without a running preview.
+            if (!mPreviewing) return false;
+            // Keep the parameters at the target, so setting them for the
+            // flash or a snapshot does not zoom back to where the pinch started.
+            mParameters.setZoom(index);
+            mActivity.mCameraDevice.startSmoothZoomAsync(index, this);
+            return true;
+        }
+
+        @Override
+        public void onStopSmoothZoom() {
+            if (mPaused || mActivity.mCameraDevice == null) return;
+            mActivity.mCameraDevice.stopSmoothZoomAsync(this);
+        }
+
+        @Override
+        public void onZoomChange(int value, boolean stopped, android.hardware.Camera camera) {
+            // The parameters stay at the target while the zoom moves, and
+            // take the zoom it stopped at, which differs if it was stopped.
+            if (stopped && mParameters != null) mParameters.setZoom(value);
+            mZoomController.onSmoothZoomChanged(value, stopped, SystemClock.uptimeMillis());
+        }
+
+        @Override
+        public void onSmoothZoomError() {
+            mZoomController.onSmoothZoomFailed();
         }
     }
 
     private class ZoomChangeListener implements ZoomRenderer.OnZoomChangedListener {
         @Override
-        public void onZoomValueChanged(int index) {
-            processZoomValueChanged(index);
+        public void onZoomValueChanged(int index, long eventTime) {
+            processZoomValueChanged(index, eventTime);
         }
 
         @Override
@@ -2640,6 +2743,8 @@ public class VideoModule implements CameraModule,
         }
         @Override
         public void onZoomEnd() {
+            Log.v(TAG, mZoomController.toString());
+            mZoomController.resetStats();
         }
     }
 
@@ -2647,8 +2752,15 @@ public class VideoModule implements CameraModule,
         if (!mParameters.isZoomSupported()) return;
         mZoomMax = mParameters.getMaxZoom();
         mZoomRatios = mParameters.getZoomRatios();
-        // Currently we use immediate zoom for fast zooming to get better UX and
-        // there is no plan to take advantage of the smooth zoom.
+        // Pinch zoom is sent at the rate the camera can apply it and smoothed
+        // toward the target, or left to the camera if it supports smooth zoom.
+        boolean smoothZoom = mParameters.isSmoothZoomSupported();
+        mZoomController.setMaxZoom(mZoomMax);
+        mZoomController.setUpdateInterval(ZoomController.CAMERA_UPDATE_INTERVAL);
+        mZoomController.setSmoothing(ZoomController.DEFAULT_SMOOTHING);
+        mZoomController.setSmoothZoomSupported(smoothZoom);
+        mZoomController.reset(mParameters.getZoom());
+        mActivity.mCameraDevice.setZoomChangeListener(smoothZoom ? mZoomUpdateListener : null);
         mZoomRenderer.setZoomMax(mZoomMax);
         mZoomRenderer.setZoom(mParameters.getZoom());
         mZoomRenderer.setZoomValue(mZoomRatios.get(mParameters.getZoom()));
@@ -0,0 +1,407 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.view.Choreographer;
+
+import com.android.gallery3d.common.ApiHelper;
+
+/**
+ * Moves the camera zoom toward the zoom chosen by the user.
+ *
+ * A pinch reports a new zoom index for almost every touch event. The
+ * controller treats the latest index as a target and sends the camera at
+ * most one update per display frame. If an update interval is set, updates
+ * are also no more frequent than the camera can apply them. If smoothing is
+ * set, each update moves the zoom part of the way to the target, and the
+ * target is extrapolated by the speed of the pinch to make up for the lag.
+ * If the camera supports smooth zoom, the controller lets the camera zoom to
+ * the target by itself instead.
+ *
+ * The controller measures the time from the input to the update, the
+ * achieved update rate and how far the zoom overshot the target. The time
+ * is passed in by the caller, so a fake camera can drive it in tests.
+ *
+ * It is not thread safe and is expected to be used from the main thread.
+ */
+public class ZoomController {
+    // The frame interval used when there is no Choreographer.
+    private static final int FRAME_INTERVAL = 16;
+    // The shortest interval in ms between zoom updates that cameras apply
+    // without falling behind.
+    public static final int CAMERA_UPDATE_INTERVAL = 33;
+    // The time constant in ms of the smoothing.
+    public static final int DEFAULT_SMOOTHING = 80;
+    // The pinch is considered stopped if no zoom is requested for this long.
+    private static final int GESTURE_IDLE_TIME = 50;
+
+    public interface Listener {
+        // Sends the zoom index to the camera.
+        public void onZoomUpdate(int index);
+        // Starts a smooth zoom of the camera to the index. Only called if
+        // smooth zoom is supported. Returns false if the camera cannot smooth
+        // zoom in its current state, in which case the index is sent with
+        // onZoomUpdate instead.
+        public boolean onSmoothZoom(int index);
+        // Stops the smooth zoom of the camera.
+        public void onStopSmoothZoom();
+    }
+
+    private final Listener mListener;
+    private FrameScheduler mScheduler;
+    private boolean mFrameScheduled;
+
+    private int mUpdateInterval;
+    private int mSmoothing;
+    private boolean mPrediction = true;
+    private int mMaxZoom = Integer.MAX_VALUE;
+    private boolean mSmoothZoomSupported;
+
+    private int mCurrentZoom = -1; // the index sent to the camera, -1 if unknown
+    private int mTargetZoom = -1;
+    private long mLastUpdateTime = -1;
+    private long mPendingEventTime = -1; // the time of the oldest unsent input
+
+    // The speed of the pinch in indices per ms.
+    private float mVelocity;
+    private int mLastRequestZoom;
+    private long mLastRequestTime = -1;
+
+    private boolean mSmoothZooming;
+    private boolean mSmoothZoomStopping;
+    private int mSmoothZoomTarget;
+
+    // Metrics.
+    private int mRequests;
+    private int mUpdates;
+    private int mLatencies;
+    private long mTotalLatency;
+    private long mMaxLatency;
+    private long mFirstUpdateTime = -1;
+    private long mLastMetricTime;
+    private int mMaxOvershoot;
+
+    public ZoomController(Listener listener) {
+        mListener = listener;
+    }
+
+    /** Sets the shortest interval in ms between two updates. */
+    public void setUpdateInterval(int interval) {
+        mUpdateInterval = interval;
+    }
+
+    /**
+     * Sets the time constant in ms of the smoothing. With 0, the target is
+     * sent as it is.
+     */
+    public void setSmoothing(int timeConstant) {
+        mSmoothing = timeConstant;
+    }
+
+    /** Sets whether the target is extrapolated by the speed of the pinch. */
+    public void setPredictionEnabled(boolean enabled) {
+        mPrediction = enabled;
+    }
+
+    public void setMaxZoom(int maxZoom) {
+        mMaxZoom = maxZoom;
+    }
+
+    public void setSmoothZoomSupported(boolean supported) {
+        mSmoothZoomSupported = supported;
+    }
+
+    /**
+     * Sets the zoom index the camera has, after its parameters were set.
+     * Requests that have not been sent are dropped.
+     */
+    public void reset(int index) {
+        mCurrentZoom = index;
+        mTargetZoom = index;
+        mVelocity = 0;
+        mLastRequestTime = -1;
+        mPendingEventTime = -1;
+        mSmoothZooming = false;
+        mSmoothZoomStopping = false;
+    }
+
+    /**
+     * Requests the zoom index. The camera is moved toward it from the next
+     * frame on.
+     *
+     * @param eventTime the uptime in ms of the input that caused the request
+     */
+    public void setZoom(int index, long eventTime) {
+        mRequests++;
+        if (mLastRequestTime >= 0 && eventTime > mLastRequestTime
+                && eventTime - mLastRequestTime < GESTURE_IDLE_TIME) {
+            float velocity = (float) (index - mLastRequestZoom)
+                    / (eventTime - mLastRequestTime);
+            mVelocity = (mVelocity + velocity) / 2;
+        } else {
+            mVelocity = 0;
+        }
+        mLastRequestZoom = index;
+        mLastRequestTime = eventTime;
+        mTargetZoom = index;
+        if (mPendingEventTime < 0) mPendingEventTime = eventTime;
+        requestFrame();
+    }
+
+    /** Stops moving toward the requested zoom. */
+    public void cancel() {
+        mTargetZoom = mCurrentZoom;
+        mVelocity = 0;
+        mPendingEventTime = -1;
+    }
+
+    public int getZoom() {
+        return mTargetZoom;
+    }
+
+    /** Called on every frame that was scheduled, with the current uptime in ms. */
+    public void onFrame(long now) {
+        mFrameScheduled = false;
+        if (mSmoothZoomSupported) {
+            updateSmoothZoom(now);
+            return;
+        }
+        if (mLastRequestTime >= 0 && now - mLastRequestTime > GESTURE_IDLE_TIME) {
+            // The fingers stopped, so stop predicting.
+            mVelocity = 0;
+        }
+        int goal = getGoal();
+        if (goal < 0 || goal == mCurrentZoom) {
+            mPendingEventTime = -1;
+            return;
+        }
+        if (mUpdateInterval > 0 && mLastUpdateTime >= 0
+                && now - mLastUpdateTime < mUpdateInterval) {
+            requestFrame();
+            return;
+        }
+
+        int next = goal;
+        if (mSmoothing > 0 && mCurrentZoom >= 0) {
+            // Move part of the way. The time since the last update is capped
+            // so the first update of a pinch does not jump.
+            long dt = Math.max(mUpdateInterval, FRAME_INTERVAL);
+            if (mLastUpdateTime >= 0) dt = Math.min(dt, now - mLastUpdateTime);
+            int step = Math.round((goal - mCurrentZoom)
+                    * Math.min(1f, (float) dt / mSmoothing));
+            if (step == 0) step = (goal > mCurrentZoom) ? 1 : -1;
+            next = mCurrentZoom + step;
+        }
+        sendUpdate(next, now);
+        if (next != goal || (mSmoothing > 0 && mVelocity != 0)) requestFrame();
+    }
+
+    /**
+     * Called when the camera reports the progress of a smooth zoom.
+     *
+     * @param now the current uptime in ms
+     */
+    public void onSmoothZoomChanged(int index, boolean stopped, long now) {
+        int previous = mCurrentZoom;
+        mCurrentZoom = index;
+        if (index != previous) recordUpdate(previous, index, now);
+        if (stopped) {
+            mSmoothZooming = false;
+            mSmoothZoomStopping = false;
+            if (mTargetZoom >= 0 && mTargetZoom != mCurrentZoom) requestFrame();
+        }
+    }
+
+    /**
+     * Called when the camera refused to start or stop a smooth zoom. Smooth
+     * zoom is not used again until it is set supported, and the zoom is sent
+     * with onZoomUpdate instead.
+     */
+    public void onSmoothZoomFailed() {
+        mSmoothZoomSupported = false;
+        mSmoothZooming = false;
+        mSmoothZoomStopping = false;
+        if (mTargetZoom >= 0 && mTargetZoom != mCurrentZoom) requestFrame();
+    }
+
+    private void updateSmoothZoom(long now) {
+        if (mSmoothZooming) {
+            // The camera cannot change where a smooth zoom goes. Stop it if
+            // the target moved the other way; it is started again when the
+            // camera reports that it stopped.
+            if (!mSmoothZoomStopping && mTargetZoom != mSmoothZoomTarget
+                    && (mSmoothZoomTarget - mCurrentZoom) * (mTargetZoom - mSmoothZoomTarget) < 0) {
+                mSmoothZoomStopping = true;
+                mListener.onStopSmoothZoom();
+            }
+            return;
+        }
+        if (mTargetZoom < 0 || mTargetZoom == mCurrentZoom) return;
+        if (!mListener.onSmoothZoom(mTargetZoom)) {
+            sendUpdate(mTargetZoom, now);
+            return;
+        }
+        mSmoothZooming = true;
+        mSmoothZoomTarget = mTargetZoom;
+        recordLatency(now);
+    }
+
+    private void sendUpdate(int next, long now) {
+        int previous = mCurrentZoom;
+        mCurrentZoom = next;
+        mLastUpdateTime = now;
+        mListener.onZoomUpdate(next);
+        recordUpdate(previous, next, now);
+    }
+
+    // Returns the zoom index to move toward: the target, extrapolated by the
+    // speed of the pinch over the lag of the smoothing.
+    private int getGoal() {
+        if (mTargetZoom < 0 || mSmoothing == 0 || !mPrediction || mVelocity == 0) {
+            return mTargetZoom;
+        }
+        int goal = mTargetZoom + Math.round(mVelocity * mSmoothing);
+        return Math.max(0, Math.min(mMaxZoom, goal));
+    }
+
+    private void requestFrame() {
+        if (!mFrameScheduled) {
+            mFrameScheduled = true;
+            scheduleFrame();
+        }
+    }
+
+    private void recordUpdate(int previous, int next, long now) {
+        mUpdates++;
+        if (mFirstUpdateTime < 0) mFirstUpdateTime = now;
+        mLastMetricTime = now;
+        recordLatency(now);
+        // The zoom went past the target if it moved away from it.
+        if (previous >= 0 && mTargetZoom >= 0
+                && (next - mTargetZoom) * (next - previous) > 0) {
+            mMaxOvershoot = Math.max(mMaxOvershoot, Math.abs(next - mTargetZoom));
+        }
+    }
+
+    private void recordLatency(long now) {
+        if (mPendingEventTime < 0) return;
+        long latency = now - mPendingEventTime;
+        mTotalLatency += latency;
+        mMaxLatency = Math.max(mMaxLatency, latency);
+        mLatencies++;
+        mPendingEventTime = -1;
+    }
+
+    // Requests a call to onFrame on the next frame.
+    protected void scheduleFrame() {
+        if (mScheduler == null) {
+            if (Build.VERSION.SDK_INT >= ApiHelper.VERSION_CODES.JELLY_BEAN) {
+                mScheduler = new ChoreographerScheduler();
+            } else {
+                mScheduler = new HandlerScheduler();
+            }
+        }
+        mScheduler.schedule();
+    }
+
+    public int getRequestCount() {
+        return mRequests;
+    }
+
+    public int getUpdateCount() {
+        return mUpdates;
+    }
+
+    public long getAverageLatency() {
+        return mLatencies == 0 ? 0 : mTotalLatency / mLatencies;
+    }
+
+    public long getMaxLatency() {
+        return mMaxLatency;
+    }
+
+    /** Returns the updates per second since the stats were reset. */
+    public float getUpdateRate() {
+        long duration = mLastMetricTime - mFirstUpdateTime;
+        if (mUpdates < 2 || duration <= 0) return 0;
+        return (mUpdates - 1) * 1000f / duration;
+    }
+
+    /** Returns the most zoom indices the camera went past the target. */
+    public int getMaxOvershoot() {
+        return mMaxOvershoot;
+    }
+
+    public void resetStats() {
+        mRequests = 0;
+        mUpdates = 0;
+        mLatencies = 0;
+        mTotalLatency = 0;
+        mMaxLatency = 0;
+        mFirstUpdateTime = -1;
+        mMaxOvershoot = 0;
+    }
+
+    @Override
+    public String toString() {
+        return "zoom: requests=" + mRequests + " updates=" + mUpdates
+                + " rate=" + getUpdateRate() + "/s"
+                + " avgLatency=" + getAverageLatency() + "ms"
+                + " maxLatency=" + mMaxLatency + "ms"
+                + " overshoot=" + mMaxOvershoot;
+    }
+
+    private interface FrameScheduler {
+        public void schedule();
+    }
+
+    private class HandlerScheduler implements FrameScheduler, Runnable {
+        private final Handler mHandler = new Handler();
+
+        @Override
+        public void schedule() {
+            mHandler.postDelayed(this, FRAME_INTERVAL);
+        }
+
+        @Override
+        public void run() {
+            onFrame(SystemClock.uptimeMillis());
+        }
+    }
+
+    @TargetApi(ApiHelper.VERSION_CODES.JELLY_BEAN)
+    private class ChoreographerScheduler implements FrameScheduler,
+            Choreographer.FrameCallback {
+        private final Choreographer mChoreographer = Choreographer.getInstance();
+
+        @Override
+        public void schedule() {
+            mChoreographer.postFrameCallback(this);
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            // Use the time the update is sent rather than the frame time,
+            // which can be older than the input.
+            onFrame(SystemClock.uptimeMillis());
+        }
+    }
+}
@@ -17,7 +17,10 @@
 package com.android.camera.ui;
 
 import android.content.Context;
+import android.graphics.Canvas;
+import android.os.SystemClock;
 import android.util.AttributeSet;
+import android.util.Log;
 import android.view.ViewGroup;
 import android.widget.TextView;
 
@@ -25,9 +28,16 @@ import com.android.camera.R;
 
 // A popup window that shows one or more camera settings.
 abstract public class AbstractSettingPopup extends RotateLayout {
+    private static final String TAG = "AbstractSettingPopup";
+
     protected ViewGroup mSettingList;
     protected TextView mTitle;
 
+    // The uptime of the tap that opened the popup, or -1 if its first frame
+    // has been drawn.
+    private long mOpenTime = -1;
+    private long mOpenLatency;
+
     public AbstractSettingPopup(Context context, AttributeSet attrs) {
         super(context, attrs);
     }
@@ -40,5 +50,27 @@ abstract public class AbstractSettingPopup extends RotateLayout {
         mSettingList = (ViewGroup) findViewById(R.id.settingList);
     }
 
+    // Measures the time from the tap at the given uptime to the first frame
+    // of the popup.
+    public void setOpenTime(long openTime) {
+        mOpenTime = openTime;
+    }
+
+    // Returns the time in ms from the last tap that opened the popup to its
+    // first frame.
+    public long getOpenLatency() {
+        return mOpenLatency;
+    }
+
+    @Override
+    protected void dispatchDraw(Canvas canvas) {
+        super.dispatchDraw(canvas);
+        if (mOpenTime >= 0) {
+            mOpenLatency = SystemClock.uptimeMillis() - mOpenTime;
+            mOpenTime = -1;
+            Log.v(TAG, "First frame " + mOpenLatency + "ms after the tap");
+        }
+    }
+
     abstract public void reloadPreference();
 }
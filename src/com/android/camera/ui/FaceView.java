@@ -25,14 +25,13 @@ import android.graphics.Paint;
 import android.graphics.Paint.Style;
 import android.graphics.RectF;
 import android.hardware.Camera.Face;
-import android.os.Handler;
-import android.os.Message;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.View;
 
 import com.android.camera.CameraActivity;
 import com.android.camera.CameraScreenNail;
+import com.android.camera.FaceTracker;
 import com.android.camera.R;
 import com.android.camera.Util;
 import com.android.gallery3d.common.ApiHelper;
@@ -50,12 +49,15 @@ public class FaceView extends View implements FocusIndicator, Rotatable {
     private boolean mMirror;
     private boolean mPause;
     private Matrix mMatrix = new Matrix();
+    // The render size mMatrix was prepared for, or 0 if it has to be
+    // prepared again.
+    private int mMatrixWidth;
+    private int mMatrixHeight;
     private RectF mRect = new RectF();
-    // As face detection can be flaky, we add a layer of filtering on top of it
-    // to avoid rapid changes in state (eg, flickering between has faces and
-    // not having faces)
-    private Face[] mFaces;
-    private Face[] mPendingFaces;
+    // As face detection can be flaky, the tracker filters it to avoid rapid
+    // changes in state (eg, flickering between has faces and not having
+    // faces) and jittering face rectangles.
+    private final FaceTracker mTracker = new FaceTracker();
     private int mColor;
     private final int mFocusingColor;
     private final int mFocusedColor;
@@ -63,22 +65,6 @@ public class FaceView extends View implements FocusIndicator, Rotatable {
     private Paint mPaint;
     private volatile boolean mBlocked;
 
-    private static final int MSG_SWITCH_FACES = 1;
-    private static final int SWITCH_DELAY = 70;
-    private boolean mStateSwitchPending = false;
-    private Handler mHandler = new Handler() {
-        @Override
-        public void handleMessage(Message msg) {
-            switch (msg.what) {
-            case MSG_SWITCH_FACES:
-                mStateSwitchPending = false;
-                mFaces = mPendingFaces;
-                invalidate();
-                break;
-            }
-        }
-    };
-
     public FaceView(Context context, AttributeSet attrs) {
         super(context, attrs);
         Resources res = getResources();
@@ -95,43 +81,38 @@ public class FaceView extends View implements FocusIndicator, Rotatable {
     public void setFaces(Face[] faces) {
         if (LOGV) Log.v(TAG, "Num of faces=" + faces.length);
         if (mPause) return;
-        if (mFaces != null) {
-            if ((faces.length > 0 && mFaces.length == 0)
-                    || (faces.length == 0 && mFaces.length > 0)) {
-                mPendingFaces = faces;
-                if (!mStateSwitchPending) {
-                    mStateSwitchPending = true;
-                    mHandler.sendEmptyMessageDelayed(MSG_SWITCH_FACES, SWITCH_DELAY);
-                }
-                return;
-            }
-        }
-        if (mStateSwitchPending) {
-            mStateSwitchPending = false;
-            mHandler.removeMessages(MSG_SWITCH_FACES);
-        }
-        mFaces = faces;
-        invalidate();
+        if (mTracker.update(faces)) invalidate();
+    }
+
+    /**
+     * Returns the tracker of the faces shown. The focus manager reads the
+     * face rectangles from it.
+     */
+    public FaceTracker getFaceTracker() {
+        return mTracker;
     }
 
     public void setDisplayOrientation(int orientation) {
         mDisplayOrientation = orientation;
+        mMatrixWidth = 0;
         if (LOGV) Log.v(TAG, "mDisplayOrientation=" + orientation);
     }
 
     @Override
     public void setOrientation(int orientation, boolean animation) {
         mOrientation = orientation;
+        mMatrixWidth = 0;
         invalidate();
     }
 
     public void setMirror(boolean mirror) {
         mMirror = mirror;
+        mMatrixWidth = 0;
         if (LOGV) Log.v(TAG, "mMirror=" + mirror);
     }
 
     public boolean faceExists() {
-        return (mFaces != null && mFaces.length > 0);
+        return mTracker.getFaceCount() > 0;
     }
 
     @Override
@@ -159,7 +140,7 @@ public class FaceView extends View implements FocusIndicator, Rotatable {
         // Face indicator is displayed during preview. Do not clear the
         // drawable.
         mColor = mFocusingColor;
-        mFaces = null;
+        mTracker.reset();
         invalidate();
     }
 
@@ -177,7 +158,8 @@ public class FaceView extends View implements FocusIndicator, Rotatable {
 
     @Override
     protected void onDraw(Canvas canvas) {
-        if (!mBlocked && (mFaces != null) && (mFaces.length > 0)) {
+        int count = mTracker.getFaceCount();
+        if (!mBlocked && count > 0) {
             final CameraScreenNail sn = ((CameraActivity) getContext()).getCameraScreenNail();
             int rw = sn.getUncroppedRenderWidth();
             int rh = sn.getUncroppedRenderHeight();
@@ -188,25 +170,28 @@ public class FaceView extends View implements FocusIndicator, Rotatable {
                 rw = rh;
                 rh = temp;
             }
-            Util.prepareMatrix(mMatrix, mMirror, mDisplayOrientation, rw, rh);
+            // The matrix only changes with the orientation or the render size.
+            if (rw != mMatrixWidth || rh != mMatrixHeight) {
+                Util.prepareMatrix(mMatrix, mMirror, mDisplayOrientation, rw, rh);
+                mMatrix.postRotate(mOrientation); // postRotate is clockwise
+                mMatrixWidth = rw;
+                mMatrixHeight = rh;
+            }
             int dx = (getWidth() - rw) / 2;
             int dy = (getHeight() - rh) / 2;
 
             // Focus indicator is directional. Rotate the matrix and the canvas
             // so it looks correctly in all orientations.
             canvas.save();
-            mMatrix.postRotate(mOrientation); // postRotate is clockwise
             canvas.rotate(-mOrientation); // rotate is counter-clockwise (for canvas)
-            for (int i = 0; i < mFaces.length; i++) {
-                // Filter out false positives.
-                if (mFaces[i].score < 50) continue;
-
-                // Transform the coordinates.
-                mRect.set(mFaces[i].rect);
+            mPaint.setColor(mColor);
+            for (int i = 0; i < count; i++) {
+                // Transform the coordinates. The tracker has already filtered
+                // out false positives.
+                mRect.set(mTracker.getFaceRect(i));
                 if (LOGV) Util.dumpRect(mRect, "Original rect");
                 mMatrix.mapRect(mRect);
                 if (LOGV) Util.dumpRect(mRect, "Transformed rect");
-                mPaint.setColor(mColor);
                 mRect.offset(dx, dy);
                 canvas.drawOval(mRect, mPaint);
             }
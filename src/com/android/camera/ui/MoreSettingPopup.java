@@ -71,6 +71,16 @@ public class MoreSettingPopup extends AbstractSettingPopup
             return R.layout.in_line_setting_menu;
         }
 
+        @Override
+        public int getViewTypeCount() {
+            return 2;
+        }
+
+        @Override
+        public int getItemViewType(int position) {
+            return isOnOffPreference(mListItem.get(position)) ? 0 : 1;
+        }
+
         private boolean isOnOffPreference(ListPreference pref) {
             CharSequence[] entries = pref.getEntries();
             if (entries.length != 2) return false;
@@ -85,9 +95,13 @@ public class MoreSettingPopup extends AbstractSettingPopup
 
             ListPreference pref = mListItem.get(position);
 
-            int viewLayoutId = getSettingLayoutId(pref);
-            InLineSettingItem view = (InLineSettingItem)
-                    mInflater.inflate(viewLayoutId, parent, false);
+            // Reuse the item views instead of inflating them every time the
+            // list is laid out.
+            InLineSettingItem view = (InLineSettingItem) convertView;
+            if (view == null) {
+                int viewLayoutId = getSettingLayoutId(pref);
+                view = (InLineSettingItem) mInflater.inflate(viewLayoutId, parent, false);
+            }
 
             view.initialize(pref); // no init for restore one
             view.setSettingChangedListener(MoreSettingPopup.this);
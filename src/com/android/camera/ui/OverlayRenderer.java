@@ -18,6 +18,7 @@ package com.android.camera.ui;
 
 import android.content.Context;
 import android.graphics.Canvas;
+import android.graphics.Rect;
 import android.view.MotionEvent;
 
 public abstract class OverlayRenderer implements RenderOverlay.Renderer {
@@ -29,6 +30,10 @@ public abstract class OverlayRenderer implements RenderOverlay.Renderer {
 
     protected boolean mVisible;
 
+    // The bounds of the last draw, in the coordinates of the overlay.
+    private final Rect mDrawnBounds = new Rect();
+    private final Rect mBounds = new Rect();
+
     public void setVisible(boolean vis) {
         mVisible = vis;
         update();
@@ -54,6 +59,37 @@ public abstract class OverlayRenderer implements RenderOverlay.Renderer {
     public void draw(Canvas canvas) {
         if (mVisible) {
             onDraw(canvas);
+            getDirtyBounds(mDrawnBounds);
+        } else {
+            mDrawnBounds.setEmpty();
+        }
+    }
+
+    /**
+     * Returns the bounds the renderer draws in, in the coordinates of the
+     * overlay. The default is the whole overlay. Renderers that draw in a
+     * smaller area override this, so that updating them does not redraw the
+     * whole overlay.
+     */
+    public void getDirtyBounds(Rect out) {
+        out.set(0, 0, getWidth(), getHeight());
+    }
+
+    /**
+     * Returns true while the renderer changes every frame without calling
+     * update(), e.g. while a view animation it depends on runs.
+     */
+    public boolean isAnimating() {
+        return false;
+    }
+
+    // Adds the area that needs to be redrawn to out: the area drawn last
+    // time, and the area the renderer draws in now.
+    void addDirtyRegion(Rect out) {
+        out.union(mDrawnBounds);
+        if (mVisible) {
+            getDirtyBounds(mBounds);
+            out.union(mBounds);
         }
     }
 
@@ -88,7 +124,7 @@ public abstract class OverlayRenderer implements RenderOverlay.Renderer {
 
     protected void update() {
         if (mOverlay != null) {
-            mOverlay.update();
+            mOverlay.update(this);
         }
     }
 
@@ -25,7 +25,7 @@ import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Path;
 import android.graphics.Point;
-import android.graphics.PointF;
+import android.graphics.Rect;
 import android.graphics.RectF;
 import android.os.Handler;
 import android.os.Message;
@@ -102,7 +102,6 @@ public class PieRenderer extends OverlayRenderer
 
     private int mDialAngle;
     private RectF mCircle;
-    private RectF mDial;
     private Point mPoint1;
     private Point mPoint2;
     private int mStartAnimationAngle;
@@ -115,9 +114,25 @@ public class PieRenderer extends OverlayRenderer
     private int mTouchSlopSquared;
     private Point mDown;
     private boolean mOpening;
+    // The running cross fade and fade in animations, or null.
     private LinearAnimation mXFade;
     private LinearAnimation mFadeIn;
+    // Reused so that opening the pie does not allocate.
+    private LinearAnimation mXFadeAnimation;
+    private LinearAnimation mFadeInAnimation;
+    // Slice paths around (0, 0), one per list of items, reused by layoutPie.
+    private final ArrayList<Path> mSlicePaths = new ArrayList<Path>();
+    private int mSlicePathCount;
+    private final RectF mSliceOuter = new RectF();
+    private final RectF mSliceInner = new RectF();
+    // The dial of the focus ring around (0, 0), drawn rotated by mDialAngle.
+    private final Path mDialPath = new Path();
+    // The polar coordinates of the last touch event, see setPolar().
+    private float mPolarAngle;
+    private float mPolarRadius;
     private volatile boolean mFocusCancelled;
+    // The outer focus ring, which only moves.
+    private StaticLayer mFocusRingLayer = new StaticLayer();
 
     private Handler mHandler = new Handler() {
         public void handleMessage(Message msg) {
@@ -173,7 +188,6 @@ public class PieRenderer extends OverlayRenderer
         mSuccessColor = Color.GREEN;
         mFailColor = Color.RED;
         mCircle = new RectF();
-        mDial = new RectF();
         mPoint1 = new Point();
         mPoint2 = new Point();
         mInnerOffset = res.getDimensionPixelSize(R.dimen.focus_inner_offset);
@@ -184,6 +198,39 @@ public class PieRenderer extends OverlayRenderer
         mTouchSlopSquared = ViewConfiguration.get(ctx).getScaledTouchSlop();
         mTouchSlopSquared = mTouchSlopSquared * mTouchSlopSquared;
         mDown = new Point();
+        mFadeInAnimation = new LinearAnimation(0, 1);
+        mFadeInAnimation.setDuration(PIE_FADE_IN_DURATION);
+        mFadeInAnimation.setAnimationListener(new AnimationListener() {
+            @Override
+            public void onAnimationStart(Animation animation) {
+            }
+
+            @Override
+            public void onAnimationEnd(Animation animation) {
+                mFadeIn = null;
+            }
+
+            @Override
+            public void onAnimationRepeat(Animation animation) {
+            }
+        });
+        mXFadeAnimation = new LinearAnimation(1, 0);
+        mXFadeAnimation.setDuration(PIE_XFADE_DURATION);
+        mXFadeAnimation.setAnimationListener(new AnimationListener() {
+            @Override
+            public void onAnimationStart(Animation animation) {
+            }
+
+            @Override
+            public void onAnimationEnd(Animation animation) {
+                mXFade = null;
+            }
+
+            @Override
+            public void onAnimationRepeat(Animation animation) {
+            }
+        });
+        buildDialPath();
     }
 
     public boolean showsItems() {
@@ -232,8 +279,8 @@ public class PieRenderer extends OverlayRenderer
             // ensure clean state
             mCurrentItem = null;
             mOpenItem = null;
-            for (PieItem item : mItems) {
-                item.setSelected(false);
+            for (int i = 0, n = mItems.size(); i < n; i++) {
+                mItems.get(i).setSelected(false);
             }
             layoutPie();
             fadeIn();
@@ -249,22 +296,8 @@ public class PieRenderer extends OverlayRenderer
     }
 
     private void fadeIn() {
-        mFadeIn = new LinearAnimation(0, 1);
-        mFadeIn.setDuration(PIE_FADE_IN_DURATION);
-        mFadeIn.setAnimationListener(new AnimationListener() {
-            @Override
-            public void onAnimationStart(Animation animation) {
-            }
-
-            @Override
-            public void onAnimationEnd(Animation animation) {
-                mFadeIn = null;
-            }
-
-            @Override
-            public void onAnimationRepeat(Animation animation) {
-            }
-        });
+        mFadeIn = mFadeInAnimation;
+        mFadeIn.reset();
         mFadeIn.startNow();
         mOverlay.startAnimation(mFadeIn);
     }
@@ -281,6 +314,7 @@ public class PieRenderer extends OverlayRenderer
         int inner = mRadius + rgap;
         int outer = mRadius + mRadiusInc - rgap;
         int gap = 1;
+        mSlicePathCount = 0;
         layoutItems(mItems, (float) (Math.PI / 2), inner, outer, gap);
     }
 
@@ -292,15 +326,18 @@ public class PieRenderer extends OverlayRenderer
         // check if we have custom geometry
         // first item we find triggers custom sweep for all
         // this allows us to re-use the path
-        for (PieItem item : items) {
+        int count = items.size();
+        for (int i = 0; i < count; i++) {
+            PieItem item = items.get(i);
             if (item.getCenter() >= 0) {
                 sweep = item.getSweep();
                 break;
             }
         }
         Path path = makeSlice(getDegrees(0) - gap, getDegrees(sweep) + gap,
-                outer, inner, mCenter);
-        for (PieItem item : items) {
+                outer, inner);
+        for (int i = 0; i < count; i++) {
+            PieItem item = items.get(i);
             // shared between items
             item.setPath(path);
             if (item.getCenter() >= 0) {
@@ -324,16 +361,18 @@ public class PieRenderer extends OverlayRenderer
         }
     }
 
-    private Path makeSlice(float start, float end, int outer, int inner, Point center) {
-        RectF bb =
-                new RectF(center.x - outer, center.y - outer, center.x + outer,
-                        center.y + outer);
-        RectF bbi =
-                new RectF(center.x - inner, center.y - inner, center.x + inner,
-                        center.y + inner);
-        Path path = new Path();
-        path.arcTo(bb, start, end - start, true);
-        path.arcTo(bbi, end, start - end);
+    // Returns a slice around (0, 0) in the next path of mSlicePaths. The
+    // slice is drawn translated to the center of the pie.
+    private Path makeSlice(float start, float end, int outer, int inner) {
+        if (mSlicePathCount == mSlicePaths.size()) {
+            mSlicePaths.add(new Path());
+        }
+        Path path = mSlicePaths.get(mSlicePathCount++);
+        path.reset();
+        mSliceOuter.set(-outer, -outer, outer, outer);
+        mSliceInner.set(-inner, -inner, inner, inner);
+        path.arcTo(mSliceOuter, start, end - start, true);
+        path.arcTo(mSliceInner, end, start - end);
         path.close();
         return path;
     }
@@ -384,13 +423,14 @@ public class PieRenderer extends OverlayRenderer
         }
         if ((mOpenItem == null) || (mXFade != null)) {
             // draw base menu
-            for (PieItem item : mItems) {
-                drawItem(canvas, item, alpha);
+            for (int i = 0, n = mItems.size(); i < n; i++) {
+                drawItem(canvas, mItems.get(i), alpha);
             }
         }
         if (mOpenItem != null) {
-            for (PieItem inner : mOpenItem.getItems()) {
-                drawItem(canvas, inner, (mXFade != null) ? (1 - 0.5f * alpha) : 1);
+            List<PieItem> items = mOpenItem.getItems();
+            for (int i = 0, n = items.size(); i < n; i++) {
+                drawItem(canvas, items.get(i), (mXFade != null) ? (1 - 0.5f * alpha) : 1);
             }
         }
         canvas.restoreToCount(state);
@@ -403,7 +443,8 @@ public class PieRenderer extends OverlayRenderer
                     Paint p = mSelectedPaint;
                     int state = canvas.save();
                     float r = getDegrees(item.getStartAngle());
-                    canvas.rotate(r, mCenter.x, mCenter.y);
+                    canvas.translate(mCenter.x, mCenter.y);
+                    canvas.rotate(r);
                     canvas.drawPath(item.getPath(), p);
                     canvas.restoreToCount(state);
                 }
@@ -420,13 +461,13 @@ public class PieRenderer extends OverlayRenderer
         float x = evt.getX();
         float y = evt.getY();
         int action = evt.getActionMasked();
-        PointF polar = getPolar(x, y, !(mTapMode));
+        setPolar(x, y, !(mTapMode));
         if (MotionEvent.ACTION_DOWN == action) {
             mDown.x = (int) evt.getX();
             mDown.y = (int) evt.getY();
             mOpening = false;
             if (mTapMode) {
-                PieItem item = findItem(polar);
+                PieItem item = findItem();
                 if ((item != null) && (mCurrentItem != item)) {
                     mState = STATE_PIE;
                     onEnter(item);
@@ -440,7 +481,7 @@ public class PieRenderer extends OverlayRenderer
             if (isVisible()) {
                 PieItem item = mCurrentItem;
                 if (mTapMode) {
-                    item = findItem(polar);
+                    item = findItem();
                     if (item != null && mOpening) {
                         mOpening = false;
                         return true;
@@ -464,15 +505,16 @@ public class PieRenderer extends OverlayRenderer
             deselect();
             return false;
         } else if (MotionEvent.ACTION_MOVE == action) {
-            if (polar.y < mRadius) {
+            if (mPolarRadius < mRadius) {
                 if (mOpenItem != null) {
                     mOpenItem = null;
+                    update();
                 } else {
                     deselect();
                 }
                 return false;
             }
-            PieItem item = findItem(polar);
+            PieItem item = findItem();
             boolean moved = hasMoved(evt);
             if ((item != null) && (mCurrentItem != item) && (!mOpening || moved)) {
                 // only select if we didn't just open or have moved past slop
@@ -510,6 +552,7 @@ public class PieRenderer extends OverlayRenderer
         } else {
             mCurrentItem = null;
         }
+        update();
     }
 
     private void deselect() {
@@ -520,6 +563,7 @@ public class PieRenderer extends OverlayRenderer
             mOpenItem = null;
         }
         mCurrentItem = null;
+        update();
     }
 
     private void openCurrentItem() {
@@ -527,64 +571,51 @@ public class PieRenderer extends OverlayRenderer
             mCurrentItem.setSelected(false);
             mOpenItem = mCurrentItem;
             mOpening = true;
-            mXFade = new LinearAnimation(1, 0);
-            mXFade.setDuration(PIE_XFADE_DURATION);
-            mXFade.setAnimationListener(new AnimationListener() {
-                @Override
-                public void onAnimationStart(Animation animation) {
-                }
-
-                @Override
-                public void onAnimationEnd(Animation animation) {
-                    mXFade = null;
-                }
-
-                @Override
-                public void onAnimationRepeat(Animation animation) {
-                }
-            });
+            mXFade = mXFadeAnimation;
+            mXFade.reset();
             mXFade.startNow();
             mOverlay.startAnimation(mXFade);
         }
     }
 
-    private PointF getPolar(float x, float y, boolean useOffset) {
-        PointF res = new PointF();
+    // Sets mPolarAngle and mPolarRadius to the polar coordinates of (x, y)
+    // around the center of the pie.
+    private void setPolar(float x, float y, boolean useOffset) {
         // get angle and radius from x/y
-        res.x = (float) Math.PI / 2;
+        float angle = (float) Math.PI / 2;
         x = x - mCenter.x;
         y = mCenter.y - y;
-        res.y = (float) Math.sqrt(x * x + y * y);
+        float radius = (float) Math.sqrt(x * x + y * y);
         if (x != 0) {
-            res.x = (float) Math.atan2(y,  x);
-            if (res.x < 0) {
-                res.x = (float) (2 * Math.PI + res.x);
+            angle = (float) Math.atan2(y,  x);
+            if (angle < 0) {
+                angle = (float) (2 * Math.PI + angle);
             }
         }
-        res.y = res.y + (useOffset ? mTouchOffset : 0);
-        return res;
+        mPolarAngle = angle;
+        mPolarRadius = radius + (useOffset ? mTouchOffset : 0);
     }
 
     /**
-     * @param polar x: angle, y: dist
-     * @return the item at angle/dist or null
+     * @return the item at mPolarAngle/mPolarRadius or null
      */
-    private PieItem findItem(PointF polar) {
+    private PieItem findItem() {
         // find the matching item:
         List<PieItem> items = (mOpenItem != null) ? mOpenItem.getItems() : mItems;
-        for (PieItem item : items) {
-            if (inside(polar, item)) {
+        for (int i = 0, n = items.size(); i < n; i++) {
+            PieItem item = items.get(i);
+            if (inside(mPolarAngle, mPolarRadius, item)) {
                 return item;
             }
         }
         return null;
     }
 
-    private boolean inside(PointF polar, PieItem item) {
-        return (item.getInnerRadius() < polar.y)
-                && (item.getStartAngle() < polar.x)
-                && (item.getStartAngle() + item.getSweep() > polar.x)
-                && (!mTapMode || (item.getOuterRadius() > polar.y));
+    private boolean inside(float angle, float radius, PieItem item) {
+        return (item.getInnerRadius() < radius)
+                && (item.getStartAngle() < angle)
+                && (item.getStartAngle() + item.getSweep() > angle)
+                && (!mTapMode || (item.getOuterRadius() > radius));
     }
 
     @Override
@@ -599,12 +630,14 @@ public class PieRenderer extends OverlayRenderer
         if (blocked) {
             clear();
         }
+        update();
     }
 
     public void setFocus(int x, int y) {
         mFocusX = x;
         mFocusY = y;
         setCircle(mFocusX, mFocusY);
+        update();
     }
 
     public void alignFocus(int x, int y) {
@@ -622,6 +655,19 @@ public class PieRenderer extends OverlayRenderer
         return 2 * mCircleSize;
     }
 
+    /**
+     * Returns true if (x, y) is on the focus ring while it is shown, so that
+     * a drag starting there moves the focus.
+     */
+    public boolean isOnFocusRing(int x, int y) {
+        if (!isVisible() || mState == STATE_PIE) return false;
+        // Be generous, the finger covers the ring.
+        int r = getSize();
+        int dx = x - mFocusX;
+        int dy = y - mFocusY;
+        return dx * dx + dy * dy <= r * r;
+    }
+
     private int getRandomRange() {
         return (int)(-60 + 120 * Math.random());
     }
@@ -643,38 +689,72 @@ public class PieRenderer extends OverlayRenderer
     private void setCircle(int cx, int cy) {
         mCircle.set(cx - mCircleSize, cy - mCircleSize,
                 cx + mCircleSize, cy + mCircleSize);
-        mDial.set(cx - mCircleSize + mInnerOffset, cy - mCircleSize + mInnerOffset,
-                cx + mCircleSize - mInnerOffset, cy + mCircleSize - mInnerOffset);
+    }
+
+    // The radius of the area the focus ring draws in.
+    private int getFocusRadius() {
+        return mCircleSize + mOuterStroke;
+    }
+
+    @Override
+    public void getDirtyBounds(Rect out) {
+        if (mState == STATE_PIE) {
+            super.getDirtyBounds(out);
+        } else {
+            int r = getFocusRadius();
+            out.set(mFocusX - r, mFocusY - r, mFocusX + r, mFocusY + r);
+        }
+    }
+
+    @Override
+    public boolean isAnimating() {
+        // The focus and pie animations run as view animations of the
+        // overlay, and only change fields that onDraw reads.
+        Animation animation = (mOverlay == null) ? null : mOverlay.getAnimation();
+        return animation != null && !animation.hasEnded();
     }
 
     public void drawFocus(Canvas canvas) {
         if (mBlockFocus) return;
-        mFocusPaint.setStrokeWidth(mOuterStroke);
-        canvas.drawCircle((float) mFocusX, (float) mFocusY, (float) mCircleSize, mFocusPaint);
+        int r = getFocusRadius();
+        if (!mFocusRingLayer.isValid(2 * r, 2 * r)) {
+            mFocusPaint.setStrokeWidth(mOuterStroke);
+            mFocusRingLayer.begin(2 * r, 2 * r).drawCircle(r, r, mCircleSize, mFocusPaint);
+        }
+        mFocusRingLayer.draw(canvas, mFocusX - r, mFocusY - r, mFocusPaint);
         if (mState == STATE_PIE) return;
         int color = mFocusPaint.getColor();
         if (mState == STATE_FINISHING) {
             mFocusPaint.setColor(mFocused ? mSuccessColor : mFailColor);
         }
         mFocusPaint.setStrokeWidth(mInnerStroke);
-        drawLine(canvas, mDialAngle, mFocusPaint);
-        drawLine(canvas, mDialAngle + 45, mFocusPaint);
-        drawLine(canvas, mDialAngle + 180, mFocusPaint);
-        drawLine(canvas, mDialAngle + 225, mFocusPaint);
         canvas.save();
-        // rotate the arc instead of its offset to better use framework's shape caching
-        canvas.rotate(mDialAngle, mFocusX, mFocusY);
-        canvas.drawArc(mDial, 0, 45, false, mFocusPaint);
-        canvas.drawArc(mDial, 180, 45, false, mFocusPaint);
+        // rotate the dial instead of its points to better use framework's shape caching
+        canvas.translate(mFocusX, mFocusY);
+        canvas.rotate(mDialAngle);
+        canvas.drawPath(mDialPath, mFocusPaint);
         canvas.restore();
         mFocusPaint.setColor(color);
     }
 
-    private void drawLine(Canvas canvas, int angle, Paint p) {
+    // Builds the ticks and arcs of the focus dial at angle 0.
+    private void buildDialPath() {
+        mDialPath.reset();
+        addTick(mDialPath, 0);
+        addTick(mDialPath, 45);
+        addTick(mDialPath, 180);
+        addTick(mDialPath, 225);
+        int r = mCircleSize - mInnerOffset;
+        RectF dial = new RectF(-r, -r, r, r);
+        mDialPath.addArc(dial, 0, 45);
+        mDialPath.addArc(dial, 180, 45);
+    }
+
+    private void addTick(Path path, int angle) {
         convertCart(angle, mCircleSize - mInnerOffset, mPoint1);
         convertCart(angle, mCircleSize - mInnerOffset + mInnerOffset / 3, mPoint2);
-        canvas.drawLine(mPoint1.x + mFocusX, mPoint1.y + mFocusY,
-                mPoint2.x + mFocusX, mPoint2.y + mFocusY, p);
+        path.moveTo(mPoint1.x, mPoint1.y);
+        path.lineTo(mPoint2.x, mPoint2.y);
     }
 
     private static void convertCart(int angle, int radius, Point out) {
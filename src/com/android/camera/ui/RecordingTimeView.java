@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.ui;
+
+import android.content.Context;
+import android.content.res.TypedArray;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.drawable.Drawable;
+import android.text.TextPaint;
+import android.util.AttributeSet;
+import android.view.View;
+
+/**
+ * Shows the recording time with a recording indicator on the left. Unlike a
+ * TextView, updating the time does not allocate or request a layout: the
+ * time is formatted into a reused char array and every character is drawn
+ * in a fixed width cell, so only the cells whose character changed are
+ * invalidated. A layout is only requested when the number of characters
+ * changes, e.g. when the hours show up.
+ *
+ * Supports the textSize, textColor, drawableLeft and drawablePadding
+ * attributes of TextView.
+ */
+public class RecordingTimeView extends View {
+    // Must be sorted in ascending order for obtainStyledAttributes().
+    private static final int[] ATTRS = new int[] {
+            android.R.attr.textSize,
+            android.R.attr.textColor,
+            android.R.attr.drawableLeft,
+            android.R.attr.drawablePadding};
+    private static final int ATTR_TEXT_SIZE = 0;
+    private static final int ATTR_TEXT_COLOR = 1;
+    private static final int ATTR_DRAWABLE_LEFT = 2;
+    private static final int ATTR_DRAWABLE_PADDING = 3;
+
+    // Enough for any hour count that fits in a long.
+    private static final int MAX_LENGTH = 32;
+
+    private final TextPaint mPaint = new TextPaint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint.FontMetricsInt mFontMetrics = new Paint.FontMetricsInt();
+    private final Drawable mIndicator;
+    private final int mIndicatorPadding;
+    // Width of the widest digit, so digits do not move the other cells.
+    private final float mDigitWidth;
+    private final float mColonWidth;
+    private final float mDotWidth;
+
+    // The characters shown, and a scratch buffer the next time is formatted
+    // into. They are swapped after each update.
+    private char[] mText = new char[MAX_LENGTH];
+    private char[] mNextText = new char[MAX_LENGTH];
+    private int mLength;
+    private int mMeasuredLength = -1;
+
+    public RecordingTimeView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        TypedArray a = context.obtainStyledAttributes(attrs, ATTRS);
+        mPaint.setTextSize(a.getDimension(ATTR_TEXT_SIZE, 16));
+        mPaint.setColor(a.getColor(ATTR_TEXT_COLOR, Color.WHITE));
+        mIndicator = a.getDrawable(ATTR_DRAWABLE_LEFT);
+        mIndicatorPadding = a.getDimensionPixelSize(ATTR_DRAWABLE_PADDING, 0);
+        a.recycle();
+        if (mIndicator != null) {
+            mIndicator.setBounds(0, 0, mIndicator.getIntrinsicWidth(),
+                    mIndicator.getIntrinsicHeight());
+        }
+
+        float digitWidth = 0;
+        for (char c = '0'; c <= '9'; c++) {
+            digitWidth = Math.max(digitWidth, mPaint.measureText(String.valueOf(c)));
+        }
+        mDigitWidth = digitWidth;
+        mColonWidth = mPaint.measureText(":");
+        mDotWidth = mPaint.measureText(".");
+        mPaint.getFontMetricsInt(mFontMetrics);
+    }
+
+    public void setTextColor(int color) {
+        if (mPaint.getColor() == color) return;
+        mPaint.setColor(color);
+        invalidate();
+    }
+
+    /** Shows nothing but the indicator. */
+    public void clear() {
+        mLength = 0;
+        onLengthChanged();
+    }
+
+    /**
+     * Shows the given time as [hh:]mm:ss, followed by .cc if
+     * {@code displayCentiSeconds} is true.
+     */
+    public void setTime(long milliSeconds, boolean displayCentiSeconds) {
+        int length = formatTime(milliSeconds, displayCentiSeconds, mNextText);
+        char[] previous = mText;
+        int previousLength = mLength;
+        mText = mNextText;
+        mNextText = previous;
+        mLength = length;
+
+        if (length != previousLength) {
+            onLengthChanged();
+            return;
+        }
+        int top = getPaddingTop();
+        int bottom = getHeight() - getPaddingBottom();
+        float x = getTextLeft();
+        for (int i = 0; i < length; i++) {
+            float width = getCellWidth(mText[i]);
+            if (mText[i] != previous[i]) {
+                invalidate((int) x, top, (int) Math.ceil(x + width), bottom);
+            }
+            x += width;
+        }
+    }
+
+    private void onLengthChanged() {
+        if (mLength != mMeasuredLength) requestLayout();
+        invalidate();
+    }
+
+    /**
+     * Formats the time into {@code out} and returns the number of characters
+     * written. {@code out} must be able to hold 32 characters.
+     */
+    public static int formatTime(long milliSeconds, boolean displayCentiSeconds,
+            char[] out) {
+        long seconds = milliSeconds / 1000; // round down to compute seconds
+        long minutes = seconds / 60;
+        long hours = minutes / 60;
+        long remainderMinutes = minutes - (hours * 60);
+        long remainderSeconds = seconds - (minutes * 60);
+
+        int length = 0;
+        if (hours > 0) {
+            length = appendNumber(out, length, hours);
+            out[length++] = ':';
+        }
+        length = appendNumber(out, length, remainderMinutes);
+        out[length++] = ':';
+        length = appendNumber(out, length, remainderSeconds);
+        if (displayCentiSeconds) {
+            out[length++] = '.';
+            length = appendNumber(out, length, (milliSeconds - seconds * 1000) / 10);
+        }
+        return length;
+    }
+
+    // Appends a number of at least two digits.
+    private static int appendNumber(char[] out, int offset, long value) {
+        int digits = 2;
+        for (long v = value / 100; v > 0; v /= 10) digits++;
+        for (int i = offset + digits - 1; i >= offset; i--) {
+            out[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        return offset + digits;
+    }
+
+    private float getCellWidth(char c) {
+        if (c == ':') return mColonWidth;
+        if (c == '.') return mDotWidth;
+        return mDigitWidth;
+    }
+
+    private float getTextWidth() {
+        float width = 0;
+        for (int i = 0; i < mLength; i++) {
+            width += getCellWidth(mText[i]);
+        }
+        return width;
+    }
+
+    private int getIndicatorWidth() {
+        return mIndicator == null ? 0 : mIndicator.getIntrinsicWidth() + mIndicatorPadding;
+    }
+
+    // The content is centered horizontally.
+    private float getTextLeft() {
+        int left = getPaddingLeft();
+        int right = getWidth() - getPaddingRight();
+        float contentWidth = getIndicatorWidth() + getTextWidth();
+        return left + (right - left - contentWidth) / 2 + getIndicatorWidth();
+    }
+
+    @Override
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+        mMeasuredLength = mLength;
+        Paint.FontMetricsInt fm = mFontMetrics;
+        int textHeight = fm.descent - fm.ascent;
+        int indicatorHeight = mIndicator == null ? 0 : mIndicator.getIntrinsicHeight();
+        int width = getPaddingLeft() + getIndicatorWidth()
+                + (int) Math.ceil(getTextWidth()) + getPaddingRight();
+        int height = getPaddingTop() + Math.max(textHeight, indicatorHeight)
+                + getPaddingBottom();
+        width = Math.max(width, getSuggestedMinimumWidth());
+        height = Math.max(height, getSuggestedMinimumHeight());
+        setMeasuredDimension(resolveSize(width, widthMeasureSpec),
+                resolveSize(height, heightMeasureSpec));
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        int top = getPaddingTop();
+        int bottom = getHeight() - getPaddingBottom();
+        float x = getTextLeft();
+        if (mIndicator != null) {
+            float left = x - getIndicatorWidth();
+            float indicatorTop = top + (bottom - top - mIndicator.getIntrinsicHeight()) / 2f;
+            canvas.save();
+            canvas.translate(left, indicatorTop);
+            mIndicator.draw(canvas);
+            canvas.restore();
+        }
+
+        Paint.FontMetricsInt fm = mFontMetrics;
+        float baseline = top + (bottom - top - fm.descent - fm.ascent) / 2f;
+        for (int i = 0; i < mLength; i++) {
+            float width = getCellWidth(mText[i]);
+            float charWidth = mPaint.measureText(mText, i, 1);
+            canvas.drawText(mText, i, 1, x + (width - charWidth) / 2, baseline, mPaint);
+            x += width;
+        }
+    }
+}
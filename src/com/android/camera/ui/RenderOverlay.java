@@ -18,6 +18,7 @@ package com.android.camera.ui;
 
 import android.content.Context;
 import android.graphics.Canvas;
+import android.graphics.Rect;
 import android.util.AttributeSet;
 import android.view.MotionEvent;
 import android.view.View;
@@ -46,6 +47,7 @@ public class RenderOverlay extends FrameLayout {
     // reverse list of touch clients
     private List<Renderer> mTouchClients;
     private int[] mPosition = new int[2];
+    private final Rect mDirty = new Rect();
 
     public RenderOverlay(Context context, AttributeSet attrs) {
         super(context, attrs);
@@ -107,9 +109,20 @@ public class RenderOverlay extends FrameLayout {
         mRenderView.invalidate();
     }
 
+    // Redraws only the area the renderer drew in and draws in now.
+    void update(OverlayRenderer renderer) {
+        mDirty.setEmpty();
+        renderer.addDirtyRegion(mDirty);
+        if (!mDirty.isEmpty()) {
+            mRenderView.invalidate(mDirty);
+        }
+    }
+
     private class RenderView extends View {
 
         private Renderer mTouchTarget;
+        // The area of the renderers that are animating.
+        private final Rect mAnimatingDirty = new Rect();
 
         public RenderView(Context context) {
             super(context);
@@ -127,8 +140,8 @@ public class RenderOverlay extends FrameLayout {
             }
             if (mTouchClients != null) {
                 boolean res = false;
-                for (Renderer client : mTouchClients) {
-                    res |= client.onTouchEvent(evt);
+                for (int i = 0, n = mTouchClients.size(); i < n; i++) {
+                    res |= mTouchClients.get(i).onTouchEvent(evt);
                 }
                 return res;
             }
@@ -149,13 +162,18 @@ public class RenderOverlay extends FrameLayout {
         public void draw(Canvas canvas) {
             super.draw(canvas);
             if (mClients == null) return;
-            boolean redraw = false;
-            for (Renderer renderer : mClients) {
+            mAnimatingDirty.setEmpty();
+            for (int i = 0, n = mClients.size(); i < n; i++) {
+                Renderer renderer = mClients.get(i);
                 renderer.draw(canvas);
-                redraw = redraw || ((OverlayRenderer) renderer).isVisible();
+                OverlayRenderer overlay = (OverlayRenderer) renderer;
+                if (overlay.isVisible() && overlay.isAnimating()) {
+                    overlay.addDirtyRegion(mAnimatingDirty);
+                }
             }
-            if (redraw) {
-                invalidate();
+            // Static renderers are only redrawn when they call update().
+            if (!mAnimatingDirty.isEmpty()) {
+                invalidate(mAnimatingDirty);
             }
         }
     }
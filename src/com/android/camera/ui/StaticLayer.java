@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.ui;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+
+/**
+ * An offscreen bitmap holding the static part of an overlay renderer, so it
+ * is not rendered from paths every frame. The bitmap only has an alpha
+ * channel and is drawn in the color of the paint passed to draw().
+ */
+class StaticLayer {
+    private Bitmap mBitmap;
+    private Canvas mCanvas;
+    private boolean mValid;
+
+    /** Returns true if the layer has been drawn at the given size. */
+    public boolean isValid(int width, int height) {
+        return mValid && mBitmap.getWidth() == width && mBitmap.getHeight() == height;
+    }
+
+    /**
+     * Returns a cleared canvas of the given size to draw the layer into. The
+     * bitmap is reused if the size did not change.
+     */
+    public Canvas begin(int width, int height) {
+        if (mBitmap == null || mBitmap.getWidth() != width
+                || mBitmap.getHeight() != height) {
+            recycle();
+            mBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ALPHA_8);
+            mCanvas = new Canvas(mBitmap);
+        } else {
+            mBitmap.eraseColor(0);
+        }
+        mValid = true;
+        return mCanvas;
+    }
+
+    public void invalidate() {
+        mValid = false;
+    }
+
+    public void draw(Canvas canvas, float left, float top, Paint paint) {
+        if (mValid) canvas.drawBitmap(mBitmap, left, top, paint);
+    }
+
+    public void recycle() {
+        if (mBitmap != null) {
+            mBitmap.recycle();
+            mBitmap = null;
+            mCanvas = null;
+        }
+        mValid = false;
+    }
+}
@@ -50,11 +50,16 @@ public class ZoomRenderer extends OverlayRenderer
     private Rect mTextBounds;
     private float mBeginSpan;
     private float mBeginCircle; 
+    // The inner and outer rings and the line between them, which only
+    // change on layout.
+    private StaticLayer mRingLayer = new StaticLayer();
 
     public interface OnZoomChangedListener {
         void onZoomStart();
         void onZoomEnd();
-        void onZoomValueChanged(int index);  // only for immediate zoom
+        // only for immediate zoom. eventTime is the uptime of the touch
+        // event that changed the zoom.
+        void onZoomValueChanged(int index, long eventTime);
     }
 
     public ZoomRenderer(Context ctx) {
@@ -84,12 +89,14 @@ public class ZoomRenderer extends OverlayRenderer
 
     public void setZoom(int index) {
         mCircleSize = (int) (mMinCircle + index * (mMaxCircle - mMinCircle) / (mMaxZoom - mMinZoom));
+        update();
     }
 
     public void setZoomValue(int value) {
         value = value / 10;
         mZoomSig = value / 10;
         mZoomFraction = value % 10;
+        update();
     }
 
     public void setOnZoomChangeListener(OnZoomChangedListener listener) {
@@ -103,6 +110,18 @@ public class ZoomRenderer extends OverlayRenderer
         mCenterY = (b - t) / 2;
         mMaxCircle = Math.min(getWidth(), getHeight());
         mMaxCircle = (mMaxCircle - mMinCircle) / 2;
+        mRingLayer.invalidate();
+    }
+
+    // The radius of the area the renderer draws in.
+    private int getDrawRadius() {
+        return (int) Math.ceil(mMaxCircle) + 4 + mOuterStroke;
+    }
+
+    @Override
+    public void getDirtyBounds(Rect out) {
+        int r = getDrawRadius();
+        out.set(mCenterX - r, mCenterY - r, mCenterX + r, mCenterY + r);
     }
 
     public boolean isScaling() {
@@ -111,11 +130,15 @@ public class ZoomRenderer extends OverlayRenderer
 
     @Override
     public void onDraw(Canvas canvas) {
-        mPaint.setStrokeWidth(mInnerStroke);
-        canvas.drawCircle(mCenterX, mCenterY, mMinCircle, mPaint);
-        canvas.drawCircle(mCenterX, mCenterY, mMaxCircle, mPaint);
-        canvas.drawLine(mCenterX - mMinCircle, mCenterY,
-                mCenterX - mMaxCircle - 4, mCenterY, mPaint);
+        int r = getDrawRadius();
+        if (!mRingLayer.isValid(2 * r, 2 * r)) {
+            Canvas layer = mRingLayer.begin(2 * r, 2 * r);
+            mPaint.setStrokeWidth(mInnerStroke);
+            layer.drawCircle(r, r, mMinCircle, mPaint);
+            layer.drawCircle(r, r, mMaxCircle, mPaint);
+            layer.drawLine(r - mMinCircle, r, r - mMaxCircle - 4, r, mPaint);
+        }
+        mRingLayer.draw(canvas, mCenterX - r, mCenterY - r, mPaint);
         mPaint.setStrokeWidth(mOuterStroke);
         canvas.drawCircle((float) mCenterX, (float) mCenterY,
                 (float) mCircleSize, mPaint);
@@ -133,8 +156,9 @@ public class ZoomRenderer extends OverlayRenderer
         circle = Math.min(mMaxCircle, circle);
         if (mListener != null && (int) circle != mCircleSize) {
             mCircleSize = (int) circle;
+            update();
             int zoom = mMinZoom + (int) ((mCircleSize - mMinCircle) * (mMaxZoom - mMinZoom) / (mMaxCircle - mMinCircle));
-            mListener.onZoomValueChanged(zoom);
+            mListener.onZoomValueChanged(zoom, detector.getEventTime());
         }
         return true;
     }
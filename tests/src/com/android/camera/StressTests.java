@@ -20,6 +20,9 @@ import com.android.camera.stress.ImageCapture;
 import com.android.camera.stress.SwitchPreview;
 import com.android.camera.stress.CameraLatency;
 import com.android.camera.stress.CameraStartUp;
+import com.android.camera.stress.EffectsRecorderLatency;
+import com.android.camera.stress.FocusDragBenchmark;
+import com.android.camera.stress.RenderOverlayBenchmark;
 
 import junit.framework.Test;
 import junit.framework.TestSuite;
@@ -42,6 +45,9 @@ public class StressTests extends TestSuite {
         result.addTestSuite(ImageCapture.class);
         result.addTestSuite(CameraLatency.class);
         result.addTestSuite(CameraStartUp.class);
+        result.addTestSuite(EffectsRecorderLatency.class);
+        result.addTestSuite(RenderOverlayBenchmark.class);
+        result.addTestSuite(FocusDragBenchmark.class);
         return result;
     }
 }
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.stress;
+
+import com.android.camera.CameraHolder;
+import com.android.camera.CameraManager.CameraProxy;
+import com.android.camera.EffectsRecorder;
+
+import android.graphics.SurfaceTexture;
+import android.hardware.Camera.CameraInfo;
+import android.media.CamcorderProfile;
+import android.os.Environment;
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.io.File;
+
+/**
+ * Interleaves orientation changes from the UI thread with preview and
+ * recording cycles of the EffectsRecorder, and reports how long the UI
+ * thread calls took.
+ *
+ * Running the test:
+ *
+ * adb shell am instrument \
+ *    -e class com.android.camera.stress.EffectsRecorderLatency \
+ *    -w com.android.camera.tests/com.android.camera.stress.CameraStressTestRunner
+ */
+public class EffectsRecorderLatency extends InstrumentationTestCase {
+    private static final String TAG = "EffectsRecorderLatency";
+    private static final int TOTAL_NUMBER_OF_CYCLES = 10;
+    private static final long WAIT_FOR_PREVIEW = 3000;
+    private static final long RECORDING_DURATION = 2000;
+    private static final int ORIENTATION_CHANGES_PER_STEP = 50;
+    // A UI call that takes longer than this drops a frame.
+    private static final long MAX_UI_CALL_LATENCY_MS = 16;
+
+    private TestUtil testUtil = new TestUtil();
+    private CameraProxy mCameraDevice;
+    private EffectsRecorder mRecorder;
+    private SurfaceTexture mSurfaceTexture;
+
+    private long mMaxUiCallLatency;
+    private long mTotalUiCallLatency;
+    private int mUiCalls;
+    private int mOrientation;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        testUtil.prepareOutputFile();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        testUtil.closeOutputFile();
+        super.tearDown();
+    }
+
+    @LargeTest
+    public void testOrientationChangesDuringStartStop() throws Exception {
+        if (!EffectsRecorder.isEffectSupported(EffectsRecorder.EFFECT_GOOFY_FACE)) {
+            Log.v(TAG, "Goofy face is not supported. Skip the test.");
+            return;
+        }
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                setUpRecorder();
+            }
+        });
+        File outputFile = new File(Environment.getExternalStorageDirectory(),
+                "effects_latency.3gp");
+        try {
+            testUtil.writeReportHeader("EffectsRecorder UI call latency\n",
+                    TOTAL_NUMBER_OF_CYCLES);
+            for (int i = 0; i < TOTAL_NUMBER_OF_CYCLES; i++) {
+                mRecorder.startPreview();
+                changeOrientation(WAIT_FOR_PREVIEW);
+
+                mRecorder.setOutputFile(outputFile.getAbsolutePath());
+                mRecorder.startRecording();
+                changeOrientation(RECORDING_DURATION);
+                mRecorder.stopRecording();
+
+                mRecorder.stopPreview();
+                changeOrientation(0);
+                testUtil.writeResult(i);
+            }
+        } finally {
+            mRecorder.disconnectCamera();
+            mRecorder.release();
+            CameraHolder.instance().release();
+            mSurfaceTexture.release();
+            outputFile.delete();
+        }
+
+        long avg = mTotalUiCallLatency / mUiCalls;
+        testUtil.mOut.write("\nUI calls: " + mUiCalls + "\n");
+        testUtil.mOut.write("Avg UI call latency = " + avg + "\n");
+        testUtil.mOut.write("Max UI call latency = " + mMaxUiCallLatency + "\n");
+        Log.v(TAG, "Avg UI call latency = " + avg + ", max = " + mMaxUiCallLatency);
+        assertTrue("UI call blocked for " + mMaxUiCallLatency + "ms",
+                mMaxUiCallLatency < MAX_UI_CALL_LATENCY_MS);
+    }
+
+    private void setUpRecorder() {
+        int cameraId = CameraHolder.instance().getBackCameraId();
+        try {
+            mCameraDevice = CameraHolder.instance().open(cameraId);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        CamcorderProfile profile = CamcorderProfile.get(cameraId, CamcorderProfile.QUALITY_LOW);
+        mSurfaceTexture = new SurfaceTexture(0);
+
+        mRecorder = new EffectsRecorder(getInstrumentation().getTargetContext());
+        mRecorder.setCameraDisplayOrientation(0);
+        mRecorder.setCamera(mCameraDevice);
+        mRecorder.setCameraFacing(CameraInfo.CAMERA_FACING_BACK);
+        mRecorder.setProfile(profile);
+        mRecorder.setPreviewSurfaceTexture(mSurfaceTexture,
+                profile.videoFrameWidth, profile.videoFrameHeight);
+        mRecorder.setEffect(EffectsRecorder.EFFECT_GOOFY_FACE,
+                EffectsRecorder.EFFECT_GF_BIG_EYES);
+    }
+
+    // Keeps rotating the device from the UI thread for the given duration,
+    // while the graph is starting up, running or shutting down.
+    private void changeOrientation(long duration) throws Exception {
+        long end = SystemClock.uptimeMillis() + duration;
+        do {
+            getInstrumentation().runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < ORIENTATION_CHANGES_PER_STEP; i++) {
+                        mOrientation = (mOrientation + 90) % 360;
+                        long start = SystemClock.uptimeMillis();
+                        mRecorder.setOrientationHint(mOrientation);
+                        long latency = SystemClock.uptimeMillis() - start;
+                        mTotalUiCallLatency += latency;
+                        mMaxUiCallLatency = Math.max(mMaxUiCallLatency, latency);
+                        mUiCalls++;
+                    }
+                }
+            });
+            Thread.sleep(10);
+        } while (SystemClock.uptimeMillis() < end);
+    }
+}
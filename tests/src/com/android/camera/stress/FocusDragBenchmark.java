@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.stress;
+
+import com.android.camera.FocusOverlayManager;
+import com.android.camera.TapAreaTransform;
+import com.android.camera.ui.PieRenderer;
+import com.android.camera.ui.RenderOverlay;
+
+import android.content.Context;
+import android.graphics.Rect;
+import android.hardware.Camera;
+import android.hardware.Camera.Area;
+import android.hardware.Camera.Parameters;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+import android.view.View.MeasureSpec;
+
+import java.lang.reflect.Constructor;
+
+/**
+ * Drags the focus ring at touch event rate through FocusOverlayManager with
+ * a fake camera, and reports how many focus area updates and other camera
+ * calls the drag caused.
+ *
+ * Running the test:
+ *
+ * adb shell am instrument \
+ *    -e class com.android.camera.stress.FocusDragBenchmark \
+ *    -w com.android.camera.tests/com.android.camera.stress.CameraStressTestRunner
+ */
+public class FocusDragBenchmark extends InstrumentationTestCase {
+    private static final String TAG = "FocusDragBenchmark";
+    private static final int WIDTH = 1280;
+    private static final int HEIGHT = 720;
+    private static final int DISPLAY_ORIENTATION = 90;
+    private static final int TOTAL_NUMBER_OF_EVENTS = 240;
+    // Touch events come at about 120 Hz.
+    private static final int EVENT_INTERVAL = 8;
+    // The update interval of FocusOverlayManager.
+    private static final int UPDATE_INTERVAL = 66;
+
+    // Stands in for the camera: counts the calls that reach it.
+    private static class FakeCamera implements FocusOverlayManager.Listener {
+        FocusOverlayManager mManager;
+        int mAutoFocus;
+        int mCancelAutoFocus;
+        int mSetFocusParameters;
+        int mSetFocusAreas;
+        final Rect mLastFocusArea = new Rect();
+
+        @Override
+        public void autoFocus() {
+            mAutoFocus++;
+        }
+
+        @Override
+        public void cancelAutoFocus() {
+            mCancelAutoFocus++;
+        }
+
+        @Override
+        public boolean capture() {
+            return false;
+        }
+
+        @Override
+        public void startFaceDetection() {
+        }
+
+        @Override
+        public void stopFaceDetection() {
+        }
+
+        @Override
+        public void setFocusParameters() {
+            mSetFocusParameters++;
+        }
+
+        @Override
+        public void setFocusAreas() {
+            mSetFocusAreas++;
+            mLastFocusArea.set(((Area) mManager.getFocusAreas().get(0)).rect);
+        }
+    }
+
+    private TestUtil testUtil = new TestUtil();
+    private FakeCamera mCamera = new FakeCamera();
+    private FocusOverlayManager mManager;
+    private PieRenderer mPieRenderer;
+    private int mX;
+    private int mY;
+    private boolean mStarted;
+
+    private final Runnable mDrag = new Runnable() {
+        @Override
+        public void run() {
+            mManager.onFocusDrag(mX, mY);
+        }
+    };
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        testUtil.prepareOutputFile();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        testUtil.closeOutputFile();
+        super.tearDown();
+    }
+
+    // Camera.Parameters cannot be created without a camera, so create empty
+    // ones and fill in what the focus manager reads.
+    private static Parameters createParameters() throws Exception {
+        Constructor<Parameters> constructor =
+                Parameters.class.getDeclaredConstructor(Camera.class);
+        constructor.setAccessible(true);
+        Parameters parameters = constructor.newInstance((Camera) null);
+        parameters.set("focus-mode", Parameters.FOCUS_MODE_AUTO);
+        parameters.set("focus-mode-values", Parameters.FOCUS_MODE_AUTO);
+        parameters.set("max-num-focus-areas", 1);
+        parameters.set("max-num-metering-areas", 1);
+        return parameters;
+    }
+
+    @LargeTest
+    public void testDragFocus() throws Exception {
+        final Parameters parameters = createParameters();
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                setUpFocusManager(parameters);
+                // A touch focus is running when the drag starts.
+                mManager.onSingleTapUp(WIDTH / 4, HEIGHT / 4);
+                mStarted = mManager.onFocusDragStart(WIDTH / 4, HEIGHT / 4);
+            }
+        });
+        assertTrue(mStarted);
+        assertEquals("Stale autofocus cancelled", 1, mCamera.mCancelAutoFocus);
+
+        long start = SystemClock.uptimeMillis();
+        for (int i = 0; i < TOTAL_NUMBER_OF_EVENTS; i++) {
+            mX = WIDTH / 4 + (WIDTH / 2) * i / TOTAL_NUMBER_OF_EVENTS;
+            mY = HEIGHT / 4 + (HEIGHT / 2) * i / TOTAL_NUMBER_OF_EVENTS;
+            getInstrumentation().runOnMainSync(mDrag);
+            Thread.sleep(EVENT_INTERVAL);
+        }
+        final int endX = mX;
+        final int endY = mY;
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mManager.onFocusDragEnd(endX, endY);
+            }
+        });
+        long duration = SystemClock.uptimeMillis() - start;
+        // Nothing is sent after the drag ends.
+        int updates = mCamera.mSetFocusAreas;
+        Thread.sleep(UPDATE_INTERVAL * 2);
+        getInstrumentation().waitForIdleSync();
+
+        float updateRate = mCamera.mSetFocusAreas * 1000f / duration;
+        float eventRate = TOTAL_NUMBER_OF_EVENTS * 1000f / duration;
+        testUtil.mOut.write("Focus drag events: " + TOTAL_NUMBER_OF_EVENTS
+                + " in " + duration + "ms\n");
+        testUtil.mOut.write("Touch event rate = " + eventRate + "/s\n");
+        testUtil.mOut.write("Focus area update rate = " + updateRate + "/s\n");
+        testUtil.mOut.write("Camera calls: setFocusAreas=" + mCamera.mSetFocusAreas
+                + " setFocusParameters=" + mCamera.mSetFocusParameters
+                + " autoFocus=" + mCamera.mAutoFocus
+                + " cancelAutoFocus=" + mCamera.mCancelAutoFocus + "\n");
+        Log.v(TAG, "events=" + eventRate + "/s updates=" + updateRate + "/s autoFocus="
+                + mCamera.mAutoFocus + " cancelAutoFocus=" + mCamera.mCancelAutoFocus);
+
+        assertEquals(updates, mCamera.mSetFocusAreas);
+        assertTrue("Too many updates: " + updates,
+                updates <= duration / UPDATE_INTERVAL + 2);
+        assertTrue("Too few updates: " + updates,
+                updates >= duration / UPDATE_INTERVAL / 2);
+        // One full parameter update for the tap and one for the drag.
+        assertEquals(2, mCamera.mSetFocusParameters);
+        // One autofocus for the tap and one when the drag ends.
+        assertEquals(2, mCamera.mAutoFocus);
+
+        // The last update has the area under the finger.
+        TapAreaTransform transform = new TapAreaTransform();
+        transform.setPreviewSize(WIDTH, HEIGHT);
+        transform.setDisplayOrientation(DISPLAY_ORIENTATION);
+        transform.setMirror(false);
+        Rect expected = new Rect();
+        transform.calculateTapArea(mPieRenderer.getSize(), mPieRenderer.getSize(),
+                endX, endY, expected);
+        assertEquals(expected, mCamera.mLastFocusArea);
+    }
+
+    private void setUpFocusManager(Parameters parameters) {
+        Context context = getInstrumentation().getTargetContext();
+        RenderOverlay overlay = new RenderOverlay(context, null);
+        mPieRenderer = new PieRenderer(context);
+        overlay.addRenderer(mPieRenderer);
+        overlay.measure(MeasureSpec.makeMeasureSpec(WIDTH, MeasureSpec.EXACTLY),
+                MeasureSpec.makeMeasureSpec(HEIGHT, MeasureSpec.EXACTLY));
+        overlay.layout(0, 0, WIDTH, HEIGHT);
+
+        mManager = new FocusOverlayManager(null, null, parameters, mCamera, false,
+                Looper.getMainLooper());
+        mCamera.mManager = mManager;
+        mManager.setFocusRenderer(mPieRenderer);
+        mManager.setPreviewSize(WIDTH, HEIGHT);
+        mManager.setDisplayOrientation(DISPLAY_ORIENTATION);
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.stress;
+
+import com.android.camera.ui.PieRenderer;
+import com.android.camera.ui.RenderOverlay;
+import com.android.camera.ui.ZoomRenderer;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.PorterDuff;
+import android.graphics.Rect;
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+import android.view.View.MeasureSpec;
+
+/**
+ * Draws the render overlay with the zoom ring changing every frame into a
+ * software canvas, once redrawing the whole overlay and once only the dirty
+ * bounds the zoom renderer reports, and reports the frame times and the
+ * fraction of the overlay redrawn.
+ *
+ * Running the test:
+ *
+ * adb shell am instrument \
+ *    -e class com.android.camera.stress.RenderOverlayBenchmark \
+ *    -w com.android.camera.tests/com.android.camera.stress.CameraStressTestRunner
+ */
+public class RenderOverlayBenchmark extends InstrumentationTestCase {
+    private static final String TAG = "RenderOverlayBenchmark";
+    private static final int WIDTH = 1280;
+    private static final int HEIGHT = 720;
+    private static final int TOTAL_NUMBER_OF_FRAMES = 300;
+    private static final int MAX_ZOOM = 30;
+
+    private TestUtil testUtil = new TestUtil();
+    private RenderOverlay mOverlay;
+    private PieRenderer mPieRenderer;
+    private ZoomRenderer mZoomRenderer;
+    private Bitmap mBitmap;
+    private Canvas mCanvas;
+    private final Rect mDirty = new Rect();
+    private final Rect mBounds = new Rect();
+
+    private long mFullFrameTime;
+    private long mDirtyFrameTime;
+    private long mDirtyArea;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        testUtil.prepareOutputFile();
+        mBitmap = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+        mCanvas = new Canvas(mBitmap);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mBitmap.recycle();
+        testUtil.closeOutputFile();
+        super.tearDown();
+    }
+
+    @LargeTest
+    public void testZoomFrames() throws Exception {
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                setUpOverlay();
+                // Warm up, which also fills the static layers.
+                drawFrames(false, TOTAL_NUMBER_OF_FRAMES / 10);
+                mFullFrameTime = drawFrames(false, TOTAL_NUMBER_OF_FRAMES);
+                mDirtyArea = 0;
+                mDirtyFrameTime = drawFrames(true, TOTAL_NUMBER_OF_FRAMES);
+            }
+        });
+
+        long fullArea = (long) WIDTH * HEIGHT * TOTAL_NUMBER_OF_FRAMES;
+        float redrawn = (float) mDirtyArea / fullArea;
+        long fullAvg = mFullFrameTime / TOTAL_NUMBER_OF_FRAMES;
+        long dirtyAvg = mDirtyFrameTime / TOTAL_NUMBER_OF_FRAMES;
+        testUtil.mOut.write("RenderOverlay zoom frames: " + TOTAL_NUMBER_OF_FRAMES + "\n");
+        testUtil.mOut.write("Avg full frame time = " + fullAvg + "us\n");
+        testUtil.mOut.write("Avg dirty frame time = " + dirtyAvg + "us\n");
+        testUtil.mOut.write("Redrawn area = " + redrawn + "\n");
+        Log.v(TAG, "full=" + fullAvg + "us dirty=" + dirtyAvg + "us redrawn=" + redrawn);
+        assertTrue("Redrawn area " + redrawn, redrawn < 1f);
+    }
+
+    private void setUpOverlay() {
+        Context context = getInstrumentation().getTargetContext();
+        mOverlay = new RenderOverlay(context, null);
+        mPieRenderer = new PieRenderer(context);
+        mZoomRenderer = new ZoomRenderer(context);
+        mOverlay.addRenderer(mPieRenderer);
+        mOverlay.addRenderer(mZoomRenderer);
+        mOverlay.measure(MeasureSpec.makeMeasureSpec(WIDTH, MeasureSpec.EXACTLY),
+                MeasureSpec.makeMeasureSpec(HEIGHT, MeasureSpec.EXACTLY));
+        mOverlay.layout(0, 0, WIDTH, HEIGHT);
+        mZoomRenderer.setZoomMax(MAX_ZOOM);
+        mZoomRenderer.setVisible(true);
+        // Keep the focus ring on screen too, as it is while zooming.
+        mPieRenderer.setFocus(WIDTH / 4, HEIGHT / 4);
+        mPieRenderer.setVisible(true);
+    }
+
+    // Returns the total time in microseconds.
+    private long drawFrames(boolean clipToDirty, int frames) {
+        long total = 0;
+        for (int i = 0; i < frames; i++) {
+            mDirty.setEmpty();
+            if (clipToDirty) {
+                // What update() invalidates: the old and the new zoom ring.
+                mZoomRenderer.getDirtyBounds(mDirty);
+            }
+            mZoomRenderer.setZoom(i % (MAX_ZOOM + 1));
+            mZoomRenderer.setZoomValue(100 + i % (MAX_ZOOM + 1) * 10);
+
+            long start = System.nanoTime();
+            int save = mCanvas.save();
+            if (clipToDirty) {
+                mZoomRenderer.getDirtyBounds(mBounds);
+                mDirty.union(mBounds);
+                mDirtyArea += (long) mDirty.width() * mDirty.height();
+                mCanvas.clipRect(mDirty);
+            }
+            mCanvas.drawColor(0, PorterDuff.Mode.CLEAR);
+            mOverlay.draw(mCanvas);
+            mCanvas.restoreToCount(save);
+            total += (System.nanoTime() - start) / 1000;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.unittest;
+
+import com.android.camera.AnimTexturePool;
+import com.android.camera.AnimationStats;
+import com.android.gallery3d.ui.RawTexture;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class AnimTexturePoolTest extends TestCase {
+    private static final long MS = 1000 * 1000;
+
+    public void testReusesTexturePerSize() {
+        AnimTexturePool pool = new AnimTexturePool();
+        RawTexture back = pool.get(1280, 720);
+        assertEquals(1280, back.getWidth());
+        assertEquals(720, back.getHeight());
+        // Restarting the preview reuses the texture.
+        assertSame(back, pool.get(1280, 720));
+        // Switching between two cameras reuses both textures.
+        RawTexture front = pool.get(640, 480);
+        for (int i = 0; i < 10; i++) {
+            assertSame(back, pool.get(1280, 720));
+            assertSame(front, pool.get(640, 480));
+        }
+        assertEquals(2, pool.getCreatedCount());
+    }
+
+    public void testEvictsLeastRecentlyUsed() {
+        AnimTexturePool pool = new AnimTexturePool();
+        RawTexture a = pool.get(1280, 720);
+        RawTexture b = pool.get(640, 480);
+        assertSame(a, pool.get(1280, 720));
+        // b is the least recently used, so it is replaced.
+        RawTexture c = pool.get(1920, 1080);
+        assertSame(a, pool.get(1280, 720));
+        assertSame(c, pool.get(1920, 1080));
+        assertNotSame(b, pool.get(640, 480));
+        assertEquals(4, pool.getCreatedCount());
+        pool.clear();
+    }
+
+    public void testAnimationStats() {
+        AnimationStats stats = new AnimationStats();
+        stats.onCopy();
+        stats.onCopySkipped();
+        stats.onCopySkipped();
+        stats.onFrameDrawn(1 * MS);
+        stats.onFrameDrawn(3 * MS);
+        assertEquals(1, stats.getCopies());
+        assertEquals(2, stats.getSkippedCopies());
+        assertEquals(2, stats.getFrames());
+        assertEquals(2 * MS, stats.getAverageFrameTimeNs());
+        assertEquals(3 * MS, stats.getMaxFrameTimeNs());
+
+        stats.reset();
+        assertEquals(0, stats.getCopies());
+        assertEquals(0, stats.getFrames());
+        assertEquals(0, stats.getAverageFrameTimeNs());
+    }
+}
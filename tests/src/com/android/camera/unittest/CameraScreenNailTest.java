@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.unittest;
+
+import com.android.camera.CameraScreenNail;
+import com.android.camera.PreviewFrameStats;
+import com.android.gallery3d.ui.GLCanvas;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class CameraScreenNailTest extends TestCase {
+    private static final long MS = 1000 * 1000;
+
+    private static class FakeListener implements CameraScreenNail.Listener {
+        final AtomicInteger mRenderRequests = new AtomicInteger();
+
+        @Override
+        public void requestRender() {
+            mRenderRequests.incrementAndGet();
+        }
+
+        @Override
+        public void onPreviewTextureCopied() {
+        }
+
+        @Override
+        public void onCaptureTextureCopied() {
+        }
+    }
+
+    // A GLCanvas that records the number of calls and does nothing.
+    private static GLCanvas createFakeCanvas(final AtomicInteger calls) {
+        return (GLCanvas) Proxy.newProxyInstance(GLCanvas.class.getClassLoader(),
+                new Class<?>[] {GLCanvas.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        calls.incrementAndGet();
+                        Class<?> type = method.getReturnType();
+                        if (type == float.class) return 1f;
+                        if (type == int.class) return 0;
+                        if (type == long.class) return 0L;
+                        if (type == boolean.class) return false;
+                        return null;
+                    }
+                });
+    }
+
+    public void testFrameStats() {
+        PreviewFrameStats stats = new PreviewFrameStats(33 * MS);
+        stats.onFrameDrawn(1, 5 * MS, 0);
+        stats.onFrameDrawn(3, 10 * MS, 2 * MS);
+        stats.onFrameDrawn(1, 40 * MS, 0);
+        stats.onRedraw(1 * MS);
+        assertEquals(3, stats.getDrawnFrames());
+        assertEquals(1, stats.getRedraws());
+        assertEquals(2, stats.getDroppedFrames());
+        assertEquals(1, stats.getLateFrames());
+        assertEquals(55 * MS / 3, stats.getAverageLatencyNs());
+        assertEquals(40 * MS, stats.getMaxLatencyNs());
+        assertEquals(3 * MS, stats.getTotalLockWaitNs());
+        assertEquals(2 * MS, stats.getMaxLockWaitNs());
+
+        stats.reset();
+        assertEquals(0, stats.getDrawnFrames());
+        assertEquals(0, stats.getDroppedFrames());
+        assertEquals(0, stats.getTotalLockWaitNs());
+    }
+
+    public void testRenderRequestedOnlyWhenVisible() {
+        FakeListener listener = new FakeListener();
+        CameraScreenNail screenNail = new CameraScreenNail(listener);
+        AtomicInteger canvasCalls = new AtomicInteger();
+        GLCanvas canvas = createFakeCanvas(canvasCalls);
+
+        // No surface texture has been acquired, so frames from a null
+        // texture are accepted but nothing is drawn.
+        screenNail.onFrameAvailable(null);
+        assertEquals(0, listener.mRenderRequests.get());
+
+        screenNail.draw(canvas, 0, 0, 640, 480);
+        assertEquals(0, canvasCalls.get());
+        screenNail.onFrameAvailable(null);
+        assertEquals(1, listener.mRenderRequests.get());
+
+        screenNail.noDraw();
+        screenNail.onFrameAvailable(null);
+        assertEquals(1, listener.mRenderRequests.get());
+    }
+
+    // Hammers the state setters from other threads while this thread draws,
+    // and checks that no update is lost.
+    public void testConcurrentStateUpdates() throws Exception {
+        final FakeListener listener = new FakeListener();
+        final CameraScreenNail screenNail = new CameraScreenNail(listener);
+        final GLCanvas canvas = createFakeCanvas(new AtomicInteger());
+        final int iterations = 10000;
+
+        Thread ui = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; i < iterations; i++) {
+                    screenNail.setAlpha((i % 100) / 100f);
+                    screenNail.setFullScreen((i & 1) == 0);
+                }
+                screenNail.setAlpha(0.5f);
+            }
+        };
+        Thread frames = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; i < iterations; i++) {
+                    screenNail.onFrameAvailable(null);
+                }
+            }
+        };
+        ui.start();
+        frames.start();
+        while (ui.isAlive() || frames.isAlive()) {
+            screenNail.draw(canvas, 0, 0, 640, 480);
+        }
+        ui.join();
+        frames.join();
+
+        assertEquals(0.5f, screenNail.getAlpha());
+        // Every setAlpha and every frame while visible requests a render.
+        assertTrue(listener.mRenderRequests.get() >= iterations + 1);
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.unittest;
+
+import com.android.camera.FaceTracker;
+
+import android.graphics.Rect;
+import android.hardware.Camera.Face;
+import android.os.Debug;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Replays recorded face detection sequences through the face tracker. Each
+ * frame is a list of faces as {left, top, right, bottom, score, id}.
+ */
+@SmallTest
+public class FaceTrackerTest extends TestCase {
+    private static final int[][] NONE = new int[0][];
+
+    // A face walking across the preview, as reported by a driver without
+    // face ids, including a frame where it is missed.
+    private static final int[][][] WALK = {
+        {{-600, -200, -300, 200, 90, -1}},
+        {{-570, -190, -270, 210, 88, -1}},
+        {{-540, -200, -240, 200, 91, -1}},
+        NONE,
+        {{-480, -210, -180, 190, 87, -1}},
+        {{-450, -200, -150, 200, 90, -1}},
+        {{-420, -195, -120, 205, 92, -1}},
+        {{-390, -200, -90, 200, 90, -1}},
+    };
+
+    // A face that is missed for two frames, then leaves.
+    private static final int[][][] DROPOUT = {
+        {{-100, -100, 100, 100, 95, -1}},
+        {{-100, -100, 100, 100, 95, -1}},
+        NONE,
+        NONE,
+        {{-100, -100, 100, 100, 95, -1}},
+        NONE,
+        NONE,
+        NONE,
+    };
+
+    // A steady face with false positives that last a single frame, and one
+    // with a low score.
+    private static final int[][][] FALSE_POSITIVES = {
+        {{-100, -100, 100, 100, 95, -1}},
+        {{-100, -100, 100, 100, 95, -1}, {500, 500, 600, 600, 60, -1}},
+        {{-100, -100, 100, 100, 95, -1}},
+        {{-100, -100, 100, 100, 95, -1}, {-700, 300, -600, 400, 55, -1}},
+        {{-100, -100, 100, 100, 95, -1}, {300, -700, 400, -600, 20, -1}},
+        {{-100, -100, 100, 100, 95, -1}, {300, -700, 400, -600, 20, -1}},
+        {{-100, -100, 100, 100, 95, -1}},
+    };
+
+    // Two faces from a driver with face ids, reported in changing order.
+    private static final int[][][] TWO_FACES = {
+        {{-500, -100, -300, 100, 90, 7}, {300, -150, 600, 150, 90, 8}},
+        {{310, -150, 610, 150, 90, 8}, {-490, -100, -290, 100, 90, 7}},
+        {{-480, -100, -280, 100, 90, 7}, {320, -150, 620, 150, 90, 8}},
+        {{330, -150, 630, 150, 90, 8}, {-470, -100, -270, 100, 90, 7}},
+    };
+
+    private static Face[][] load(int[][][] recording) {
+        Face[][] frames = new Face[recording.length][];
+        for (int i = 0; i < recording.length; i++) {
+            frames[i] = new Face[recording[i].length];
+            for (int j = 0; j < recording[i].length; j++) {
+                int[] f = recording[i][j];
+                Face face = new Face();
+                face.rect = new Rect(f[0], f[1], f[2], f[3]);
+                face.score = f[4];
+                face.id = f[5];
+                frames[i][j] = face;
+            }
+        }
+        return frames;
+    }
+
+    public void testStableIdWhileMoving() {
+        FaceTracker tracker = new FaceTracker();
+        Face[][] frames = load(WALK);
+        tracker.update(frames[0]);
+        assertEquals("A new face is not shown at once", 0, tracker.getFaceCount());
+        tracker.update(frames[1]);
+        assertEquals(1, tracker.getFaceCount());
+        int id = tracker.getFaceId(0);
+        for (int i = 2; i < frames.length; i++) {
+            tracker.update(frames[i]);
+            assertEquals("Frame " + i, 1, tracker.getFaceCount());
+            assertEquals("Frame " + i, id, tracker.getFaceId(0));
+        }
+        // The smoothed face follows the detected one.
+        Rect rect = tracker.getFaceRect(0);
+        assertTrue(rect.left > -480 && rect.left <= -390);
+    }
+
+    public void testDropout() {
+        FaceTracker tracker = new FaceTracker();
+        Face[][] frames = load(DROPOUT);
+        int id = 0;
+        for (int i = 1; i <= 5; i++) {
+            tracker.update(frames[i - 1]);
+            if (i < 2) continue;
+            assertEquals("Frame " + i, 1, tracker.getFaceCount());
+            if (id == 0) id = tracker.getFaceId(0);
+            assertEquals("Frame " + i, id, tracker.getFaceId(0));
+        }
+        tracker.update(frames[5]);
+        tracker.update(frames[6]);
+        assertEquals(1, tracker.getFaceCount());
+        tracker.update(frames[7]);
+        assertEquals(0, tracker.getFaceCount());
+    }
+
+    public void testFalsePositivesAreNotShown() {
+        FaceTracker tracker = new FaceTracker();
+        Face[][] frames = load(FALSE_POSITIVES);
+        for (int i = 0; i < frames.length; i++) {
+            tracker.update(frames[i]);
+            assertTrue("Frame " + i, tracker.getFaceCount() <= 1);
+        }
+        assertEquals(1, tracker.getFaceCount());
+        assertEquals(new Rect(-100, -100, 100, 100), tracker.getFaceRect(0));
+    }
+
+    public void testDriverIdsKeepOrder() {
+        FaceTracker tracker = new FaceTracker();
+        Face[][] frames = load(TWO_FACES);
+        tracker.update(frames[0]);
+        tracker.update(frames[1]);
+        assertEquals(2, tracker.getFaceCount());
+        int left = tracker.getFaceId(0);
+        int right = tracker.getFaceId(1);
+        for (int i = 2; i < frames.length; i++) {
+            tracker.update(frames[i]);
+            assertEquals(2, tracker.getFaceCount());
+            assertEquals(left, tracker.getFaceId(0));
+            assertEquals(right, tracker.getFaceId(1));
+            assertTrue(tracker.getFaceRect(0).right < tracker.getFaceRect(1).left);
+        }
+
+        Rect primary = new Rect();
+        assertTrue(tracker.getPrimaryFace(primary));
+        assertEquals(tracker.getFaceRect(1), primary);
+        tracker.reset();
+        assertEquals(0, tracker.getFaceCount());
+        assertFalse(tracker.getPrimaryFace(primary));
+    }
+
+    public void testSmoothingReducesJitter() {
+        FaceTracker tracker = new FaceTracker();
+        Face face = new Face();
+        face.score = 90;
+        face.id = -1;
+        face.rect = new Rect();
+        Face[] faces = new Face[] {face};
+        int maxStep = 0;
+        int last = 0;
+        for (int i = 0; i < 40; i++) {
+            int jitter = ((i & 1) == 0) ? 40 : -40;
+            face.rect.set(-200 + jitter, -200, 200 + jitter, 200);
+            tracker.update(faces);
+            if (i < 4) continue;
+            int left = tracker.getFaceRect(0).left;
+            if (i > 4) maxStep = Math.max(maxStep, Math.abs(left - last));
+            last = left;
+        }
+        assertTrue("Max step " + maxStep, maxStep < 80);
+    }
+
+    public void testNoAllocationPerCallback() {
+        FaceTracker tracker = new FaceTracker();
+        Face[][] walk = load(WALK);
+        Face[][] twoFaces = load(TWO_FACES);
+        Face[][] falsePositives = load(FALSE_POSITIVES);
+        Rect primary = new Rect();
+        tracker.update(walk[0]);
+
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        for (int pass = 0; pass < 100; pass++) {
+            replay(tracker, walk, primary);
+            replay(tracker, twoFaces, primary);
+            replay(tracker, falsePositives, primary);
+        }
+        Debug.stopAllocCounting();
+        assertEquals(0, Debug.getThreadAllocCount());
+    }
+
+    private static void replay(FaceTracker tracker, Face[][] frames, Rect primary) {
+        for (int i = 0; i < frames.length; i++) {
+            tracker.update(frames[i]);
+            tracker.getPrimaryFace(primary);
+        }
+    }
+}
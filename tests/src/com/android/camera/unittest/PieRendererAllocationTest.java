@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.unittest;
+
+import com.android.camera.R;
+import com.android.camera.ui.PieItem;
+import com.android.camera.ui.PieRenderer;
+import com.android.camera.ui.RenderOverlay;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.drawable.ColorDrawable;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.view.MotionEvent;
+import android.view.View.MeasureSpec;
+
+/**
+ * Checks that the pie menu and the focus ring do not allocate when touched
+ * and drawn in steady state.
+ */
+@SmallTest
+public class PieRendererAllocationTest extends InstrumentationTestCase {
+    private static final int WIDTH = 1280;
+    private static final int HEIGHT = 720;
+    private static final int ITEMS = 5;
+    private static final int MOVES = 60;
+    private static final int PASSES = 3;
+
+    private PieRenderer mPieRenderer;
+    private Canvas mCanvas;
+    private Bitmap mBitmap;
+    private MotionEvent mDown;
+    private MotionEvent[] mMoves = new MotionEvent[MOVES];
+    private int mTouchAllocations;
+    private int mFocusAllocations;
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mDown != null) mDown.recycle();
+        for (MotionEvent e : mMoves) {
+            if (e != null) e.recycle();
+        }
+        if (mBitmap != null) mBitmap.recycle();
+        super.tearDown();
+    }
+
+    public void testNoAllocationInSteadyState() throws Exception {
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                setUpPie();
+                // Open the pie, and warm up the touch and draw paths.
+                mPieRenderer.onTouchEvent(mDown);
+                touchAndDraw();
+
+                mTouchAllocations = countAllocations(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int i = 0; i < PASSES; i++) touchAndDraw();
+                    }
+                });
+
+                mPieRenderer.hide();
+                mPieRenderer.showStart();
+                mPieRenderer.draw(mCanvas);
+                mFocusAllocations = countAllocations(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int i = 0; i < PASSES * MOVES; i++) {
+                            mPieRenderer.draw(mCanvas);
+                        }
+                    }
+                });
+            }
+        });
+        assertEquals("Allocations in pie touch and draw", 0, mTouchAllocations);
+        assertEquals("Allocations in focus ring draw", 0, mFocusAllocations);
+    }
+
+    private void setUpPie() {
+        Context context = getInstrumentation().getTargetContext();
+        RenderOverlay overlay = new RenderOverlay(context, null);
+        mPieRenderer = new PieRenderer(context);
+        for (int i = 0; i < ITEMS; i++) {
+            mPieRenderer.addItem(new PieItem(new ColorDrawable(Color.WHITE), 0));
+        }
+        overlay.addRenderer(mPieRenderer);
+        overlay.measure(MeasureSpec.makeMeasureSpec(WIDTH, MeasureSpec.EXACTLY),
+                MeasureSpec.makeMeasureSpec(HEIGHT, MeasureSpec.EXACTLY));
+        overlay.layout(0, 0, WIDTH, HEIGHT);
+        mBitmap = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+        mCanvas = new Canvas(mBitmap);
+
+        // Sweep over the items, which are laid out above the touch point.
+        Resources res = context.getResources();
+        float radius = res.getDimensionPixelSize(R.dimen.pie_radius_start)
+                + res.getDimensionPixelSize(R.dimen.pie_radius_increment) / 2;
+        float cx = WIDTH / 2;
+        float cy = HEIGHT / 2;
+        long now = SystemClock.uptimeMillis();
+        mDown = MotionEvent.obtain(now, now, MotionEvent.ACTION_DOWN, cx, cy, 0);
+        for (int i = 0; i < MOVES; i++) {
+            double angle = Math.PI / 6 + (Math.PI * 2 / 3) * i / (MOVES - 1);
+            float x = cx + (float) (radius * Math.cos(angle));
+            float y = cy - (float) (radius * Math.sin(angle));
+            mMoves[i] = MotionEvent.obtain(now, now + i, MotionEvent.ACTION_MOVE, x, y, 0);
+        }
+    }
+
+    private void touchAndDraw() {
+        for (int i = 0; i < MOVES; i++) {
+            mPieRenderer.onTouchEvent(mMoves[i]);
+            mPieRenderer.draw(mCanvas);
+        }
+    }
+
+    private static int countAllocations(Runnable r) {
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        r.run();
+        Debug.stopAllocCounting();
+        return Debug.getThreadAllocCount();
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.unittest;
+
+import com.android.camera.CameraPreference;
+import com.android.camera.CameraSettings;
+import com.android.camera.ListPreference;
+import com.android.camera.PreferenceGroup;
+import com.android.camera.PreferenceInflater;
+import com.android.camera.R;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+
+@SmallTest
+public class PreferenceInflaterTest extends AndroidTestCase {
+    private static final int[] RESOURCES = {
+        R.xml.camera_preferences, R.xml.video_preferences,
+    };
+
+    private static void assertSameTree(CameraPreference expected, CameraPreference actual) {
+        assertNotSame(expected, actual);
+        assertEquals(expected.getClass(), actual.getClass());
+        assertEquals(expected.getTitle(), actual.getTitle());
+        if (expected instanceof PreferenceGroup) {
+            PreferenceGroup group = (PreferenceGroup) expected;
+            PreferenceGroup copy = (PreferenceGroup) actual;
+            assertEquals(group.size(), copy.size());
+            for (int i = 0; i < group.size(); i++) {
+                assertSameTree(group.get(i), copy.get(i));
+            }
+        } else {
+            ListPreference pref = (ListPreference) expected;
+            ListPreference copy = (ListPreference) actual;
+            assertEquals(pref.getKey(), copy.getKey());
+            assertEquals(pref.getEntryValues().length, copy.getEntryValues().length);
+        }
+    }
+
+    public void testInflateReturnsCopies() {
+        PreferenceInflater inflater = new PreferenceInflater(getContext());
+        for (int resId : RESOURCES) {
+            assertSameTree(inflater.inflate(resId), inflater.inflate(resId));
+        }
+    }
+
+    public void testCopiesAreIndependent() {
+        PreferenceInflater inflater = new PreferenceInflater(getContext());
+        PreferenceGroup first = (PreferenceGroup) inflater.inflate(R.xml.camera_preferences);
+        ListPreference flash = first.findPreference(CameraSettings.KEY_FLASH_MODE);
+        int entries = flash.getEntryValues().length;
+        assertTrue(entries > 1);
+        ArrayList<String> supported = new ArrayList<String>();
+        supported.add(flash.getEntryValues()[0].toString());
+        flash.filterUnsupported(supported);
+        first.removePreference(0);
+
+        PreferenceGroup second = (PreferenceGroup) inflater.inflate(R.xml.camera_preferences);
+        assertEquals(first.size() + 1, second.size());
+        assertEquals(entries,
+                second.findPreference(CameraSettings.KEY_FLASH_MODE).getEntryValues().length);
+    }
+
+    public void testPreload() throws Exception {
+        PreferenceInflater.preload(getContext(), RESOURCES);
+        PreferenceInflater inflater = new PreferenceInflater(getContext());
+        // Waits for the preload if it is still running.
+        assertNotNull(inflater.inflate(R.xml.video_preferences));
+    }
+}
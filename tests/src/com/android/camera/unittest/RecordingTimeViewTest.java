@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.unittest;
+
+import com.android.camera.ui.RecordingTimeView;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.view.View.MeasureSpec;
+
+@SmallTest
+public class RecordingTimeViewTest extends AndroidTestCase {
+    private static final int TICKS = 1000;
+
+    private String format(long milliSeconds, boolean displayCentiSeconds) {
+        char[] out = new char[32];
+        int length = RecordingTimeView.formatTime(milliSeconds, displayCentiSeconds, out);
+        return new String(out, 0, length);
+    }
+
+    public void testFormatTime() {
+        assertEquals("00:00", format(0, false));
+        assertEquals("00:00", format(999, false));
+        assertEquals("00:01", format(1000, false));
+        assertEquals("01:05", format(65000, false));
+        assertEquals("59:59", format(3599999, false));
+        assertEquals("01:00:00", format(3600000, false));
+        assertEquals("12:34:56", format(((12 * 60 + 34) * 60 + 56) * 1000L, false));
+        assertEquals("100:00:00", format(100 * 3600000L, false));
+        assertEquals("00:00.00", format(0, true));
+        assertEquals("00:01.05", format(1050, true));
+        assertEquals("01:00:00.99", format(3600999, true));
+    }
+
+    private RecordingTimeView createLaidOutView() {
+        RecordingTimeView view = new RecordingTimeView(getContext(), null);
+        view.setTime(0, false);
+        int spec = MeasureSpec.makeMeasureSpec(0, MeasureSpec.UNSPECIFIED);
+        view.measure(spec, spec);
+        view.layout(0, 0, view.getMeasuredWidth(), view.getMeasuredHeight());
+        return view;
+    }
+
+    public void testNoLayoutPerTick() {
+        RecordingTimeView view = createLaidOutView();
+        for (int i = 0; i < TICKS; i++) {
+            view.setTime(i * 1000L, false);
+            assertFalse("Layout requested at tick " + i, view.isLayoutRequested());
+        }
+    }
+
+    public void testNoAllocationPerTick() {
+        RecordingTimeView view = createLaidOutView();
+        Bitmap bitmap = Bitmap.createBitmap(Math.max(1, view.getWidth()),
+                Math.max(1, view.getHeight()), Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        // Warm up so that lazily created objects are not counted.
+        view.setTime(1000, false);
+        view.draw(canvas);
+
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        for (int i = 0; i < TICKS; i++) {
+            view.setTime(i * 1000L, false);
+            view.setTextColor((i & 1) == 0 ? 0xffffffff : 0xffff0000);
+            view.draw(canvas);
+        }
+        Debug.stopAllocCounting();
+        int allocations = Debug.getThreadAllocCount();
+        bitmap.recycle();
+        assertEquals("Allocations in " + TICKS + " ticks", 0, allocations);
+    }
+}
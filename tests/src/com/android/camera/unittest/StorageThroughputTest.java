@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.unittest;
+
+import com.android.camera.StorageThroughput;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+@SmallTest
+public class StorageThroughputTest extends AndroidTestCase {
+    private static final String DIRECTORY = "/sdcard/DCIM/Camera";
+    // 17 Mbps, about the bitrate of a 1080p recording.
+    private static final long BIT_RATE = 17000000;
+    private static final long DURATION = 60000;
+
+    private SharedPreferences mPrefs;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPrefs = getContext().getSharedPreferences("storage_throughput_test",
+                Context.MODE_PRIVATE);
+        mPrefs.edit().clear().commit();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mPrefs.edit().clear().commit();
+        super.tearDown();
+    }
+
+    private static long bytesRecorded(long bitsPerSecond, long durationMs) {
+        return bitsPerSecond / 8 * durationMs / 1000;
+    }
+
+    public void testUnknownStorageIsFastEnough() {
+        StorageThroughput throughput = new StorageThroughput(mPrefs, DIRECTORY);
+        assertEquals(0, throughput.getSustainableBytesPerSecond());
+        assertTrue(throughput.canSustain(BIT_RATE));
+    }
+
+    public void testRecordedRateIsSustainable() {
+        StorageThroughput throughput = new StorageThroughput(mPrefs, DIRECTORY);
+        throughput.addRecording(bytesRecorded(BIT_RATE, DURATION), DURATION);
+        assertTrue(throughput.canSustain(BIT_RATE));
+        assertTrue(throughput.canSustain(BIT_RATE / 2));
+        // Nothing is known about higher rates without a probe.
+        assertTrue(throughput.canSustain(BIT_RATE * 2));
+    }
+
+    public void testRecordedRateIsSustainableWithSlowProbe() {
+        StorageThroughput throughput = new StorageThroughput(mPrefs, DIRECTORY);
+        // The probe is slower than the recording, as when it ran while
+        // something else was writing.
+        throughput.addProbe(BIT_RATE / 8 / 2, 1000);
+        assertFalse(throughput.canSustain(BIT_RATE));
+        throughput.addRecording(bytesRecorded(BIT_RATE, DURATION), DURATION);
+        assertTrue(throughput.canSustain(BIT_RATE));
+        assertFalse(throughput.canSustain(BIT_RATE * 2));
+    }
+
+    public void testProbeNeedsHeadroom() {
+        StorageThroughput throughput = new StorageThroughput(mPrefs, DIRECTORY);
+        throughput.addProbe(BIT_RATE / 8, 1000);
+        // A recording at the probed speed would have no room for bursts.
+        assertFalse(throughput.canSustain(BIT_RATE));
+        assertTrue(throughput.canSustain(BIT_RATE / 2));
+        assertTrue(throughput.getSustainableBytesPerSecond() < BIT_RATE / 8);
+    }
+
+    public void testShortRecordingIsIgnored() {
+        StorageThroughput throughput = new StorageThroughput(mPrefs, DIRECTORY);
+        throughput.addRecording(bytesRecorded(BIT_RATE, 1000), 1000);
+        assertEquals(0, throughput.getRecordedBytesPerSecond());
+    }
+}
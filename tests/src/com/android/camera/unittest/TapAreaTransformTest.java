@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.unittest;
+
+import com.android.camera.TapAreaTransform;
+import com.android.camera.Util;
+
+import android.graphics.Matrix;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.Debug;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class TapAreaTransformTest extends TestCase {
+    private static final int[] ORIENTATIONS = {0, 90, 180, 270};
+    private static final int[][] PREVIEW_SIZES = {
+        {1280, 720}, {720, 1280}, {1920, 1080}, {960, 720}, {800, 480}, {1201, 677},
+    };
+    // The focus area and the 1.5 times bigger metering area.
+    private static final int[] AREA_SIZES = {160, 240, 213, 319};
+    private static final int STEPS = 17;
+
+    // The conversion FocusOverlayManager used to do on every tap.
+    private static void calculateTapAreaWithMatrix(boolean mirror, int displayOrientation,
+            int previewWidth, int previewHeight, int areaSize, int x, int y, Rect rect) {
+        Matrix matrix = new Matrix();
+        Util.prepareMatrix(matrix, mirror, displayOrientation, previewWidth, previewHeight);
+        Matrix inverse = new Matrix();
+        matrix.invert(inverse);
+        int left = Util.clamp(x - areaSize / 2, 0, previewWidth - areaSize);
+        int top = Util.clamp(y - areaSize / 2, 0, previewHeight - areaSize);
+        RectF rectF = new RectF(left, top, left + areaSize, top + areaSize);
+        inverse.mapRect(rectF);
+        Util.rectFToRect(rectF, rect);
+    }
+
+    public void testSameAsMatrix() {
+        TapAreaTransform transform = new TapAreaTransform();
+        Rect expected = new Rect();
+        Rect actual = new Rect();
+        for (int[] size : PREVIEW_SIZES) {
+            int w = size[0];
+            int h = size[1];
+            transform.setPreviewSize(w, h);
+            for (int orientation : ORIENTATIONS) {
+                transform.setDisplayOrientation(orientation);
+                for (int m = 0; m < 2; m++) {
+                    boolean mirror = (m == 1);
+                    transform.setMirror(mirror);
+                    assertTrue(transform.isValid());
+                    for (int areaSize : AREA_SIZES) {
+                        // Include taps outside of the preview and at its edges.
+                        for (int i = -1; i <= STEPS + 1; i++) {
+                            for (int j = -1; j <= STEPS + 1; j++) {
+                                int x = w * i / STEPS;
+                                int y = h * j / STEPS;
+                                calculateTapAreaWithMatrix(mirror, orientation, w, h,
+                                        areaSize, x, y, expected);
+                                transform.calculateTapArea(areaSize, areaSize, x, y, actual);
+                                assertEquals("size=" + w + "x" + h + " orientation="
+                                        + orientation + " mirror=" + mirror + " area="
+                                        + areaSize + " tap=" + x + "," + y,
+                                        expected, actual);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    public void testInvalidUntilPreviewSizeIsSet() {
+        TapAreaTransform transform = new TapAreaTransform();
+        transform.setMirror(true);
+        transform.setDisplayOrientation(90);
+        assertFalse(transform.isValid());
+        transform.setPreviewSize(1280, 720);
+        assertTrue(transform.isValid());
+    }
+
+    public void testNoAllocationPerTap() {
+        TapAreaTransform transform = new TapAreaTransform();
+        transform.setPreviewSize(1280, 720);
+        transform.setDisplayOrientation(90);
+        transform.setMirror(true);
+        Rect rect = new Rect();
+        transform.calculateTapArea(160, 160, 0, 0, rect);
+
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        for (int i = 0; i < 1000; i++) {
+            transform.calculateTapArea(160, 160, i, i / 2, rect);
+            transform.calculateTapArea(240, 240, i, i / 2, rect);
+        }
+        Debug.stopAllocCounting();
+        assertEquals(0, Debug.getThreadAllocCount());
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.unittest;
+
+import com.android.camera.TimeLapseStats;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class TimeLapseStatsTest extends TestCase {
+    private static final int INTERVAL = 1000;
+    private static final int FRAME_RATE = 30;
+
+    // Returns the length of a video of the given number of frames.
+    private static long videoLength(int frames) {
+        return frames * 1000L / FRAME_RATE;
+    }
+
+    public void testOnTarget() {
+        // 61 frames over a minute: one at the start and one per second.
+        TimeLapseStats stats = new TimeLapseStats(INTERVAL, 60000, videoLength(61),
+                FRAME_RATE);
+        assertEquals(61, stats.getCapturedFrames());
+        assertEquals(61, stats.getExpectedFrames());
+        assertEquals(0, stats.getMissedFrames());
+        assertEquals(1000.0, stats.getAverageIntervalMs(), 0.001);
+        assertEquals(0.0, stats.getIntervalError(), 0.001);
+    }
+
+    public void testMissedFrames() {
+        // A quarter of the captures were missed.
+        TimeLapseStats stats = new TimeLapseStats(INTERVAL, 60000, videoLength(46),
+                FRAME_RATE);
+        assertEquals(46, stats.getCapturedFrames());
+        assertEquals(15, stats.getMissedFrames());
+        assertEquals(60000.0 / 45, stats.getAverageIntervalMs(), 0.001);
+        assertTrue(stats.getIntervalError() > 0.3);
+    }
+
+    public void testTooFewFrames() {
+        TimeLapseStats stats = new TimeLapseStats(INTERVAL, 500, videoLength(1), FRAME_RATE);
+        assertEquals(1, stats.getExpectedFrames());
+        assertEquals(0.0, stats.getAverageIntervalMs(), 0.001);
+        assertEquals(0.0, stats.getIntervalError(), 0.001);
+    }
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.unittest;
+
+import com.android.camera.ZoomController;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class ZoomControllerTest extends TestCase {
+    private static final int FRAME_INTERVAL = 16;
+
+    // Records the zoom sent to the camera. A smooth zoom moves one index per
+    // SMOOTH_ZOOM_STEP ms when step() is called.
+    private static class FakeCamera implements ZoomController.Listener {
+        static final int SMOOTH_ZOOM_STEP = 60;
+        int mUpdates;
+        int mZoom = -1;
+        int mSmoothZoomTarget = -1;
+        int mSmoothZoomStarts;
+        int mSmoothZoomStops;
+        boolean mStopping;
+        boolean mRefuseSmoothZoom;
+        long mLastStepTime;
+
+        @Override
+        public void onZoomUpdate(int index) {
+            mUpdates++;
+            mZoom = index;
+        }
+
+        @Override
+        public boolean onSmoothZoom(int index) {
+            assertTrue("Smooth zoom started twice", mSmoothZoomTarget < 0);
+            if (mRefuseSmoothZoom) return false;
+            mSmoothZoomStarts++;
+            mSmoothZoomTarget = index;
+            return true;
+        }
+
+        @Override
+        public void onStopSmoothZoom() {
+            mSmoothZoomStops++;
+            mStopping = true;
+        }
+
+        void step(ZoomController controller, long now) {
+            if (mSmoothZoomTarget < 0) {
+                mLastStepTime = now;
+                return;
+            }
+            if (now - mLastStepTime < SMOOTH_ZOOM_STEP) return;
+            mLastStepTime = now;
+            mZoom += (mSmoothZoomTarget > mZoom) ? 1 : -1;
+            boolean stopped = mStopping || mZoom == mSmoothZoomTarget;
+            if (stopped) {
+                mSmoothZoomTarget = -1;
+                mStopping = false;
+            }
+            controller.onSmoothZoomChanged(mZoom, stopped, now);
+        }
+    }
+
+    // Runs frames when the test says so instead of on the display.
+    private static class TestZoomController extends ZoomController {
+        int mScheduledFrames;
+
+        TestZoomController(Listener listener) {
+            super(listener);
+        }
+
+        @Override
+        protected void scheduleFrame() {
+            mScheduledFrames++;
+        }
+    }
+
+    public void testOneUpdatePerFrame() {
+        FakeCamera camera = new FakeCamera();
+        TestZoomController controller = new TestZoomController(camera);
+        int frames = 30;
+        long time = 1000;
+        int zoom = 0;
+        for (int i = 0; i < frames; i++) {
+            // Two touch events per frame, as with a 120 Hz touch panel.
+            controller.setZoom(++zoom, time);
+            controller.setZoom(++zoom, time + FRAME_INTERVAL / 2);
+            time += FRAME_INTERVAL;
+            controller.onFrame(time);
+            assertEquals(zoom, camera.mZoom);
+        }
+        assertEquals(frames, camera.mUpdates);
+        assertEquals(frames, controller.mScheduledFrames);
+        assertEquals(frames * 2, controller.getRequestCount());
+        assertEquals(frames, controller.getUpdateCount());
+        // The latency is measured from the first event of each frame.
+        assertEquals(FRAME_INTERVAL, controller.getAverageLatency());
+        assertEquals(FRAME_INTERVAL, controller.getMaxLatency());
+
+        // Frames without requests send nothing.
+        controller.onFrame(time + FRAME_INTERVAL);
+        assertEquals(frames, camera.mUpdates);
+    }
+
+    public void testCancel() {
+        FakeCamera camera = new FakeCamera();
+        TestZoomController controller = new TestZoomController(camera);
+        controller.setZoom(3, 0);
+        controller.cancel();
+        controller.onFrame(FRAME_INTERVAL);
+        assertEquals(0, camera.mUpdates);
+
+        controller.setZoom(4, FRAME_INTERVAL);
+        controller.onFrame(FRAME_INTERVAL * 2);
+        assertEquals(1, camera.mUpdates);
+        assertEquals(4, camera.mZoom);
+        assertEquals(4, controller.getZoom());
+
+        controller.resetStats();
+        assertEquals(0, controller.getRequestCount());
+        assertEquals(0, controller.getUpdateCount());
+        assertEquals(0, controller.getMaxLatency());
+    }
+
+    // Pinches from 0 to 30 and back to 10 with two touch events per frame,
+    // and runs the frames the controller asked for.
+    private static long pinch(TestZoomController controller, FakeCamera camera,
+            long time, int[] maxStep) {
+        int[] path = {0, 30, 10};
+        for (int p = 1; p < path.length; p++) {
+            int from = path[p - 1];
+            int to = path[p];
+            int events = Math.abs(to - from) * 4;
+            for (int i = 1; i <= events; i++) {
+                controller.setZoom(from + (to - from) * i / events, time);
+                time += FRAME_INTERVAL / 2;
+                if (i % 2 == 0) runFrame(controller, camera, time, maxStep);
+            }
+        }
+        // Let the zoom settle.
+        for (int i = 0; i < 100; i++) {
+            time += FRAME_INTERVAL;
+            runFrame(controller, camera, time, maxStep);
+        }
+        return time;
+    }
+
+    private static void runFrame(TestZoomController controller, FakeCamera camera,
+            long time, int[] maxStep) {
+        int before = camera.mZoom;
+        if (controller.mScheduledFrames > 0) {
+            controller.mScheduledFrames = 0;
+            controller.onFrame(time);
+        }
+        camera.step(controller, time);
+        if (before >= 0) maxStep[0] = Math.max(maxStep[0], Math.abs(camera.mZoom - before));
+    }
+
+    public void testRateLimit() {
+        FakeCamera camera = new FakeCamera();
+        TestZoomController controller = new TestZoomController(camera);
+        controller.setUpdateInterval(ZoomController.CAMERA_UPDATE_INTERVAL);
+        controller.reset(0);
+        int[] maxStep = new int[1];
+        long start = 1000;
+        long end = pinch(controller, camera, start, maxStep);
+        assertEquals(10, camera.mZoom);
+        // At most one update per camera update interval.
+        assertTrue(controller.toString(),
+                controller.getUpdateRate() <= 1000f / ZoomController.CAMERA_UPDATE_INTERVAL);
+        assertTrue(controller.toString(),
+                camera.mUpdates <= (end - start) / ZoomController.CAMERA_UPDATE_INTERVAL + 1);
+        assertEquals(0, controller.getMaxOvershoot());
+    }
+
+    public void testSmoothing() {
+        FakeCamera camera = new FakeCamera();
+        TestZoomController controller = new TestZoomController(camera);
+        controller.setUpdateInterval(ZoomController.CAMERA_UPDATE_INTERVAL);
+        controller.setSmoothing(ZoomController.DEFAULT_SMOOTHING);
+        controller.setMaxZoom(30);
+        controller.reset(0);
+        int[] maxStep = new int[1];
+        pinch(controller, camera, 1000, maxStep);
+        // The zoom ends at the target without jumps.
+        assertEquals(10, camera.mZoom);
+        assertEquals(10, controller.getZoom());
+        assertTrue("step=" + maxStep[0], maxStep[0] <= 4);
+        assertTrue(controller.getUpdateRate()
+                <= 1000f / ZoomController.CAMERA_UPDATE_INTERVAL);
+        // The prediction may go a little past the end of a stroke.
+        assertTrue(controller.toString(), controller.getMaxOvershoot() <= 3);
+    }
+
+    public void testPredictionReducesLag() {
+        int[] lag = new int[2];
+        for (int predict = 0; predict < 2; predict++) {
+            FakeCamera camera = new FakeCamera();
+            TestZoomController controller = new TestZoomController(camera);
+            controller.setUpdateInterval(ZoomController.CAMERA_UPDATE_INTERVAL);
+            controller.setSmoothing(ZoomController.DEFAULT_SMOOTHING);
+            controller.setPredictionEnabled(predict == 1);
+            controller.reset(0);
+            long time = 1000;
+            int[] maxStep = new int[1];
+            // A steady pinch of one index per frame.
+            for (int i = 1; i <= 40; i++) {
+                controller.setZoom(i, time);
+                time += FRAME_INTERVAL;
+                runFrame(controller, camera, time, maxStep);
+                lag[predict] = Math.max(lag[predict], i - camera.mZoom);
+            }
+        }
+        assertTrue("lag=" + lag[1] + " without prediction=" + lag[0], lag[1] < lag[0]);
+    }
+
+    public void testSmoothZoom() {
+        FakeCamera camera = new FakeCamera();
+        TestZoomController controller = new TestZoomController(camera);
+        controller.setSmoothZoomSupported(true);
+        controller.reset(0);
+        camera.mZoom = 0;
+        int[] maxStep = new int[1];
+        pinch(controller, camera, 1000, maxStep);
+        assertEquals(10, camera.mZoom);
+        assertEquals(0, camera.mUpdates);
+        // The camera is slower than the pinch. It was stopped when the
+        // target moved back past where the camera was going, which limits
+        // the overshoot to one step.
+        assertTrue(camera.mSmoothZoomStops >= 1);
+        assertTrue(camera.mSmoothZoomStarts > camera.mSmoothZoomStops);
+        assertTrue(controller.toString(), controller.getMaxOvershoot() <= 1);
+        assertEquals(1, maxStep[0]);
+        assertTrue(controller.getUpdateRate() > 0);
+        assertTrue(controller.getUpdateRate() <= 1000f / FakeCamera.SMOOTH_ZOOM_STEP);
+    }
+
+    public void testSmoothZoomRefused() {
+        FakeCamera camera = new FakeCamera();
+        TestZoomController controller = new TestZoomController(camera);
+        controller.setSmoothZoomSupported(true);
+        controller.reset(0);
+        camera.mRefuseSmoothZoom = true;
+        controller.setZoom(5, 0);
+        controller.onFrame(FRAME_INTERVAL);
+        // The target is set directly while the camera cannot smooth zoom.
+        assertEquals(0, camera.mSmoothZoomStarts);
+        assertEquals(1, camera.mUpdates);
+        assertEquals(5, camera.mZoom);
+
+        camera.mRefuseSmoothZoom = false;
+        controller.setZoom(8, FRAME_INTERVAL);
+        controller.onFrame(FRAME_INTERVAL * 2);
+        assertEquals(1, camera.mSmoothZoomStarts);
+        assertEquals(1, camera.mUpdates);
+    }
+
+    public void testSmoothZoomFailed() {
+        FakeCamera camera = new FakeCamera();
+        TestZoomController controller = new TestZoomController(camera);
+        controller.setSmoothZoomSupported(true);
+        controller.reset(0);
+        camera.mZoom = 0;
+        controller.setZoom(5, 0);
+        controller.onFrame(FRAME_INTERVAL);
+        assertEquals(1, camera.mSmoothZoomStarts);
+
+        // The camera threw instead of zooming, so the zoom is set directly
+        // from then on.
+        camera.mSmoothZoomTarget = -1;
+        controller.mScheduledFrames = 0;
+        controller.onSmoothZoomFailed();
+        assertEquals(1, controller.mScheduledFrames);
+        controller.onFrame(FRAME_INTERVAL * 2);
+        assertEquals(5, camera.mZoom);
+        assertEquals(1, camera.mUpdates);
+
+        controller.setZoom(9, FRAME_INTERVAL * 2);
+        controller.onFrame(FRAME_INTERVAL * 3);
+        assertEquals(9, camera.mZoom);
+        assertEquals(1, camera.mSmoothZoomStarts);
+    }
+}